@@ -4,6 +4,8 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.Toolkit;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.net.URL;
@@ -11,6 +13,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.swing.BorderFactory;
@@ -20,10 +23,12 @@ import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.GroupLayout.Group;
 import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
 import javax.swing.border.BevelBorder;
 import javax.swing.border.Border;
 import javax.swing.text.BadLocationException;
@@ -69,7 +74,7 @@ public class ChatBox extends JFrame {
      * @param isGroupChat
      *            Whether or not the chat in this ChatBox is a group chat.
      */
-    public ChatBox(ChatClientModel chatClientModel, int conversationID,
+    public ChatBox(ChatClientModel chatClientModel, long conversationID,
             String title, boolean isGroupChat) {
         this.model = new ChatBoxModel(chatClientModel, this, conversationID,
                 isGroupChat);
@@ -121,6 +126,19 @@ public class ChatBox extends JFrame {
         messageScroll.setBorder(lineBorder);
         background.setBorder(paddingBorder);
         bottomLabel.setForeground(Color.WHITE);
+        // load older messages once the user scrolls to the top
+        displayScroll.getVerticalScrollBar().addAdjustmentListener(
+                new AdjustmentListener() {
+                    @Override
+                    public void adjustmentValueChanged(AdjustmentEvent e) {
+                        JScrollBar bar = displayScroll.getVerticalScrollBar();
+                        if (!e.getValueIsAdjusting()
+                                && bar.getValue() == bar.getMinimum()
+                                && bar.getMaximum() > bar.getVisibleAmount()) {
+                            model.loadOlderHistory();
+                        }
+                    }
+                });
         this.add(background);
         this.getContentPane().setLayout(
                 new BoxLayout(this.getContentPane(), BoxLayout.PAGE_AXIS));
@@ -182,29 +200,78 @@ public class ChatBox extends JFrame {
                                  // already
             this.setVisible(true);
         }
+        StyledDocument doc = display.getStyledDocument();
+        insertChatLine(doc, doc.getLength(), username, message, new Date());
+    }
 
+    /**
+     * Record chat lines said before any other in the ChatBox GUI, such as a
+     * page of history from the server, above everything already shown. The
+     * lines shown stay where they are on the screen.
+     * 
+     * @param lines
+     *            The chat lines, oldest first, each as the username of the
+     *            user that sent it, the time it was sent in milliseconds and
+     *            its text.
+     */
+    public void prependChatLines(List<String[]> lines) {
+        final JScrollBar bar = displayScroll.getVerticalScrollBar();
+        final int fromBottom = bar.getMaximum() - bar.getValue();
+        StyledDocument doc = display.getStyledDocument();
+        int offset = 0;
+        for (String[] line : lines) {
+            offset = insertChatLine(doc, offset, line[0], line[2], new Date(
+                    Long.parseLong(line[1])));
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                bar.setValue(bar.getMaximum() - fromBottom);
+            }
+        });
+    }
+
+    /**
+     * Insert a chat line into the document of the display.
+     * 
+     * @param doc
+     *            The document into which the line will be inserted.
+     * @param offset
+     *            Where in the document the line will be inserted.
+     * @param username
+     *            The username of the user that sent the chat line.
+     * @param message
+     *            The text of the message that the user sent.
+     * @param time
+     *            When the message was sent.
+     * @return the offset just after the inserted line.
+     */
+    private int insertChatLine(StyledDocument doc, int offset,
+            String username, String message, Date time) {
         // configure the text of what will be inserted into the display.
-        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(time);
         String text = username + " [" + timestamp + "]:";
 
         // formatting
-        StyledDocument doc = display.getStyledDocument();
         SimpleAttributeSet keyWord = new SimpleAttributeSet();
         StyleConstants.setForeground(keyWord, DARK_BLUE);
         StyleConstants.setBold(keyWord, true);
 
         try { // insert into document
-            doc.insertString(doc.getLength(), text, keyWord);
-            doc.insertString(doc.getLength(), " ", null);
+            doc.insertString(offset, text, keyWord);
+            offset += text.length();
+            doc.insertString(offset, " ", null);
+            offset++;
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
-        processMessage(doc, message); // add message
+        offset = processMessage(doc, offset, message); // add message
         try { // insert the rest into the document
-            doc.insertString(doc.getLength(), "\n", null);
+            doc.insertString(offset, "\n", null);
+            offset++;
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
     /**
@@ -218,6 +285,22 @@ public class ChatBox extends JFrame {
      *            The message that will eventually be inserted into the chat.
      */
     public void processMessage(StyledDocument doc, String message) {
+        processMessage(doc, doc.getLength(), message);
+    }
+
+    /**
+     * Insert a message into the document at a given offset, as
+     * processMessage(StyledDocument, String) inserts it at the end.
+     * 
+     * @param doc
+     *            The document into which the message will be inserted.
+     * @param offset
+     *            Where in the document the message will be inserted.
+     * @param message
+     *            The message that will eventually be inserted into the chat.
+     * @return the offset just after the inserted message.
+     */
+    private int processMessage(StyledDocument doc, int offset, String message) {
         while (message.length() > 0) {
             boolean found = false;
             for (int i = 1; i <= message.length(); i++) {// test whether there
@@ -227,7 +310,7 @@ public class ChatBox extends JFrame {
                 if (Emoticon.isValid(substring)) { // if there is an emoticon,
                                                    // insert it accordingly into
                                                    // the doc
-                    processEmoticon(doc, substring);
+                    offset = processEmoticon(doc, offset, substring);
                     message = message.substring(i);
                     found = true;
                     break;
@@ -245,7 +328,7 @@ public class ChatBox extends JFrame {
                           // accordingly into the doc
                         String latex = message.substring(dollarIndex + 2,
                                 endIndex);
-                        processLatex(doc, latex);
+                        offset = processLatex(doc, offset, latex);
                         message = message.substring(endIndex + 1);
                         found = true;
                     } catch (org.scilab.forge.jlatexmath.ParseException e) { // handle
@@ -259,14 +342,15 @@ public class ChatBox extends JFrame {
             
             if (!found) {
                 try {
-                    doc.insertString(doc.getLength(), message.substring(0, 1),
-                            null);
+                    doc.insertString(offset, message.substring(0, 1), null);
+                    offset++;
                     message = message.substring(1);
                 } catch (BadLocationException e) {
                     e.printStackTrace();
                 }
             }
         }
+        return offset;
     }
 
     /**
@@ -278,6 +362,16 @@ public class ChatBox extends JFrame {
      *            The string that represents the emoticon.
      */
     public void processEmoticon(StyledDocument doc, String substring) {
+        processEmoticon(doc, doc.getLength(), substring);
+    }
+
+    /**
+     * Insert an emoticon into the document at a given offset.
+     * 
+     * @return the offset just after the emoticon.
+     */
+    private int processEmoticon(StyledDocument doc, int offset,
+            String substring) {
         // create image
         Emoticon emoticon = new Emoticon(substring);
 
@@ -293,10 +387,12 @@ public class ChatBox extends JFrame {
 
         // insert into document
         try {
-            doc.insertString(doc.getLength(), substring, labelStyle);
+            doc.insertString(offset, substring, labelStyle);
+            offset += substring.length();
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
     /**
@@ -309,6 +405,15 @@ public class ChatBox extends JFrame {
      *            The string that represents laTeX code.
      */
     public void processLatex(StyledDocument doc, String latex) {
+        processLatex(doc, doc.getLength(), latex);
+    }
+
+    /**
+     * Insert a laTeX graphic into the document at a given offset.
+     * 
+     * @return the offset just after the graphic.
+     */
+    private int processLatex(StyledDocument doc, int offset, String latex) {
         // synthesize image
         TeXFormula formula = new TeXFormula(latex);
         TeXIcon icon = formula.new TeXIconBuilder()
@@ -330,10 +435,12 @@ public class ChatBox extends JFrame {
 
         // insert into document
         try {
-            doc.insertString(doc.getLength(), latex, labelStyle);
+            doc.insertString(offset, latex, labelStyle);
+            offset += latex.length();
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
+        return offset;
     }
 
     /**
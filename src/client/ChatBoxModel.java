@@ -5,7 +5,9 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,7 +23,7 @@ import javax.swing.Timer;
 public class ChatBoxModel implements KeyListener {
 
     private final ChatBox chatBox; // The chat box GUI
-    private final int conversationID; // The ID of the conversation being held
+    private final long conversationID; // The ID of the conversation being held
                                       // in the
                                       // chat box represented by this model
     private final ChatClientModel model; // The main chat client of the user
@@ -44,6 +46,15 @@ public class ChatBoxModel implements KeyListener {
                                                 // chatboxes corresponding to
                                                 // the conversation
                                                 // happening in this chatbox
+    private final TypingNotifier typingNotifier; // Decides which typing
+                                                 // notifications to send as
+                                                 // the user types
+    private long historyCursor; // The before-seq of the next page of history
+                                // to fetch: 0 before the first page, and at
+                                // most 1 once there are no more
+    private boolean historyLoading; // True while a page is being fetched
+    private int liveLines; // The chat lines shown before the first page of
+                           // history arrived
 
     /**
      * Creates a new ChatBoxModel with the given parameters. A group chat will
@@ -59,13 +70,18 @@ public class ChatBoxModel implements KeyListener {
      *            true if the Chat Box Model represents a group chat.
      */
     public ChatBoxModel(ChatClientModel model, ChatBox chatBox,
-            int conversationID, boolean isGroupChat) {
+            long conversationID, boolean isGroupChat) {
         this.model = model;
         this.chatBox = chatBox;
         this.conversationID = conversationID;
         this.isGroupChat = isGroupChat;
         this.usersTyping = new HashMap<String, Integer>();
         this.usersEnteredText = new HashSet<String>();
+        this.typingNotifier = new TypingNotifier(
+                model.getTypingIntervalMillis());
+        this.historyCursor = 0;
+        this.historyLoading = false;
+        this.liveLines = 0;
     }
 
     /**
@@ -87,6 +103,9 @@ public class ChatBoxModel implements KeyListener {
      */
     public void addChatToDisplay(String username, String message) {
         chatBox.appendChatLine(username, message);
+        if (this.historyCursor == 0) {
+            this.liveLines++;
+        }
         if (this.usersTyping.containsKey(username)) {
             this.usersTyping.remove(username); // once a user submits a message,
                                                // he/she is no longer typing.
@@ -102,6 +121,52 @@ public class ChatBoxModel implements KeyListener {
                                                                                 // GUI
     }
 
+    /**
+     * Asks the server for the page of history just before what is shown,
+     * unless a page is already being fetched or there is no older message.
+     * The first call fetches the latest messages.
+     */
+    public void loadOlderHistory() {
+        if (this.historyLoading
+                || (this.historyCursor != 0 && this.historyCursor <= 1)) {
+            return;
+        }
+        this.historyLoading = true;
+        model.fetchHistory(conversationID, historyCursor);
+    }
+
+    /**
+     * Shows a page of history from the server above everything shown so far.
+     * The messages of the first page that were also shown as they were said
+     * are left out, and if more were shown than the page holds, such as the
+     * messages held for the user while offline, the next page starts before
+     * the oldest of them.
+     * 
+     * @param lines
+     *            The "history" lines of the page from the server, oldest
+     *            first.
+     * @param oldest
+     *            The before-seq of the next older page.
+     */
+    public void addHistoryPage(List<String> lines, long oldest) {
+        List<String[]> page = new ArrayList<String[]>();
+        int kept = lines.size();
+        if (this.historyCursor == 0) {
+            kept = Math.max(0, kept - this.liveLines);
+            // the live lines are the newest messages, up to the page's end
+            oldest = Math.min(oldest, oldest + lines.size() - this.liveLines);
+        }
+        for (int i = 0; i < kept; i++) {
+            // history SPACE id SPACE seq SPACE time SPACE username SPACE text
+            String[] tokens = lines.get(i).split(" ", 6);
+            page.add(new String[] { tokens[4], tokens[3],
+                    tokens.length > 5 ? tokens[5] : "" });
+        }
+        chatBox.prependChatLines(page);
+        this.historyCursor = Math.max(oldest, 1);
+        this.historyLoading = false;
+    }
+
     /**
      * Adds a general message line to the display.
      * 
@@ -221,15 +286,24 @@ public class ChatBoxModel implements KeyListener {
      * the user is no longer typing and that there is no entered unsent text in
      * the chat box. If there is text in this text field, then alerts the main
      * chat client model that the user has entered but not submitted text in the
-     * chat box.
+     * chat box. The alerts are debounced by a TypingNotifier: "typing" is sent
+     * at most once per interval, and "cleared" only when the text field
+     * becomes empty.
      */
     @Override
     public void keyReleased(KeyEvent e) {
         if (e.getKeyChar() != KeyEvent.VK_ENTER) {
-            if (chatBox.getMessage().getText().equals("")) {
-                this.model.sendCleared(this.conversationID);
-            } else {
+            boolean empty = chatBox.getMessage().getText().equals("");
+            switch (this.typingNotifier.keyReleased(empty,
+                    System.currentTimeMillis())) {
+            case TypingNotifier.TYPING:
                 this.model.sendTyping(this.conversationID);
+                break;
+            case TypingNotifier.CLEARED:
+                this.model.sendCleared(this.conversationID);
+                break;
+            default:
+                break;
             }
         }
     }
@@ -245,6 +319,7 @@ public class ChatBoxModel implements KeyListener {
             String message = chatBox.sendMessage();
             if (!message.equals("")) {
                 addChatLine(message);
+                this.typingNotifier.textSent();
             }
         }
     }
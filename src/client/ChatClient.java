@@ -69,7 +69,41 @@ public class ChatClient extends JFrame {
      *            a server is connected.
      */
     public ChatClient(String IP, String port) {
-        this.model = new ChatClientModel(this, IP, port);
+        this(IP, port, false);
+    }
+
+    /**
+     * Create a new ChatClient that may talk to the server in binary frames.
+     * 
+     * @param IP
+     *            String corresponding to IP address of server.
+     * @param port
+     *            String corresponding to port number of server.
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     */
+    public ChatClient(String IP, String port, boolean binary) {
+        this(IP, port, binary, false);
+    }
+
+    /**
+     * Create a new ChatClient that may talk to the server in binary frames and
+     * have the server compress what it sends.
+     * 
+     * @param IP
+     *            String corresponding to IP address of server.
+     * @param port
+     *            String corresponding to port number of server.
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     * @param deflate
+     *            True if the client should ask the server to compress what it
+     *            sends when it logs in.
+     */
+    public ChatClient(String IP, String port, boolean binary, boolean deflate) {
+        this.model = new ChatClientModel(this, IP, port, binary, deflate);
         this.model.startListening();
         quitChatOnClose();
         startLoginWindow();
@@ -654,10 +688,10 @@ public class ChatClient extends JFrame {
      * @param history
      *            A ChatHistory containing the history to be added
      * @param ID
-     *            An int representing the ID of the Conversation to which the
+     *            A long representing the ID of the Conversation to which the
      *            ChatHistory pertains
      */
-    public void addHistory(ChatHistory history, int ID) {
+    public void addHistory(ChatHistory history, long ID) {
     	String label = "Empty group chat";
     	if (history.getParticipants().size() > 0) {
         	label = "Chat with ";
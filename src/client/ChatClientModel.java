@@ -2,13 +2,16 @@ package client;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
@@ -19,6 +22,10 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.swing.SwingUtilities;
 
+import protocol.BinaryCodec;
+import protocol.LoginOptions;
+import protocol.MessageReader;
+
 import conversation.ChatHistory;
 
 import user.User;
@@ -31,6 +38,9 @@ import user.User;
  */
 
 public class ChatClientModel implements ActionListener {
+    public static final int HISTORY_PAGE_SIZE = 50; // The messages asked for
+                                                    // in each page of history
+
     private final String IPAddress;
     private final int port;
 
@@ -38,20 +48,38 @@ public class ChatClientModel implements ActionListener {
     private final Socket socket; // The socket through which the client connects
                                  // to the server
     private final ChatClient client; // The chat client GUI
-    private final ConcurrentMap<Integer, ChatBoxModel> chats; // The list of all
+    private final ConcurrentMap<Long, ChatBoxModel> chats; // The list of all
                                                               // current open
                                                               // chats
     private final BlockingQueue<String> messages; // The queue of messages from
                                                   // the server that the
                                                   // ChatClientModel must
                                                   // process
-    private ConcurrentMap<Integer, ChatHistory> history; // The chat history
-    private ConcurrentMap<String, Integer> conversationIDMap; // For use in
+    private ConcurrentMap<Long, ChatHistory> history; // The chat history
+    private ConcurrentMap<String, Long> conversationIDMap; // For use in
                                                               // private chats;
                                                               // connects
                                                               // usernames with
                                                               // past chat IDs
     private Set<User> users; // The set of users who are currently online
+    private final boolean binary; // True if the client asks for binary frames
+                                  // when it logs in
+    private final boolean deflate; // True if the client asks the server to
+                                   // compress what it sends when it logs in
+    private boolean optionsRequested; // True once a login command asked for
+                                      // the options above
+    private final BinaryCodec codec; // Translates messages to and from binary
+                                     // frames
+    private boolean sendingBinary; // True once commands are sent as frames
+    private volatile long typingIntervalMillis; // The least time between two
+                                                // typing notifications sent
+                                                // from one chat box
+    private final Map<Long, List<String>> historyPages; // The history lines
+                                                        // received so far
+                                                        // of each page not
+                                                        // ended yet; only
+                                                        // used by the
+                                                        // listening thread
 
     /**
      * Creates a ChatClientModel with a given IP and port. Throws an error if
@@ -65,12 +93,55 @@ public class ChatClientModel implements ActionListener {
      *            The port to connect to.
      */
     public ChatClientModel(ChatClient client, String IP, String port) {
+        this(client, IP, port, false);
+    }
+
+    /**
+     * Creates a ChatClientModel with a given IP and port that may talk to the
+     * server in binary frames. Throws an error if the IP and port cannot be
+     * connected to.
+     * 
+     * @param client
+     *            The ChatClient that uses this ChatClientModel.
+     * @param IP
+     *            The IP to connect to.
+     * @param port
+     *            The port to connect to.
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     */
+    public ChatClientModel(ChatClient client, String IP, String port,
+            boolean binary) {
+        this(client, IP, port, binary, false);
+    }
+
+    /**
+     * Creates a ChatClientModel with a given IP and port that may talk to the
+     * server in binary frames and have the server compress what it sends.
+     * Throws an error if the IP and port cannot be connected to.
+     * 
+     * @param client
+     *            The ChatClient that uses this ChatClientModel.
+     * @param IP
+     *            The IP to connect to.
+     * @param port
+     *            The port to connect to.
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     * @param deflate
+     *            True if the client should ask the server to compress what it
+     *            sends when it logs in.
+     */
+    public ChatClientModel(ChatClient client, String IP, String port,
+            boolean binary, boolean deflate) {
         this.IPAddress = IP;
         this.port = Integer.parseInt(port);
 
         this.client = client;
         this.user = null;
-        chats = new ConcurrentHashMap<Integer, ChatBoxModel>();
+        chats = new ConcurrentHashMap<Long, ChatBoxModel>();
         try {
             this.socket = this.connect();
         } catch (IOException e) {
@@ -78,9 +149,16 @@ public class ChatClientModel implements ActionListener {
                     "Unexpected IOException in ChatClientModel()");
         }
         this.messages = new LinkedBlockingQueue<String>();
-        this.history = new ConcurrentHashMap<Integer, ChatHistory>();
-        this.conversationIDMap = new ConcurrentHashMap<String, Integer>();
+        this.history = new ConcurrentHashMap<Long, ChatHistory>();
+        this.conversationIDMap = new ConcurrentHashMap<String, Long>();
+        this.historyPages = new HashMap<Long, List<String>>();
         this.users = new TreeSet<User>();
+        this.binary = binary;
+        this.deflate = deflate;
+        this.optionsRequested = false;
+        this.codec = new BinaryCodec(false);
+        this.sendingBinary = false;
+        this.typingIntervalMillis = TypingNotifier.DEFAULT_INTERVAL_MILLIS;
     }
 
     /**
@@ -96,7 +174,7 @@ public class ChatClientModel implements ActionListener {
      * Quit all of the open chats and submit a logout command to the server.
      */
     public void quitChats() {
-        for (Integer ID : chats.keySet()) {
+        for (Long ID : chats.keySet()) {
             ChatBoxModel model = chats.remove(ID);
             model.getChatBox().dispose();
         }
@@ -106,7 +184,9 @@ public class ChatClientModel implements ActionListener {
     /**
      * Attempt to set a client's username and avatar by submitting a login
      * command to the server and seeing if the server reports that the login was
-     * successful.
+     * successful. If the client was created to use binary frames or
+     * compression, the first login command asks for them (see LoginOptions),
+     * and with binary frames every command after it is sent as a frame.
      * 
      * @throws RuntimeException
      *             if an unusual message is sent from the server after the login
@@ -124,8 +204,19 @@ public class ChatClientModel implements ActionListener {
      */
     public boolean tryUsername(String username, int avatar) {
         if (username != null && !username.equals("")) {
-            this.submitCommand("login_attempt " + username + " "
-                    + Integer.toString(avatar));
+            String command = "login_attempt " + username + " "
+                    + Integer.toString(avatar);
+            synchronized (this) {
+                if ((this.binary || this.deflate) && !this.optionsRequested) {
+                    this.submitCommand(command
+                            + (this.binary ? " " + LoginOptions.BINARY : "")
+                            + (this.deflate ? " " + LoginOptions.DEFLATE : ""));
+                    this.optionsRequested = true;
+                    this.sendingBinary = this.binary;
+                } else {
+                    this.submitCommand(command);
+                }
+            }
             try {
                 String result = this.messages.take();
                 if (result.equals("login_success")) {
@@ -156,7 +247,7 @@ public class ChatClientModel implements ActionListener {
      */
     public void addChat(User other) {
         if (conversationIDMap.containsKey(other.getUsername())) {
-            int ID = conversationIDMap.get(other.getUsername());
+            long ID = conversationIDMap.get(other.getUsername());
             chats.get(ID).show();
         } else {
             String command = "chat_start " + this.user.getUsername() + " "
@@ -186,8 +277,8 @@ public class ChatClientModel implements ActionListener {
      * @param ID
      *            The ID of the chat that the user is leaving.
      */
-    public void exitChat(int ID) {
-        submitCommand("group_chat_leave " + Integer.toString(ID) + " "
+    public void exitChat(long ID) {
+        submitCommand("group_chat_leave " + Long.toString(ID) + " "
                 + user.getUsername());
         removeChat(ID);
     }
@@ -200,7 +291,7 @@ public class ChatClientModel implements ActionListener {
      *            The ID of the chat conversation from which the user should be
      *            removed.
      */
-    public void removeChat(int conversationID) {
+    public void removeChat(long conversationID) {
         if (this.chats.containsKey(conversationID)) {
             // Get text associated with this conversation for the purposes of
             // storing history.
@@ -233,7 +324,7 @@ public class ChatClientModel implements ActionListener {
      * @param ID
      *            The ID of the chat for which we want to view the history
      */
-    public void showChatHistory(int ID) {
+    public void showChatHistory(long ID) {
         ChatHistory currentHistory = history.get(ID);
         HistoryBox box = new HistoryBox(currentHistory);
         box.setVisible(true);
@@ -247,15 +338,30 @@ public class ChatClientModel implements ActionListener {
      *            The ID corresponding to the chat
      * @param text
      */
-    public void sendChat(int ID, String text) {
+    public void sendChat(long ID, String text) {
         // divide text into multiple lines
         StringTokenizer lineBreaker = new StringTokenizer(text, "\n");
         while (lineBreaker.hasMoreTokens()) {
-            submitCommand("say " + Integer.toString(ID) + " "
+            submitCommand("say " + Long.toString(ID) + " "
                     + user.getUsername() + " " + lineBreaker.nextToken());
         }
     }
 
+    /**
+     * Asks the server for a page of the messages said in a conversation
+     * before a given one.
+     * 
+     * @param ID
+     *            The ID of the conversation.
+     * @param before
+     *            The sequence of the message the page ends before, or 0 for
+     *            the latest messages.
+     */
+    public void fetchHistory(long ID, long before) {
+        submitCommand("history_fetch " + Long.toString(ID) + " "
+                + Long.toString(before) + " " + HISTORY_PAGE_SIZE);
+    }
+
     /**
      * Alerts the server that this user is typing.
      * 
@@ -263,27 +369,54 @@ public class ChatClientModel implements ActionListener {
      *            The ID corresponding to the chat box in which this user is
      *            typing.
      */
-    public void sendTyping(int ID) {
-        submitCommand("typing " + Integer.toString(ID) + " "
+    public void sendTyping(long ID) {
+        submitCommand("typing " + Long.toString(ID) + " "
                 + user.getUsername());
     }
 
-    public void sendCleared(int ID) {
-        submitCommand("cleared " + Integer.toString(ID) + " "
+    /**
+     * Sets the least time between two typing notifications sent from one chat
+     * box. Applies to chat boxes opened after the call.
+     * 
+     * @param typingIntervalMillis
+     *            The interval in milliseconds, or 0 to send a notification
+     *            for every keystroke. Must be non-negative.
+     */
+    public void setTypingIntervalMillis(long typingIntervalMillis) {
+        if (typingIntervalMillis < 0) {
+            throw new IllegalArgumentException(
+                    "typingIntervalMillis must be non-negative");
+        }
+        this.typingIntervalMillis = typingIntervalMillis;
+    }
+
+    public long getTypingIntervalMillis() {
+        return this.typingIntervalMillis;
+    }
+
+    public void sendCleared(long ID) {
+        submitCommand("cleared " + Long.toString(ID) + " "
                 + user.getUsername());
     }
 
     /**
      * Send a command to the server via the socket. The command must follow the
-     * grammar detailed in the design document.
+     * grammar detailed in the design document. Once the client has asked for
+     * binary frames, the command is sent as a frame instead of a line.
      * 
      * @param command
      *            The properly-formatted command that will be sent to the
      *            server.
      */
-    public void submitCommand(String command) {
+    public synchronized void submitCommand(String command) {
         PrintWriter out;
         try {
+            if (this.sendingBinary) {
+                ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                this.codec.encode(command, frames);
+                frames.writeTo(socket.getOutputStream());
+                return;
+            }
             out = new PrintWriter(socket.getOutputStream(), true);
             out.println(command);
         } catch (IOException e) {
@@ -292,17 +425,32 @@ public class ChatClientModel implements ActionListener {
     }
 
     /**
-     * Listen for commands sent from the server.
+     * Listen for commands sent from the server. If the client asks for binary
+     * frames or compression, the server's reply to the login command is the
+     * last message it sends uncompressed as a text line; everything after it
+     * is read as frames, inflated, or both.
      * 
      * @throws IOException
      */
     public void listenForResponse() throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(
-                socket.getInputStream()));
+        MessageReader in = new MessageReader(socket.getInputStream());
+        boolean switched = false;
         try {
-            for (String line = in.readLine(); line != null; line = in
-                    .readLine()) {
-                handleRequest(line);
+            for (String line = in.readMessage(); line != null; line = in
+                    .readMessage()) {
+                handleRequest(line, in.isLastStructured());
+                if ((this.binary || this.deflate)
+                        && !switched
+                        && (line.equals("login_success") || line
+                                .equals("login_invalid"))) {
+                    if (this.binary) {
+                        in.switchToBinary(this.codec);
+                    }
+                    if (this.deflate) {
+                        in.startInflating();
+                    }
+                    switched = true;
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -342,11 +490,65 @@ public class ChatClientModel implements ActionListener {
             processTypingCommand(output);
         } else if (output.matches("cleared \\d+ [A-Za-z0-9]+")) {
             processClearedCommand(output);
+        } else if (output.matches("history \\d+ \\d+ \\d+ [A-Za-z0-9]+ .*")) {
+            processHistoryCommand(output);
+        } else if (output.matches("history_end \\d+ \\d+")) {
+            processHistoryEndCommand(output);
         } else {
             throw new RuntimeException("Illegal message from server: " + output);
         }
     }
 
+    /**
+     * Handle output from the server, skipping the check of its format if it
+     * is known to be well-formed, as a message decoded from a structured
+     * binary frame is. Must be run from the event thread to avoid concurrency
+     * issues.
+     * 
+     * @param output
+     *            The output from the server.
+     * @param wellFormed
+     *            True if the output is known to follow the grammar of its
+     *            command.
+     */
+    public void handleRequest(String output, boolean wellFormed) {
+        if (!wellFormed) {
+            handleRequest(output);
+            return;
+        }
+        int end = output.indexOf(' ');
+        String command = end < 0 ? output : output.substring(0, end);
+        if (command.equals("login_success")) {
+            processLoginSuccessCommand(output);
+        } else if (command.equals("login_invalid")) {
+            processLoginInvalidCommand(output);
+        } else if (command.equals("user_joins")) {
+            processUserJoinsCommand(output);
+        } else if (command.equals("user_leaves")) {
+            processUserLeavesCommand(output);
+        } else if (command.equals("chat_start")) {
+            processChatStartCommand(output);
+        } else if (command.equals("group_chat_start")) {
+            processGroupChatStartCommand(output);
+        } else if (command.equals("group_chat_join")) {
+            processGroupChatJoinCommand(output);
+        } else if (command.equals("group_chat_leave")) {
+            processGroupChatLeaveCommand(output);
+        } else if (command.equals("say")) {
+            processSayCommand(output);
+        } else if (command.equals("typing")) {
+            processTypingCommand(output);
+        } else if (command.equals("cleared")) {
+            processClearedCommand(output);
+        } else if (command.equals("history")) {
+            processHistoryCommand(output);
+        } else if (command.equals("history_end")) {
+            processHistoryEndCommand(output);
+        } else {
+            handleRequest(output);
+        }
+    }
+
     // HELPER METHODS FOR HANDLEREQUEST METHOD
 
     /**
@@ -443,7 +645,7 @@ public class ChatClientModel implements ActionListener {
     public void processChatStartCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final int ID = Integer.parseInt(outTokenizer.nextToken());
+        final long ID = Long.parseLong(outTokenizer.nextToken());
         final String username1 = outTokenizer.nextToken();
         final String username2 = outTokenizer.nextToken();
         if (!chats.containsKey(ID)) { // create an entirely new chat
@@ -472,7 +674,7 @@ public class ChatClientModel implements ActionListener {
      *            True if the chat window should be open by default and false
      *            otherwise.
      */
-    public void newChatCreation(final String username, final int ID,
+    public void newChatCreation(final String username, final long ID,
             final boolean popup) {
         final ChatClientModel temp = this;
         SwingUtilities.invokeLater(new Runnable() {
@@ -484,6 +686,8 @@ public class ChatClientModel implements ActionListener {
                         + ": chat with " + username, false);
                 box.setVisible(popup);
                 chats.put(ID, box.getModel());
+                // show what was said before, even in a fresh client
+                box.getModel().loadOlderHistory();
             }
         });
     }
@@ -496,7 +700,7 @@ public class ChatClientModel implements ActionListener {
      * @param ID
      *            The ID corresponding to the new chat.
      */
-    public void oldChatRevival(final String username, final int ID) {
+    public void oldChatRevival(final String username, final long ID) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 chats.get(ID).addMessageToDisplay(
@@ -521,7 +725,7 @@ public class ChatClientModel implements ActionListener {
     public void processGroupChatStartCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final int ID = Integer.parseInt(outTokenizer.nextToken());
+        final long ID = Long.parseLong(outTokenizer.nextToken());
         if (!chats.containsKey(ID)) {
             final ChatClientModel temp = this;
             SwingUtilities.invokeLater(new Runnable() {
@@ -546,7 +750,7 @@ public class ChatClientModel implements ActionListener {
     public void processGroupChatJoinCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final int ID = Integer.parseInt(outTokenizer.nextToken());
+        final long ID = Long.parseLong(outTokenizer.nextToken());
 
         final String username = outTokenizer.nextToken();
         if (!username.equals(this.user.getUsername())) {
@@ -573,7 +777,7 @@ public class ChatClientModel implements ActionListener {
     public void processGroupChatLeaveCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final int ID = Integer.parseInt(outTokenizer.nextToken());
+        final long ID = Long.parseLong(outTokenizer.nextToken());
         final String username = outTokenizer.nextToken();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
@@ -595,8 +799,8 @@ public class ChatClientModel implements ActionListener {
     public void processSayCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final ChatBoxModel currentChatModel = chats.get(Integer
-                .parseInt(outTokenizer.nextToken()));
+        final ChatBoxModel currentChatModel = chats.get(Long
+                .parseLong(outTokenizer.nextToken()));
         String message = output;
         for (int i = 0; i < 3; i++) { // The message is the text after the third
                                       // space in the output
@@ -623,8 +827,8 @@ public class ChatClientModel implements ActionListener {
     public void processTypingCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final ChatBoxModel currentChatModel = chats.get(Integer
-                .parseInt(outTokenizer.nextToken()));
+        final ChatBoxModel currentChatModel = chats.get(Long
+                .parseLong(outTokenizer.nextToken()));
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 currentChatModel.markTyping(outTokenizer.nextToken());
@@ -644,8 +848,8 @@ public class ChatClientModel implements ActionListener {
     public void processClearedCommand(String output) {
         final StringTokenizer outTokenizer = new StringTokenizer(output);
         outTokenizer.nextToken();
-        final ChatBoxModel currentChatModel = chats.get(Integer
-                .parseInt(outTokenizer.nextToken()));
+        final ChatBoxModel currentChatModel = chats.get(Long
+                .parseLong(outTokenizer.nextToken()));
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 currentChatModel.markCleared(outTokenizer.nextToken());
@@ -653,6 +857,53 @@ public class ChatClientModel implements ActionListener {
         });
     }
 
+    /**
+     * Processes a message of a page of history sent by the server, keeping it
+     * until the page ends.
+     * 
+     * @param output
+     *            The message from the server, "history" followed by the ID of
+     *            the conversation, the sequence and time of the message, the
+     *            user who said it and its text.
+     */
+    public void processHistoryCommand(String output) {
+        int start = output.indexOf(' ') + 1;
+        long ID = Long.parseLong(output.substring(start,
+                output.indexOf(' ', start)));
+        List<String> page = this.historyPages.get(ID);
+        if (page == null) {
+            page = new ArrayList<String>();
+            this.historyPages.put(ID, page);
+        }
+        page.add(output);
+    }
+
+    /**
+     * Processes the end of a page of history sent by the server, showing the
+     * page in the chat box of its conversation.
+     * 
+     * @param output
+     *            The message from the server, "history_end" followed by the
+     *            ID of the conversation and the before-seq of the next older
+     *            page.
+     */
+    public void processHistoryEndCommand(String output) {
+        StringTokenizer outTokenizer = new StringTokenizer(output);
+        outTokenizer.nextToken();
+        final long ID = Long.parseLong(outTokenizer.nextToken());
+        final long oldest = Long.parseLong(outTokenizer.nextToken());
+        List<String> received = this.historyPages.remove(ID);
+        final List<String> page = received == null ? new ArrayList<String>()
+                : received;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (chats.containsKey(ID)) {
+                    chats.get(ID).addHistoryPage(page, oldest);
+                }
+            }
+        });
+    }
+
     /**
      * Attempt to connect to the server via port 4567 (default port).
      * 
@@ -34,11 +34,44 @@ public class ConnectionInfoBox extends JFrame {
     private JLabel portLabel;
     private JTextField portField;
     private JButton submitButton;
+    private final boolean binary; // True if the client should ask for binary
+                                  // frames.
+    private final boolean deflate; // True if the client should ask for
+                                   // compression.
 
     /**
      * Default constructor.
      */
     public ConnectionInfoBox() {
+        this(false);
+    }
+
+    /**
+     * Creates the window, for a client that may talk to the server in binary
+     * frames.
+     * 
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     */
+    public ConnectionInfoBox(boolean binary) {
+        this(binary, false);
+    }
+
+    /**
+     * Creates the window, for a client that may talk to the server in binary
+     * frames and have the server compress what it sends.
+     * 
+     * @param binary
+     *            True if the client should ask for binary frames when it logs
+     *            in.
+     * @param deflate
+     *            True if the client should ask the server to compress what it
+     *            sends when it logs in.
+     */
+    public ConnectionInfoBox(boolean binary, boolean deflate) {
+        this.binary = binary;
+        this.deflate = deflate;
         this.setSize(300, 150);
 
         // Borders used in the ConnectionInfoBox GUI
@@ -61,7 +94,9 @@ public class ConnectionInfoBox extends JFrame {
             @Override
             public void actionPerformed(ActionEvent arg0) {
                 try {
-                    new ChatClient(IPField.getText(), portField.getText());
+                    new ChatClient(IPField.getText(), portField.getText(),
+                            ConnectionInfoBox.this.binary,
+                            ConnectionInfoBox.this.deflate);
                 } catch (Exception e) {
                     JOptionPane.showMessageDialog(null,
                             "Cannot establish connection. Please try again.");
@@ -16,7 +16,7 @@ public class HistoryListener implements MouseListener {
     private final JLabel historyLabel; // The Label to listen on
     private final ChatClientModel model; // The model associated with this whole
                                          // system
-    private final int ID; // The ID of the conversation
+    private final long ID; // The ID of the conversation
 
     /**
      * Creates a HistoryListener corresponding to certain input data.
@@ -28,7 +28,7 @@ public class HistoryListener implements MouseListener {
      * @param ID
      *            The ID associated with this conversation.
      */
-    public HistoryListener(JLabel historyLabel, ChatClientModel model, int ID) {
+    public HistoryListener(JLabel historyLabel, ChatClientModel model, long ID) {
         this.historyLabel = historyLabel; // The label to which this
                                           // HistoryListener listens
         this.model = model;
@@ -0,0 +1,79 @@
+package client;
+
+/**
+ * Decides which typing notifications a chat box sends to the server as the
+ * user edits its text field, so that a fast typist does not send one command
+ * per keystroke.
+ *
+ * While the text field is not empty, "typing" is sent at most once per
+ * interval. The server drops a "typing" that arrives less than its
+ * re-announce interval (500 ms by default) after the last one it forwarded,
+ * so the interval must be at least that long, with a margin for delays on
+ * the way; otherwise every other notification may be dropped. Other clients
+ * show a user as typing for a second after each "typing" they receive, so
+ * the interval plus the pause between two keystrokes must stay below that
+ * second. The default leaves pauses of up to 400 ms. "cleared" is only sent
+ * when the text field becomes empty after the user typed something.
+ *
+ * Times are passed in by the caller, in milliseconds.
+ */
+public class TypingNotifier {
+    public static final long DEFAULT_INTERVAL_MILLIS = 600;
+
+    public static final int NONE = 0; // Send nothing.
+    public static final int TYPING = 1; // Send "typing".
+    public static final int CLEARED = 2; // Send "cleared".
+
+    private final long intervalMillis; // The least time between two "typing"
+                                       // notifications.
+    private boolean typing; // True if "typing" was the last notification
+                            // sent, or the text was sent since.
+    private long lastTyping; // When "typing" was last sent.
+
+    /**
+     * Creates a notifier for an empty text field.
+     *
+     * @param intervalMillis
+     *            The least time between two "typing" notifications, or 0 to
+     *            send one for every keystroke.
+     */
+    public TypingNotifier(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.typing = false;
+        this.lastTyping = 0;
+    }
+
+    /**
+     * Records a keystroke that may have changed the text field.
+     *
+     * @param empty
+     *            True if the text field is empty after the keystroke.
+     * @param now
+     *            The current time.
+     * @return the notification to send: NONE, TYPING or CLEARED.
+     */
+    public synchronized int keyReleased(boolean empty, long now) {
+        if (empty) {
+            if (!this.typing) {
+                return NONE;
+            }
+            this.typing = false;
+            return CLEARED;
+        }
+        if (this.typing && now - this.lastTyping < this.intervalMillis) {
+            return NONE;
+        }
+        this.typing = true;
+        this.lastTyping = now;
+        return TYPING;
+    }
+
+    /**
+     * Records that the text was sent, which empties the text field. Other
+     * clients stop showing the user as typing when they receive the text, so
+     * nothing needs to be sent.
+     */
+    public synchronized void textSent() {
+        this.typing = false;
+    }
+}
@@ -0,0 +1,108 @@
+package client.benchmark;
+
+import java.util.Random;
+
+import client.TypingNotifier;
+
+/**
+ * Counts the typing notifications a chat box sends for a scripted typing
+ * session, with and without debouncing.
+ *
+ * The script is a typist writing messages at a given rate (with some jitter),
+ * pausing now and then to think, sometimes deleting everything typed with
+ * backspace and starting over, and sending each message with enter. The
+ * script is generated from a fixed seed, so every run replays the same
+ * keystrokes against simulated time; no window is opened.
+ *
+ * For each interval the benchmark reports the "typing" and "cleared" commands
+ * sent, the commands per second spent typing (not counting pauses), and the
+ * reduction compared with sending a command on every key release, as
+ * ChatBoxModel used to.
+ *
+ * Usage: TypingBenchmark [keys per second] [messages] [interval ms...]
+ */
+public class TypingBenchmark {
+    private static final long SEED = 6005;
+
+    public static void main(String[] args) {
+        double keysPerSecond = args.length > 0 ? Double.parseDouble(args[0])
+                : 9;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long[] intervals = new long[] { 0, 100, 250,
+                TypingNotifier.DEFAULT_INTERVAL_MILLIS };
+        if (args.length > 2) {
+            intervals = new long[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                intervals[i - 2] = Long.parseLong(args[i]);
+            }
+        }
+
+        System.out.println("interval(ms)\ttyping\tcleared\tcommands/s"
+                + "\treduction");
+        long baseline = replay(keysPerSecond, messages, 0)[2];
+        for (long interval : intervals) {
+            long[] result = replay(keysPerSecond, messages, interval);
+            long commands = result[0] + result[1];
+            System.out.println(interval + "\t" + result[0] + "\t" + result[1]
+                    + "\t"
+                    + String.format("%.2f", commands * 1000.0 / result[3])
+                    + "\t"
+                    + String.format("%.1fx", baseline * 1.0 / commands));
+        }
+    }
+
+    /**
+     * Replays the script against a TypingNotifier.
+     *
+     * @return the "typing" commands sent, the "cleared" commands sent, the
+     *         key releases that would each have sent a command without
+     *         debouncing, and the milliseconds spent typing, not counting
+     *         pauses.
+     */
+    private static long[] replay(double keysPerSecond, int messages,
+            long interval) {
+        Random random = new Random(SEED);
+        TypingNotifier notifier = new TypingNotifier(interval);
+        long meanGap = (long) (1000 / keysPerSecond);
+        long now = 0;
+        long active = 0;
+        long typing = 0;
+        long cleared = 0;
+        long keys = 0;
+
+        for (int m = 0; m < messages; m++) {
+            int length = 0;
+            int target = 10 + random.nextInt(60);
+            while (length < target) {
+                long gap = meanGap / 2 + random.nextInt((int) meanGap + 1);
+                now += gap;
+                active += gap;
+                if (random.nextInt(40) == 0) {
+                    now += 1000 + random.nextInt(3000); // thinking
+                }
+                if (length > 5 && random.nextInt(150) == 0) {
+                    // delete everything and start over
+                    while (length > 0) {
+                        now += 60;
+                        active += 60;
+                        length--;
+                        keys++;
+                        int sent = notifier.keyReleased(length == 0, now);
+                        typing += sent == TypingNotifier.TYPING ? 1 : 0;
+                        cleared += sent == TypingNotifier.CLEARED ? 1 : 0;
+                    }
+                    continue;
+                }
+                length++;
+                keys++;
+                int sent = notifier.keyReleased(false, now);
+                typing += sent == TypingNotifier.TYPING ? 1 : 0;
+                cleared += sent == TypingNotifier.CLEARED ? 1 : 0;
+            }
+            // enter sends the message and is not itself a typing keystroke
+            notifier.textSent();
+            now += 2000 + random.nextInt(5000);
+        }
+        return new long[] { typing, cleared, keys, active };
+    }
+}
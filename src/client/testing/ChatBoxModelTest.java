@@ -40,6 +40,10 @@ package client.testing;
  *         6. Client2 verify that they see message "Client1 is typing..."
  *         7. Client1 stop typing
  *         8. Client 2 verify that they see message "Client1 has entered text..."
+ *         9. Client1 type quickly and steadily; verify that the server receives a
+ *            "typing" command a few times a second rather than one per keystroke,
+ *            and that Client2 keeps seeing "Client1 is typing..." throughout
+ *            (the debouncing itself is covered by TypingNotifierTest)
  *     
  * @category no_didit
  */
@@ -57,6 +57,13 @@ package client.testing;
  * 					indicates that that user is typing. When that user has unsent entered text in the
  * 					editable text field in his chat box, check that the other users in that chat
  * 					view the label that indicates that the user has entered text.
+ * - fetchHistory, processHistoryCommand, processHistoryEndCommand:
+ * 				1) Run the server with a data directory, chat with another user, then log out and
+ * 					back in with a fresh client.
+ * 				2) Make sure that the chat box of that conversation shows the latest messages, with
+ * 					the times they were said, and no message twice.
+ * 				3) Scroll to the top of the chat box, and make sure that older messages are loaded
+ * 					above without the view jumping, until the first message of the conversation.
 
  * @category no_didit
  */
@@ -0,0 +1,55 @@
+package client.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import client.TypingNotifier;
+
+/**
+ * Tests which typing notifications a TypingNotifier sends, with times given
+ * explicitly and an interval of 400.
+ *
+ * - The first keystroke sends "typing", later ones only once the interval
+ * has passed.
+ *
+ * - "cleared" is only sent when the text field becomes empty after typing,
+ * and not after the text was sent.
+ *
+ * @category no_didit
+ */
+public class TypingNotifierTest {
+    @Test
+    public void typingTest() {
+        TypingNotifier notifier = new TypingNotifier(400);
+        assertEquals(TypingNotifier.TYPING, notifier.keyReleased(false, 1000));
+        assertEquals(TypingNotifier.NONE, notifier.keyReleased(false, 1100));
+        assertEquals(TypingNotifier.NONE, notifier.keyReleased(false, 1399));
+        assertEquals(TypingNotifier.TYPING, notifier.keyReleased(false, 1400));
+
+        // with no interval, every keystroke is sent
+        TypingNotifier eager = new TypingNotifier(0);
+        assertEquals(TypingNotifier.TYPING, eager.keyReleased(false, 0));
+        assertEquals(TypingNotifier.TYPING, eager.keyReleased(false, 0));
+    }
+
+    @Test
+    public void clearedTest() {
+        TypingNotifier notifier = new TypingNotifier(400);
+
+        // keys that leave the field empty send nothing
+        assertEquals(TypingNotifier.NONE, notifier.keyReleased(true, 0));
+
+        assertEquals(TypingNotifier.TYPING, notifier.keyReleased(false, 100));
+        assertEquals(TypingNotifier.CLEARED, notifier.keyReleased(true, 200));
+        assertEquals(TypingNotifier.NONE, notifier.keyReleased(true, 300));
+
+        // typing again right after clearing is announced at once
+        assertEquals(TypingNotifier.TYPING, notifier.keyReleased(false, 350));
+
+        // sending the text empties the field without a "cleared"
+        notifier.textSent();
+        assertEquals(TypingNotifier.NONE, notifier.keyReleased(true, 400));
+        assertEquals(TypingNotifier.TYPING, notifier.keyReleased(false, 450));
+    }
+}
@@ -1,6 +1,10 @@
 package conversation;
 
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import user.User;
@@ -11,11 +15,15 @@ import user.User;
  */
 
 public class Conversation {
-    private final int id; //the integer ID associated with this conversation.
+    private final long id; //the ID associated with this conversation.
     private final Set<User> users; //the set of users in this conversation.
+    private volatile Set<User> snapshot; //an unmodifiable copy of users, replaced
+                                        //whenever users changes.
     private final Set<User> inactiveUsers; //the set of inactive users that were, 
     										//at some point, in this conversation.
     private final boolean isGroupChat; //true only if the conversation is a group chat.
+    private final MembershipIndex index; //the index kept up to date with the users
+                                         //of this conversation, or null.
 
     /**
      * Create a new Conversation representing a group chat. 
@@ -24,11 +32,32 @@ public class Conversation {
      * @param users
      *            The Users to be added to the Conversation. users.size() > 0
      */
-    public Conversation(Set<User> users, int id) {
+    public Conversation(Set<User> users, long id) {
+        this(users, id, null);
+    }
+
+    /**
+     * Create a new Conversation representing a group chat, whose users are
+     * recorded in a MembershipIndex for as long as they are in it.
+     * A Conversation must have at least one user.
+     * 
+     * @param users
+     *            The Users to be added to the Conversation. users.size() > 0
+     * @param id The ID of the conversation.
+     * @param index The index to record the users in, or null for none.
+     */
+    public Conversation(Set<User> users, long id, MembershipIndex index) {
         this.users = users;
         this.id = id;
         this.inactiveUsers = new HashSet<User>();
         this.isGroupChat = true;
+        this.index = index;
+        if (index != null) {
+            for (User user : users) {
+                index.add(user, id);
+            }
+        }
+        this.takeSnapshot();
     }
 
     /**
@@ -38,13 +67,82 @@ public class Conversation {
      * @param b The second user in the conversation.
      * @param id The ID of the conversation.
      */
-    public Conversation(User a, User b, int id) {
-        this.users = new HashSet<User>();
-        users.add(a);
-        users.add(b);
-        this.inactiveUsers = new HashSet<User>();
+    public Conversation(User a, User b, long id) {
+        this(a, b, id, null);
+    }
+
+    /**
+     * Create a new Conversation representing a private conversation between two users,
+     * who are recorded in a MembershipIndex.
+     * 
+     * @param a The first user in the conversation.
+     * @param b The second user in the conversation.
+     * @param id The ID of the conversation.
+     * @param index The index to record the users in, or null for none.
+     */
+    public Conversation(User a, User b, long id, MembershipIndex index) {
+        // the users of a private conversation never change, so they are
+        // their own snapshot, and there are never inactive users
+        this.users = new Pair(a, b);
+        this.inactiveUsers = Collections.emptySet();
         this.id = id;
         this.isGroupChat = false;
+        this.index = index;
+        if (index != null) {
+            index.add(a, id);
+            index.add(b, id);
+        }
+        this.snapshot = this.users;
+    }
+
+    /**
+     * The users of a private conversation: an unmodifiable set of two users,
+     * or of one who started a conversation with themselves, much smaller
+     * than a HashSet. A server may hold millions of them.
+     */
+    private static class Pair extends AbstractSet<User> {
+        private final User a; // The first user.
+        private final User b; // The second user, or null if the same as a.
+
+        private Pair(User a, User b) {
+            this.a = a;
+            this.b = a.equals(b) ? null : b;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return this.a.equals(o) || (this.b != null && this.b.equals(o));
+        }
+
+        @Override
+        public int size() {
+            return this.b == null ? 1 : 2;
+        }
+
+        @Override
+        public Iterator<User> iterator() {
+            return new Iterator<User>() {
+                private int next = 0; // The index of the next user.
+
+                @Override
+                public boolean hasNext() {
+                    return this.next < size();
+                }
+
+                @Override
+                public User next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return this.next++ == 0 ? a : b;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
     }
 
     /**
@@ -60,6 +158,10 @@ public class Conversation {
         }
         synchronized (this.users) {
             users.add(user);
+            this.takeSnapshot();
+            if (this.index != null) {
+                this.index.add(user, this.id);
+            }
             synchronized (this.inactiveUsers) {
                 if (this.inactiveUsers.contains(user)) {
                     inactiveUsers.remove(user);
@@ -81,6 +183,10 @@ public class Conversation {
         }
         synchronized (this.users) {
             users.remove(user);
+            this.takeSnapshot();
+            if (this.index != null) {
+                this.index.remove(user, this.id);
+            }
         }
     }
 
@@ -99,6 +205,10 @@ public class Conversation {
         }
         synchronized (this.users) {
             this.users.remove(user);
+            this.takeSnapshot();
+            if (this.index != null) {
+                this.index.remove(user, this.id);
+            }
             synchronized (this.inactiveUsers) {
                 this.inactiveUsers.add(user);
             }
@@ -107,13 +217,22 @@ public class Conversation {
 
     /**
      * An accessor method that retrieves the list of users currently in the conversation.
+     * The list is not copied on each call, since messages are sent to it far more often
+     * than users join or leave; instead it is an unmodifiable snapshot, which does not
+     * change when users join or leave later.
      * 
      * @return The list of users currently in the conversation.
      */
-    public synchronized Set<User> getUsers() {
-        synchronized (this.users) {
-            return new HashSet<User>(this.users);
-        }
+    public Set<User> getUsers() {
+        return this.snapshot;
+    }
+
+    /**
+     * Replaces the snapshot returned by getUsers() with a copy of the current users.
+     * Must hold the lock on users, or be called from a constructor.
+     */
+    private void takeSnapshot() {
+        this.snapshot = Collections.unmodifiableSet(new HashSet<User>(this.users));
     }
 
     /**
@@ -139,6 +258,6 @@ public class Conversation {
     }
 
     /**accesses ID**/
-    public int getID() {return this.id;}
+    public long getID() {return this.id;}
 
 }
@@ -0,0 +1,190 @@
+package conversation;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import user.User;
+
+/**
+ * An index from each user to the IDs of the conversations that user is
+ * currently in, so that the conversations of one user can be found without
+ * looking at every conversation.
+ *
+ * The index is kept up to date by the Conversations created with it: a user is
+ * added when a conversation is created with that user or the user is added to
+ * it, and removed when the user is removed or deactivated. Thread-safe.
+ *
+ * The IDs of each user are kept in an open-addressing table of longs rather
+ * than a HashSet, since a server restarting may index millions of
+ * conversations at once and a HashSet costs several objects per ID.
+ */
+public class MembershipIndex {
+    private final Map<User, IDs> conversations; // The conversation IDs of
+                                                // each user in at least one
+                                                // conversation.
+
+    /**
+     * A set of conversation IDs, kept with linear probing in a table whose
+     * size is a power of two and which is at most half full.
+     */
+    private static class IDs {
+        private long[] table; // The IDs, and 0 in the free slots.
+        private int size; // The number of IDs in the table.
+        private boolean zero; // True if the set holds the ID 0.
+
+        private IDs() {
+            this.table = new long[4];
+            this.size = 0;
+            this.zero = false;
+        }
+
+        /**
+         * Returns the slot an ID is looked up from.
+         */
+        private int slot(long id) {
+            long hash = id * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (this.table.length - 1);
+        }
+
+        private void add(long id) {
+            if (id == 0) {
+                this.zero = true;
+                return;
+            }
+            int mask = this.table.length - 1;
+            int i = this.slot(id);
+            while (this.table[i] != 0) {
+                if (this.table[i] == id) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            this.table[i] = id;
+            this.size++;
+            if (this.size * 2 > this.table.length) {
+                long[] old = this.table;
+                this.table = new long[old.length * 2];
+                mask = this.table.length - 1;
+                for (long moved : old) {
+                    if (moved != 0) {
+                        int j = this.slot(moved);
+                        while (this.table[j] != 0) {
+                            j = (j + 1) & mask;
+                        }
+                        this.table[j] = moved;
+                    }
+                }
+            }
+        }
+
+        private void remove(long id) {
+            if (id == 0) {
+                this.zero = false;
+                return;
+            }
+            int mask = this.table.length - 1;
+            int i = this.slot(id);
+            while (this.table[i] != id) {
+                if (this.table[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            this.table[i] = 0;
+            this.size--;
+            // move back the IDs that probed past the freed slot
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (this.table[j] == 0) {
+                    return;
+                }
+                int k = this.slot(this.table[j]);
+                boolean reachable = i <= j ? i < k && k <= j : i < k || k <= j;
+                if (!reachable) {
+                    this.table[i] = this.table[j];
+                    this.table[j] = 0;
+                    i = j;
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return this.size == 0 && !this.zero;
+        }
+
+        private Set<Long> toSet() {
+            Set<Long> ids = new HashSet<Long>();
+            if (this.zero) {
+                ids.add(0L);
+            }
+            for (long id : this.table) {
+                if (id != 0) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Creates an empty index.
+     */
+    public MembershipIndex() {
+        this.conversations = new HashMap<User, IDs>();
+    }
+
+    /**
+     * Records that a user is in a conversation.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @param id
+     *            The ID of the conversation.
+     */
+    synchronized void add(User user, long id) {
+        IDs ids = this.conversations.get(user);
+        if (ids == null) {
+            ids = new IDs();
+            this.conversations.put(user, ids);
+        }
+        ids.add(id);
+    }
+
+    /**
+     * Records that a user is no longer in a conversation. Does nothing if the
+     * user was not in it.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @param id
+     *            The ID of the conversation.
+     */
+    synchronized void remove(User user, long id) {
+        IDs ids = this.conversations.get(user);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                this.conversations.remove(user);
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of the conversations a user is currently in.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return a copy of the IDs, which is empty if the user is in no
+     *         conversation.
+     */
+    public synchronized Set<Long> getConversations(User user) {
+        IDs ids = this.conversations.get(user);
+        if (ids == null) {
+            return new HashSet<Long>();
+        }
+        return ids.toSet();
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Set;
 import org.junit.Test;
 
 import conversation.Conversation;
+import conversation.MembershipIndex;
 
 import user.User;
 
@@ -21,6 +22,15 @@ import static org.junit.Assert.*;
  *     - removeUser:
  *         - If the User is in the Conversation then it should be removed.
  *         - If the User is not in the Conversation then nothing should happen.
+ *     - MembershipIndex:
+ *         - Every user a Conversation is created with is indexed under its ID.
+ *         - Adding, removing and deactivating a user updates the index.
+ *         - A user in thousands of conversations keeps exactly the IDs added
+ *           and not removed since, in whatever order.
+ *     - getUsers:
+ *         - The set returned is a snapshot, unaffected by later changes.
+ *         - A private conversation holds its two users, or one user who
+ *           started it with themselves.
  * 
  * The Conversation class is always thread safe, since it is only used on the client side,
  * so will only ever be accessed by one client.
@@ -112,4 +122,106 @@ public class ConversationTest {
         
         assertEquals(expected, users);
     }
+    
+    // Test that the users of a Conversation are kept in its MembershipIndex
+    @Test
+    public void membershipIndexTest() {
+        MembershipIndex index = new MembershipIndex();
+        Set<User> users = new HashSet<User>();
+        users.add(new User("Casey"));
+        users.add(new User("Katie"));
+        Conversation group = new Conversation(users, 1, index);
+        new Conversation(new User("Casey"), new User("Alex"), 2, index);
+        
+        Set<Long> expected = new HashSet<Long>();
+        expected.add(1L);
+        expected.add(2L);
+        assertEquals(expected, index.getConversations(new User("Casey")));
+        
+        group.addUser(new User("Alex"));
+        assertEquals(expected, index.getConversations(new User("Alex")));
+        
+        group.removeUser(new User("Casey"));
+        expected.remove(1L);
+        assertEquals(expected, index.getConversations(new User("Casey")));
+        
+        group.deactivateUser(new User("Katie"));
+        assertTrue(index.getConversations(new User("Katie")).isEmpty());
+    }
+    
+    // Test that getUsers() returns a snapshot that later changes do not affect
+    @Test
+    public void getUsersSnapshotTest() {
+        Set<User> users = new HashSet<User>();
+        users.add(new User("Casey"));
+        users.add(new User("Katie"));
+        Conversation c = new Conversation(users, 0);
+        Set<User> before = c.getUsers();
+        assertSame(before, c.getUsers());
+        
+        c.addUser(new User("Alex"));
+        Set<User> after = c.getUsers();
+        assertEquals(2, before.size());
+        assertEquals(3, after.size());
+        assertTrue(after.contains(new User("Alex")));
+        
+        c.removeUser(new User("Casey"));
+        assertEquals(3, after.size());
+        assertFalse(c.getUsers().contains(new User("Casey")));
+    }
+    
+    // Test that a user in many conversations keeps the right IDs as they come and go
+    @Test
+    public void membershipIndexManyTest() {
+        MembershipIndex index = new MembershipIndex();
+        User casey = new User("Casey");
+        Set<User> users = new HashSet<User>();
+        users.add(casey);
+        Set<Long> expected = new HashSet<Long>();
+        Conversation[] groups = new Conversation[5000];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Conversation(new HashSet<User>(users), i, index);
+            expected.add((long) i);
+        }
+        assertEquals(expected, index.getConversations(casey));
+        
+        for (int i = 0; i < groups.length; i += 3) {
+            groups[i].removeUser(casey);
+            expected.remove((long) i);
+        }
+        assertEquals(expected, index.getConversations(casey));
+        
+        for (int i = groups.length - 1; i >= 0; i--) {
+            groups[i].removeUser(casey);
+            groups[i].addUser(casey);
+            groups[i].addUser(casey);
+        }
+        for (int i = 0; i < groups.length; i++) {
+            expected.add((long) i);
+        }
+        assertEquals(expected, index.getConversations(casey));
+        
+        for (Conversation group : groups) {
+            group.removeUser(casey);
+        }
+        assertTrue(index.getConversations(casey).isEmpty());
+    }
+    
+    // Test that a private conversation holds its users
+    @Test
+    public void privateUsersTest() {
+        Conversation c = new Conversation(new User("Casey"), new User("Katie"), 0);
+        Set<User> expected = new HashSet<User>();
+        expected.add(new User("Casey"));
+        expected.add(new User("Katie"));
+        assertEquals(expected, c.getUsers());
+        assertEquals(c.getUsers(), expected);
+        assertTrue(c.getUsers().contains(new User("Katie")));
+        assertFalse(c.getUsers().contains(new User("Alex")));
+        assertTrue(c.getInactiveUsers().isEmpty());
+        
+        c = new Conversation(new User("Casey"), new User("Casey"), 1);
+        assertEquals(1, c.getUsers().size());
+        assertEquals(new User("Casey"), c.getUsers().iterator().next());
+    }
 }
@@ -10,11 +10,34 @@ import client.ConnectionInfoBox;
 public class Client {
     /**
      * Start a GUI chat client.
+     *
+     * Accepts the following options:
+     *
+     * -binary: after logging in, talk to the server in binary frames instead
+     * of text lines.
+     *
+     * -deflate: after logging in, have the server compress everything it
+     * sends.
      */
     public static void main(String[] args) {
+        boolean binary = false;
+        boolean deflate = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-binary")) {
+                binary = true;
+            } else if (args[i].equals("-deflate")) {
+                deflate = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: "
+                        + args[i]);
+            }
+        }
+
+        final boolean useBinary = binary;
+        final boolean useDeflate = deflate;
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                new ConnectionInfoBox();
+                new ConnectionInfoBox(useBinary, useDeflate);
             }
         });
     }
@@ -1,8 +1,13 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import server.ChatServer;
+import server.ServerConfig;
 
 /**
  * Chat server runner.
@@ -11,12 +16,93 @@ public class Server {
 
     /**
      * Start a chat server on port 4567.
-     * 
+     *
+     * Accepts the following options:
+     *
+     * -port PORT: accept clients on PORT instead.
+     *
+     * -selector N: service all connections with N non-blocking event-loop
+     * threads instead of one thread per connection.
+     *
+     * -virtual: run the worker and each client connection on virtual threads
+     * (requires Java 21).
+     *
+     * -workers N: process commands on N threads, sharded by conversation.
+     *
+     * -data DIR: keep the state that must survive a restart in DIR.
+     *
+     * -metrics PORT: serve the server's metrics as text on PORT, to clients on
+     * this host only.
+     *
+     * -trace N: trace one message from clients in N, from the moment it is
+     * read to the moment what it causes is written; the most recent traces
+     * are served at /traces on the metrics port.
+     *
+     * -debugbuffers: track the I/O buffers handed out by the server, and
+     * print where each buffer still out was acquired when the server is
+     * stopped.
+     *
+     * -cluster N HOST:PORT,HOST:PORT,...: run as node N (counting from 0) of
+     * a cluster of servers, each listening for the others on its HOST:PORT;
+     * every node is given the same list.
+     *
      * @throws IOException
      *             If the server malfunctions.
      */
     public static void main(String[] args) throws IOException {
-        ChatServer server = new ChatServer(4567);
+        ServerConfig config = new ServerConfig();
+        int port = 4567;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-selector") && i + 1 < args.length) {
+                config.setSelectorThreads(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-workers") && i + 1 < args.length) {
+                config.setWorkerThreads(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                config.setMetricsPort(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-trace") && i + 1 < args.length) {
+                config.setTraceSampleInterval(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-data") && i + 1 < args.length) {
+                config.setDataDirectory(new File(args[++i]));
+            } else if (args[i].equals("-cluster") && i + 2 < args.length) {
+                int node = Integer.parseInt(args[++i]);
+                config.setCluster(node, parseAddresses(args[++i]));
+            } else if (args[i].equals("-virtual")) {
+                config.setVirtualThreads(true);
+            } else if (args[i].equals("-debugbuffers")) {
+                config.setDebugBuffers(true);
+            } else {
+                throw new IllegalArgumentException("Unknown option: "
+                        + args[i]);
+            }
+        }
+
+        final ChatServer server = new ChatServer(port, config);
+        if (config.isDebugBuffers()) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.getBufferPool().printOutstanding(System.err);
+                }
+            });
+        }
         server.serve();
     }
+
+    /**
+     * Parses a comma-separated list of HOST:PORT addresses.
+     */
+    private static List<InetSocketAddress> parseAddresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String address : list.split(",")) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Not HOST:PORT: " + address);
+            }
+            addresses.add(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))));
+        }
+        return addresses;
+    }
 }
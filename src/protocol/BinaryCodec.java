@@ -0,0 +1,513 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates the messages of the chat protocol to and from binary frames.
+ * Everywhere else a message is handled in its text form, as described in the
+ * design document; only the bytes on the wire differ.
+ *
+ * A frame is a varint payload length followed by the payload: a one-byte
+ * opcode and the fields of the message, laid out according to the opcode.
+ * The fields are:
+ *
+ * - a conversation ID, as a varint;
+ *
+ * - a number (an avatar), as a zigzag varint;
+ *
+ * - a user, as the varint ID the sender interned the username under;
+ *
+ * - the text of a "say", as a varint byte count and UTF-8 bytes.
+ *
+ * The sender interns each username the first time it sends it, with a
+ * DEFINE_USER frame holding the new ID and the name. A message that does not
+ * fit the layout of its command (for instance a malformed one) is sent in a
+ * RAW frame holding its text, so every message can be sent.
+ *
+ * Clients ask for binary frames by adding "binary" to the options of their
+ * login_attempt (see LoginOptions), which is the last text line they send. The
+ * server's reply to it is the last text line it sends. Each direction of a
+ * connection has its own interned users, so a codec keeps one table for
+ * encoding and one for decoding: the two may be used from different threads,
+ * but each from only one at a time.
+ */
+public class BinaryCodec {
+    public static final String BINARY_OPTION = LoginOptions.BINARY;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int RAW = 0;
+    private static final int DEFINE_USER = 1;
+
+    private static final Form[] FORMS = new Form[] {
+            new Form(2, "login_attempt", "UN", true, false),
+            new Form(3, "login_success", "", false, true),
+            new Form(4, "login_invalid", "", false, true),
+            new Form(5, "logout", "U", true, false),
+            new Form(6, "user_joins", "UN", false, true),
+            new Form(7, "user_leaves", "U", false, true),
+            new Form(8, "chat_start", "UU", true, false),
+            new Form(9, "chat_start", "IUU", false, true),
+            new Form(10, "group_chat_start", "U*", true, false),
+            new Form(11, "group_chat_start", "I", false, true),
+            new Form(12, "group_chat_join", "IU", false, true),
+            new Form(13, "group_chat_leave", "IU", true, true),
+            new Form(14, "say", "IUT", true, true),
+            new Form(15, "typing", "IU", true, true),
+            new Form(16, "cleared", "IU", true, true),
+            new Form(17, "history_fetch", "III", true, false),
+            new Form(18, "history", "IIIUT", false, true),
+            new Form(19, "history_end", "II", false, true) };
+    private static final Form[] BY_CODE; // The form of each opcode.
+
+    static {
+        BY_CODE = new Form[FORMS.length + 2];
+        for (Form form : FORMS) {
+            BY_CODE[form.code] = form;
+        }
+    }
+
+    private final boolean fromServer; // True if this side is the server.
+    private final Map<String, Integer> sentUsers; // The ID each username was
+                                                  // interned under when sent.
+    private final List<String> receivedUsers; // The username of each ID
+                                              // interned by the other side.
+    private byte[] payload; // Scratch space for the frame being encoded.
+    private int payloadLength; // The bytes used in payload.
+    private boolean lastStructured; // True if the last message decoded came
+                                    // from a frame other than RAW.
+
+    /**
+     * Creates a codec for one end of a connection, with no users interned.
+     *
+     * @param fromServer
+     *            true for the server's end, false for a client's.
+     */
+    public BinaryCodec(boolean fromServer) {
+        this.fromServer = fromServer;
+        this.sentUsers = new HashMap<String, Integer>();
+        this.receivedUsers = new ArrayList<String>();
+        this.payload = new byte[256];
+        this.payloadLength = 0;
+        this.lastStructured = false;
+    }
+
+    /**
+     * Returns whether a line sent by a client is a login_attempt asking for
+     * binary frames, after which the client sends nothing but frames.
+     *
+     * @param line
+     *            A line sent by a client.
+     * @return true if the line is a login_attempt whose options include
+     *         "binary" (see LoginOptions).
+     */
+    public static boolean requestsBinary(String line) {
+        return LoginOptions.requests(line, BINARY_OPTION);
+    }
+
+    /**
+     * Writes a message as one frame, preceded by a DEFINE_USER frame for each
+     * username in it not sent before.
+     *
+     * @param message
+     *            A message in its text form, without a line separator.
+     * @param out
+     *            The stream to write the frames to.
+     * @throws IOException
+     *             If the stream fails.
+     */
+    public void encode(String message, OutputStream out) throws IOException {
+        for (Form form : FORMS) {
+            if ((this.fromServer ? form.fromServer : form.fromClient)
+                    && form.matchesKeyword(message)
+                    && this.encodeForm(form, message, out)) {
+                return;
+            }
+        }
+        this.payloadLength = 0;
+        this.putByte(RAW);
+        this.putBytes(message.getBytes(UTF8));
+        this.writeFrame(out);
+    }
+
+    /**
+     * Decodes the payload of one frame.
+     *
+     * @param frame
+     *            An array holding the payload.
+     * @param offset
+     *            Where the payload starts.
+     * @param length
+     *            The length of the payload.
+     * @return the message in its text form, or null if the frame only
+     *         interned a user.
+     * @throws IOException
+     *             If the frame is malformed.
+     */
+    public String decode(byte[] frame, int offset, int length)
+            throws IOException {
+        Cursor cursor = new Cursor(frame, offset, offset + length);
+        int code = cursor.readByte();
+        if (code == RAW) {
+            this.lastStructured = false;
+            return new String(frame, cursor.position, cursor.end
+                    - cursor.position, UTF8);
+        } else if (code == DEFINE_USER) {
+            long ID = cursor.readVarint();
+            if (ID != this.receivedUsers.size()) {
+                throw new IOException("User interned out of order: " + ID);
+            }
+            this.receivedUsers.add(cursor.readString());
+            return null;
+        } else if (code >= BY_CODE.length || BY_CODE[code] == null) {
+            throw new IOException("Unknown opcode: " + code);
+        }
+
+        Form form = BY_CODE[code];
+        StringBuilder message = new StringBuilder(form.keyword);
+        for (int i = 0; i < form.signature.length(); i++) {
+            char field = form.signature.charAt(i);
+            if (field == '*') {
+                // repeat the previous field until the frame ends
+                while (cursor.position < cursor.end) {
+                    message.append(' ').append(this.readUser(cursor));
+                }
+                continue;
+            }
+            message.append(' ');
+            if (field == 'I') {
+                message.append(cursor.readVarint());
+            } else if (field == 'N') {
+                long zigzag = cursor.readVarint();
+                message.append((int) ((zigzag >>> 1) ^ -(zigzag & 1)));
+            } else if (field == 'U') {
+                message.append(this.readUser(cursor));
+            } else {
+                message.append(cursor.readString());
+            }
+        }
+        if (cursor.position != cursor.end) {
+            throw new IOException("Trailing bytes in frame");
+        }
+        this.lastStructured = true;
+        return message.toString();
+    }
+
+    /**
+     * Returns the length of the varint that starts a frame, if all of it is
+     * available.
+     *
+     * @param buffer
+     *            An array holding the start of a frame.
+     * @param offset
+     *            Where the frame starts.
+     * @param available
+     *            The number of bytes of the frame available.
+     * @return the length of the header, or -1 if more bytes are needed.
+     * @throws IOException
+     *             If the header is malformed.
+     */
+    public static int headerLength(byte[] buffer, int offset, int available)
+            throws IOException {
+        for (int i = 0; i < available; i++) {
+            if ((buffer[offset + i] & 0x80) == 0) {
+                return i + 1;
+            }
+            if (i >= 3) {
+                throw new IOException("Frame too long");
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the payload length held by a complete frame header.
+     *
+     * @param buffer
+     *            An array holding the header.
+     * @param offset
+     *            Where the header starts.
+     * @return the payload length.
+     * @throws IOException
+     *             If the length is over MAX_FRAME_LENGTH.
+     */
+    public static int payloadLength(byte[] buffer, int offset)
+            throws IOException {
+        Cursor cursor = new Cursor(buffer, offset, offset + 4);
+        long length = cursor.readVarint();
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too long: " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Tries to lay out a message according to a form, writing it if it fits.
+     *
+     * @return true if the message was written, false if it does not fit.
+     */
+    private boolean encodeForm(Form form, String message, OutputStream out)
+            throws IOException {
+        this.payloadLength = 0;
+        this.putByte(form.code);
+        int position = form.keyword.length();
+        int length = message.length();
+        List<String> newUsers = null;
+
+        for (int i = 0; i < form.signature.length(); i++) {
+            char field = form.signature.charAt(i);
+            if (field == '*') {
+                if (position >= length) {
+                    break;
+                }
+                field = 'U';
+                i--; // and come back for another
+            }
+            if (position >= length || message.charAt(position) != ' ') {
+                return false;
+            }
+            position++;
+            if (field == 'T') {
+                byte[] text = message.substring(position).getBytes(UTF8);
+                this.putVarint(text.length);
+                this.putBytes(text);
+                position = length;
+                continue;
+            }
+            int end = message.indexOf(' ', position);
+            if (end < 0) {
+                end = length;
+            }
+            if (end == position) {
+                return false;
+            }
+
+            if (field == 'I') {
+                long ID = parseCanonical(message, position, end);
+                if (ID < 0) {
+                    return false;
+                }
+                this.putVarint(ID);
+            } else if (field == 'N') {
+                String token = message.substring(position, end);
+                int number;
+                try {
+                    number = Integer.parseInt(token);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (!Integer.toString(number).equals(token)) {
+                    return false;
+                }
+                int zigzag = (number << 1) ^ (number >> 31);
+                this.putVarint(zigzag & 0xFFFFFFFFL);
+            } else {
+                String username = message.substring(position, end);
+                Integer ID = this.sentUsers.get(username);
+                if (ID == null) {
+                    if (newUsers == null) {
+                        newUsers = new ArrayList<String>();
+                    }
+                    int index = newUsers.indexOf(username);
+                    if (index < 0) {
+                        index = newUsers.size();
+                        newUsers.add(username);
+                    }
+                    ID = this.sentUsers.size() + index;
+                }
+                this.putVarint(ID);
+            }
+            position = end;
+        }
+        if (position != length) {
+            return false;
+        }
+
+        // the message fits: intern its new users, then send it
+        if (newUsers != null) {
+            byte[] frame = this.payload;
+            int frameLength = this.payloadLength;
+            this.payload = new byte[Math.max(256, frameLength)];
+            for (String username : newUsers) {
+                this.payloadLength = 0;
+                this.putByte(DEFINE_USER);
+                this.putVarint(this.sentUsers.size());
+                byte[] name = username.getBytes(UTF8);
+                this.putVarint(name.length);
+                this.putBytes(name);
+                this.writeFrame(out);
+                this.sentUsers.put(username, this.sentUsers.size());
+            }
+            this.payload = frame;
+            this.payloadLength = frameLength;
+        }
+        this.writeFrame(out);
+        return true;
+    }
+
+    /**
+     * Parses a conversation ID written without sign or leading zeros, so that
+     * decoding gives back the same text.
+     *
+     * @return the ID, or -1 if the text is not written that way.
+     */
+    private static long parseCanonical(String message, int start, int end) {
+        if (end - start > 1 && message.charAt(start) == '0') {
+            return -1;
+        }
+        long ID = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9' || ID > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            ID = ID * 10 + (c - '0');
+        }
+        return ID;
+    }
+
+    /**
+     * Reads an interned user.
+     */
+    private String readUser(Cursor cursor) throws IOException {
+        long ID = cursor.readVarint();
+        if (ID < 0 || ID >= this.receivedUsers.size()) {
+            throw new IOException("Unknown user ID: " + ID);
+        }
+        return this.receivedUsers.get((int) ID);
+    }
+
+    /**
+     * Writes the header and payload of the frame in the scratch space.
+     */
+    private void writeFrame(OutputStream out) throws IOException {
+        int length = this.payloadLength;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(this.payload, 0, this.payloadLength);
+    }
+
+    private void putByte(int b) {
+        if (this.payloadLength == this.payload.length) {
+            this.grow(1);
+        }
+        this.payload[this.payloadLength++] = (byte) b;
+    }
+
+    private void putBytes(byte[] bytes) {
+        if (this.payloadLength + bytes.length > this.payload.length) {
+            this.grow(bytes.length);
+        }
+        System.arraycopy(bytes, 0, this.payload, this.payloadLength,
+                bytes.length);
+        this.payloadLength += bytes.length;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            this.putByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.putByte((int) value);
+    }
+
+    private void grow(int needed) {
+        byte[] grown = new byte[Math.max(this.payload.length * 2,
+                this.payloadLength + needed)];
+        System.arraycopy(this.payload, 0, grown, 0, this.payloadLength);
+        this.payload = grown;
+    }
+
+    // ACCESSORS
+    public boolean isLastStructured() {
+        return this.lastStructured;
+    }
+
+    /**
+     * The layout of one command in one direction.
+     */
+    private static class Form {
+        private final int code; // The opcode of the frame.
+        private final String keyword; // The first token of the message.
+        private final String signature; // The fields after the keyword: I, N,
+                                        // U or T, with * repeating the
+                                        // previous field.
+        private final boolean fromClient; // True if clients send this form.
+        private final boolean fromServer; // True if the server sends it.
+
+        private Form(int code, String keyword, String signature,
+                boolean fromClient, boolean fromServer) {
+            this.code = code;
+            this.keyword = keyword;
+            this.signature = signature;
+            this.fromClient = fromClient;
+            this.fromServer = fromServer;
+        }
+
+        /**
+         * Returns whether a message starts with this form's keyword as a
+         * whole token.
+         */
+        private boolean matchesKeyword(String message) {
+            int length = this.keyword.length();
+            return message.startsWith(this.keyword)
+                    && (message.length() == length
+                            || message.charAt(length) == ' ');
+        }
+    }
+
+    /**
+     * Reads fields from a frame.
+     */
+    private static class Cursor {
+        private final byte[] bytes; // The frame.
+        private int position; // The next byte to read.
+        private final int end; // The end of the frame.
+
+        private Cursor(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private int readByte() throws IOException {
+            if (this.position >= this.end) {
+                throw new IOException("Truncated frame");
+            }
+            return this.bytes[this.position++] & 0xFF;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = this.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private String readString() throws IOException {
+            long length = this.readVarint();
+            if (length < 0 || length > this.end - this.position) {
+                throw new IOException("Truncated frame");
+            }
+            String text = new String(this.bytes, this.position, (int) length,
+                    UTF8);
+            this.position += (int) length;
+            return text;
+        }
+    }
+}
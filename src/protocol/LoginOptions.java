@@ -0,0 +1,86 @@
+package protocol;
+
+/**
+ * The options a client may add after the avatar of its login_attempt to
+ * change how the rest of the connection is carried:
+ *
+ * - "binary": both sides send binary frames instead of text lines (see
+ * BinaryCodec);
+ *
+ * - "deflate": the server compresses everything it sends as one DEFLATE
+ * stream, with a sync flush at the end of each batch of messages so that a
+ * client can always decode everything it has received (see
+ * MessageReader.startInflating()). What clients send is not compressed.
+ *
+ * Each option may be given once, in any order. The server's reply to the
+ * login_attempt is the last message sent the old way; the login_attempt
+ * itself is the last text line a client asking for binary frames sends.
+ */
+public final class LoginOptions {
+    public static final String BINARY = "binary";
+    public static final String DEFLATE = "deflate";
+
+    private LoginOptions() {
+    }
+
+    /**
+     * Returns whether a line sent by a client is a login_attempt asking for an
+     * option.
+     *
+     * @param line
+     *            A line sent by a client.
+     * @param option
+     *            The option to look for.
+     * @return true if the line has the form "login_attempt SPACE username
+     *         SPACE avatar", followed by valid options that include the given
+     *         one.
+     */
+    public static boolean requests(String line, String option) {
+        if (!line.startsWith("login_attempt ")) {
+            return false;
+        }
+        String[] tokens = line.split(" ", -1);
+        return tokens.length > 3 && areValid(tokens, 3)
+                && indexOf(tokens, 3, option) >= 0;
+    }
+
+    /**
+     * Returns whether the tokens of a login_attempt from some index on are
+     * valid options: each a known option, and none given twice.
+     *
+     * @param tokens
+     *            The tokens of the login_attempt.
+     * @param start
+     *            The index of the first option.
+     * @return true if the options are valid.
+     */
+    public static boolean areValid(String[] tokens, int start) {
+        for (int i = start; i < tokens.length; i++) {
+            if (!isOption(tokens[i])
+                    || indexOf(tokens, i + 1, tokens[i]) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a token of a login_attempt is a known option.
+     *
+     * @param token
+     *            A token after the avatar.
+     * @return true if the token is "binary" or "deflate".
+     */
+    public static boolean isOption(String token) {
+        return token.equals(BINARY) || token.equals(DEFLATE);
+    }
+
+    private static int indexOf(String[] tokens, int start, String token) {
+        for (int i = start; i < tokens.length; i++) {
+            if (tokens[i].equals(token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,229 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the messages of the chat protocol from a stream: text lines at
+ * first, and binary frames once switchToBinary() is called. The stream may
+ * also switch to being compressed, once startInflating() is called. Bytes
+ * already read from the stream are kept across either switch, so nothing
+ * sent after the last message read the old way is lost.
+ *
+ * Text lines end with "\n" or "\r\n" and are decoded with the platform's
+ * default charset, as a BufferedReader around an InputStreamReader would.
+ */
+public class MessageReader {
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private InputStream in; // The stream read from, inflated once the stream
+                            // is compressed.
+    private byte[] buffer; // Bytes read but not yet consumed.
+    private int start; // The first unconsumed byte in buffer.
+    private int end; // The end of the bytes read into buffer.
+    private BinaryCodec codec; // Decodes frames, or null while reading text.
+    private Inflater inflater; // Inflates the stream, or null while it is not
+                               // compressed.
+    private long bytesRead; // The bytes read from the stream, after
+                            // inflating.
+
+    /**
+     * Creates a reader of text lines from a stream.
+     *
+     * @param in
+     *            The stream to read from.
+     */
+    public MessageReader(InputStream in) {
+        this(in, new byte[8192]);
+    }
+
+    /**
+     * Creates a reader of text lines from a stream, reading into a given
+     * array. The reader moves to a larger array of its own if a message does
+     * not fit, so the caller may reuse the array once the reader is closed.
+     *
+     * @param in
+     *            The stream to read from.
+     * @param buffer
+     *            The array to read into. Must not be empty.
+     */
+    public MessageReader(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buffer = buffer;
+        this.start = 0;
+        this.end = 0;
+        this.codec = null;
+        this.inflater = null;
+        this.bytesRead = 0;
+    }
+
+    /**
+     * Reads the next message, waiting for it if needed.
+     *
+     * @return the next message in its text form, without a line separator, or
+     *         null if the stream has ended.
+     * @throws IOException
+     *             If the stream fails or a frame is malformed.
+     */
+    public String readMessage() throws IOException {
+        if (this.codec == null) {
+            return this.readLine();
+        }
+        while (true) {
+            int header;
+            while ((header = BinaryCodec.headerLength(this.buffer, this.start,
+                    this.end - this.start)) < 0) {
+                if (!this.fill()) {
+                    return null;
+                }
+            }
+            int length = BinaryCodec.payloadLength(this.buffer, this.start);
+            while (this.end - this.start < header + length) {
+                if (!this.fill()) {
+                    return null;
+                }
+            }
+            String message = this.codec.decode(this.buffer, this.start
+                    + header, length);
+            this.start += header + length;
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Reads binary frames from now on.
+     *
+     * @param codec
+     *            The codec to decode frames with.
+     */
+    public void switchToBinary(BinaryCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Reads the rest of the stream as DEFLATE-compressed data, starting with
+     * the bytes after the last message read. Does nothing if the stream is
+     * already compressed.
+     */
+    public void startInflating() {
+        if (this.inflater != null) {
+            return;
+        }
+        InputStream rest = this.in;
+        if (this.end > this.start) {
+            byte[] unread = new byte[this.end - this.start];
+            System.arraycopy(this.buffer, this.start, unread, 0, unread.length);
+            rest = new SequenceInputStream(new ByteArrayInputStream(unread),
+                    this.in);
+        }
+        this.inflater = new Inflater();
+        this.in = new InflaterInputStream(rest, this.inflater, 8192);
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Returns whether the last message read was decoded from a frame that
+     * laid out its fields, rather than from a text line or a RAW frame. Such
+     * a message is well-formed by construction.
+     *
+     * @return true if the last message came from a structured frame.
+     */
+    public boolean isLastStructured() {
+        return this.codec != null && this.codec.isLastStructured();
+    }
+
+    /**
+     * Closes the stream.
+     *
+     * @throws IOException
+     *             If the stream cannot be closed.
+     */
+    public void close() throws IOException {
+        this.in.close();
+        if (this.inflater != null) {
+            this.inflater.end();
+        }
+    }
+
+    // ACCESSORS
+    public boolean isBinary() {
+        return this.codec != null;
+    }
+
+    public boolean isInflating() {
+        return this.inflater != null;
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /**
+     * Reads a text line, or what is left of the stream if it ends without a
+     * line separator.
+     */
+    private String readLine() throws IOException {
+        int scanned = this.start;
+        while (true) {
+            for (int i = scanned; i < this.end; i++) {
+                if (this.buffer[i] == '\n') {
+                    int length = i - this.start;
+                    if (length > 0 && this.buffer[i - 1] == '\r') {
+                        length--;
+                    }
+                    String line = new String(this.buffer, this.start, length,
+                            CHARSET);
+                    this.start = i + 1;
+                    return line;
+                }
+            }
+            scanned = this.end - this.start;
+            if (!this.fill()) {
+                if (this.start == this.end) {
+                    return null;
+                }
+                String line = new String(this.buffer, this.start, this.end
+                        - this.start, CHARSET);
+                this.start = this.end;
+                return line;
+            }
+            scanned += this.start;
+        }
+    }
+
+    /**
+     * Reads more bytes from the stream, first moving the unconsumed bytes to
+     * the front of the buffer and growing it if it is full.
+     *
+     * @return false if the stream has ended.
+     */
+    private boolean fill() throws IOException {
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end
+                    - this.start);
+            this.end -= this.start;
+            this.start = 0;
+        }
+        if (this.end == this.buffer.length) {
+            byte[] grown = new byte[this.buffer.length * 2];
+            System.arraycopy(this.buffer, 0, grown, 0, this.end);
+            this.buffer = grown;
+        }
+        int read = this.in.read(this.buffer, this.end, this.buffer.length
+                - this.end);
+        if (read < 0) {
+            return false;
+        }
+        this.end += read;
+        this.bytesRead += read;
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package protocol.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import protocol.BinaryCodec;
+import protocol.LoginOptions;
+import protocol.MessageReader;
+
+/**
+ * Tests the translation of messages to and from binary frames.
+ *
+ * - Every message the server or a client sends comes back unchanged, and the
+ * well-formed ones are sent in structured frames.
+ *
+ * - Messages that do not fit their layout fall back to RAW frames.
+ *
+ * - A username is only sent in full the first time.
+ *
+ * - A MessageReader reads text lines, then frames once switched, without
+ * losing the bytes read ahead, and inflates what follows once told to.
+ *
+ * - Login options may be combined in any order, but not repeated.
+ *
+ * - A frame holding a string longer than itself is rejected as malformed,
+ * however long the string claims to be, and so is one naming a user ID
+ * that was never interned, however large.
+ *
+ * @category no_didit
+ */
+public class BinaryCodecTest {
+    private static final String[] FROM_SERVER = new String[] {
+            "login_success", "login_invalid", "user_joins Alex 3",
+            "user_joins Alex -2", "user_leaves Alex",
+            "chat_start 12 Alex Katie", "group_chat_start 9999999999",
+            "group_chat_join 5 Casey", "group_chat_leave 5 Casey",
+            "say 5 Alex hello  there ", "say 5 Alex ",
+            "say 0 Alex \u00e9t\u00e9", "typing 5 Katie", "cleared 5 Katie",
+            "history 5 41 1760000000000 Alex hi there", "history 5 1 0 Alex ",
+            "history_end 5 41", "history_end 5 1" };
+
+    private static final String[] FROM_CLIENT = new String[] {
+            "login_attempt Alex 1", "logout Alex", "chat_start Alex Katie",
+            "group_chat_start Alex", "group_chat_start Alex Katie Casey",
+            "group_chat_leave 5 Casey", "say 5 Alex hi", "typing 5 Katie",
+            "cleared 5 Katie", "history_fetch 5 0 50", "history_fetch 5 41 50" };
+
+    private static final String[] MALFORMED = new String[] { "", "asdf asdf",
+            "say x Alex hi", "say 05 Alex hi", "user_joins Alex 01",
+            "chat_start Alex  Katie", "logout Alex ", "login_success now",
+            "group_chat_join 5 Casey Alex", "history_end 5 -1",
+            "history 5 41 x Alex hi" };
+
+    @Test
+    public void roundTripTest() throws IOException {
+        checkRoundTrip(true, FROM_SERVER, true);
+        checkRoundTrip(false, FROM_CLIENT, true);
+        checkRoundTrip(true, MALFORMED, false);
+        checkRoundTrip(false, MALFORMED, false);
+
+        // a form only goes one way: chat_start from a client has no ID
+        checkRoundTrip(false, new String[] { "chat_start 12 Alex Katie" },
+                false);
+    }
+
+    @Test
+    public void internTest() throws IOException {
+        BinaryCodec encoder = new BinaryCodec(true);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        encoder.encode("say 5 Alexandra hello", first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        encoder.encode("say 5 Alexandra hello", second);
+        assertTrue(second.size() < first.size());
+        assertTrue(second.size() < "say 5 Alexandra hello\n".length());
+    }
+
+    @Test
+    public void readerTest() throws IOException {
+        BinaryCodec encoder = new BinaryCodec(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write("login_attempt Alex 1 binary\r\n".getBytes("UTF-8"));
+        for (String message : FROM_SERVER) {
+            encoder.encode(message, bytes);
+        }
+
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        String line = reader.readMessage();
+        assertEquals("login_attempt Alex 1 binary", line);
+        assertTrue(BinaryCodec.requestsBinary(line));
+        reader.switchToBinary(new BinaryCodec(false));
+        for (String message : FROM_SERVER) {
+            assertEquals(message, reader.readMessage());
+            assertTrue(reader.isLastStructured());
+        }
+        assertEquals(null, reader.readMessage());
+    }
+
+    @Test
+    public void malformedFrameTest() {
+        // a DEFINE_USER frame whose name claims 2^64 - 1 bytes, which reads
+        // as a negative length
+        byte[] frame = new byte[] { 1, 0, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1 };
+        try {
+            new BinaryCodec(false).decode(frame, 0, frame.length);
+            fail("Decoded a frame holding a string longer than itself");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // "logout" frames naming user 2^64 - 1, which reads as -1, and user
+        // 2^64 - 2^32, whose low 32 bits are those of user 0
+        byte[][] frames = new byte[][] {
+                { 5, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, 1 },
+                { 5, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                        (byte) 0xF0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, 1 } };
+        for (byte[] logout : frames) {
+            BinaryCodec codec = new BinaryCodec(true);
+            byte[] define = new byte[] { 1, 0, 3, 'A', 'n', 'n' };
+            try {
+                assertEquals(null, codec.decode(define, 0, define.length));
+                codec.decode(logout, 0, logout.length);
+                fail("Decoded a frame naming a user never interned");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void requestsBinaryTest() {
+        assertTrue(BinaryCodec.requestsBinary("login_attempt Alex 1 binary"));
+        assertFalse(BinaryCodec.requestsBinary("login_attempt Alex 1"));
+        assertFalse(BinaryCodec.requestsBinary("login_attempt Alex binary"));
+        assertFalse(BinaryCodec
+                .requestsBinary("login_attempt Alex 1 2 binary"));
+        assertFalse(BinaryCodec.requestsBinary("say 1 Alex 1 binary"));
+
+        assertTrue(BinaryCodec
+                .requestsBinary("login_attempt Alex 1 deflate binary"));
+        assertFalse(BinaryCodec
+                .requestsBinary("login_attempt Alex 1 binary binary"));
+        assertFalse(BinaryCodec
+                .requestsBinary("login_attempt Alex 1 binary zip"));
+        assertTrue(LoginOptions.requests("login_attempt Alex 1 deflate",
+                LoginOptions.DEFLATE));
+        assertFalse(LoginOptions.requests("login_attempt Alex 1 deflate",
+                LoginOptions.BINARY));
+        assertFalse(LoginOptions.requests("login_attempt Alex 1 deflate ",
+                LoginOptions.DEFLATE));
+    }
+
+    @Test
+    public void inflatingReaderTest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write("login_success\r\n".getBytes("UTF-8"));
+        DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, true);
+        BinaryCodec encoder = new BinaryCodec(true);
+        for (String message : FROM_SERVER) {
+            encoder.encode(message, deflated);
+            // each message ends a batch, as a drain with one message would
+            deflated.flush();
+        }
+        deflated.finish();
+
+        // the reader reads ahead past the line, into the compressed bytes
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        assertEquals("login_success", reader.readMessage());
+        reader.switchToBinary(new BinaryCodec(false));
+        reader.startInflating();
+        for (String message : FROM_SERVER) {
+            assertEquals(message, reader.readMessage());
+        }
+        assertEquals(null, reader.readMessage());
+        reader.close();
+    }
+
+    /**
+     * Encodes each message and checks that it decodes to itself, in a
+     * structured frame or not.
+     */
+    private static void checkRoundTrip(boolean fromServer, String[] messages,
+            boolean structured) throws IOException {
+        BinaryCodec encoder = new BinaryCodec(fromServer);
+        BinaryCodec decoder = new BinaryCodec(!fromServer);
+        for (String message : messages) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(message, out);
+            byte[] bytes = out.toByteArray();
+
+            String decoded = null;
+            int offset = 0;
+            while (offset < bytes.length) {
+                int header = BinaryCodec.headerLength(bytes, offset,
+                        bytes.length - offset);
+                assertTrue(header > 0);
+                int length = BinaryCodec.payloadLength(bytes, offset);
+                String next = decoder.decode(bytes, offset + header, length);
+                offset += header + length;
+                if (next != null) {
+                    assertEquals(null, decoded);
+                    decoded = next;
+                }
+            }
+            assertEquals(message, decoded);
+            assertTrue(message, structured == decoder.isLastStructured());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package server;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of ByteBuffers for connection I/O, so that reading and writing do
+ * not allocate a new buffer for every message or batch.
+ *
+ * Buffers come in sizes that are powers of two, from MIN_SIZE up to
+ * MAX_SIZE; a request is served with the smallest size that fits. Each size
+ * keeps at most a fixed number of free buffers, and buffers over MAX_SIZE are
+ * never pooled, so the pool holds a bounded amount of memory however bursty
+ * the traffic. The free buffers of each size are kept in an ArrayDeque under
+ * its own lock, so that taking and returning a buffer allocates nothing.
+ *
+ * A direct pool hands out direct buffers, which a SocketChannel writes
+ * without first copying them; a heap pool hands out buffers backed by an
+ * array, for blocking socket streams, which only take arrays.
+ *
+ * Every buffer acquired must be released exactly once, and not used after.
+ * In debug mode the pool remembers where each buffer it has handed out was
+ * acquired, rejects buffers released twice or not its own, and can report
+ * the buffers still out. This costs a stack trace per acquire, so it is off
+ * by default.
+ *
+ * Thread-safe.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private final boolean direct; // True if the buffers are direct.
+    private final int maxFreePerSize; // The most free buffers kept per size.
+    private final ArrayDeque<ByteBuffer>[] free; // The free buffers of each
+                                                 // size, smallest first.
+    private final Map<ByteBuffer, Throwable> outstanding; // Where each buffer
+                                                          // out was acquired,
+                                                          // or null if not in
+                                                          // debug mode.
+    private final AtomicLong allocatedCount; // Buffers created.
+    private final AtomicLong reusedCount; // Requests served from free.
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param direct
+     *            True to hand out direct buffers, false for heap buffers.
+     * @param maxFreePerSize
+     *            The most free buffers kept for each size; more are left to
+     *            the garbage collector. Must be non-negative.
+     * @param debug
+     *            True to track the buffers handed out (see
+     *            getOutstandingCount()).
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(boolean direct, int maxFreePerSize, boolean debug) {
+        if (maxFreePerSize < 0) {
+            throw new IllegalArgumentException(
+                    "maxFreePerSize must be non-negative");
+        }
+        this.direct = direct;
+        this.maxFreePerSize = maxFreePerSize;
+        int sizes = sizeIndex(MAX_SIZE) + 1;
+        this.free = new ArrayDeque[sizes];
+        for (int i = 0; i < sizes; i++) {
+            this.free[i] = new ArrayDeque<ByteBuffer>();
+        }
+        this.outstanding = debug ? new IdentityHashMap<ByteBuffer, Throwable>()
+                : null;
+        this.allocatedCount = new AtomicLong();
+        this.reusedCount = new AtomicLong();
+    }
+
+    /**
+     * Hands out a cleared buffer of at least the given capacity.
+     *
+     * @param capacity
+     *            The least capacity needed.
+     * @return a buffer in write mode, which the caller must release.
+     */
+    public ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = null;
+        if (capacity <= MAX_SIZE) {
+            int index = sizeIndex(capacity);
+            synchronized (this.free[index]) {
+                buffer = this.free[index].pollLast();
+            }
+            if (buffer != null) {
+                this.reusedCount.incrementAndGet();
+            } else {
+                buffer = this.allocate(MIN_SIZE << index);
+            }
+        } else {
+            buffer = this.allocate(capacity);
+        }
+        buffer.clear();
+        if (this.outstanding != null) {
+            synchronized (this.outstanding) {
+                this.outstanding.put(buffer, new Throwable("Acquired here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes back a buffer handed out by acquire(). The caller must not use
+     * the buffer again.
+     *
+     * @param buffer
+     *            A buffer acquired from this pool and not yet released.
+     * @throws IllegalStateException
+     *             In debug mode, if the buffer is not out of this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (this.outstanding != null) {
+            synchronized (this.outstanding) {
+                if (this.outstanding.remove(buffer) == null) {
+                    throw new IllegalStateException(
+                            "Buffer released twice or not from this pool");
+                }
+            }
+        }
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || Integer.bitCount(capacity) != 1
+                || capacity < MIN_SIZE) {
+            return;
+        }
+        int index = sizeIndex(capacity);
+        synchronized (this.free[index]) {
+            // the most recently used buffer is handed out first, while it is
+            // still in the cache
+            if (this.free[index].size() < this.maxFreePerSize) {
+                this.free[index].addLast(buffer);
+            }
+        }
+    }
+
+    /**
+     * Prints where each buffer still out was acquired. Prints nothing unless
+     * the pool is in debug mode.
+     *
+     * @param out
+     *            The stream to print to.
+     */
+    public void printOutstanding(PrintStream out) {
+        if (this.outstanding == null) {
+            return;
+        }
+        synchronized (this.outstanding) {
+            for (Map.Entry<ByteBuffer, Throwable> entry : this.outstanding
+                    .entrySet()) {
+                out.println("Buffer of " + entry.getKey().capacity()
+                        + " bytes not released");
+                entry.getValue().printStackTrace(out);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        this.allocatedCount.incrementAndGet();
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+                .allocate(capacity);
+    }
+
+    /**
+     * Returns the index of the smallest size holding the given capacity.
+     */
+    private static int sizeIndex(int capacity) {
+        int index = 0;
+        while ((MIN_SIZE << index) < capacity) {
+            index++;
+        }
+        return index;
+    }
+
+    // ACCESSORS
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * Returns the number of buffers handed out and not yet released, or -1
+     * if the pool is not in debug mode.
+     *
+     * @return the number of buffers out.
+     */
+    public int getOutstandingCount() {
+        if (this.outstanding == null) {
+            return -1;
+        }
+        synchronized (this.outstanding) {
+            return this.outstanding.size();
+        }
+    }
+
+    public long getAllocatedCount() {
+        return this.allocatedCount.get();
+    }
+
+    public long getReusedCount() {
+        return this.reusedCount.get();
+    }
+}
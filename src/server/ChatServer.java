@@ -1,18 +1,37 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import conversation.Conversation;
+import conversation.MembershipIndex;
+
+import protocol.LoginOptions;
 
 import user.User;
 
@@ -22,232 +41,1317 @@ import user.User;
  * username, being notified of other logged in users, starting private
  * conversations, starting group conversations, and sending messages to other
  * users in conversations.
+ *
+ * A server may also be one node of a cluster of servers, each holding the
+ * connections of some of the users, in which case the conversations are
+ * spread over the nodes and the commands and messages of users held by
+ * other nodes are routed to them (see ClusterRouter).
  */
 public class ChatServer {
+    public static final int MAX_USERNAME_BYTES = 256; // The longest
+                                                      // username, in UTF-8
+                                                      // bytes.
+    public static final int HISTORY_PAGE_SIZE = 100; // The most messages
+                                                     // in a history page.
+    public static final int HISTORY_PAGE_BYTES = 64 * 1024; // The most
+                                                            // bytes of
+                                                            // messages in a
+                                                            // history page.
+    public static final int OFFLINE_BATCH_SIZE = 1000; // The most messages
+                                                       // held for a user that
+                                                       // are sent at once.
+    public static final int OFFLINE_BATCH_BYTES = 256 * 1024; // The most
+                                                              // bytes of held
+                                                              // messages
+                                                              // sent at once.
+    private static final long REJECT_REPORT_MILLIS = 1000; // The least time
+                                                           // between two
+                                                           // ignored
+                                                           // commands
+                                                           // printed.
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private final ServerSocket serverSocket; // The ServerSocket used for
                                              // communications.
-    private final Map<User, Socket> clients; // Holds the Socket associated with
-                                             // each connected User.
-    private final Map<Integer, Conversation> conversations; // Holds the
-                                                            // Conversation
-                                                            // associated with
-                                                            // each (unique)
-                                                            // conversation ID.
+    private final SessionRegistry clients; // Holds the session of each
+                                           // connection and the Socket
+                                           // associated with each connected
+                                           // User.
+    private final Map<Long, Conversation> conversations; // Holds the
+                                                         // Conversation
+                                                         // associated with
+                                                         // each (unique)
+                                                         // conversation ID.
+                                                         // Readable from
+                                                         // any thread.
+    private final MembershipIndex memberships; // Holds the IDs of the
+                                               // conversations each User is
+                                               // in.
+    private final ConversationIDAllocator conversationIDs; // Hands out the
+                                                           // IDs of new
+                                                           // conversations.
+    private final ConversationStore conversationStore; // Keeps the private
+                                                       // conversations, or
+                                                       // null without a data
+                                                       // directory.
     private final BlockingQueue<CommunicationsData> queue; // Holds a list of
                                                            // messages from
                                                            // clients to be
                                                            // processed.
+    private final ServerConfig config; // The startup options of the server.
+    private final CommandDispatcher dispatcher; // Spreads the commands over
+                                                // the worker threads, or null
+                                                // with a single worker.
+    private final Executor writerExecutor; // Runs the drain tasks of
+                                           // StreamSessions.
+    private final TypingTracker typing; // Decides which typing notifications
+                                        // are forwarded.
+    private final BufferPool buffers; // Holds the buffers connections are
+                                      // read and written with: direct in
+                                      // non-blocking mode, heap otherwise.
+    private final ServerMetrics metrics; // Measures the server as it runs.
+    private final MetricsEndpoint metricsEndpoint; // Serves the metrics, or
+                                                   // null if disabled.
+    private final MessageLog messageLog; // Keeps what was said, or null
+                                         // without a data directory.
+    private final OfflineStore offline; // Holds what was said to users who
+                                        // were offline, or null without a
+                                        // data directory.
+    private final ClusterRouter cluster; // Connects the server to the other
+                                         // nodes of its cluster, or null if
+                                         // it runs alone.
+    private final AtomicLong lastRejectReport; // When an ignored command was
+                                               // last printed.
 
     /**
-     * Creates a ChatServer with the given port. Does not start listening for
-     * messages until the serve() method is called.
+     * Creates a ChatServer with the given port and the default options. Does
+     * not start listening for messages until the serve() method is called.
      * 
      * @param port
      *            An integer port to use for the connection. An error will be
      *            thrown if this port is invalid.
      */
     public ChatServer(int port) {
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Creates a ChatServer with the given port and options. Does not start
+     * listening for messages until the serve() method is called.
+     * 
+     * @param port
+     *            An integer port to use for the connection. An error will be
+     *            thrown if this port is invalid.
+     * @param config
+     *            The options to run the server with.
+     */
+    public ChatServer(int port, ServerConfig config) {
+        this.config = config;
         try {
-            serverSocket = new ServerSocket(port);
+            if (config.isNonBlocking()) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.socket().bind(new InetSocketAddress(port));
+                serverSocket = channel.socket();
+            } else {
+                serverSocket = new ServerSocket(port);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(
                     "Unexpected IOException when creating server socket with port "
                             + port);
         }
-        clients = new HashMap<User, Socket>();
-        conversations = new HashMap<Integer, Conversation>();
-        queue = new LinkedBlockingQueue<CommunicationsData>();
+        clients = new SessionRegistry();
+        cluster = createClusterRouter(config);
+        lastRejectReport = new AtomicLong(System.currentTimeMillis()
+                - REJECT_REPORT_MILLIS);
+        conversations = new ConcurrentHashMap<Long, Conversation>();
+        memberships = new MembershipIndex();
+        conversationIDs = createConversationIDAllocator(config);
+        conversationStore = createConversationStore(config, conversations,
+                memberships);
+        messageLog = createMessageLog(config);
+        offline = createOfflineStore(config, messageLog);
+        queue = new LinkedBlockingQueue<CommunicationsData>();
+        typing = new TypingTracker(config.getTypingReannounceMillis(),
+                config.getTypingStopMillis(), config.getTypingExpiryMillis());
+        if (config.getWorkerThreads() > 1) {
+            dispatcher = new CommandDispatcher(this, config.getWorkerThreads());
+        } else {
+            dispatcher = null;
+        }
+        buffers = new BufferPool(config.isNonBlocking(),
+                config.getPooledBuffersPerSize(), config.isDebugBuffers());
+        metrics = new ServerMetrics(new Tracer(
+                config.getTraceSampleInterval(), config.getTraceBufferSize()));
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(config.getMetricsPort(),
+                        this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when creating metrics socket with port "
+                                + config.getMetricsPort());
+            }
+        } else {
+            metricsEndpoint = null;
+        }
+        if (config.isVirtualThreads()) {
+            writerExecutor = new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    VirtualThreads.start(task);
+                }
+            };
+        } else {
+            writerExecutor = Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * First, this method creates a thread to start processing messages from the
+     * ChatServer's blocking queue. Next, this method starts a loop that, until
+     * close() is called, waits for new clients to connect and spawns a new
+     * ChatServerClientThread to read messages from these clients.
+     * 
+     * If the server was configured with selector threads, clients are instead
+     * handed to a fixed set of SelectorLoops (see serveNonBlocking()). If it
+     * was configured with virtual threads, the worker and client threads are
+     * virtual threads. If it was configured with more than one worker thread,
+     * messages are processed by a CommandDispatcher instead of work().
+     * 
+     * A further thread wakes up periodically to expire the typing state of
+     * users who have stopped typing, and if the server was configured with a
+     * metrics port, another serves the metrics (see MetricsEndpoint). If the
+     * server has a data directory, another flushes its MessageLog,
+     * OfflineStore and ConversationStore once every log flush interval, and
+     * another writes a snapshot of its conversations once every snapshot
+     * interval.
+     * 
+     * If the server is a node of a cluster, it connects to the other nodes
+     * before any client is accepted (see ClusterRouter.start()).
+     * 
+     * Before anything is started, the server's ChatServerMXBean is registered
+     * with the platform MBean server, so that the server can be inspected and
+     * tuned while it runs.
+     */
+    public void serve() {
+        this.registerMBean();
+        this.startThread(new Runnable() {
+            @Override
+            public void run() {
+                expireTyping();
+            }
+        });
+        if (this.metricsEndpoint != null) {
+            this.startThread(this.metricsEndpoint);
+        }
+        if (this.messageLog != null) {
+            this.startThread(new Runnable() {
+                @Override
+                public void run() {
+                    flushMessageLog();
+                }
+            });
+            this.startThread(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotConversations();
+                }
+            });
+        }
+
+        if (this.dispatcher != null) {
+            // spread the work over several threads
+            for (Runnable worker : this.dispatcher.getWorkers()) {
+                this.startThread(worker);
+            }
+            this.startThread(this.dispatcher);
+        } else {
+            // start a new thread to work
+            this.startThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+        if (this.cluster != null) {
+            this.cluster.start();
+        }
+
+        if (this.config.isNonBlocking()) {
+            this.serveNonBlocking();
+            return;
+        }
+
+        while (true) {
+            // block until a client connects
+            try {
+                Socket socket = this.serverSocket.accept();
+                this.clients.register(new StreamSession(socket,
+                        this.config, this.writerExecutor, this.buffers,
+                        this.metrics));
+
+                // create a new thread for this socket
+                this.startThread(new ChatServerClientThread(socket, this));
+            } catch (IOException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Registers the ChatServerMXBean of this server with the platform MBean
+     * server, named after the port the server listens on.
+     */
+    private void registerMBean() {
+        ChatServerManagement management = new ChatServerManagement(
+                this.clients, this.conversations, this.queue, this.dispatcher,
+                this.config, this.typing, this.metrics.getTracer());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    management,
+                    new ObjectName("server:type=ChatServer,port="
+                            + this.serverSocket.getLocalPort()));
+        } catch (JMException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected JMException when registering the MBean of port "
+                            + this.serverSocket.getLocalPort());
+        }
+    }
+
+    /**
+     * Loops forever, ending the typing of users who have paused and
+     * forgetting idle typing states once every typing stop interval.
+     */
+    private void expireTyping() {
+        while (true) {
+            try {
+                Thread.sleep(this.config.getTypingStopMillis());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in expireTyping()");
+            }
+            this.typing.expire(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Loops forever, forcing the messages said and held and the
+     * conversations started since the last flush to the disk once every log
+     * flush interval.
+     */
+    private void flushMessageLog() {
+        while (true) {
+            try {
+                Thread.sleep(this.config.getLogFlushMillis());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in flushMessageLog()");
+            }
+            this.messageLog.flush();
+            this.offline.flush();
+            this.conversationStore.flush();
+        }
+    }
+
+    /**
+     * Loops forever, writing a snapshot of the conversations once every
+     * snapshot interval. The workers carry on meanwhile.
+     */
+    private void snapshotConversations() {
+        while (true) {
+            try {
+                Thread.sleep(this.config.getSnapshotMillis());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in snapshotConversations()");
+            }
+            try {
+                this.conversationStore.snapshot(this.conversations.values());
+            } catch (IOException e) {
+                // the journals are kept, so nothing is lost
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Starts a thread for the worker or for a single client connection. The
+     * thread is a virtual thread if the server was configured to use them, and
+     * a platform thread otherwise.
+     * 
+     * @param task
+     *            The task to run on the new thread.
+     */
+    private void startThread(Runnable task) {
+        if (this.config.isVirtualThreads()) {
+            VirtualThreads.start(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * Starts the configured number of SelectorLoops and then loops forever,
+     * accepting new clients and handing them to the loops in turn. All reading
+     * and writing for the clients happens on the loop threads.
+     */
+    private void serveNonBlocking() {
+        SelectorLoop[] loops = new SelectorLoop[this.config
+                .getSelectorThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            try {
+                loops[i] = new SelectorLoop();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when opening a selector");
+            }
+            Thread thread = new Thread(loops[i], "selector-loop-" + i);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = this.serverSocket.getChannel();
+        int next = 0;
+        while (true) {
+            // block until a client connects
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+
+                SelectorLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                // the session must be known before any line can be read, so
+                // that replies to that line find it
+                SelectorSession session = new SelectorSession(channel, loop,
+                        this);
+                this.clients.register(session);
+                loop.register(session);
+            } catch (IOException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting clients, which ends serve(), closes the metrics
+     * endpoint if the server has one, and disconnects the server from the
+     * other nodes if it is a node of a cluster. Clients already connected and
+     * the threads processing their commands are left running.
+     */
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (this.metricsEndpoint != null) {
+            this.metricsEndpoint.close();
+        }
+        if (this.cluster != null) {
+            this.cluster.close();
+        }
+    }
+
+    /**
+     * Returns the options this server was started with.
+     * 
+     * @return the ServerConfig of this server.
+     */
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
+    /**
+     * Returns the pool of buffers this server reads and writes connections
+     * with.
+     * 
+     * @return the BufferPool of this server.
+     */
+    public BufferPool getBufferPool() {
+        return this.buffers;
+    }
+
+    /**
+     * Returns the measurements this server records as it runs.
+     * 
+     * @return the ServerMetrics of this server.
+     */
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Returns the log of what was said in each conversation.
+     * 
+     * @return the MessageLog of this server, or null if it has no data
+     *         directory.
+     */
+    public MessageLog getMessageLog() {
+        return this.messageLog;
+    }
+
+    /**
+     * Describes the current state of the server and everything its metrics
+     * have recorded so far, in the Prometheus text format. Safe to call from
+     * any thread; nothing is locked that a worker or a connection waits on.
+     * 
+     * @return the metrics, one sample per line.
+     */
+    public String getMetricsText() {
+        StringBuilder out = new StringBuilder();
+        out.append("chat_queue_length ").append(this.queue.size())
+                .append('\n');
+        out.append("chat_sessions ").append(this.clients.getSessionCount())
+                .append('\n');
+        out.append("chat_users ").append(this.clients.getUserCount())
+                .append('\n');
+        if (this.cluster != null) {
+            out.append("chat_remote_users ")
+                    .append(this.cluster.getRemoteUserCount()).append('\n');
+        }
+        this.metrics.appendTo(out);
+        return out.toString();
+    }
+
+    /**
+     * Describes the most recent traced messages, oldest first, one per line
+     * (see Tracer). Safe to call from any thread.
+     * 
+     * @return the traces, or nothing if tracing is disabled.
+     */
+    public String getTraceText() {
+        StringBuilder out = new StringBuilder();
+        this.metrics.getTracer().appendTo(out);
+        return out.toString();
+    }
+
+    /**
+     * Adds a message (associated with the given Socket) to the server's
+     * blocking queue for future processing.
+     * 
+     * @param message
+     *            The message to add.
+     * @param socket
+     *            The Socket associated with the message.
+     */
+    public void addMessageToQueue(String message, Socket socket) {
+        try {
+            this.queue.put(new CommunicationsData(message, socket,
+                    this.metrics.getTracer()));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected InterruptedException in addMessageToQueue()");
+        }
+    }
+
+    /**
+     * Used to notify the server that a certain socket connection has ended. In
+     * the case that the user did not formally log out and instead forced the
+     * connection to close (perhaps by quitting the program), this method tells
+     * the server to disconnect the User associated with the Socket, if such a
+     * User exists. Nothing more is written to the socket.
+     * 
+     * @param socket
+     *            The socket whose connection has ended.
+     */
+    public void forceLogout(Socket socket) {
+        for (User user : this.clients.unregister(socket)) {
+            this.addMessageToQueue("logout " + user.getUsername(), socket);
+        }
+    }
+
+    /**
+     * Returns a new conversation ID to use for a new conversation. This
+     * conversation ID is guaranteed to be unique among all conversations ever
+     * started, including those started before a restart if the server keeps
+     * a data directory, and among those started on every node of its cluster
+     * if it has one.
+     * 
+     * @return a new conversation ID to use for a new conversation.
+     */
+    private long nextConversationID() {
+        if (this.cluster != null) {
+            return this.cluster.getConversationID(this.conversationIDs.next());
+        }
+        return this.conversationIDs.next();
+    }
+
+    /**
+     * Creates the router connecting a server to the other nodes of its
+     * cluster, listening on the server's own address in the cluster.
+     * 
+     * @param config
+     *            The options of the server.
+     * @return the router, or null if the server runs alone.
+     */
+    private ClusterRouter createClusterRouter(ServerConfig config) {
+        if (config.getClusterNodes() == null) {
+            return null;
+        }
+        InetSocketAddress address = config.getClusterNodes().get(
+                config.getClusterNode());
+        try {
+            return new ClusterRouter(this, this.clients,
+                    config.getClusterNode(), config.getClusterNodes());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when creating cluster socket with address "
+                            + address);
+        }
+    }
+
+    /**
+     * Creates the conversation ID allocator for a server, backed by a file in
+     * the data directory if the server has one.
+     * 
+     * @param config
+     *            The options of the server.
+     * @return the allocator.
+     */
+    private static ConversationIDAllocator createConversationIDAllocator(
+            ServerConfig config) {
+        File directory = config.getDataDirectory();
+        if (directory == null) {
+            return new ConversationIDAllocator();
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            return new ConversationIDAllocator(new File(directory,
+                    "conversation-ids"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when opening data directory "
+                            + directory);
+        }
+    }
+
+    /**
+     * Creates the conversation store of a server, in the data directory if
+     * the server has one, and reads the conversations it keeps. The data
+     * directory itself is created by createConversationIDAllocator().
+     * 
+     * @param config
+     *            The options of the server.
+     * @param conversations
+     *            The map to put the conversations read in.
+     * @param memberships
+     *            The index to record their users in.
+     * @return the store, or null if the server has no data directory.
+     */
+    private static ConversationStore createConversationStore(
+            ServerConfig config, Map<Long, Conversation> conversations,
+            MembershipIndex memberships) {
+        File directory = config.getDataDirectory();
+        if (directory == null) {
+            return null;
+        }
+        try {
+            ConversationStore store = new ConversationStore(new File(
+                    directory, "conversations"));
+            store.load(conversations, memberships);
+            return store;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when reading the conversations in "
+                            + directory);
+        }
+    }
+
+    /**
+     * Creates the message log of a server, in the data directory if the
+     * server has one. The data directory itself is created by
+     * createConversationIDAllocator().
+     * 
+     * @param config
+     *            The options of the server.
+     * @return the log, or null if the server has no data directory.
+     */
+    private static MessageLog createMessageLog(ServerConfig config) {
+        File directory = config.getDataDirectory();
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new MessageLog(new File(directory, "log"),
+                    config.getLogSegmentBytes());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when opening message log in "
+                            + directory);
+        }
+    }
+
+    /**
+     * Creates the offline store of a server, in the data directory if the
+     * server has one.
+     * 
+     * @param config
+     *            The options of the server.
+     * @param messageLog
+     *            The message log of the server, or null.
+     * @return the store, or null if the server has no data directory.
+     */
+    private static OfflineStore createOfflineStore(ServerConfig config,
+            MessageLog messageLog) {
+        if (messageLog == null) {
+            return null;
+        }
+        File file = new File(config.getDataDirectory(), "offline");
+        try {
+            return new OfflineStore(file, messageLog);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when opening offline store "
+                            + file);
+        }
+    }
+
+    /**
+     * Queues a message to be written to the given socket by its session. This
+     * method is thread-safe and does not wait for the message to be written.
+     * If the connection has already ended, or the message later fails to
+     * send, then nothing happens. If the client has too much waiting to be
+     * written already, it is disconnected. This is to protect sudden socket
+     * disconnects from breaking the system.
+     * 
+     * @param message
+     *            The String message to be processed.
+     * @param socket
+     *            The Socket in which the message was received from.
+     */
+    private void writeMessageToSocket(String message, Socket socket) {
+        this.writeMessageToSocket(new EncodedMessage(message), socket);
+    }
+
+    /**
+     * Queues an encoded message to be written to the given socket, as
+     * writeMessageToSocket(String, Socket) does.
+     * 
+     * @param message
+     *            The message, which may also be queued for other sockets.
+     * @param socket
+     *            The Socket to write the message to.
+     */
+    private void writeMessageToSocket(EncodedMessage message, Socket socket) {
+        ClientSession session = this.clients.getSession(socket);
+        if (session != null && !session.send(message)) {
+            // the client has fallen too far behind; dropping the connection
+            // logs the user out
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Changes how every message queued for the given socket from now on is
+     * sent. If the connection has already ended, nothing happens.
+     * 
+     * @param socket
+     *            The Socket of a client that asked for login options.
+     * @param binary
+     *            True to send binary frames.
+     * @param deflate
+     *            True to compress what is sent.
+     */
+    private void switchTransport(Socket socket, boolean binary,
+            boolean deflate) {
+        ClientSession session = this.clients.getSession(socket);
+        if (session != null) {
+            session.switchTransport(binary, deflate);
+        }
+    }
+
+    /**
+     * Returns whether a user is logged in, on this server or, if it is a
+     * node of a cluster, on any other node.
+     * 
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return true if a user with this username is logged in.
+     */
+    private boolean isOnline(User user) {
+        return this.clients.isOnline(user)
+                || (this.cluster != null && this.cluster.isOnline(user));
+    }
+
+    /**
+     * Uses writeMessageToSocket() to send a message to a specific user. A
+     * user held by another node of the cluster is sent the message by that
+     * node.
+     * 
+     * @param message
+     *            The message to send to a user.
+     * @param user
+     *            Any User (username must be specified, but the avatar can be
+     *            anything) that is currently online and in this.clients, or
+     *            online on another node.
+     */
+    private void sendMessageToUser(String message, User user) {
+        this.sendMessageToUser(new EncodedMessage(message), user);
+    }
+
+    /**
+     * Sends an encoded message to a specific user, as
+     * sendMessageToUser(String, User) does.
+     * 
+     * @param message
+     *            The message, which may also be sent to other users.
+     * @param user
+     *            Any User that is currently online.
+     */
+    private void sendMessageToUser(EncodedMessage message, User user) {
+        Socket socket = this.clients.getSocket(user);
+        ClusterRouter.Presence presence;
+        if (socket != null) {
+            writeMessageToSocket(message, socket);
+        } else if (this.cluster != null
+                && (presence = this.cluster.getPresence(user)) != null) {
+            this.cluster.deliver(presence, message.getText());
+        } else {
+            throw new IllegalArgumentException(
+                    "One of the Users to send a message to does not exist");
+        }
+    }
+
+    /**
+     * Sends a user several messages at once, as ClientSession.sendAll() does,
+     * disconnecting the user if they do not fit in what may be queued for
+     * them. A user held by another node of the cluster is sent the messages
+     * by that node, one at a time, and a user who is not online is sent
+     * nothing. This method is thread-safe.
+     * 
+     * @param messages
+     *            The messages, in order.
+     * @param user
+     *            The user. Only the username must be specified.
+     */
+    private void sendMessagesToUser(List<EncodedMessage> messages, User user) {
+        Socket socket = this.clients.getSocket(user);
+        ClientSession session = socket == null ? null : this.clients
+                .getSession(socket);
+        if (session != null) {
+            if (!session.sendAll(messages)) {
+                session.disconnect();
+            }
+            return;
+        }
+        ClusterRouter.Presence presence = this.cluster == null ? null
+                : this.cluster.getPresence(user);
+        if (presence != null) {
+            for (EncodedMessage message : messages) {
+                this.cluster.deliver(presence, message.getText());
+            }
+        }
+    }
+
+    /**
+     * Sends a message to every User in a given list (in an arbitrary order).
+     * 
+     * @param message
+     *            The message to send.
+     * @param targets
+     *            A list of Users who will receive the message. Only username
+     *            must be specified for each User. Each User must be currently
+     *            online, in this.clients or on another node.
+     */
+    private void sendMessageToUsers(String message, Iterable<User> targets) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        ClusterRouter.Recipients remote = this.cluster == null ? null
+                : this.cluster.newRecipients();
+        int recipients = 0;
+        for (User user : targets) {
+            Socket socket = this.clients.getSocket(user);
+            if (socket != null) {
+                this.writeMessageToSocket(encoded, socket);
+            } else if (remote == null || !remote.add(user)) {
+                throw new IllegalArgumentException(
+                        "One of the Users to send a message to does not exist");
+            }
+            recipients++;
+        }
+        if (remote != null) {
+            remote.send(message);
+        }
+        this.metrics.recordFanOut(recipients);
+    }
+
+    /**
+     * Sends a message to every User in a given list who is online, except
+     * one. The message is encoded once and shared by all the recipients.
+     * 
+     * @param message
+     *            The message to send.
+     * @param targets
+     *            A list of Users who may receive the message.
+     * @param except
+     *            A User who must not receive the message, or null.
+     */
+    private void sendMessageToOnlineUsers(String message,
+            Iterable<User> targets, User except) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        ClusterRouter.Recipients remote = this.cluster == null ? null
+                : this.cluster.newRecipients();
+        int recipients = 0;
+        for (User user : targets) {
+            if (user.equals(except)) {
+                continue;
+            }
+            Socket socket = this.clients.getSocket(user);
+            if (socket != null) {
+                this.writeMessageToSocket(encoded, socket);
+                recipients++;
+            } else if (remote != null && remote.add(user)) {
+                recipients++;
+            }
+        }
+        if (remote != null) {
+            remote.send(message);
+        }
+        this.metrics.recordFanOut(recipients);
+    }
+
+    /**
+     * Sends a message said in a conversation to every User in it, as
+     * sendMessageToOnlineUsers() does, except that if the server has an
+     * OfflineStore the message is held there for each user who is offline,
+     * on every node of the cluster if it has one, or has not yet been sent
+     * everything held for them, to be sent once they have (see
+     * deliverOfflineMessages()).
+     * 
+     * @param message
+     *            The message to send.
+     * @param targets
+     *            The Users in the conversation.
+     * @param ID
+     *            The conversation the message was said in.
+     * @param sequence
+     *            The sequence of the message in the MessageLog, or 0 if the
+     *            server has none.
+     */
+    private void sendMessageToMembers(String message, Iterable<User> targets,
+            long ID, long sequence) {
+        if (this.offline == null) {
+            this.sendMessageToOnlineUsers(message, targets, null);
+            return;
+        }
+        EncodedMessage encoded = new EncodedMessage(message);
+        ClusterRouter.Recipients remote = this.cluster == null ? null
+                : this.cluster.newRecipients();
+        int recipients = 0;
+        for (User user : targets) {
+            Socket socket = this.clients.getSocket(user);
+            boolean online = socket != null
+                    || (remote != null && this.cluster.isOnline(user));
+            if (this.offline.hold(user.getUsername(), ID, sequence, online)) {
+                continue;
+            }
+            if (socket != null) {
+                this.writeMessageToSocket(encoded, socket);
+            } else {
+                remote.add(user);
+            }
+            recipients++;
+        }
+        if (remote != null) {
+            remote.send(message);
+        }
+        this.metrics.recordFanOut(recipients);
+    }
+
+    /**
+     * Sends a user the messages held for them in the OfflineStore, on a
+     * thread of its own started when the user logs in, so that a long backlog
+     * holds up neither the workers nor anyone else. The held messages of a
+     * conversation are sent as "say" lines, in order, OFFLINE_BATCH_SIZE and
+     * OFFLINE_BATCH_BYTES at most at a time, each batch queued with a single
+     * ClientSession.sendAll(); the next batch is only read once the client
+     * has been written most of the previous one, so a batch is always in
+     * flight but the outbound limit is never reached. A user held by another
+     * node of the cluster is sent each batch through that node, which tells
+     * this one when the client has been written most of it (see
+     * ClusterRouter.awaitDrained()).
+     * 
+     * Messages said to the user meanwhile are held and sent after the older
+     * ones, and history pages asked for meanwhile are sent once the
+     * conversation's held messages are. If the user logs out first, the rest
+     * is sent on the next login.
+     * 
+     * @param user
+     *            The user, whose delivery was claimed with
+     *            OfflineStore.startDelivery().
+     */
+    private void deliverOfflineMessages(User user) {
+        String username = user.getUsername();
+        int batchBytes = Math.min(OFFLINE_BATCH_BYTES,
+                this.config.getOutboundLimitBytes() / 4);
+        long[] range = new long[3];
+        while (true) {
+            Socket socket = this.clients.getSocket(user);
+            ClientSession session = socket == null ? null : this.clients
+                    .getSession(socket);
+            ClusterRouter.Presence presence = socket == null
+                    && this.cluster != null ? this.cluster.getPresence(user)
+                    : null;
+            if (presence == null && (session == null || session.isClosed())) {
+                if (this.stopOfflineDelivery(user, socket)) {
+                    return;
+                }
+                continue;
+            }
+
+            if (this.offline.nextRange(username, range)) {
+                if (!this.sendOfflineBatch(user, session, presence, range,
+                        batchBytes)
+                        && this.stopOfflineDelivery(user,
+                                socket != null ? socket : presence)) {
+                    return;
+                }
+                continue;
+            }
+            Runnable deferred = this.offline.nextDeferred(username);
+            if (deferred != null) {
+                deferred.run();
+                continue;
+            }
+            if (this.offline.finishDelivery(username)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops sending a user the messages held for them once the user is found
+     * to be gone, unless the user has logged in again meanwhile, in which
+     * case the delivery is claimed again: that login may have found it still
+     * claimed.
+     * 
+     * @param user
+     *            The user.
+     * @param where
+     *            The Socket or ClusterRouter.Presence the user was last
+     *            found at, or null.
+     * @return true if the delivery is over, false if it goes on.
+     */
+    private boolean stopOfflineDelivery(User user, Object where) {
+        this.offline.stopDelivery(user.getUsername());
+        Object again = this.clients.getSocket(user);
+        if (again == null && this.cluster != null) {
+            again = this.cluster.getPresence(user);
+        }
+        return again == null || again == where
+                || !this.offline.startDelivery(user.getUsername());
+    }
+
+    /**
+     * Sends a user a batch of the messages held for them in a conversation,
+     * from the first held, waits until most of it is written, and records it
+     * as delivered. Messages held in a conversation the user has since left
+     * are dropped.
+     * 
+     * @param user
+     *            The user.
+     * @param session
+     *            The session of the user, or null if another node holds the
+     *            user.
+     * @param presence
+     *            Where the user is if another node holds them, or null.
+     * @param range
+     *            The conversation ID, first sequence and last sequence of the
+     *            held messages, as returned by OfflineStore.nextRange().
+     * @param batchBytes
+     *            The most bytes of messages to send, unless the first message
+     *            alone is more.
+     * @return true if the batch was sent, false if the user was found to be
+     *         gone, in which case the batch is sent again on the next login.
+     */
+    private boolean sendOfflineBatch(User user, ClientSession session,
+            ClusterRouter.Presence presence, long[] range, int batchBytes) {
+        long ID = range[0];
+        Conversation chat = this.conversations.get(ID);
+        if (chat == null || !chat.getUsers().contains(user)) {
+            this.offline.advance(user.getUsername(), ID, range[2]);
+            return true;
+        }
+        List<LogRecord> records = this.messageLog.read(ID, range[1],
+                (int) Math.min(range[2] - range[1] + 1, OFFLINE_BATCH_SIZE));
+        // the log may have lost the last messages in a crash
+        long sent = range[2];
+        List<EncodedMessage> batch = new ArrayList<EncodedMessage>(
+                records.size());
+        int bytes = 0;
+        for (LogRecord record : records) {
+            EncodedMessage line = new EncodedMessage("say " + ID + " "
+                    + record.getUsername() + " " + record.getText());
+            bytes += line.getLineLength();
+            if (bytes > batchBytes && !batch.isEmpty()) {
+                break;
+            }
+            batch.add(line);
+            sent = record.getSequence();
+        }
+
+        if (session != null) {
+            if (!session.sendAll(batch)) {
+                session.disconnect();
+                return false;
+            }
+            this.offline.advance(user.getUsername(), ID, sent);
+            // let the client read most of the batch before the next one
+            awaitQueuedBytes(session, batchBytes);
+            return true;
+        }
+        for (EncodedMessage line : batch) {
+            this.cluster.deliver(presence, line.getText());
+        }
+        if (!this.cluster.awaitDrained(presence, ID, batchBytes)) {
+            return false;
+        }
+        this.offline.advance(user.getUsername(), ID, sent);
+        return true;
     }
 
     /**
-     * First, this method creates a thread to start processing messages from the
-     * ChatServer's blocking queue. Next, this method starts an infinite loop
-     * that waits for new clients to connect and spawns a new
-     * ChatServerClientThread to read messages from these clients.
+     * Waits until a client has at most a number of bytes left to be written,
+     * or its connection has ended.
+     * 
+     * @param session
+     *            The session of the client.
+     * @param bytes
+     *            The most bytes that may be left.
      */
-    public void serve() {
-        // start a new thread to work
-        Thread worker = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                work();
-            }
-        });
-        worker.start();
-
-        while (true) {
-            // block until a client connects
+    private static void awaitQueuedBytes(ClientSession session, int bytes) {
+        while (session.getQueuedBytes() > bytes && !session.isClosed()) {
             try {
-                Socket socket = this.serverSocket.accept();
-
-                // create a new thread for this socket
-                Thread thread = new Thread(new ChatServerClientThread(socket,
-                        this));
-                thread.start();
-            } catch (IOException e) {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
                 e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in awaitQueuedBytes()");
             }
         }
     }
 
     /**
-     * Adds a message (associated with the given Socket) to the server's
-     * blocking queue for future processing.
+     * A method that reads messages from the blocking queue, waiting for new
+     * messages when there are none.
      * 
-     * @param message
-     *            The message to add.
-     * @param socket
-     *            The Socket associated with the message.
+     * Each message is processed accordingly and messages are sent back to the
+     * sockets that they came from.
      */
-    public void addMessageToQueue(String message, Socket socket) {
-        try {
-            this.queue.put(new CommunicationsData(message, socket));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            throw new RuntimeException(
-                    "Unexpected InterruptedException in addMessageToQueue()");
+    private void work() {
+        Command command = new Command();
+        while (true) {
+            CommunicationsData next = this.takeMessage();
+            command.decode(next.getMessage());
+            this.process(command, next);
         }
     }
 
     /**
-     * Used to notify the server that a certain socket connection has ended. In
-     * the case that the user did not formally log out and instead forced the
-     * connection to close (perhaps by quitting the program), this method tells
-     * the server to disconnect the User associated with the Socket, if such a
-     * User exists.
+     * Removes the next message from the blocking queue, waiting for one if
+     * there are none.
      * 
-     * @param socket
-     *            The socket whose connection has ended.
+     * @return the next message to process.
      */
-    public void forceLogout(Socket socket) {
-        for (User user : this.clients.keySet()) {
-            if (this.clients.get(user).equals(socket)) {
-                this.addMessageToQueue("logout " + user.getUsername(), socket);
+    CommunicationsData takeMessage() {
+        try {
+            CommunicationsData next = this.queue.take();
+            if (next.getTrace() != null) {
+                next.getTrace().dequeued(System.nanoTime());
             }
+            return next;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected InterruptedException in takeMessage()");
         }
     }
 
     /**
-     * Returns a new conversation ID to use for a new conversation. This
-     * conversation ID is guaranteed to be unique among all existing
-     * conversations. Will throw an error if there does not exist a valid
-     * conversation ID in the range [1, Integer.MAX_VALUE).
+     * Processes a single command from a client, sending any replies, and
+     * records how long it waited and how long it took, in its trace too if it
+     * is traced. Malformed and invalid commands are reported with reject()
+     * and otherwise ignored.
      * 
-     * @return a new conversation ID to use for a new conversation, guaranteed
-     *         to be unique among all active conversations.
+     * @param command
+     *            The command from the client, already decoded.
+     * @param data
+     *            The message the command was decoded from, with the Socket it
+     *            was received from.
      */
-    private int nextConversationID() {
-        for (int i = 1; i < Integer.MAX_VALUE; i++) {
-            if (!conversations.containsKey(i)) {
-                return i;
+    void process(Command command, CommunicationsData data) {
+        long start = System.nanoTime();
+        MessageTrace trace = data.getTrace();
+        if (trace != null) {
+            trace.started(start);
+        }
+        this.metrics.beginCommand(data.getReceivedNanos(), trace, start,
+                this.queue.size());
+        try {
+            this.dispatch(command, data.getSocket());
+        } finally {
+            long end = System.nanoTime();
+            this.metrics.endCommand(command.getOpcode(), end - start);
+            if (trace != null) {
+                trace.ended(end);
             }
         }
-        throw new RuntimeException("Ran out of valid conversation IDs");
     }
 
     /**
-     * Writes a message to the given socket. This method on its own is not
-     * thread-safe. If the message fails to send, then nothing happens. This is
-     * to protect sudden socket disconnects from breaking the system.
+     * Runs the handler of a single command from a client, or from another
+     * node of the cluster. A client's command about a conversation held by
+     * another node is forwarded to it instead (see forwardCommand()).
      * 
-     * @param message
-     *            The String message to be processed.
+     * @param command
+     *            The command from the client, already decoded.
      * @param socket
-     *            The Socket in which the message was received from.
+     *            The Socket the command was received from.
      */
-    private void writeMessageToSocket(String message, Socket socket) {
+    private void dispatch(Command command, Socket socket) {
+        if (command.getOpcode() == null) {
+            this.reject(command.getError(), command.getMessage());
+            return;
+        }
+        if (command.getOpcode().isPeer()) {
+            if (this.cluster == null || !this.cluster.isPeer(socket)) {
+                this.reject("not from another node", command.getMessage());
+                return;
+            }
+        } else if (this.cluster != null
+                && command.getOpcode().isConversationScoped()
+                && !this.cluster.isPeer(socket)) {
+            int holder = this.cluster.getHolder(command.getConversationID());
+            if (holder != this.cluster.getNode()) {
+                this.forwardCommand(command, socket, holder);
+                return;
+            }
+        }
+
         try {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(message);
-        } catch (IOException e) {
+            switch (command.getOpcode()) {
+            case LOGIN_ATTEMPT:
+                this.processLoginAttemptCommand(command, socket);
+                break;
+            case LOGOUT:
+                this.processLogoutCommand(command);
+                break;
+            case CHAT_START:
+                this.processChatStartCommand(command);
+                break;
+            case GROUP_CHAT_START:
+                this.processGroupChatStartCommand(command);
+                break;
+            case GROUP_CHAT_LEAVE:
+                this.processGroupChatLeaveCommand(command);
+                break;
+            case SAY:
+                this.processSayCommand(command);
+                break;
+            case TYPING:
+                this.processTypingCommand(command);
+                break;
+            case CLEARED:
+                this.processClearedCommand(command);
+                break;
+            case HISTORY_FETCH:
+            case PEER_HISTORY_FETCH:
+                this.processHistoryFetchCommand(command, socket);
+                break;
+            case DELIVER:
+                this.processDeliverCommand(command);
+                break;
+            case PEER_JOIN:
+                this.processPeerJoinCommand(command);
+                break;
+            case PEER_LEAVE:
+                this.processPeerLeaveCommand(command);
+                break;
+            case PEER_DOWN:
+                this.processPeerDownCommand(command, socket);
+                break;
+            case PEER_DRAIN:
+                this.processPeerDrainCommand(command);
+                break;
+            case PEER_DRAINED:
+                this.processPeerDrainedCommand(command);
+                break;
+            }
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Uses writeMessageToSocket() to send a message to a specific user.
+     * Sends a client's command about a conversation held by another node of
+     * the cluster to that node, which processes it as it would a command from
+     * one of its own clients. A history_fetch is sent as a peer_history_fetch
+     * for each user logged in on the client's connection, so that the page is
+     * sent to whichever of them is in the conversation.
      * 
-     * @param message
-     *            The message to send to a user.
-     * @param user
-     *            Any User (username must be specified, but the avatar can be
-     *            anything) that is currently online and in this.clients.
+     * @param command
+     *            The command from the client.
+     * @param socket
+     *            The Socket the command was received from.
+     * @param holder
+     *            The node holding the conversation.
      */
-    private void sendMessageToUser(String message, User user) {
-        if (this.clients.containsKey(user)) {
-            writeMessageToSocket(message, this.clients.get(user));
-        } else {
-            throw new IllegalArgumentException(
-                    "One of the Users to send a message to does not exist");
+    private void forwardCommand(Command command, Socket socket, int holder) {
+        if (command.getOpcode() != Opcode.HISTORY_FETCH) {
+            this.cluster.send(holder, command.getMessage());
+            return;
         }
-    }
-
-    /**
-     * Sends a message to every User in a given list (in an arbitrary order).
-     * 
-     * @param message
-     *            The message to send.
-     * @param targets
-     *            A list of Users who will receive the message. Only username
-     *            must be specified for each User. Each User must be currently
-     *            online and in this.clients.
-     */
-    private void sendMessageToUsers(String message, Iterable<User> targets) {
-        for (User user : targets) {
-            this.sendMessageToUser(message, user);
+        for (User user : this.clients.getUsers(socket)) {
+            this.cluster.send(holder,
+                    "peer_history_fetch " + command.getConversationID() + " "
+                            + command.getToken(2) + " " + command.getToken(3)
+                            + " " + user.getUsername());
         }
     }
 
     /**
-     * A method that reads messages from the blocking queue, waiting for new
-     * messages when there are none.
+     * Reports a command that was ignored because it is malformed or refers to
+     * a user or conversation that does not exist. Clients may send such
+     * commands in the normal course of things (for instance about a user who
+     * has just logged out), and a client may send a flood of them, so this is
+     * kept cheap: the command is counted by reason in the metrics, and at
+     * most one of them is printed every REJECT_REPORT_MILLIS.
      * 
-     * Each message is processed accordingly and messages are sent back to the
-     * sockets that they came from.
+     * @param reason
+     *            Why the command was ignored, one of a few fixed strings.
+     * @param message
+     *            The message from the client.
      */
-    private void work() {
-        while (true) {
-            String message;
-            Socket socket;
-
-            try {
-                CommunicationsData next = this.queue.take();
-                message = next.getMessage();
-                socket = next.getSocket();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                throw new RuntimeException(
-                        "Unexpected InterruptedException in work()");
-            }
-
-            String[] split = message.split(" ");
-
-            try {
-                if (split[0].equals("login_attempt")) {
-                    this.processLoginAttemptCommand(message, socket);
-                } else if (split[0].equals("logout")) {
-                    this.processLogoutCommand(message);
-                } else if (split[0].equals("chat_start")) {
-                    this.processChatStartCommand(message);
-                } else if (split[0].equals("group_chat_start")) {
-                    this.processGroupChatStartCommand(message);
-                } else if (split[0].equals("group_chat_leave")) {
-                    this.processGroupChatLeaveCommand(message);
-                } else if (split[0].equals("say")) {
-                    this.processSayCommand(message);
-                } else if (split[0].equals("typing")) {
-                    this.processTypingCommand(message);
-                } else if (split[0].equals("cleared")) {
-                    this.processClearedCommand(message);
-                } else {
-                    throw new IllegalStateException(
-                            "Unexpected command received from client by server: "
-                                    + message);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    private void reject(String reason, String message) {
+        this.metrics.recordReject(reason);
+        long now = System.currentTimeMillis();
+        long last = this.lastRejectReport.get();
+        if (now - last >= REJECT_REPORT_MILLIS
+                && this.lastRejectReport.compareAndSet(last, now)) {
+            System.err.println("Ignored command from client (" + reason
+                    + "), more may follow unprinted: " + message);
         }
     }
 
@@ -259,144 +1363,362 @@ public class ChatServer {
      * clients are notified that this new user has logged in and the new user is
      * notified of all the clients that are already logged in. Finally, the new
      * user rejoins all private conversations that he or she was previously
-     * involved in. If the username is not valid, then "login_invalid" is sent
-     * back to the user through the socket.
+     * involved in, and is sent what was said in them while the user was
+     * offline (see deliverOfflineMessages()). If the username is not valid
+     * (taken, or longer than MAX_USERNAME_BYTES, which keeps it within what
+     * the MessageLog, OfflineStore and ConversationStore can record), then
+     * "login_invalid" is sent back to the user through the socket.
      * 
-     * @param message
-     *            The message from the client. Must be in the form
-     *            "login_attempt SPACE username SPACE avatar".
+     * In a cluster, a username is taken if it is logged in on any node, and
+     * may not contain a comma (see ClusterRouter.Recipients). The other nodes
+     * are told about the login, and do the same for their own users and
+     * conversations (see processPeerJoinCommand()).
+     * 
+     * The command may end with options (see LoginOptions), which change how
+     * every message sent to the socket after the reply to this command is
+     * sent. A client asking for "binary" has already switched to sending
+     * frames.
+     * 
+     * @param command
+     *            The command from the client, in the form
+     *            "login_attempt SPACE username SPACE avatar [SPACE option]*".
      * @param socket
      *            The socket from which the message was received.
      */
-    private void processLoginAttemptCommand(String message, Socket socket) {
-        String[] split = message.split(" ");
-
-        if (split.length != 3) {
-            throw new IllegalStateException(
-                    "Invalid login_attempt message received from client by server");
+    private void processLoginAttemptCommand(Command command, Socket socket) {
+        String[] tokens = new String[command.getTokenCount()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = command.getToken(i);
         }
+        if (!LoginOptions.areValid(tokens, 3)) {
+            this.reject("unknown login option", command.getMessage());
+            return;
+        }
+        List<String> options = Arrays.asList(tokens).subList(3, tokens.length);
+        boolean binary = options.contains(LoginOptions.BINARY);
+        boolean deflate = options.contains(LoginOptions.DEFLATE);
+        String username = command.getToken(1);
+        int avatar;
+        try {
+            avatar = Integer.parseInt(command.getToken(2));
+        } catch (NumberFormatException e) {
+            this.reject("invalid avatar", command.getMessage());
+            return;
+        }
+        final User user = new User(username, avatar);
 
-        String username = split[1];
-        int avatar = Integer.parseInt(split[2]);
-        User user = new User(username, avatar);
-
-        if (clients.containsKey(user)) {
+        if (this.isOnline(user)
+                || username.getBytes(UTF8).length > MAX_USERNAME_BYTES
+                || (this.cluster != null && username.indexOf(',') >= 0)) {
             this.writeMessageToSocket("login_invalid", socket);
+            this.switchTransport(socket, binary, deflate);
         } else {
             this.writeMessageToSocket("login_success", socket);
+            this.switchTransport(socket, binary, deflate);
 
             // notify all current users that a new user has joined
             this.sendMessageToUsers(
                     "user_joins " + username + " " + Integer.toString(avatar),
-                    this.clients.keySet());
+                    this.clients.getOnlineUsers());
 
             // add new user to list
-            this.clients.put(user, socket);
+            this.clients.login(user, socket);
+            if (this.cluster != null) {
+                this.cluster.announce("peer_join " + this.cluster.getNode()
+                        + " " + username + " " + avatar);
+            }
+
+            // the connection may have ended before this login was processed,
+            // in which case forceLogout() found no user to log out
+            if (this.clients.getSession(socket) == null) {
+                this.addMessageToQueue("logout " + username, socket);
+            }
 
             // notify new user of logged-in users
-            for (User onlineUser : this.clients.keySet()) {
+            for (User onlineUser : this.clients.getOnlineUsers()) {
                 this.sendMessageToUser("user_joins " + onlineUser.getUsername()
                         + " " + onlineUser.getAvatar(), user);
             }
+            if (this.cluster != null) {
+                for (User remoteUser : this.cluster.getRemoteUsers()) {
+                    this.sendMessageToUser(
+                            "user_joins " + remoteUser.getUsername() + " "
+                                    + remoteUser.getAvatar(), user);
+                }
+            }
 
-            // have the user rejoin all private conversations
-            for (int ID : this.conversations.keySet()) {
-                Conversation conversation = this.conversations.get(ID);
-                if (!conversation.isGroupChat()) {
-                    Iterator<User> iterator = conversation.getUsers()
-                            .iterator();
-                    User a = iterator.next();
-                    User b = iterator.next();
-                    if (!a.equals(user) && b.equals(user)) {
-                        this.sendMessageToUser(
-                                "chat_start " + conversation.getID() + " "
-                                        + a.getUsername() + " "
-                                        + b.getUsername(), user);
-                    } else if (a.equals(user) && !b.equals(user)) {
-                        this.sendMessageToUser(
-                                "chat_start " + conversation.getID() + " "
-                                        + b.getUsername() + " "
-                                        + a.getUsername(), user);
-                    }
+            this.rejoinPrivateConversations(user);
+            this.startOfflineDelivery(user);
+        }
+    }
+
+    /**
+     * Has a user who has just logged in rejoin every private conversation
+     * held by this server that they were in, by sending them a "chat_start"
+     * for it that names them second.
+     * 
+     * @param user
+     *            The user, who is online.
+     */
+    private void rejoinPrivateConversations(User user) {
+        for (long ID : this.memberships.getConversations(user)) {
+            Conversation conversation = this.conversations.get(ID);
+            if (!conversation.isGroupChat()) {
+                Iterator<User> iterator = conversation.getUsers().iterator();
+                User a = iterator.next();
+                User b = iterator.next();
+                if (!a.equals(user) && b.equals(user)) {
+                    this.sendMessageToUser(
+                            "chat_start " + conversation.getID() + " "
+                                    + a.getUsername() + " "
+                                    + b.getUsername(), user);
+                } else if (a.equals(user) && !b.equals(user)) {
+                    this.sendMessageToUser(
+                            "chat_start " + conversation.getID() + " "
+                                    + b.getUsername() + " "
+                                    + a.getUsername(), user);
                 }
             }
         }
     }
 
+    /**
+     * Starts sending a user who has just logged in what was said to them
+     * while offline in the conversations held by this server, unless it is
+     * already being sent (see deliverOfflineMessages()).
+     * 
+     * @param user
+     *            The user, who is online.
+     */
+    private void startOfflineDelivery(final User user) {
+        if (this.offline != null
+                && this.offline.startDelivery(user.getUsername())) {
+            this.startThread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverOfflineMessages(user);
+                }
+            });
+        }
+    }
+
     /**
      * Logs a user out of the server if the user is not already logged out.
      * Notifies all connected clients that the user has logged out. All group
      * chats that the user was a part of are notified that this user has left.
+     * In a cluster, the other nodes are told about the logout, and do the
+     * same for their own users and conversations.
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "logout SPACE username".
      */
-    private void processLogoutCommand(String message) {
-        String[] split = message.split(" ");
+    private void processLogoutCommand(Command command) {
+        String username = command.getToken(1);
 
-        if (split.length != 2) {
-            throw new IllegalStateException(
-                    "Invalid logout message received from client by server");
+        if (this.clients.logout(new User(username))) {
+            if (this.cluster != null) {
+                this.cluster.announce("peer_leave " + this.cluster.getNode()
+                        + " " + username);
+            }
+            this.userLeft(username);
+        }
+    }
+
+    /**
+     * Has a user who has logged out, of this server or of another node of
+     * the cluster, leave every conversation held by this server, and notifies
+     * the users of this server, unless the username is still logged in on
+     * another node (see processPeerJoinCommand()).
+     * 
+     * @param username
+     *            The username of the user.
+     */
+    private void userLeft(String username) {
+        // leave all conversations
+        for (long chatID : this.memberships.getConversations(new User(
+                username))) {
+            this.typing.forget(chatID, username);
+            Conversation chat = this.conversations.get(chatID);
+            if (chat.isGroupChat()) {
+                chat.removeUser(new User(username));
+                // send a leave message
+                this.sendMessageToUsers("group_chat_leave " + chatID + " "
+                        + username, chat.getUsers());
+            }
         }
 
-        String username = split[1];
+        // notify all clients that a new user has logged in
+        if (!this.isOnline(new User(username))) {
+            this.sendMessageToUsers("user_leaves " + username,
+                    this.clients.getOnlineUsers());
+        }
+    }
 
-        if (this.clients.containsKey(new User(username))) {
-            this.clients.remove(new User(username));
+    /**
+     * Notifies the server that a user has logged in on another node of its
+     * cluster. As for a login on this server, the users of this server are
+     * notified, and the new user rejoins the private conversations held by
+     * this server and is sent what was said in them while offline.
+     * 
+     * Two nodes may both accept a username before either hears of the other's
+     * login, in which case the node with the lower index keeps it, and the
+     * user of the other node is disconnected.
+     * 
+     * @param command
+     *            The command from another node, in the form
+     *            "peer_join SPACE node SPACE username SPACE avatar".
+     */
+    private void processPeerJoinCommand(Command command) {
+        int node = Integer.parseInt(command.getToken(1));
+        String username = command.getToken(2);
+        int avatar = Integer.parseInt(command.getToken(3));
+        User user = new User(username, avatar);
 
-            // leave all conversations
-            for (int chatID : this.conversations.keySet()) {
-                Conversation chat = this.conversations.get(chatID);
-                if (chat.getUsers().contains(new User(username))
-                        && chat.isGroupChat()) {
-                    chat.removeUser(new User(username));
-                    // send a leave message
-                    this.sendMessageToUsers("group_chat_leave " + chatID + " "
-                            + username, chat.getUsers());
+        Socket socket = this.clients.getSocket(user);
+        if (socket != null) {
+            if (node < this.cluster.getNode()) {
+                ClientSession session = this.clients.getSession(socket);
+                if (session != null) {
+                    session.disconnect();
                 }
+                this.cluster.join(node, user);
             }
+            return;
+        }
+        if (!this.cluster.join(node, user)) {
+            return;
+        }
+        this.sendMessageToUsers("user_joins " + username + " " + avatar,
+                this.clients.getOnlineUsers());
+        this.rejoinPrivateConversations(user);
+        this.startOfflineDelivery(user);
+    }
 
-            // notify all clients that a new user has logged in
-            this.sendMessageToUsers("user_leaves " + username,
-                    this.clients.keySet());
+    /**
+     * Notifies the server that a user has logged out of another node of its
+     * cluster, as processLogoutCommand() does for this server.
+     * 
+     * @param command
+     *            The command from another node, in the form
+     *            "peer_leave SPACE node SPACE username".
+     */
+    private void processPeerLeaveCommand(Command command) {
+        String username = command.getToken(2);
+        if (this.cluster.leave(Integer.parseInt(command.getToken(1)),
+                new User(username))) {
+            this.userLeft(username);
+        }
+    }
+
+    /**
+     * Notifies the server that the connection from another node of its
+     * cluster has ended, which logs out every user of that node.
+     * 
+     * @param command
+     *            The command, in the form "peer_down SPACE node".
+     * @param socket
+     *            The Socket of the connection that ended.
+     */
+    private void processPeerDownCommand(Command command, Socket socket) {
+        for (User user : this.cluster.down(
+                Integer.parseInt(command.getToken(1)), socket)) {
+            this.userLeft(user.getUsername());
+        }
+    }
+
+    /**
+     * Sends users of this server a message from another node of its cluster,
+     * about a conversation held by that node. Users who have logged out
+     * meanwhile are sent nothing.
+     * 
+     * @param command
+     *            The command from another node, in the form
+     *            "deliver SPACE id SPACE username(,username)* SPACE message".
+     */
+    private void processDeliverCommand(Command command) {
+        EncodedMessage message = new EncodedMessage(command.getText());
+        for (String username : command.getToken(2).split(",")) {
+            Socket socket = this.clients.getSocket(new User(username));
+            if (socket != null) {
+                this.writeMessageToSocket(message, socket);
+            }
+        }
+    }
+
+    /**
+     * Answers another node of the cluster that is sending a user of this
+     * server what was said to them while offline, once the user has been
+     * written most of what was sent (see ClusterRouter.awaitDrained()). The
+     * command is processed after the messages sent before it in the same
+     * conversation, and the answer is waited for on a thread of its own.
+     * 
+     * @param command
+     *            The command from another node, in the form
+     *            "peer_drain SPACE id SPACE username SPACE node SPACE bytes".
+     */
+    private void processPeerDrainCommand(Command command) {
+        final String answer = "peer_drained " + command.getConversationID()
+                + " " + command.getToken(2) + " " + this.cluster.getNode();
+        final int node = Integer.parseInt(command.getToken(3));
+        final int bytes = Integer.parseInt(command.getToken(4));
+        Socket socket = this.clients.getSocket(new User(command.getToken(2)));
+        final ClientSession session = socket == null ? null : this.clients
+                .getSession(socket);
+        if (session == null) {
+            this.cluster.send(node, answer + " gone");
+            return;
         }
+        this.startThread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQueuedBytes(session, bytes);
+                cluster.send(node, answer
+                        + (session.isClosed() ? " gone" : " drained"));
+            }
+        });
+    }
+
+    /**
+     * Hands the answer to a peer_drain command to the thread waiting for it.
+     * 
+     * @param command
+     *            The command from another node, in the form
+     *            "peer_drained SPACE id SPACE username SPACE node SPACE
+     *            (drained|gone)".
+     */
+    private void processPeerDrainedCommand(Command command) {
+        this.cluster.drained(Integer.parseInt(command.getToken(3)),
+                command.getToken(2), command.getToken(4).equals("drained"));
     }
 
     /**
      * Notifies the server that a new private conversation between two users has
-     * begun.
+     * begun. If the server has a data directory, the conversation is kept
+     * across restarts (see ConversationStore).
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "chat_start SPACE username SPACE username". The first username
      *            is the user that started the conversation. The second username
      *            is the user that was invited to the conversation.
      */
-    private void processChatStartCommand(String message) {
-        String[] split = message.split(" ");
-        if (split.length != 3) {
-            throw new IllegalStateException(
-                    "Invalid chat_start message received from client by server");
-        }
-
-        String username1 = split[1];
+    private void processChatStartCommand(Command command) {
+        String username1 = command.getToken(1);
         User user1 = new User(username1);
-        if (!this.clients.containsKey(user1)) {
-            throw new IllegalStateException(
-                    "Invalid chat_start message received from client by server: unknown user");
-        }
-
-        String username2 = split[2];
+        String username2 = command.getToken(2);
         User user2 = new User(username2);
-        if (!this.clients.containsKey(user2)) {
-            throw new IllegalStateException(
-                    "Invalid chat_start message received from client by server: unknown user");
+        if (!this.isOnline(user1) || !this.isOnline(user2)) {
+            this.reject("unknown user", command.getMessage());
+            return;
         }
 
         Conversation chat = new Conversation(user1, user2,
-                this.nextConversationID());
+                this.nextConversationID(), this.memberships);
         conversations.put(chat.getID(), chat);
+        if (this.conversationStore != null) {
+            this.conversationStore.record(chat);
+        }
 
         this.sendMessageToUser("chat_start " + chat.getID() + " " + username1
                 + " " + username2, user1);
@@ -408,32 +1730,23 @@ public class ChatServer {
      * Starts a group chat among a list of users. Everyone involved will be
      * notified of the new conversation and the users involved.
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "group_chat_start (SPACE username)+".
      */
-    private void processGroupChatStartCommand(String message) {
-        String[] split = message.split(" ");
-
-        if (split.length == 1) {
-            throw new IllegalStateException(
-                    "Invalid group_chat_start message received from client by server");
-        }
-
+    private void processGroupChatStartCommand(Command command) {
         Set<User> users = new HashSet<User>();
-        for (int i = 1; i < split.length; i++) {
-            String username = split[i];
-            users.add(new User(username));
-        }
-
-        for (User user : users) {
-            if (!this.clients.containsKey(user)) {
-                throw new IllegalStateException(
-                        "Invalid group_chat_start message received from client by server: unknown user");
+        for (int i = 1; i < command.getTokenCount(); i++) {
+            User user = new User(command.getToken(i));
+            if (!this.isOnline(user)) {
+                this.reject("unknown user", command.getMessage());
+                return;
             }
+            users.add(user);
         }
 
-        Conversation chat = new Conversation(users, this.nextConversationID());
+        Conversation chat = new Conversation(users, this.nextConversationID(),
+                this.memberships);
         conversations.put(chat.getID(), chat);
 
         for (User user : users) {
@@ -458,27 +1771,20 @@ public class ChatServer {
      * also notify all the users still in the group conversation that someone
      * has left.
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "group_chat_leave SPACE id SPACE username".
      */
-    private void processGroupChatLeaveCommand(String message) {
-        String[] split = message.split(" ");
-
-        if (split.length != 3) {
-            throw new IllegalStateException(
-                    "Invalid group_chat_leave message received from client by server");
-        }
-        int ID = Integer.parseInt(split[1]);
-        String username = split[2];
-
-        if (!this.clients.containsKey(new User(username))) {
-            throw new IllegalStateException(
-                    "Invalid group_chat_leave message received from client by server: unknown user");
+    private void processGroupChatLeaveCommand(Command command) {
+        long ID = command.getConversationID();
+        String username = command.getToken(2);
+        Conversation chat = this.findConversation(command, username);
+        if (chat == null) {
+            return;
         }
 
-        Conversation chat = this.conversations.get(ID);
         chat.removeUser(new User(username));
+        this.typing.forget(ID, username);
 
         this.sendMessageToUsers("group_chat_leave " + ID + " " + username,
                 chat.getUsers());
@@ -486,107 +1792,227 @@ public class ChatServer {
 
     /**
      * Notifies the server that a new message has been said in a conversation.
-     * The server notifies all clients to add this message to the conversation.
+     * The server notifies all clients to add this message to the conversation,
+     * and appends it to the conversation's log if the server has one. Users
+     * in the conversation who are offline are then sent the message when they
+     * next log in (see sendMessageToMembers()).
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "say SPACE id SPACE username SPACE text".
      */
-    private void processSayCommand(String message) {
-        String[] split = message.split(" ");
-
-        if (split.length < 3) {
-            throw new IllegalStateException(
-                    "Invalid say message received from client by server");
+    private void processSayCommand(Command command) {
+        long ID = command.getConversationID();
+        String username = command.getToken(2);
+        Conversation chat = this.findConversation(command, username);
+        if (chat == null) {
+            return;
         }
-        int ID = Integer.parseInt(split[1]);
-        String username = split[2];
-
-        if (!this.clients.containsKey(new User(username))) {
-            throw new IllegalStateException(
-                    "Invalid start message received from client by server: unknown user");
-        }
-
-        String text = message;
-        for (int i = 0; i < 3; i++) {
-            if (text.indexOf(" ") < 0) {
-                text = "";
-            } else {
-                text = text.substring(text.indexOf(" ") + 1);
-            }
+        String text = command.getText();
+        // clients stop showing a user as typing once the user says something
+        this.typing.forget(ID, username);
+        long sequence = 0;
+        if (this.messageLog != null) {
+            sequence = this.messageLog.append(ID, username, text);
         }
 
-        Conversation chat = this.conversations.get(ID);
-        for (User user : chat.getUsers()) {
-            if (this.clients.containsKey(user)) {
-                this.sendMessageToUser("say " + ID + " " + username + " "
-                        + text, user);
-            }
-        }
+        this.sendMessageToMembers("say " + ID + " " + username + " " + text,
+                chat.getUsers(), ID, sequence);
     }
 
     /**
      * Notifies the server that someone is typing in a conversation. The server
-     * then notifies all the users in the conversation.
+     * then notifies all the users in the conversation, unless the user was
+     * already announced as typing less than a re-announce interval ago (see
+     * TypingTracker).
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "typing SPACE id SPACE username".
      */
-    private void processTypingCommand(String message) {
-        String[] split = message.split(" ");
-
-        if (split.length != 3) {
-            throw new IllegalStateException(
-                    "Invalid typing message received from client by server");
+    private void processTypingCommand(Command command) {
+        long ID = command.getConversationID();
+        String username = command.getToken(2);
+        Conversation chat = this.findConversation(command, username);
+        if (chat == null) {
+            return;
         }
-        int ID = Integer.parseInt(split[1]);
-        String username = split[2];
 
-        if (!this.clients.containsKey(new User(username))) {
-            throw new IllegalStateException(
-                    "Invalid typing message received from client by server: unknown user");
+        if (!this.typing.typing(ID, username, System.currentTimeMillis())) {
+            return;
         }
 
-        Conversation chat = this.conversations.get(ID);
-        for (User user : chat.getUsers()) {
-            if (!user.equals(new User(username))
-                    && this.clients.containsKey(user)) {
-                this.sendMessageToUser("typing " + ID + " " + username, user);
-            }
-        }
+        this.sendMessageToOnlineUsers("typing " + ID + " " + username,
+                chat.getUsers(), new User(username));
     }
 
     /**
      * Notifies the server that someone was typing but then cleared all his or
      * her text in a conversation. The server then notifies all the users in the
-     * conversation.
+     * conversation, unless they were already told that the user cleared their
+     * text.
      * 
-     * @param message
-     *            The message from the client. Must be in the form
+     * @param command
+     *            The command from the client, in the form
      *            "cleared SPACE id SPACE username".
      */
-    private void processClearedCommand(String message) {
-        String[] split = message.split(" ");
-
-        if (split.length != 3) {
-            throw new IllegalStateException(
-                    "Invalid cleared message received from client by server");
+    private void processClearedCommand(Command command) {
+        long ID = command.getConversationID();
+        String username = command.getToken(2);
+        Conversation chat = this.findConversation(command, username);
+        if (chat == null) {
+            return;
         }
-        int ID = Integer.parseInt(split[1]);
-        String username = split[2];
 
-        if (!this.clients.containsKey(new User(username))) {
-            throw new IllegalStateException(
-                    "Invalid cleared message received from client by server: unknown user");
+        if (!this.typing.cleared(ID, username, System.currentTimeMillis())) {
+            return;
         }
 
+        this.sendMessageToOnlineUsers("cleared " + ID + " " + username,
+                chat.getUsers(), new User(username));
+    }
+
+    /**
+     * Sends a client a page of the messages said in a conversation it is in,
+     * read from the server's MessageLog, as a single response: one line
+     * "history SPACE id SPACE seq SPACE time SPACE username SPACE text" per
+     * message, oldest first, where time is in milliseconds since the epoch,
+     * followed by "history_end SPACE id SPACE oldest". The oldest is the
+     * sequence of the first message in the page, or where the page would have
+     * started if it is empty; it is the before-seq of the next older page,
+     * and there is none if it is at most 1.
+     * 
+     * A page holds the messages just before before-seq, at most count of
+     * them, HISTORY_PAGE_SIZE and HISTORY_PAGE_BYTES of text. A server with
+     * no data directory keeps no messages, and answers with an empty page.
+     * While messages held for the user in the conversation are still being
+     * sent, the page is only read and sent after them, so that it ends where
+     * they do.
+     * 
+     * Another node of the cluster asks for a page on behalf of one of its
+     * users with "peer_history_fetch SPACE id SPACE before-seq SPACE count
+     * SPACE username", and the page is sent to that user.
+     * 
+     * @param command
+     *            The command from the client, in the form
+     *            "history_fetch SPACE id SPACE before-seq SPACE count", where
+     *            a before-seq of 0 asks for the latest messages.
+     * @param socket
+     *            The Socket the command was received from, which must have a
+     *            user in the conversation logged in.
+     */
+    private void processHistoryFetchCommand(Command command, Socket socket) {
+        final long ID = command.getConversationID();
+        final long before;
+        final int count;
+        try {
+            before = Long.parseLong(command.getToken(2));
+            count = Integer.parseInt(command.getToken(3));
+        } catch (NumberFormatException e) {
+            this.reject("invalid history range", command.getMessage());
+            return;
+        }
+        if (before < 0 || count <= 0) {
+            this.reject("invalid history range", command.getMessage());
+            return;
+        }
         Conversation chat = this.conversations.get(ID);
-        for (User user : chat.getUsers()) {
-            if (!user.equals(new User(username))
-                    && this.clients.containsKey(user)) {
-                this.sendMessageToUser("cleared " + ID + " " + username, user);
+        if (chat == null) {
+            this.reject("unknown conversation", command.getMessage());
+            return;
+        }
+        Set<User> members = chat.getUsers();
+        Set<User> candidates;
+        if (command.getOpcode() == Opcode.PEER_HISTORY_FETCH) {
+            candidates = Collections.singleton(new User(command.getToken(4)));
+        } else {
+            candidates = this.clients.getUsers(socket);
+        }
+        User found = null;
+        for (User user : candidates) {
+            if (members.contains(user)) {
+                found = user;
+            }
+        }
+        if (found == null) {
+            this.reject("not in conversation", command.getMessage());
+            return;
+        }
+
+        final User member = found;
+        if (this.offline != null
+                && this.offline.defer(member.getUsername(), ID, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendHistoryPage(member, ID, before, count);
+                    }
+                })) {
+            return;
+        }
+        this.sendHistoryPage(member, ID, before, count);
+    }
+
+    /**
+     * Sends a client a page of the messages said in a conversation, as
+     * described in processHistoryFetchCommand(). This method is thread-safe.
+     * 
+     * @param member
+     *            The user in the conversation to send the page to.
+     * @param ID
+     *            The conversation.
+     * @param before
+     *            The sequence just after the page, or 0 for the latest page.
+     * @param count
+     *            The most messages the client asked for.
+     */
+    private void sendHistoryPage(User member, long ID, long before, int count) {
+        long last = this.messageLog == null ? 0 : this.messageLog
+                .getLastSequence(ID);
+        long end = before == 0 || before > last ? last + 1 : before;
+        long first = Math.max(1, end - Math.min(count, HISTORY_PAGE_SIZE));
+        List<LogRecord> records = first < end ? this.messageLog.read(ID,
+                first, (int) (end - first)) : new ArrayList<LogRecord>();
+
+        // keep the newest messages that fit, and at least one
+        LinkedList<EncodedMessage> page = new LinkedList<EncodedMessage>();
+        long oldest = end;
+        int bytes = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            LogRecord record = records.get(i);
+            EncodedMessage line = new EncodedMessage("history " + ID + " "
+                    + record.getSequence() + " " + record.getTimeMillis()
+                    + " " + record.getUsername() + " " + record.getText());
+            bytes += line.getLineLength();
+            if (bytes > HISTORY_PAGE_BYTES && !page.isEmpty()) {
+                break;
             }
+            page.addFirst(line);
+            oldest = record.getSequence();
+        }
+        page.add(new EncodedMessage("history_end " + ID + " " + oldest));
+        this.sendMessagesToUser(page, member);
+    }
+
+    /**
+     * Looks up the conversation of a command scoped to a single conversation,
+     * rejecting the command if its user is not online or the conversation
+     * does not exist.
+     * 
+     * @param command
+     *            The command, whose conversation ID is getConversationID().
+     * @param username
+     *            The user the command is from.
+     * @return the conversation, or null if the command was rejected.
+     */
+    private Conversation findConversation(Command command, String username) {
+        if (!this.isOnline(new User(username))) {
+            this.reject("unknown user", command.getMessage());
+            return null;
+        }
+        Conversation chat = this.conversations.get(command.getConversationID());
+        if (chat == null) {
+            this.reject("unknown conversation", command.getMessage());
         }
+        return chat;
     }
 }
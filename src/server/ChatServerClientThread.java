@@ -1,10 +1,11 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import protocol.BinaryCodec;
+import protocol.MessageReader;
 
 /**
  * A class to act as a thread to read messages from a single client Socket.
@@ -13,6 +14,8 @@ import java.net.Socket;
  * from the particular socket.
  */
 public class ChatServerClientThread implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8192;
+
     private final Socket socket; // The socket that the data is read from.
     private final ChatServer server; // The ChatServer that is communicating
                                      // with the client socket.
@@ -38,15 +41,30 @@ public class ChatServerClientThread implements Runnable {
         // messages, adding each message to the server's blocking queue for
         // further processing.
 
-        BufferedReader in = null;
-        PrintWriter out = null;
+        // Replies are written by the socket's session, not by this thread.
+
+        // A client that asks for binary frames in its login_attempt sends
+        // nothing but frames after that line.
+
+        // The reader reads into a buffer from the server's pool, which goes
+        // back to the pool once the connection ends.
+
+        BufferPool pool = this.server.getBufferPool();
+        ServerMetrics metrics = this.server.getMetrics();
+        ByteBuffer buffer = pool.acquire(READ_BUFFER_SIZE);
+        MessageReader in = null;
+        long counted = 0;
         try {
-            in = new BufferedReader(new InputStreamReader(
-                    this.socket.getInputStream()));
-            out = new PrintWriter(this.socket.getOutputStream(), true);
+            in = new MessageReader(this.socket.getInputStream(),
+                    buffer.array());
 
-            for (String line = in.readLine(); line != null; line = in
-                    .readLine()) {
+            for (String line = in.readMessage(); line != null; line = in
+                    .readMessage()) {
+                if (!in.isBinary() && BinaryCodec.requestsBinary(line)) {
+                    in.switchToBinary(new BinaryCodec(true));
+                }
+                metrics.addBytesIn(in.getBytesRead() - counted);
+                counted = in.getBytesRead();
                 this.server.addMessageToQueue(line, socket);
             }
         } catch (IOException e) {
@@ -56,12 +74,14 @@ public class ChatServerClientThread implements Runnable {
             this.server.forceLogout(socket);
 
             try {
-                out.close();
-                in.close();
+                if (in != null) {
+                    in.close();
+                }
                 this.socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            pool.release(buffer);
         }
     }
 }
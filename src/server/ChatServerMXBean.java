@@ -0,0 +1,115 @@
+package server;
+
+/**
+ * The management interface of a running ChatServer, registered with the
+ * platform MBean server under the name "server:type=ChatServer,port=PORT" so
+ * that it can be read and tuned with any JMX client, such as jconsole.
+ *
+ * The attributes are read straight from the server's own structures without
+ * taking any lock that a worker or a connection waits on, so reading them
+ * never stalls the server; while the server is busy they may be a few
+ * commands out of date. Setting a limit or an interval takes effect for the
+ * next message sent or notification received.
+ */
+public interface ChatServerMXBean {
+    /**
+     * Returns the number of connected clients, logged in or not.
+     *
+     * @return the number of sessions.
+     */
+    int getSessionCount();
+
+    /**
+     * Returns the number of logged-in users.
+     *
+     * @return the number of users.
+     */
+    int getUserCount();
+
+    /**
+     * Describes each connected client on a line of its own: its address, the
+     * users logged in on it, the bytes waiting to be written to it and the
+     * typing notifications dropped or replaced for it.
+     *
+     * @return one line per session.
+     */
+    String[] getSessions();
+
+    /**
+     * Returns the number of conversations, private and group, ever started.
+     *
+     * @return the number of conversations.
+     */
+    int getConversationCount();
+
+    /**
+     * Describes the conversations with the most users, largest first.
+     *
+     * @param count
+     *            The number of conversations to describe.
+     * @return one line per conversation: its ID, whether it is a group chat
+     *         and its number of users.
+     */
+    String[] getLargestConversations(int count);
+
+    /**
+     * Returns the number of commands received and not yet taken by a worker.
+     *
+     * @return the length of the server's blocking queue.
+     */
+    int getQueueLength();
+
+    /**
+     * Returns the number of commands handed to worker threads and not yet
+     * processed. Always 0 when the server has a single worker thread.
+     *
+     * @return the workers' backlog.
+     */
+    int getWorkerBacklog();
+
+    /**
+     * Returns the number of typing notifications the server has not
+     * forwarded.
+     *
+     * @return the notifications suppressed.
+     */
+    long getTypingSuppressedCount();
+
+    /**
+     * Describes the most recent traced messages, oldest first, one per line
+     * (see Tracer).
+     *
+     * @return the traces, or nothing if tracing is disabled.
+     */
+    String dumpTraces();
+
+    /** @see ServerConfig#setOutboundLimitBytes(int) */
+    int getOutboundLimitBytes();
+
+    /** @see ServerConfig#setOutboundLimitBytes(int) */
+    void setOutboundLimitBytes(int outboundLimitBytes);
+
+    /** @see ServerConfig#setTransientLimitBytes(int) */
+    int getTransientLimitBytes();
+
+    /** @see ServerConfig#setTransientLimitBytes(int) */
+    void setTransientLimitBytes(int transientLimitBytes);
+
+    /** @see ServerConfig#setCoalesceTransient(boolean) */
+    boolean isCoalesceTransient();
+
+    /** @see ServerConfig#setCoalesceTransient(boolean) */
+    void setCoalesceTransient(boolean coalesceTransient);
+
+    /** @see ServerConfig#setTypingReannounceMillis(long) */
+    long getTypingReannounceMillis();
+
+    /** @see ServerConfig#setTypingReannounceMillis(long) */
+    void setTypingReannounceMillis(long typingReannounceMillis);
+
+    /** @see ServerConfig#setTypingStopMillis(long) */
+    long getTypingStopMillis();
+
+    /** @see ServerConfig#setTypingStopMillis(long) */
+    void setTypingStopMillis(long typingStopMillis);
+}
@@ -0,0 +1,204 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import conversation.Conversation;
+import user.User;
+
+/**
+ * The ChatServerMXBean of a ChatServer, backed by the server's own
+ * structures: its SessionRegistry, its map of conversations and its blocking
+ * queue, which are all safe to read from any thread, its Tracer, and its
+ * ServerConfig and TypingTracker, which are updated when a tunable is set.
+ */
+class ChatServerManagement implements ChatServerMXBean {
+    private final SessionRegistry clients; // The server's connected clients.
+    private final Map<Long, Conversation> conversations; // The server's
+                                                         // conversations.
+    private final Queue<CommunicationsData> queue; // The server's blocking
+                                                   // queue.
+    private final CommandDispatcher dispatcher; // The server's dispatcher, or
+                                                // null with one worker.
+    private final ServerConfig config; // The server's options.
+    private final TypingTracker typing; // The server's typing states.
+    private final Tracer tracer; // The server's message traces.
+
+    /**
+     * Creates the management interface of a server from its structures.
+     */
+    ChatServerManagement(SessionRegistry clients,
+            Map<Long, Conversation> conversations,
+            Queue<CommunicationsData> queue, CommandDispatcher dispatcher,
+            ServerConfig config, TypingTracker typing, Tracer tracer) {
+        this.clients = clients;
+        this.conversations = conversations;
+        this.queue = queue;
+        this.dispatcher = dispatcher;
+        this.config = config;
+        this.typing = typing;
+        this.tracer = tracer;
+    }
+
+    @Override
+    public int getSessionCount() {
+        return this.clients.getSessionCount();
+    }
+
+    @Override
+    public int getUserCount() {
+        return this.clients.getUserCount();
+    }
+
+    @Override
+    public String[] getSessions() {
+        List<String> lines = new ArrayList<String>();
+        for (ClientSession session : this.clients.getSessions()) {
+            StringBuilder line = new StringBuilder();
+            line.append(session.getSocket().getRemoteSocketAddress());
+            line.append(" users=");
+            String separator = "";
+            for (User user : this.clients.getUsers(session.getSocket())) {
+                line.append(separator).append(user.getUsername());
+                separator = ",";
+            }
+            line.append(" queued=").append(session.getQueuedBytes());
+            line.append(" dropped=").append(session.getDroppedCount());
+            line.append(" coalesced=").append(session.getCoalescedCount());
+            lines.add(line.toString());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public int getConversationCount() {
+        return this.conversations.size();
+    }
+
+    @Override
+    public String[] getLargestConversations(int count) {
+        if (count <= 0) {
+            return new String[0];
+        }
+        // the memberships change under us, so each size is read once
+        Comparator<Sized> bySize = new Comparator<Sized>() {
+            @Override
+            public int compare(Sized a, Sized b) {
+                return a.size - b.size;
+            }
+        };
+        // keep the largest count seen so far, smallest on top
+        PriorityQueue<Sized> largest = new PriorityQueue<Sized>(count,
+                bySize);
+        for (Conversation conversation : this.conversations.values()) {
+            largest.add(new Sized(conversation, conversation.getUsers()
+                    .size()));
+            if (largest.size() > count) {
+                largest.poll();
+            }
+        }
+        List<Sized> sorted = new ArrayList<Sized>(largest);
+        Collections.sort(sorted, Collections.reverseOrder(bySize));
+        String[] lines = new String[sorted.size()];
+        for (int i = 0; i < lines.length; i++) {
+            Sized sized = sorted.get(i);
+            lines[i] = sized.conversation.getID() + " "
+                    + (sized.conversation.isGroupChat() ? "group" : "private")
+                    + " users=" + sized.size;
+        }
+        return lines;
+    }
+
+    @Override
+    public int getQueueLength() {
+        return this.queue.size();
+    }
+
+    @Override
+    public int getWorkerBacklog() {
+        return this.dispatcher == null ? 0 : this.dispatcher
+                .getInFlightCount();
+    }
+
+    @Override
+    public long getTypingSuppressedCount() {
+        return this.typing.getSuppressedCount();
+    }
+
+    @Override
+    public String dumpTraces() {
+        StringBuilder out = new StringBuilder();
+        this.tracer.appendTo(out);
+        return out.toString();
+    }
+
+    @Override
+    public int getOutboundLimitBytes() {
+        return this.config.getOutboundLimitBytes();
+    }
+
+    @Override
+    public void setOutboundLimitBytes(int outboundLimitBytes) {
+        this.config.setOutboundLimitBytes(outboundLimitBytes);
+    }
+
+    @Override
+    public int getTransientLimitBytes() {
+        return this.config.getTransientLimitBytes();
+    }
+
+    @Override
+    public void setTransientLimitBytes(int transientLimitBytes) {
+        this.config.setTransientLimitBytes(transientLimitBytes);
+    }
+
+    @Override
+    public boolean isCoalesceTransient() {
+        return this.config.isCoalesceTransient();
+    }
+
+    @Override
+    public void setCoalesceTransient(boolean coalesceTransient) {
+        this.config.setCoalesceTransient(coalesceTransient);
+    }
+
+    @Override
+    public long getTypingReannounceMillis() {
+        return this.config.getTypingReannounceMillis();
+    }
+
+    @Override
+    public void setTypingReannounceMillis(long typingReannounceMillis) {
+        this.config.setTypingReannounceMillis(typingReannounceMillis);
+        this.typing.setReannounceMillis(typingReannounceMillis);
+    }
+
+    @Override
+    public long getTypingStopMillis() {
+        return this.config.getTypingStopMillis();
+    }
+
+    @Override
+    public void setTypingStopMillis(long typingStopMillis) {
+        this.config.setTypingStopMillis(typingStopMillis);
+        this.typing.setStopMillis(typingStopMillis);
+    }
+
+    /**
+     * A conversation with its number of users, read once.
+     */
+    private static class Sized {
+        private final Conversation conversation; // The conversation.
+        private final int size; // Its number of users when it was read.
+
+        Sized(Conversation conversation, int size) {
+            this.conversation = conversation;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package server;
+
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import protocol.BinaryCodec;
+
+/**
+ * The server's side of a single client connection, used to send messages to
+ * the client. Every session owns a queue of outgoing messages: the threads
+ * processing commands only add to that queue, and the session writes the
+ * messages out later on a thread of its own choosing. A burst of messages to
+ * the same client is written out together and flushed once.
+ *
+ * At most one drain of the queue is scheduled or running at any time, so a
+ * subclass never writes from two threads at once.
+ *
+ * The queue is bounded so that a client that cannot keep up does not hold on
+ * to an unbounded amount of memory. Typing notifications ("typing" and
+ * "cleared") only describe the latest state of a user, so they are handled
+ * first: a newer notification for the same conversation and user replaces a
+ * queued one (unless another message was queued in between), and once the
+ * queue passes the transient limit they are dropped. Any other message that
+ * would take the queue past the outbound limit gets the client disconnected
+ * instead.
+ *
+ * Messages are queued as EncodedMessages, which a message sent to many
+ * clients shares between their sessions. A session starts out writing them
+ * as text lines, and switches to binary frames, DEFLATE compression or both
+ * at the point in the queue where switchTransport() was called (see
+ * LoginOptions).
+ */
+public abstract class ClientSession {
+    protected static final String LINE_SEPARATOR = System
+            .getProperty("line.separator");
+
+    private final Socket socket; // The socket of the client.
+    private final ServerConfig config; // Holds the outbound limits.
+    private final ServerMetrics metrics; // Records how long messages take
+                                         // to be written.
+    private final Queue<OutboundMessage> outbound; // Messages waiting to be
+                                                   // written, oldest first.
+    private final Map<String, OutboundMessage> queuedTransient; // The queued
+                                                                // typing
+                                                                // notification
+                                                                // for each
+                                                                // "ID username".
+    private int queuedBytes; // The approximate size of the queued messages.
+    private boolean drainScheduled; // True while a drain is scheduled or
+                                    // running.
+    private boolean closed; // True once the connection has ended.
+    private long droppedCount; // Typing notifications dropped over the limit.
+    private long coalescedCount; // Typing notifications replaced by newer
+                                 // ones.
+    private BinaryCodec outboundCodec; // Encodes the messages taken by the
+                                       // drain, or null to write text lines.
+    private boolean outboundDeflated; // True once the messages taken by the
+                                      // drain are compressed.
+    private long[] takenOrigins; // The origins of the messages taken by
+                                 // the drain since the last write.
+    private int takenCount; // The number of origins in takenOrigins.
+    private List<MessageTrace> takenTraces; // The traces of the messages
+                                            // taken by the drain since the
+                                            // last write, or null if none.
+
+    /**
+     * Creates a session for a connected client, whose measurements are not
+     * reported anywhere.
+     *
+     * @param socket
+     *            The socket of the client.
+     * @param config
+     *            The server options holding the outbound limits.
+     */
+    protected ClientSession(Socket socket, ServerConfig config) {
+        this(socket, config, new ServerMetrics());
+    }
+
+    /**
+     * Creates a session for a connected client.
+     *
+     * @param socket
+     *            The socket of the client.
+     * @param config
+     *            The server options holding the outbound limits.
+     * @param metrics
+     *            The metrics of the server, which record how long messages
+     *            wait and the bytes written.
+     */
+    protected ClientSession(Socket socket, ServerConfig config,
+            ServerMetrics metrics) {
+        this.socket = socket;
+        this.config = config;
+        this.metrics = metrics;
+        this.outbound = new ArrayDeque<OutboundMessage>();
+        this.queuedTransient = new HashMap<String, OutboundMessage>();
+        this.queuedBytes = 0;
+        this.drainScheduled = false;
+        this.closed = false;
+        this.droppedCount = 0;
+        this.coalescedCount = 0;
+        this.outboundCodec = null;
+        this.takenOrigins = new long[16];
+        this.takenCount = 0;
+        this.takenTraces = null;
+    }
+
+    /**
+     * Queues a message to be sent to the client, followed by a line separator,
+     * and makes sure a drain is scheduled. Thread-safe and never blocks on the
+     * network. Messages sent after the session is closed are dropped.
+     *
+     * @param message
+     *            The message to send to the client.
+     * @return false if the message could not be queued because the client has
+     *         fallen too far behind, in which case the session is closed and
+     *         the caller should disconnect() it; true otherwise.
+     */
+    public boolean send(String message) {
+        return this.send(new EncodedMessage(message));
+    }
+
+    /**
+     * Queues an encoded message to be sent to the client, as send(String)
+     * does. The same EncodedMessage may be queued for any number of sessions.
+     *
+     * @param message
+     *            The message to send to the client.
+     * @return false if the message could not be queued because the client has
+     *         fallen too far behind, in which case the session is closed and
+     *         the caller should disconnect() it; true otherwise.
+     */
+    public boolean send(EncodedMessage message) {
+        int size = message.getLineLength();
+        long origin = this.metrics.getOrigin();
+        MessageTrace trace = this.metrics.getTrace();
+        synchronized (this) {
+            if (this.closed) {
+                return true;
+            }
+            String transientKey = message.getTransientKey();
+            if (transientKey != null) {
+                OutboundMessage queued = this.queuedTransient
+                        .get(transientKey);
+                if (queued != null && this.config.isCoalesceTransient()) {
+                    this.queuedBytes += size - queued.size;
+                    queued.message = message;
+                    queued.size = size;
+                    queued.origin = origin;
+                    queued.trace = trace;
+                    this.coalescedCount++;
+                    return true;
+                }
+                if (this.queuedBytes + size > this.config
+                        .getTransientLimitBytes()) {
+                    this.droppedCount++;
+                    return true;
+                }
+            } else if (this.queuedBytes + size > this.config
+                    .getOutboundLimitBytes()) {
+                this.markClosed();
+                return false;
+            }
+
+            OutboundMessage queued = new OutboundMessage(message, size,
+                    transientKey, origin, trace);
+            this.outbound.add(queued);
+            if (transientKey != null) {
+                this.queuedTransient.put(transientKey, queued);
+            } else {
+                // a notification must not be moved ahead of this message
+                this.queuedTransient.clear();
+            }
+            this.queuedBytes += size;
+            if (this.drainScheduled) {
+                return true;
+            }
+            this.drainScheduled = true;
+        }
+        this.scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Queues several encoded messages to be written together, in order, as a
+     * single response: the session is scheduled to drain once, after all of
+     * them are queued, so they go out in the same batch unless the queue was
+     * already being drained. They are held to the outbound limit as a whole,
+     * and typing notifications among them are queued like any other message.
+     *
+     * @param messages
+     *            The messages to send to the client.
+     * @return false if the messages could not be queued because the client
+     *         has fallen too far behind, in which case the session is closed
+     *         and the caller should disconnect() it; true otherwise.
+     */
+    public boolean sendAll(List<EncodedMessage> messages) {
+        int size = 0;
+        for (EncodedMessage message : messages) {
+            size += message.getLineLength();
+        }
+        long origin = this.metrics.getOrigin();
+        MessageTrace trace = this.metrics.getTrace();
+        synchronized (this) {
+            if (this.closed || messages.isEmpty()) {
+                return true;
+            }
+            if (this.queuedBytes + size > this.config.getOutboundLimitBytes()) {
+                this.markClosed();
+                return false;
+            }
+            for (EncodedMessage message : messages) {
+                this.outbound.add(new OutboundMessage(message, message
+                        .getLineLength(), null, origin, trace));
+            }
+            // a notification must not be moved ahead of these messages
+            this.queuedTransient.clear();
+            this.queuedBytes += size;
+            if (this.drainScheduled) {
+                return true;
+            }
+            this.drainScheduled = true;
+        }
+        this.scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Changes how every message queued from now on is written. Messages
+     * already queued are still written the old way. Neither change can be
+     * undone: asking again for one already made does nothing, as does asking
+     * once the session is closed.
+     *
+     * @param binary
+     *            True to write binary frames instead of text lines.
+     * @param deflate
+     *            True to compress everything written from now on.
+     */
+    public void switchTransport(boolean binary, boolean deflate) {
+        synchronized (this) {
+            if (this.closed || !(binary || deflate)) {
+                return;
+            }
+            this.outbound.add(new OutboundMessage(binary, deflate));
+            // a notification must not be moved across the switch
+            this.queuedTransient.clear();
+            if (this.drainScheduled) {
+                return;
+            }
+            this.drainScheduled = true;
+        }
+        this.scheduleDrain();
+    }
+
+    /**
+     * Drops the connection of a client without waiting for queued messages.
+     * Thread-safe. Whoever owns the connection notices that it has ended and
+     * logs the user out through ChatServer.forceLogout(), as for any other
+     * lost connection.
+     */
+    public abstract void disconnect();
+
+    /**
+     * Arranges for the queue to be drained, by calling nextMessage() until it
+     * returns null and then finishDrain(). Called at most once until that
+     * drain finishes.
+     */
+    protected abstract void scheduleDrain();
+
+    /**
+     * Removes and returns the oldest queued message, for use while draining.
+     * The message must be written with the codec getOutboundCodec() returns
+     * after this call, or as its text line if it returns null, and compressed
+     * if isOutboundDeflated() returns true after this call, and
+     * recordWritten() called once it has been written.
+     *
+     * @return the next message to write, or null if the queue is empty.
+     */
+    protected synchronized EncodedMessage nextMessage() {
+        OutboundMessage next = this.outbound.poll();
+        while (next != null && next.message == null) {
+            if (next.binary && this.outboundCodec == null) {
+                this.outboundCodec = new BinaryCodec(true);
+            }
+            this.outboundDeflated |= next.deflate;
+            next = this.outbound.poll();
+        }
+        if (next == null) {
+            return null;
+        }
+        this.queuedBytes -= next.size;
+        if (this.takenCount == this.takenOrigins.length) {
+            this.takenOrigins = Arrays.copyOf(this.takenOrigins,
+                    2 * this.takenCount);
+        }
+        this.takenOrigins[this.takenCount++] = next.origin;
+        if (next.trace != null) {
+            if (this.takenTraces == null) {
+                this.takenTraces = new ArrayList<MessageTrace>();
+            }
+            this.takenTraces.add(next.trace);
+        }
+        if (next.transientKey != null
+                && this.queuedTransient.get(next.transientKey) == next) {
+            this.queuedTransient.remove(next.transientKey);
+        }
+        return next.message;
+    }
+
+    /**
+     * Records the latency of the messages taken by nextMessage() since the
+     * last call, and stamps their traces with the time they were written.
+     * Called by the drain once the bytes it has encoded are written to the
+     * socket, so that time spent blocked on a slow client is counted.
+     */
+    protected void recordWritten() {
+        long now = System.nanoTime();
+        List<MessageTrace> written;
+        synchronized (this) {
+            for (int i = 0; i < this.takenCount; i++) {
+                this.metrics.recordWrite(this.takenOrigins[i], now);
+            }
+            this.takenCount = 0;
+            written = this.takenTraces;
+            this.takenTraces = null;
+        }
+        if (written != null) {
+            for (MessageTrace trace : written) {
+                trace.written(this.socket.getRemoteSocketAddress(), now);
+            }
+        }
+    }
+
+    /**
+     * Ends a drain once nextMessage() has returned null. A message may have
+     * been queued just after the queue was found empty, in which case the
+     * caller is told to keep draining rather than scheduling another drain.
+     *
+     * @return true if the caller must continue draining, false if the drain is
+     *         over.
+     */
+    protected synchronized boolean finishDrain() {
+        if (this.outbound.isEmpty() || this.closed) {
+            this.drainScheduled = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the session as closed and discards any messages not yet written.
+     */
+    protected synchronized void markClosed() {
+        this.closed = true;
+        this.outbound.clear();
+        this.queuedTransient.clear();
+        this.queuedBytes = 0;
+        this.takenCount = 0;
+        this.takenTraces = null;
+    }
+
+    // ACCESSORS
+    public Socket getSocket() {
+        return this.socket;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return this.queuedBytes;
+    }
+
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return this.coalescedCount;
+    }
+
+    protected synchronized BinaryCodec getOutboundCodec() {
+        return this.outboundCodec;
+    }
+
+    protected synchronized boolean isOutboundDeflated() {
+        return this.outboundDeflated;
+    }
+
+    protected ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * A queued message. Its message changes if a newer typing notification
+     * replaces it.
+     */
+    private static class OutboundMessage {
+        private EncodedMessage message; // The message to write, or null to
+                                        // mark a switch of transport.
+        private int size; // The size of the message's text line in bytes.
+        private final String transientKey; // See
+                                           // EncodedMessage.getTransientKey(),
+                                           // or null.
+        private long origin; // See ServerMetrics.getOrigin().
+        private MessageTrace trace; // See ServerMetrics.getTrace().
+        private final boolean binary; // True if a switch to binary frames.
+        private final boolean deflate; // True if a switch to compression.
+
+        private OutboundMessage(EncodedMessage message, int size,
+                String transientKey, long origin, MessageTrace trace) {
+            this.message = message;
+            this.size = size;
+            this.transientKey = transientKey;
+            this.origin = origin;
+            this.trace = trace;
+            this.binary = false;
+            this.deflate = false;
+        }
+
+        private OutboundMessage(boolean binary, boolean deflate) {
+            this.message = null;
+            this.size = 0;
+            this.transientKey = null;
+            this.origin = 0;
+            this.trace = null;
+            this.binary = binary;
+            this.deflate = deflate;
+        }
+    }
+}
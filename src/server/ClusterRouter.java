@@ -0,0 +1,854 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import user.User;
+
+/**
+ * Connects a ChatServer to the other nodes of a cluster of servers, each of
+ * which holds the connections of some of the users, so that together they
+ * serve more users than a single machine could.
+ *
+ * A user is held by the node they logged in on, and a conversation by the
+ * node it was started on, whose index is kept in the top bits of its ID (see
+ * getConversationID()). Each node processes the commands of the
+ * conversations it holds with the same handlers as a server running alone: a
+ * client's command about a conversation held elsewhere is forwarded as it is
+ * to the node holding it, and what the handlers send to users held elsewhere
+ * is sent to their node in a single "deliver" command per node, naming the
+ * users (see Recipients). Each node announces its users to the others as
+ * they log in and out, so that every node knows who is online and where (see
+ * getPresence()).
+ *
+ * The nodes talk over plain TCP, in lines like those of clients. Every node
+ * listens on its own address in the cluster, and keeps a connection to each
+ * of the other nodes over which it sends them everything, in order, starting
+ * with the users it holds. A connection is only accepted from the address of
+ * the node it claims to be from, and only while that node is heard from over
+ * no other connection. The lines received from a node are put in the
+ * server's queue, from the socket they were received on, and processed in
+ * order along with the commands from clients; the commands only nodes may
+ * send are rejected from anywhere else (see isPeer()).
+ *
+ * A node that is down is tried again until it is up. What is sent to it
+ * meanwhile is dropped, and so is whatever was waiting for it when its
+ * connection ended or when it fell MAX_QUEUED_LINES behind, since a new
+ * connection starts over with the users this node holds. An idle connection
+ * carries an empty line every POLL_MILLIS, and a node not heard from for
+ * TIMEOUT_MILLIS is taken to be down. When a node goes down, its users are
+ * logged out on every other node, and whatever was on its way to or from it
+ * is lost. A failure to accept a connection is retried every RETRY_MILLIS.
+ *
+ * The router's threads run until close() is called, which closes its
+ * listener and every connection to and from the other nodes.
+ *
+ * This class is thread-safe.
+ */
+public class ClusterRouter {
+    public static final int NODE_SHIFT = 48; // The bits of a conversation
+                                             // ID below the node holding
+                                             // it.
+    public static final int MAX_NODES = 1 << (63 - NODE_SHIFT); // The most
+                                                                // nodes in a
+                                                                // cluster.
+    private static final String HELLO = "peer_hello "; // Starts every
+                                                       // connection, followed
+                                                       // by the node's index.
+    private static final long RETRY_MILLIS = 100; // The time between two
+                                                  // attempts to connect to a
+                                                  // node.
+    private static final long POLL_MILLIS = 100; // How often a wait for
+                                                 // another node checks that
+                                                 // it is still worth it.
+    private static final int TIMEOUT_MILLIS = 5000; // How long a node may
+                                                    // be silent before it is
+                                                    // taken to be down.
+    private static final int MAX_QUEUED_LINES = 100000; // The most lines
+                                                        // waiting for a node
+                                                        // before its
+                                                        // connection is given
+                                                        // up.
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final ChatServer server; // The server whose queue receives what
+                                     // the other nodes send.
+    private final SessionRegistry clients; // The users held by this node.
+    private final int node; // The index of this node.
+    private final List<InetSocketAddress> nodes; // The address of each node.
+    private final ServerSocket listener; // Accepts the connections of the
+                                         // other nodes.
+    private final Link[] links; // The connection to each node, or null
+                                // for this node.
+    private final Socket[] inbound; // The connection each node is heard
+                                    // from, or null. Guarded by itself.
+    private final Set<Socket> peers; // Every connection from another node
+                                     // whose lines are still accepted.
+    private final Set<Socket> accepted; // Every connection from another
+                                        // node still being read.
+    private final Map<User, Presence> directory; // Where each user held by
+                                                 // another node is.
+    private final Map<String, BlockingQueue<Boolean>> drains; // The answer
+                                                              // awaited for
+                                                              // each user of
+                                                              // another node.
+    private volatile boolean closed; // True once close() is called.
+
+    /**
+     * Creates the router of a node, listening on the node's own address.
+     * Nothing is accepted or sent until start() is called.
+     *
+     * @param server
+     *            The server of this node.
+     * @param clients
+     *            The users held by this node.
+     * @param node
+     *            The index of this node among the nodes.
+     * @param nodes
+     *            The address each node listens on for the others.
+     * @throws IOException
+     *             If this node's address cannot be listened on.
+     */
+    public ClusterRouter(ChatServer server, SessionRegistry clients,
+            int node, List<InetSocketAddress> nodes) throws IOException {
+        this.server = server;
+        this.clients = clients;
+        this.node = node;
+        this.nodes = nodes;
+        this.listener = new ServerSocket();
+        this.listener.setReuseAddress(true);
+        this.listener.bind(nodes.get(node));
+        this.links = new Link[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != node) {
+                this.links[i] = new Link();
+            }
+        }
+        this.inbound = new Socket[nodes.size()];
+        this.peers = Collections
+                .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        this.accepted = Collections
+                .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+        this.directory = new ConcurrentHashMap<User, Presence>();
+        this.drains = new ConcurrentHashMap<String, BlockingQueue<Boolean>>();
+        this.closed = false;
+    }
+
+    /**
+     * Starts accepting the connections of the other nodes, and connecting to
+     * each of them, on threads of their own.
+     */
+    public void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "cluster-accept").start();
+        for (int i = 0; i < this.nodes.size(); i++) {
+            if (i != this.node) {
+                final int peer = i;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendTo(peer);
+                    }
+                }, "cluster-send-" + i).start();
+            }
+        }
+    }
+
+    /**
+     * Stops the router: closes its listener and every connection to and from
+     * the other nodes, which ends the threads start() started and those
+     * reading the connections. Nothing is sent to or received from the other
+     * nodes afterwards.
+     */
+    public void close() {
+        this.closed = true;
+        close(this.listener);
+        for (Link link : this.links) {
+            if (link != null) {
+                link.shut();
+            }
+        }
+        for (Socket socket : this.accepted) {
+            close(socket);
+        }
+    }
+
+    /**
+     * Returns the ID of a new conversation started on this node, which
+     * carries the index of this node above NODE_SHIFT.
+     *
+     * @param local
+     *            An ID handed out by this node's ConversationIDAllocator.
+     * @return the ID of the conversation in the cluster.
+     */
+    public long getConversationID(long local) {
+        if (local >>> NODE_SHIFT != 0) {
+            throw new IllegalStateException("Out of conversation IDs");
+        }
+        return ((long) this.node << NODE_SHIFT) | local;
+    }
+
+    /**
+     * Returns the node holding a conversation: the one it was started on.
+     *
+     * @param ID
+     *            The ID of the conversation, which is never negative.
+     * @return the index of the node, or of this node if no node could have
+     *         started the conversation.
+     */
+    public int getHolder(long ID) {
+        long holder = ID >>> NODE_SHIFT;
+        return holder < this.nodes.size() ? (int) holder : this.node;
+    }
+
+    /**
+     * Records that another node holds a user from now on. If two nodes claim
+     * the same username, the one with the lower index keeps it.
+     *
+     * @param node
+     *            The node the user logged in on.
+     * @param user
+     *            The user, with their avatar.
+     * @return true if the user was not online on another node before.
+     */
+    public synchronized boolean join(int node, User user) {
+        Presence known = this.directory.get(user);
+        if (known != null && known.getNode() <= node) {
+            return false;
+        }
+        if (known != null) {
+            // the key must be the new User, with its avatar
+            this.directory.remove(user);
+        }
+        this.directory.put(user, new Presence(user, node));
+        return known == null;
+    }
+
+    /**
+     * Records that a user held by another node has logged out.
+     *
+     * @param node
+     *            The node the user logged out of.
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return true if the user was held by that node.
+     */
+    public synchronized boolean leave(int node, User user) {
+        Presence known = this.directory.get(user);
+        if (known == null || known.getNode() != node) {
+            return false;
+        }
+        this.directory.remove(user);
+        return true;
+    }
+
+    /**
+     * Forgets every user held by a node whose connection has ended, and stops
+     * accepting lines from that connection.
+     *
+     * @param node
+     *            The node.
+     * @param socket
+     *            The connection the node was heard from.
+     * @return the users the node held.
+     */
+    public synchronized List<User> down(int node, Socket socket) {
+        this.peers.remove(socket);
+        List<User> gone = new ArrayList<User>();
+        Iterator<Presence> iterator = this.directory.values().iterator();
+        while (iterator.hasNext()) {
+            Presence presence = iterator.next();
+            if (presence.getNode() == node) {
+                iterator.remove();
+                gone.add(presence.getUser());
+            }
+        }
+        return gone;
+    }
+
+    /**
+     * Returns where a user held by another node is.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return the user's Presence, which is a new one at each login, or null
+     *         if no other node holds the user.
+     */
+    public Presence getPresence(User user) {
+        return this.directory.get(user);
+    }
+
+    /**
+     * Returns whether another node holds a user.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return true if the user is online on another node.
+     */
+    public boolean isOnline(User user) {
+        return this.directory.containsKey(user);
+    }
+
+    /**
+     * Returns the users held by the other nodes, each with its avatar.
+     *
+     * @return a copy of the users.
+     */
+    public List<User> getRemoteUsers() {
+        return new ArrayList<User>(this.directory.keySet());
+    }
+
+    /**
+     * Returns whether a connection is one of another node, whose lines may be
+     * commands that only nodes send.
+     *
+     * @param socket
+     *            The socket a command was received from, or null.
+     * @return true if the socket is that of another node.
+     */
+    public boolean isPeer(Socket socket) {
+        return socket != null && this.peers.contains(socket);
+    }
+
+    /**
+     * Sends a line to another node, after everything sent to it before. This
+     * method does not wait for the line to be written, and the line is
+     * dropped if the node is down.
+     *
+     * @param node
+     *            The index of the node, which must not be this node.
+     * @param line
+     *            The line, without a line separator.
+     */
+    public void send(int node, String line) {
+        this.links[node].offer(line);
+    }
+
+    /**
+     * Sends a line to every other node, as send() does.
+     *
+     * @param line
+     *            The line, without a line separator.
+     */
+    public void announce(String line) {
+        for (Link link : this.links) {
+            if (link != null) {
+                link.offer(line);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to a user held by another node.
+     *
+     * @param presence
+     *            Where the user is.
+     * @param message
+     *            A message about a conversation, whose ID is its second
+     *            token, as every message sent to users of other nodes is.
+     */
+    public void deliver(Presence presence, String message) {
+        this.send(presence.getNode(), "deliver " + conversationOf(message)
+                + " " + presence.getUser().getUsername() + " " + message);
+    }
+
+    /**
+     * Returns an empty set of users of other nodes, to send a message to.
+     *
+     * @return the Recipients.
+     */
+    public Recipients newRecipients() {
+        return new Recipients();
+    }
+
+    /**
+     * Returns the second token of a message, which is the ID of the
+     * conversation it is about.
+     */
+    private static String conversationOf(String message) {
+        int start = message.indexOf(' ') + 1;
+        int end = message.indexOf(' ', start);
+        return message.substring(start, end < 0 ? message.length() : end);
+    }
+
+    /**
+     * Waits until another node has written most of what it was sent for one
+     * of its users, so that a backlog sent in batches never comes near the
+     * user's outbound limit (see ChatServer.deliverOfflineMessages()). Only
+     * the thread delivering to a user may wait for them.
+     *
+     * @param presence
+     *            Where the user is.
+     * @param ID
+     *            The conversation of the messages sent last, which the node
+     *            answers after.
+     * @param bytes
+     *            The most bytes that may still be waiting to be written to
+     *            the user.
+     * @return true once they are written, false if the user has left the
+     *         node.
+     */
+    public boolean awaitDrained(Presence presence, long ID, int bytes) {
+        String username = presence.getUser().getUsername();
+        String key = presence.getNode() + " " + username;
+        BlockingQueue<Boolean> answer = new LinkedBlockingQueue<Boolean>();
+        this.drains.put(key, answer);
+        try {
+            this.send(presence.getNode(), "peer_drain " + ID + " " + username
+                    + " " + this.node + " " + bytes);
+            while (true) {
+                Boolean drained = answer.poll(POLL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (drained != null) {
+                    return drained;
+                }
+                if (this.directory.get(presence.getUser()) != presence) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected InterruptedException in awaitDrained()");
+        } finally {
+            this.drains.remove(key);
+        }
+    }
+
+    /**
+     * Hands the answer of another node to the thread waiting for it in
+     * awaitDrained(), if any.
+     *
+     * @param node
+     *            The node that answered.
+     * @param username
+     *            The user the node was asked about.
+     * @param drained
+     *            True if what was sent to the user is written, false if the
+     *            user has left the node.
+     */
+    public void drained(int node, String username, boolean drained) {
+        BlockingQueue<Boolean> answer = this.drains.get(node + " "
+                + username);
+        if (answer != null) {
+            answer.add(drained);
+        }
+    }
+
+    /**
+     * Accepts the connections of the other nodes until the router is closed,
+     * reading each on a thread of its own.
+     */
+    private void accept() {
+        while (!this.closed) {
+            final Socket socket;
+            try {
+                socket = this.listener.accept();
+            } catch (IOException e) {
+                if (this.closed) {
+                    return;
+                }
+                // out of file descriptors, for instance; do not spin
+                e.printStackTrace();
+                this.pause("accept()");
+                continue;
+            }
+            this.accepted.add(socket);
+            if (this.closed) {
+                // close() may have missed it
+                close(socket);
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read(socket);
+                }
+            }, "cluster-read").start();
+        }
+    }
+
+    /**
+     * Puts every line received from another node in the server's queue until
+     * the connection ends or the node falls silent, and then has the node's
+     * users logged out.
+     */
+    private void read(Socket socket) {
+        int peer = -1;
+        try {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), CHARSET));
+            peer = this.greet(socket, in.readLine());
+            if (peer < 0) {
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                // an empty line only tells that the node is up
+                if (line.length() > 0) {
+                    this.server.addMessageToQueue(line, socket);
+                }
+            }
+        } catch (IOException e) {
+            // the node went down, or has not been heard from for too long
+        } finally {
+            close(socket);
+            this.accepted.remove(socket);
+            if (peer >= 0 && !this.closed) {
+                this.disconnected(peer, socket);
+            }
+        }
+    }
+
+    /**
+     * Reads the line that starts a connection from another node, naming the
+     * node, and from now on hears the node from this connection. A node that
+     * restarted is only heard from again once its earlier connection is found
+     * to have ended, and its users logged out.
+     *
+     * @return the index of the node, or -1 if the line does not name another
+     *         node, the connection is not from that node's address, or the
+     *         node is still heard from over another connection.
+     */
+    private int greet(Socket socket, String hello) {
+        if (hello == null || !hello.startsWith(HELLO)) {
+            return -1;
+        }
+        int peer;
+        try {
+            peer = Integer.parseInt(hello.substring(HELLO.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (peer < 0 || peer >= this.nodes.size() || peer == this.node) {
+            return -1;
+        }
+        if (!socket.getInetAddress().equals(
+                this.nodes.get(peer).getAddress())) {
+            return -1;
+        }
+        synchronized (this.inbound) {
+            if (this.inbound[peer] != null) {
+                return -1;
+            }
+            this.inbound[peer] = socket;
+            this.peers.add(socket);
+        }
+        return peer;
+    }
+
+    /**
+     * Has the users of a node logged out once the connection it is heard
+     * from ends.
+     */
+    private void disconnected(int peer, Socket socket) {
+        synchronized (this.inbound) {
+            if (this.inbound[peer] != socket) {
+                return;
+            }
+            this.inbound[peer] = null;
+        }
+        this.server.addMessageToQueue("peer_down " + peer, socket);
+    }
+
+    /**
+     * Sends the lines sent to another node until the router is closed,
+     * connecting to it again whenever the connection ends. Each connection
+     * starts with the users this node holds, so that a node that restarted
+     * learns about them, and carries only what is sent after it was made.
+     */
+    private void sendTo(int peer) {
+        Link link = this.links[peer];
+        while (!this.closed) {
+            Socket socket = this.connect(peer);
+            if (socket == null) {
+                return;
+            }
+            // opened before the users are listed, so that a user logging in
+            // meanwhile is either listed or announced afterwards
+            link.open(socket);
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        socket.getOutputStream(), CHARSET));
+                writeLine(out, HELLO + this.node);
+                for (User user : this.clients.getOnlineUsers()) {
+                    writeLine(out, "peer_join " + this.node + " "
+                            + user.getUsername() + " " + user.getAvatar());
+                }
+                out.flush();
+                while (link.isOpen(socket)) {
+                    String line = link.poll();
+                    if (line == null) {
+                        // tell the idle node this one is still up
+                        writeLine(out, "");
+                        out.flush();
+                    } else {
+                        writeLine(out, line);
+                        if (link.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the node went down
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in sendTo()");
+            } finally {
+                link.close(socket);
+            }
+        }
+    }
+
+    /**
+     * Connects to another node from this node's own address, the only one
+     * the node accepts it from, trying again until the node is up.
+     *
+     * @return the connection, or null if the router was closed first.
+     */
+    private Socket connect(int peer) {
+        while (!this.closed) {
+            Socket socket = new Socket();
+            try {
+                socket.bind(new InetSocketAddress(this.nodes.get(this.node)
+                        .getAddress(), 0));
+                socket.connect(this.nodes.get(peer));
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                close(socket);
+            }
+            this.pause("connect()");
+        }
+        return null;
+    }
+
+    /**
+     * Waits RETRY_MILLIS before something that failed is tried again.
+     *
+     * @param caller
+     *            The method waiting, for the message of an unexpected
+     *            interruption.
+     */
+    private void pause(String caller) {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Unexpected InterruptedException in "
+                    + caller);
+        }
+    }
+
+    private static void writeLine(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write(ClientSession.LINE_SEPARATOR);
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // ACCESSORS
+    public int getNode() {
+        return this.node;
+    }
+
+    public int getRemoteUserCount() {
+        return this.directory.size();
+    }
+
+    /**
+     * The connection over which this node sends everything to another node,
+     * and the lines waiting to be written to it. Lines are only kept while the
+     * connection is open, since a new connection starts over.
+     */
+    private static final class Link {
+        private final BlockingQueue<String> queue; // The lines waiting to be
+                                                   // written.
+        private Socket socket; // The connection, or null while the node is
+                               // down. Guarded by the Link.
+        private boolean shut; // True once no connection may be opened.
+                              // Guarded by the Link.
+
+        private Link() {
+            this.queue = new LinkedBlockingQueue<String>();
+            this.socket = null;
+            this.shut = false;
+        }
+
+        /**
+         * Queues a line to be written, unless the connection is closed. A
+         * connection whose node has fallen too far behind is closed.
+         */
+        private synchronized void offer(String line) {
+            if (this.socket == null) {
+                return;
+            }
+            if (this.queue.size() >= MAX_QUEUED_LINES) {
+                this.close(this.socket);
+                return;
+            }
+            this.queue.add(line);
+        }
+
+        /**
+         * Starts queueing lines for a new connection, or closes it if the
+         * Link is shut.
+         */
+        private synchronized void open(Socket socket) {
+            this.queue.clear();
+            if (this.shut) {
+                ClusterRouter.close(socket);
+                return;
+            }
+            this.socket = socket;
+        }
+
+        /**
+         * Closes the open connection, if any, and any opened later.
+         */
+        private synchronized void shut() {
+            this.shut = true;
+            if (this.socket != null) {
+                this.close(this.socket);
+            }
+        }
+
+        /**
+         * Closes a connection, dropping the lines waiting for it if it is
+         * still the open one.
+         */
+        private synchronized void close(Socket socket) {
+            if (this.socket == socket) {
+                this.socket = null;
+                this.queue.clear();
+            }
+            ClusterRouter.close(socket);
+        }
+
+        private synchronized boolean isOpen(Socket socket) {
+            return this.socket == socket;
+        }
+
+        /**
+         * Returns the next line to write, or null if none was queued within
+         * POLL_MILLIS.
+         */
+        private String poll() throws InterruptedException {
+            return this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean isEmpty() {
+            return this.queue.isEmpty();
+        }
+    }
+
+    /**
+     * Where a user held by another node is, from one of their logins to the
+     * matching logout.
+     */
+    public static final class Presence {
+        private final User user; // The user, with their avatar.
+        private final int node; // The node holding the user.
+
+        private Presence(User user, int node) {
+            this.user = user;
+            this.node = node;
+        }
+
+        // ACCESSORS
+        public User getUser() {
+            return this.user;
+        }
+
+        public int getNode() {
+            return this.node;
+        }
+    }
+
+    /**
+     * The users of other nodes a message is sent to, gathered by node so that
+     * each node is sent the message once, in a single "deliver" command
+     * naming its users separated by commas. Not thread-safe.
+     */
+    public final class Recipients {
+        private final StringBuilder[] usernames; // The usernames gathered
+                                                 // for each node, or null.
+
+        private Recipients() {
+            this.usernames = new StringBuilder[nodes.size()];
+        }
+
+        /**
+         * Adds a user, if another node holds them.
+         *
+         * @param user
+         *            The user. Only the username must be specified.
+         * @return true if the user was added, false if they are not online
+         *         on another node.
+         */
+        public boolean add(User user) {
+            Presence presence = directory.get(user);
+            if (presence == null) {
+                return false;
+            }
+            StringBuilder names = this.usernames[presence.getNode()];
+            if (names == null) {
+                this.usernames[presence.getNode()] = new StringBuilder(
+                        user.getUsername());
+            } else {
+                names.append(',').append(user.getUsername());
+            }
+            return true;
+        }
+
+        /**
+         * Sends a message to every user added, as deliver() does.
+         *
+         * @param message
+         *            A message about a conversation, whose ID is its second
+         *            token.
+         */
+        public void send(String message) {
+            String ID = null;
+            for (int i = 0; i < this.usernames.length; i++) {
+                if (this.usernames[i] != null) {
+                    if (ID == null) {
+                        ID = conversationOf(message);
+                    }
+                    ClusterRouter.this.send(i, "deliver " + ID + " "
+                            + this.usernames[i] + " " + message);
+                }
+            }
+        }
+    }
+}
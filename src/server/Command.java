@@ -0,0 +1,210 @@
+package server;
+
+/**
+ * A command from a client, decoded in a single pass over the message. The
+ * tokens of the message are recorded as positions in the message rather than
+ * copied out, so decoding allocates nothing; a token is only copied when a
+ * handler asks for it.
+ *
+ * A Command is meant to be reused: each thread processing commands keeps one
+ * and decodes every message it processes into it. It must not be shared
+ * between threads.
+ *
+ * Tokens are separated by single spaces. Spaces at the end of a message are
+ * ignored, except in the text of a "say" command, which is everything after the
+ * space following the username, and of a "deliver" command between the nodes of
+ * a cluster, which is everything after the usernames. A message is malformed if
+ * its first token is not a known command, if it has the wrong number of tokens
+ * for its command, if any token is empty, or if a conversation ID is not a
+ * number.
+ */
+public class Command {
+    public static final String UNKNOWN_COMMAND = "unknown command";
+    public static final String WRONG_ARGUMENTS = "wrong number of arguments";
+    public static final String EMPTY_ARGUMENT = "empty argument";
+    public static final String INVALID_ID = "invalid conversation ID";
+
+    private String message; // The message last decoded.
+    private Opcode opcode; // Its command, or null if it is malformed.
+    private String error; // Why it is malformed, or null.
+    private int[] bounds; // The start and end of each token in the message.
+    private int tokenCount; // The number of tokens recorded in bounds.
+    private int textStart; // For "say" and "deliver", where the text
+                           // starts.
+    private long conversationID; // For commands scoped to a conversation, its
+                                 // ID, or -1.
+
+    /**
+     * Creates an empty Command, ready to decode a message.
+     */
+    public Command() {
+        this.bounds = new int[16];
+        this.reset(null);
+    }
+
+    /**
+     * Decodes a message, replacing whatever this Command held before.
+     *
+     * @param message
+     *            The message from the client.
+     * @return true if the message is a well-formed command; false if it is
+     *         malformed, in which case getError() says why.
+     */
+    public boolean decode(String message) {
+        this.reset(message);
+
+        int length = message.length();
+        int end = message.indexOf(' ');
+        if (end < 0) {
+            end = length;
+        }
+        this.opcode = Opcode.lookup(message, end);
+        if (this.opcode == null) {
+            return this.fail(UNKNOWN_COMMAND);
+        }
+        if (!this.opcode.hasText()) {
+            while (length > end && message.charAt(length - 1) == ' ') {
+                length--;
+            }
+        }
+        this.addToken(0, end);
+
+        int start = end + 1;
+        while (start <= length && this.tokenCount < this.opcode.getMaxTokens()) {
+            end = message.indexOf(' ', start);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+            if (end == start) {
+                return this.fail(EMPTY_ARGUMENT);
+            }
+            this.addToken(start, end);
+            start = end + 1;
+        }
+
+        if (this.opcode.hasText()) {
+            this.textStart = Math.min(start, length);
+        } else if (start <= length) {
+            return this.fail(WRONG_ARGUMENTS);
+        }
+        if (this.tokenCount < this.opcode.getMinTokens()) {
+            return this.fail(WRONG_ARGUMENTS);
+        }
+
+        if (this.opcode.isConversationScoped()) {
+            this.conversationID = this.parseID(this.bounds[2], this.bounds[3]);
+            if (this.conversationID < 0) {
+                return this.fail(INVALID_ID);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a token of the decoded message.
+     *
+     * @param index
+     *            The index of the token, where the command itself is token 0.
+     *            Must be less than getTokenCount().
+     * @return a copy of the token.
+     */
+    public String getToken(int index) {
+        if (index < 0 || index >= this.tokenCount) {
+            throw new IndexOutOfBoundsException("No token " + index);
+        }
+        return this.message.substring(this.bounds[2 * index],
+                this.bounds[2 * index + 1]);
+    }
+
+    /**
+     * Returns the text of a "say" or "deliver" command: everything after the
+     * space that follows the username, or the usernames, or the empty string
+     * if there is nothing there.
+     *
+     * @return the text of the message.
+     */
+    public String getText() {
+        if (this.opcode == null || !this.opcode.hasText()) {
+            throw new IllegalStateException(
+                    "Only say and deliver commands have text");
+        }
+        return this.message.substring(this.textStart);
+    }
+
+    /**
+     * Forgets the previous message and starts on a new one.
+     */
+    private void reset(String message) {
+        this.message = message;
+        this.opcode = null;
+        this.error = null;
+        this.tokenCount = 0;
+        this.textStart = -1;
+        this.conversationID = -1;
+    }
+
+    /**
+     * Marks the message as malformed.
+     *
+     * @return false, for the convenience of decode().
+     */
+    private boolean fail(String error) {
+        this.opcode = null;
+        this.error = error;
+        return false;
+    }
+
+    /**
+     * Records the position of a token, growing the array of positions if
+     * needed.
+     */
+    private void addToken(int start, int end) {
+        if (2 * this.tokenCount + 1 >= this.bounds.length) {
+            int[] grown = new int[this.bounds.length * 2];
+            System.arraycopy(this.bounds, 0, grown, 0, this.bounds.length);
+            this.bounds = grown;
+        }
+        this.bounds[2 * this.tokenCount] = start;
+        this.bounds[2 * this.tokenCount + 1] = end;
+        this.tokenCount++;
+    }
+
+    /**
+     * Parses a non-negative decimal number from part of the message.
+     *
+     * @return the number, or -1 if that part of the message is not a number
+     *         or is too large.
+     */
+    private long parseID(int start, int end) {
+        long ID = 0;
+        for (int i = start; i < end; i++) {
+            char c = this.message.charAt(i);
+            if (c < '0' || c > '9' || ID > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            ID = ID * 10 + (c - '0');
+        }
+        return ID;
+    }
+
+    // ACCESSORS
+    public String getMessage() {
+        return this.message;
+    }
+
+    public Opcode getOpcode() {
+        return this.opcode;
+    }
+
+    public String getError() {
+        return this.error;
+    }
+
+    public int getTokenCount() {
+        return this.tokenCount;
+    }
+
+    public long getConversationID() {
+        return this.conversationID;
+    }
+}
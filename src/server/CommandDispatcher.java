@@ -0,0 +1,177 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the processing of client commands over several worker threads, for
+ * use in place of the ChatServer's single work() thread.
+ *
+ * Commands that act on a single conversation ("say", "typing", "cleared",
+ * "group_chat_leave" and "history_fetch", and the messages another node of a
+ * cluster delivers in one) are sent to the worker chosen by their
+ * conversation ID, so the commands of one conversation are always processed
+ * in the order they were received, while different conversations are
+ * processed in parallel.
+ *
+ * Every other command ("login_attempt", "logout", "chat_start",
+ * "group_chat_start", the logins and logouts announced by other nodes, and
+ * anything malformed) changes who is online or who is in which conversation.
+ * Such a command is processed by the dispatcher thread itself, only after every
+ * command dispatched before it has finished, and before any command received
+ * after it is dispatched. The workers therefore never run while the list of
+ * clients or conversations is being changed.
+ *
+ * Every command is decoded once, by the dispatcher thread; a command sent to
+ * a worker takes its decoded Command along, and the dispatcher decodes the
+ * next one into a fresh Command.
+ */
+public class CommandDispatcher implements Runnable {
+    private final ChatServer server; // The server processing the commands.
+    private final List<BlockingQueue<Dispatched>> shards; // The queue of
+                                                          // each worker.
+    private final AtomicInteger inFlight; // Commands dispatched to workers
+                                          // but not yet processed.
+    private final Object idle; // Notified when inFlight drops to zero.
+
+    /**
+     * Creates a dispatcher for a server. Nothing is processed until run() and
+     * the runnables returned by getWorkers() are started.
+     *
+     * @param server
+     *            The server whose blocking queue is read and whose commands
+     *            are processed.
+     * @param workers
+     *            The number of worker threads. Must be positive.
+     */
+    public CommandDispatcher(ChatServer server, int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive");
+        }
+        this.server = server;
+        this.shards = new ArrayList<BlockingQueue<Dispatched>>();
+        for (int i = 0; i < workers; i++) {
+            this.shards.add(new LinkedBlockingQueue<Dispatched>());
+        }
+        this.inFlight = new AtomicInteger(0);
+        this.idle = new Object();
+    }
+
+    /**
+     * Returns one runnable per worker, each of which processes the commands
+     * dispatched to that worker forever.
+     *
+     * @return the workers, to be started on their own threads.
+     */
+    public List<Runnable> getWorkers() {
+        List<Runnable> workers = new ArrayList<Runnable>();
+        for (final BlockingQueue<Dispatched> shard : this.shards) {
+            workers.add(new Runnable() {
+                @Override
+                public void run() {
+                    work(shard);
+                }
+            });
+        }
+        return workers;
+    }
+
+    /**
+     * Reads commands from the server's blocking queue forever, dispatching
+     * each to a worker or processing it on this thread.
+     */
+    @Override
+    public void run() {
+        Command command = new Command();
+        while (true) {
+            CommunicationsData next = this.server.takeMessage();
+            command.decode(next.getMessage());
+
+            if (command.getOpcode() != null
+                    && command.getOpcode().isConversationScoped()) {
+                long ID = command.getConversationID();
+                this.inFlight.incrementAndGet();
+                this.shards.get((int) (ID % this.shards.size())).add(
+                        new Dispatched(command, next));
+                // the worker owns that Command now
+                command = new Command();
+            } else {
+                this.awaitIdle();
+                this.server.process(command, next);
+            }
+        }
+    }
+
+    /**
+     * Processes the commands of one worker forever.
+     */
+    private void work(BlockingQueue<Dispatched> shard) {
+        while (true) {
+            Dispatched next;
+            try {
+                next = shard.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected InterruptedException in work()");
+            }
+
+            try {
+                this.server.process(next.command, next.data);
+            } finally {
+                if (this.inFlight.decrementAndGet() == 0) {
+                    synchronized (this.idle) {
+                        this.idle.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every command dispatched to the workers has been processed.
+     */
+    private void awaitIdle() {
+        if (this.inFlight.get() == 0) {
+            return;
+        }
+        synchronized (this.idle) {
+            while (this.inFlight.get() > 0) {
+                try {
+                    this.idle.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    throw new RuntimeException(
+                            "Unexpected InterruptedException in awaitIdle()");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of commands dispatched to the workers and not yet
+     * processed, including the ones being processed. Does not lock anything.
+     *
+     * @return the workers' backlog.
+     */
+    public int getInFlightCount() {
+        return this.inFlight.get();
+    }
+
+    /**
+     * A command sent to a worker, already decoded.
+     */
+    private static final class Dispatched {
+        private final Command command; // The decoded command.
+        private final CommunicationsData data; // The message it was decoded
+                                               // from.
+
+        private Dispatched(Command command, CommunicationsData data) {
+            this.command = command;
+            this.data = data;
+        }
+    }
+}
@@ -6,17 +6,23 @@ import java.net.Socket;
  * A data type used to hold data in the ChatServer's blocking queue. All
  * messages received from clients are placed in this blocking queue in the form
  * of a CommunicationsData, which stores the message and the socket the data is
- * received from.
+ * received from, along with when it was received and, if the message was
+ * chosen by the server's Tracer, its trace.
  * 
- * This data structure is immutable.
+ * This data structure is immutable, though its trace is stamped as the
+ * message is processed.
  */
 public class CommunicationsData {
     private final String message; // The message associated with the
                                   // communication.
     private final Socket socket; // The socket the message was received from.
+    private final long receivedNanos; // When the message was received, from
+                                      // System.nanoTime().
+    private final MessageTrace trace; // The trace of the message, or null.
 
     /**
-     * Initializes a new CommunicationsData with the given message and socket.
+     * Initializes a new CommunicationsData with the given message and socket,
+     * received now.
      * 
      * @param message
      *            The String message received from the client.
@@ -26,6 +32,26 @@ public class CommunicationsData {
     public CommunicationsData(String message, Socket socket) {
         this.message = message;
         this.socket = socket;
+        this.receivedNanos = System.nanoTime();
+        this.trace = null;
+    }
+
+    /**
+     * Initializes a new CommunicationsData with the given message and socket,
+     * received now, and starts its trace if the tracer chooses it.
+     * 
+     * @param message
+     *            The String message received from the client.
+     * @param socket
+     *            The Socket the message was received from.
+     * @param tracer
+     *            The tracer deciding whether the message is traced.
+     */
+    public CommunicationsData(String message, Socket socket, Tracer tracer) {
+        this.message = message;
+        this.socket = socket;
+        this.receivedNanos = System.nanoTime();
+        this.trace = tracer.sample(message, socket, this.receivedNanos);
     }
 
     // ACCESSORS
@@ -36,4 +62,12 @@ public class CommunicationsData {
     public Socket getSocket() {
         return this.socket;
     }
+
+    public long getReceivedNanos() {
+        return this.receivedNanos;
+    }
+
+    public MessageTrace getTrace() {
+        return this.trace;
+    }
 }
@@ -0,0 +1,103 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out conversation IDs: 1, 2, 3 and so on, never handing out the same ID
+ * twice. Thread-safe, and each ID costs a single atomic increment.
+ *
+ * An allocator may be backed by a file, in which case IDs are also never
+ * handed out again after a restart. Rather than writing every ID, the
+ * allocator reserves IDs in blocks: before the first ID of a block is handed
+ * out, the end of the block is written to the file and forced to disk. After
+ * a restart, allocation starts at the end of the last reserved block, so the
+ * IDs left unused in that block are skipped but none is reused.
+ */
+public class ConversationIDAllocator {
+    private static final long BLOCK_SIZE = 1024;
+
+    private final AtomicLong next; // The next ID to hand out.
+    private volatile long reserved; // IDs below this may be handed out.
+    private final RandomAccessFile file; // Holds the end of the last reserved
+                                         // block, or null if not persisted.
+
+    /**
+     * Creates an allocator that starts at 1 and keeps nothing across restarts.
+     */
+    public ConversationIDAllocator() {
+        this.next = new AtomicLong(1);
+        this.reserved = Long.MAX_VALUE;
+        this.file = null;
+    }
+
+    /**
+     * Creates an allocator backed by a file. If the file exists, allocation
+     * resumes after every ID that may have been handed out when it was last
+     * used; otherwise it is created and allocation starts at 1.
+     *
+     * @param path
+     *            The file holding the allocator's state.
+     * @throws IOException
+     *             If the file cannot be read or written.
+     */
+    public ConversationIDAllocator(File path) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        long start = 1;
+        if (this.file.length() >= 8) {
+            start = this.file.readLong();
+            if (start < 1) {
+                throw new IOException("Corrupt conversation ID file: " + path);
+            }
+        }
+        this.next = new AtomicLong(start);
+        this.reserved = start;
+    }
+
+    /**
+     * Returns a new conversation ID.
+     *
+     * @return an ID that has never been returned before.
+     */
+    public long next() {
+        long ID = this.next.getAndIncrement();
+        if (ID >= this.reserved) {
+            this.reserve(ID);
+        }
+        return ID;
+    }
+
+    /**
+     * Reserves blocks until an ID may be handed out.
+     */
+    private synchronized void reserve(long ID) {
+        while (ID >= this.reserved) {
+            long end = this.reserved + BLOCK_SIZE;
+            try {
+                this.file.seek(0);
+                this.file.writeLong(end);
+                this.file.getChannel().force(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when reserving conversation IDs");
+            }
+            this.reserved = end;
+        }
+    }
+
+    /**
+     * Closes the file backing the allocator, if any. No more IDs may be
+     * handed out afterwards.
+     *
+     * @throws IOException
+     *             If the file cannot be closed.
+     */
+    public void close() throws IOException {
+        if (this.file != null) {
+            this.file.close();
+        }
+    }
+}
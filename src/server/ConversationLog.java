@@ -0,0 +1,209 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The log of one conversation: a directory of LogSegments, each named after
+ * the sequence of its first record. Records are only ever appended to the
+ * last segment; when it is full, it is sealed and a new one is started.
+ *
+ * The log is thread-safe. Appending never waits for the disk: the log adds
+ * itself to a set of dirty logs on its first append after a flush, and
+ * flush() is then called from another thread.
+ */
+class ConversationLog {
+    private final File directory; // The directory of the segments.
+    private final int segmentBytes; // The size of a new segment.
+    private final Set<ConversationLog> dirtyLogs; // Where the log adds
+                                                  // itself once dirty.
+    private final List<Long> sealed; // The base sequence of each sealed
+                                     // segment, oldest first.
+    private final List<LogSegment> unflushed; // The segments sealed since
+                                              // the last flush.
+    private LogSegment active; // The segment appended to, or null if the
+                               // log is empty.
+    private long nextSequence; // The sequence of the next record.
+    private boolean dirty; // True if the log is in dirtyLogs.
+    private boolean closed; // True once the log may no longer be appended to.
+
+    /**
+     * Opens the log in a directory, recovering its last segment. Nothing is
+     * created until the first append.
+     *
+     * @param directory
+     *            The directory of the conversation's segments.
+     * @param segmentBytes
+     *            The size of each new segment.
+     * @param dirtyLogs
+     *            The set the log adds itself to when it has records to
+     *            flush.
+     * @throws IOException
+     *             If the last segment cannot be opened.
+     */
+    ConversationLog(File directory, int segmentBytes,
+            Set<ConversationLog> dirtyLogs) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.dirtyLogs = dirtyLogs;
+        this.sealed = new ArrayList<Long>();
+        this.unflushed = new ArrayList<LogSegment>();
+        this.active = null;
+        this.nextSequence = 1;
+        this.dirty = false;
+        this.closed = false;
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] bases = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            long base = LogSegment.baseSequenceOf(file);
+            if (base > 0) {
+                bases[count++] = base;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(bases, 0, count);
+        for (int i = 0; i < count - 1; i++) {
+            this.sealed.add(bases[i]);
+        }
+        this.active = LogSegment.open(
+                LogSegment.fileFor(directory, bases[count - 1]), true);
+        this.nextSequence = this.active.getLastSequence() + 1;
+    }
+
+    /**
+     * Appends a message to the log.
+     *
+     * @param timeMillis
+     *            When the message was said.
+     * @param username
+     *            The user who said it.
+     * @param text
+     *            What was said.
+     * @return the sequence of the new record, or -1 if the log was closed.
+     * @throws IOException
+     *             If a new segment cannot be created.
+     */
+    synchronized long append(long timeMillis, String username, String text)
+            throws IOException {
+        if (this.closed) {
+            return -1;
+        }
+        long sequence = this.nextSequence;
+        byte[] record = LogSegment.encode(sequence, timeMillis, username,
+                text);
+        if (this.active == null || !this.active.append(sequence, record)) {
+            this.roll(Math.max(this.segmentBytes, LogSegment.sizeFor(record)));
+            this.active.append(sequence, record);
+        }
+        this.nextSequence++;
+        if (!this.dirty) {
+            this.dirty = true;
+            this.dirtyLogs.add(this);
+        }
+        return sequence;
+    }
+
+    /**
+     * Seals the active segment, if any, and starts a new one at the next
+     * sequence.
+     */
+    private void roll(int capacity) throws IOException {
+        if (this.active != null) {
+            this.sealed.add(this.active.getBaseSequence());
+            this.unflushed.add(this.active);
+        } else if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Cannot create " + this.directory);
+        }
+        this.active = LogSegment.create(this.directory, this.nextSequence,
+                capacity);
+    }
+
+    /**
+     * Reads records in order, starting from a sequence.
+     *
+     * @param fromSequence
+     *            The sequence of the first record wanted.
+     * @param count
+     *            The most records to read.
+     * @return the records, fewer than count if the log ends first.
+     * @throws IOException
+     *             If a sealed segment cannot be opened.
+     */
+    synchronized List<LogRecord> read(long fromSequence, int count)
+            throws IOException {
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        if (this.active == null) {
+            return records;
+        }
+        // the segments after the last one starting at or before fromSequence
+        int first = this.sealed.size();
+        while (first > 0 && this.sealed.get(first - 1) > fromSequence) {
+            first--;
+        }
+        first = Math.max(first - 1, 0);
+        if (fromSequence < this.active.getBaseSequence()) {
+            for (int i = first; i < this.sealed.size()
+                    && records.size() < count; i++) {
+                LogSegment segment = LogSegment.open(LogSegment.fileFor(
+                        this.directory, this.sealed.get(i)), false);
+                segment.read(fromSequence, count, records);
+            }
+        }
+        if (records.size() < count) {
+            this.active.read(fromSequence, count, records);
+        }
+        return records;
+    }
+
+    /**
+     * Forces the records appended since the last flush to the disk, and
+     * writes the index of each segment sealed since then. The disk is never
+     * waited on while holding the log's lock, so appending carries on
+     * meanwhile.
+     *
+     * @throws IOException
+     *             If an index cannot be written.
+     */
+    void flush() throws IOException {
+        LogSegment[] sealedSegments;
+        LogSegment current;
+        synchronized (this) {
+            sealedSegments = this.unflushed
+                    .toArray(new LogSegment[this.unflushed.size()]);
+            this.unflushed.clear();
+            current = this.active;
+            this.dirty = false;
+        }
+        for (LogSegment segment : sealedSegments) {
+            segment.force();
+            segment.writeIndex();
+        }
+        if (current != null) {
+            current.force();
+        }
+    }
+
+    /**
+     * Closes the log. Appending to it fails afterwards, but records not yet
+     * flushed are still flushed by the next flush().
+     */
+    synchronized void close() {
+        this.closed = true;
+    }
+
+    // ACCESSORS
+    public synchronized long getLastSequence() {
+        return this.nextSequence - 1;
+    }
+}
@@ -0,0 +1,331 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import conversation.Conversation;
+import conversation.MembershipIndex;
+
+import user.User;
+
+/**
+ * Keeps the private conversations of a server across restarts, in a
+ * directory of snapshots and journals. Group chats are not kept: a restart
+ * logs out every user, and a user who logs out leaves every group chat.
+ *
+ * Each new conversation is appended to the current journal. Once in a while
+ * snapshot() starts a new journal and writes every conversation to a
+ * snapshot named after it, and then deletes the older snapshots and
+ * journals. The conversations are read while they are still being created,
+ * without stopping anything, so a snapshot may also hold some conversations
+ * from the journal it is named after; since the users of a private
+ * conversation never change, reading such a conversation again from the
+ * journal changes nothing. A server starting up therefore reads the latest
+ * snapshot and then only the journals from its own on (see load()).
+ *
+ * Records are appended to a buffer, and forced to the disk by flush(), which
+ * the server calls along with MessageLog.flush(). A crash loses at most the
+ * conversations created since the last flush, and a record torn by it is
+ * dropped. Their IDs are never handed out again (see
+ * ConversationIDAllocator).
+ *
+ * This class is thread-safe.
+ */
+public class ConversationStore {
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String JOURNAL = "journal-";
+
+    private final File directory; // The directory of the files.
+    private final Object lock; // Guards the journal.
+    private long generation; // The number of the current journal.
+    private FileOutputStream journalFile; // The current journal.
+    private DataOutputStream journal; // Buffers the writes to journalFile.
+
+    /**
+     * Opens the store in a directory, creating it if it does not exist. No
+     * journal is started until load() is called.
+     *
+     * @param directory
+     *            The directory of the snapshots and journals.
+     * @throws IOException
+     *             If the directory cannot be created.
+     */
+    public ConversationStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.lock = new Object();
+        this.generation = 0;
+    }
+
+    /**
+     * Reads the conversations kept in the store into a map and an index,
+     * and starts a new journal for the conversations created from now on.
+     *
+     * @param conversations
+     *            The map to put each conversation in, under its ID.
+     * @param index
+     *            The index to record the users of each conversation in.
+     * @return the number of conversations read.
+     * @throws IOException
+     *             If a file cannot be read, or the new journal cannot be
+     *             created.
+     */
+    public int load(Map<Long, Conversation> conversations,
+            MembershipIndex index) throws IOException {
+        long snapshot = 0;
+        for (long number : this.list(SNAPSHOT)) {
+            snapshot = number;
+        }
+        // the same User stands for a user in every conversation
+        Map<String, User> users = new HashMap<String, User>();
+        int count = 0;
+        if (snapshot > 0) {
+            count += this.read(this.fileFor(SNAPSHOT, snapshot),
+                    conversations, index, users);
+        }
+        long last = snapshot;
+        for (long number : this.list(JOURNAL)) {
+            if (number >= snapshot) {
+                count += this.read(this.fileFor(JOURNAL, number),
+                        conversations, index, users);
+            }
+            last = Math.max(last, number);
+        }
+
+        synchronized (this.lock) {
+            this.generation = last + 1;
+            this.openJournal();
+        }
+        return count;
+    }
+
+    /**
+     * Reads the records of a snapshot or journal, up to the first torn one.
+     */
+    private int read(File file, Map<Long, Conversation> conversations,
+            MembershipIndex index, Map<String, User> users) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024));
+        int count = 0;
+        try {
+            while (true) {
+                long ID = in.readLong();
+                User a = intern(users, in.readUTF());
+                User b = intern(users, in.readUTF());
+                if (!conversations.containsKey(ID)) {
+                    conversations.put(ID, new Conversation(a, b, ID, index));
+                    count++;
+                }
+            }
+        } catch (EOFException e) {
+            // the end of the file, or a record torn by a crash
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the User read before with a username, or a new one.
+     */
+    private static User intern(Map<String, User> users, String username) {
+        User user = users.get(username);
+        if (user == null) {
+            user = new User(username);
+            users.put(username, user);
+        }
+        return user;
+    }
+
+    /**
+     * Appends a new conversation to the journal. Group chats are ignored.
+     *
+     * @param conversation
+     *            The conversation, already put in the server's map.
+     */
+    public void record(Conversation conversation) {
+        if (conversation.isGroupChat()) {
+            return;
+        }
+        synchronized (this.lock) {
+            try {
+                write(this.journal, conversation);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when journaling conversation "
+                                + conversation.getID());
+            }
+        }
+    }
+
+    /**
+     * Writes the record of a private conversation, which a user may have
+     * started with themselves.
+     */
+    private static void write(DataOutputStream out, Conversation conversation)
+            throws IOException {
+        Iterator<User> users = conversation.getUsers().iterator();
+        User a = users.next();
+        User b = users.hasNext() ? users.next() : a;
+        out.writeLong(conversation.getID());
+        out.writeUTF(a.getUsername());
+        out.writeUTF(b.getUsername());
+    }
+
+    /**
+     * Writes a snapshot of the conversations of a server and deletes the
+     * files it replaces. Conversations may be created meanwhile; the caller
+     * is only held up while the journal is switched.
+     *
+     * @param conversations
+     *            Every conversation of the server, whose iterator must
+     *            tolerate conversations being added while it is used.
+     * @return the number of conversations written.
+     * @throws IOException
+     *             If the snapshot cannot be written.
+     */
+    public int snapshot(Iterable<Conversation> conversations)
+            throws IOException {
+        long number;
+        synchronized (this.lock) {
+            this.closeJournal();
+            this.generation++;
+            this.openJournal();
+            number = this.generation;
+        }
+
+        File temporary = new File(this.directory, SNAPSHOT + "tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                stream, 64 * 1024));
+        int count = 0;
+        try {
+            for (Conversation conversation : conversations) {
+                if (!conversation.isGroupChat()) {
+                    write(out, conversation);
+                    count++;
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(this.fileFor(SNAPSHOT, number))) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+
+        for (long older : this.list(SNAPSHOT)) {
+            if (older < number) {
+                this.fileFor(SNAPSHOT, older).delete();
+            }
+        }
+        for (long older : this.list(JOURNAL)) {
+            if (older < number) {
+                this.fileFor(JOURNAL, older).delete();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forces every conversation journaled so far to the disk.
+     */
+    public void flush() {
+        synchronized (this.lock) {
+            if (this.journal == null) {
+                return;
+            }
+            try {
+                this.journal.flush();
+                this.journalFile.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when flushing the conversation journal");
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the journal. Nothing may be recorded afterwards.
+     */
+    public void close() {
+        synchronized (this.lock) {
+            try {
+                this.closeJournal();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when closing the conversation journal");
+            }
+        }
+    }
+
+    /**
+     * Creates the journal of the current generation. Must hold the lock.
+     */
+    private void openJournal() throws IOException {
+        this.journalFile = new FileOutputStream(this.fileFor(JOURNAL,
+                this.generation), true);
+        this.journal = new DataOutputStream(new BufferedOutputStream(
+                this.journalFile));
+    }
+
+    /**
+     * Forces the current journal to the disk and closes it. Must hold the
+     * lock.
+     */
+    private void closeJournal() throws IOException {
+        if (this.journal != null) {
+            this.journal.flush();
+            this.journalFile.getFD().sync();
+            this.journal.close();
+            this.journal = null;
+        }
+    }
+
+    /**
+     * Returns the numbers of the files of a kind, in increasing order.
+     */
+    private long[] list(String prefix) {
+        String[] names = this.directory.list();
+        long[] numbers = new long[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            if (names[i].startsWith(prefix)) {
+                try {
+                    numbers[count] = Long.parseLong(names[i].substring(prefix
+                            .length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // a snapshot left half written by a crash
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Returns the file of a snapshot or journal.
+     */
+    private File fileFor(String prefix, long number) {
+        return new File(this.directory, prefix + String.format("%020d", number));
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A message to clients, serialized once so that it can be queued for any
+ * number of recipients. The bytes of its text line are encoded when the
+ * message is created and never change, so every session writing the message
+ * as text shares the same array instead of encoding its own copy.
+ *
+ * Sessions that write binary frames still encode the message themselves,
+ * since the user IDs in a frame are interned separately for each connection.
+ */
+public final class EncodedMessage {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] SEPARATOR = ClientSession.LINE_SEPARATOR
+            .getBytes(CHARSET);
+
+    private final String text; // The message, without a line separator.
+    private final byte[] line; // The text and a line separator, encoded.
+                               // Never modified.
+    private final String transientKey; // The key under which a typing
+                                       // notification replaces another, or
+                                       // null.
+
+    /**
+     * Serializes a message.
+     *
+     * @param text
+     *            The message, without a line separator.
+     */
+    public EncodedMessage(String text) {
+        this.text = text;
+        byte[] bytes = text.getBytes(CHARSET);
+        this.line = new byte[bytes.length + SEPARATOR.length];
+        System.arraycopy(bytes, 0, this.line, 0, bytes.length);
+        System.arraycopy(SEPARATOR, 0, this.line, bytes.length,
+                SEPARATOR.length);
+        this.transientKey = transientKey(text);
+    }
+
+    /**
+     * Returns the key under which typing notifications replace each other: the
+     * "ID username" after "typing " or "cleared ".
+     *
+     * @return the key, or null if the message is not a typing notification.
+     */
+    private static String transientKey(String message) {
+        if (message.startsWith("typing ")) {
+            return message.substring("typing ".length());
+        } else if (message.startsWith("cleared ")) {
+            return message.substring("cleared ".length());
+        }
+        return null;
+    }
+
+    /**
+     * Writes the encoded text line, without copying it.
+     *
+     * @param out
+     *            The stream to write to.
+     * @throws IOException
+     *             If the stream fails.
+     */
+    public void writeLine(OutputStream out) throws IOException {
+        out.write(this.line);
+    }
+
+    /**
+     * Returns the size of the encoded text line.
+     *
+     * @return the number of bytes writeLine() writes.
+     */
+    public int getLineLength() {
+        return this.line.length;
+    }
+
+    // ACCESSORS
+    public String getText() {
+        return this.text;
+    }
+
+    public String getTransientKey() {
+        return this.transientKey;
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values, such as latencies in nanoseconds or the number
+ * of recipients of a message, in buckets from which percentiles can be read.
+ *
+ * Values below 16 each get a bucket of their own. Above that, every power of
+ * two is split into 16 buckets of equal width, so a percentile is within
+ * 1/16 (6.25%) of the true value whatever the range. The buckets of all
+ * values up to Long.MAX_VALUE take under a thousand longs, allocated once.
+ *
+ * Recording is a few atomic increments and never blocks, so it is cheap
+ * enough for every command. Reading a percentile while values are being
+ * recorded gives a result that is consistent to within the values recorded
+ * during the read.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts; // The count of each bucket.
+    private final AtomicLong count; // The values recorded.
+    private final AtomicLong sum; // The sum of the values recorded.
+    private final AtomicLong max; // The largest value recorded.
+
+    /**
+     * Creates an empty histogram.
+     */
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a value. Negative values, which a clock stepping backwards can
+     * produce, are recorded as 0.
+     *
+     * @param value
+     *            The value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucket(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long largest = this.max.get();
+        while (value > largest && !this.max.compareAndSet(largest, value)) {
+            largest = this.max.get();
+        }
+    }
+
+    /**
+     * Returns a value that the given fraction of the recorded values are at
+     * most, rounded up to the top of its bucket.
+     *
+     * @param fraction
+     *            The fraction, from 0 to 1: 0.99 for the 99th percentile.
+     * @return the percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Returns the bucket of a non-negative value.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS
+                + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long low = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    // ACCESSORS
+    public long getCount() {
+        return this.count.get();
+    }
+
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+}
@@ -0,0 +1,55 @@
+package server;
+
+/**
+ * A message said in a conversation, as kept by a MessageLog. Records of a
+ * conversation are numbered from 1 in the order they were said.
+ */
+public class LogRecord {
+    private final long sequence; // The number of the record in its
+                                 // conversation.
+    private final long timeMillis; // When the message was said.
+    private final String username; // The user who said it.
+    private final String text; // What was said.
+
+    /**
+     * Creates a record.
+     *
+     * @param sequence
+     *            The number of the record in its conversation.
+     * @param timeMillis
+     *            When the message was said, from System.currentTimeMillis().
+     * @param username
+     *            The user who said it.
+     * @param text
+     *            What was said.
+     */
+    public LogRecord(long sequence, long timeMillis, String username,
+            String text) {
+        this.sequence = sequence;
+        this.timeMillis = timeMillis;
+        this.username = username;
+        this.text = text;
+    }
+
+    @Override
+    public String toString() {
+        return this.sequence + " " + this.username + " " + this.text;
+    }
+
+    // ACCESSORS
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public long getTimeMillis() {
+        return this.timeMillis;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public String getText() {
+        return this.text;
+    }
+}
@@ -0,0 +1,473 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a ConversationLog, holding the records numbered from its base
+ * sequence onwards. The file is created at its full size and written through
+ * a memory mapping, so an append is a copy into memory; the records reach
+ * the disk when the segment is forced, or whenever the operating system
+ * writes them back.
+ *
+ * Each record is laid out as
+ *
+ * length (int) | crc (int) | sequence (long) | time (long) | username length
+ * (short) | username | text
+ *
+ * where the length counts the bytes after itself and the CRC32 covers the
+ * bytes after the crc. Strings are UTF-8, and the username is at most
+ * MAX_USERNAME_BYTES long. The unused end of the file is
+ * zeros, so a length of 0 marks the end of the records.
+ *
+ * The segment keeps a sparse index of the sequence and position of one
+ * record in every INDEX_INTERVAL bytes, so that a record is found by
+ * scanning at most that many bytes. The index of the segment being appended
+ * to is rebuilt when it is opened; the index of a full segment is written to
+ * a file next to it once, so that reading an old segment does not mean
+ * scanning it.
+ *
+ * A segment is not thread-safe; its ConversationLog synchronizes access.
+ */
+class LogSegment {
+    public static final int HEADER_BYTES = 26;
+    public static final int INDEX_INTERVAL = 4096;
+    public static final int MAX_USERNAME_BYTES = 0xFFFF;
+    private static final int INDEX_ENTRY_BYTES = 12;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file; // The file holding the records.
+    private final long baseSequence; // The sequence of the first record.
+    private final MappedByteBuffer buffer; // The mapping of the whole file.
+    private int end; // The position after the last record.
+    private long lastSequence; // The sequence of the last record, or one
+                               // less than the base if there is none.
+    private long[] indexSequences; // The sequence of each indexed record.
+    private int[] indexPositions; // The position of each indexed record.
+    private int indexCount; // The number of indexed records.
+
+    private LogSegment(File file, long baseSequence, MappedByteBuffer buffer) {
+        this.file = file;
+        this.baseSequence = baseSequence;
+        this.buffer = buffer;
+        this.end = 0;
+        this.lastSequence = baseSequence - 1;
+        this.indexSequences = new long[8];
+        this.indexPositions = new int[8];
+        this.indexCount = 0;
+    }
+
+    /**
+     * Creates an empty segment.
+     *
+     * @param directory
+     *            The directory of the conversation's log.
+     * @param baseSequence
+     *            The sequence of the first record to be appended.
+     * @param capacity
+     *            The size of the file in bytes.
+     * @return the segment, mapped for appending.
+     * @throws IOException
+     *             If the file cannot be created or mapped.
+     */
+    static LogSegment create(File directory, long baseSequence, int capacity)
+            throws IOException {
+        File file = fileFor(directory, baseSequence);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            return new LogSegment(file, baseSequence, raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens an existing segment, finding its last record and rebuilding its
+     * index. Anything after the last whole record, such as a record torn by
+     * a crash, is erased so that it cannot be mistaken for a record later.
+     *
+     * @param file
+     *            The file of the segment.
+     * @param writable
+     *            true to map the file for appending, false to only read it.
+     * @return the segment.
+     * @throws IOException
+     *             If the file cannot be read or mapped.
+     */
+    static LogSegment open(File file, boolean writable) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw"
+                : "r");
+        LogSegment segment;
+        try {
+            segment = new LogSegment(file, baseSequenceOf(file), raf
+                    .getChannel().map(
+                            writable ? FileChannel.MapMode.READ_WRITE
+                                    : FileChannel.MapMode.READ_ONLY, 0,
+                            raf.length()));
+        } finally {
+            raf.close();
+        }
+        if (writable || !segment.loadIndex()) {
+            segment.recover(writable);
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the file of the segment starting at a sequence.
+     */
+    static File fileFor(File directory, long baseSequence) {
+        return new File(directory, String.format("%020d.log", baseSequence));
+    }
+
+    /**
+     * Returns the base sequence of a segment from the name of its file, or -1
+     * if the file is not a segment.
+     */
+    static long baseSequenceOf(File file) {
+        String name = file.getName();
+        if (name.length() != 24 || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, 20));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Appends a record, unless the segment has no room for it.
+     *
+     * @param sequence
+     *            The sequence of the record, one more than the last.
+     * @param record
+     *            The record, from encode().
+     * @return true if the record was appended.
+     */
+    boolean append(long sequence, byte[] record) {
+        // leave room for the zero length that ends the records
+        if (this.end + record.length + 4 > this.buffer.capacity()) {
+            return false;
+        }
+        if (this.indexCount == 0
+                || this.end - this.indexPositions[this.indexCount - 1]
+                        >= INDEX_INTERVAL) {
+            this.addIndexEntry(sequence, this.end);
+        }
+        this.buffer.position(this.end);
+        this.buffer.put(record);
+        this.end += record.length;
+        this.lastSequence = sequence;
+        return true;
+    }
+
+    /**
+     * Encodes a record.
+     *
+     * @return the record, ready to be appended.
+     * @throws IllegalArgumentException
+     *             If the username is longer than MAX_USERNAME_BYTES.
+     */
+    static byte[] encode(long sequence, long timeMillis, String username,
+            String text) {
+        byte[] user = username.getBytes(UTF8);
+        if (user.length > MAX_USERNAME_BYTES) {
+            throw new IllegalArgumentException("Username of " + user.length
+                    + " bytes is too long to log");
+        }
+        byte[] said = text.getBytes(UTF8);
+        byte[] record = new byte[HEADER_BYTES + user.length + said.length];
+        ByteBuffer out = ByteBuffer.wrap(record);
+        out.putInt(record.length - 4);
+        out.putInt(0);
+        out.putLong(sequence);
+        out.putLong(timeMillis);
+        out.putShort((short) user.length);
+        out.put(user);
+        out.put(said);
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        out.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Returns the minimum number of bytes a segment needs to hold a record.
+     */
+    static int sizeFor(byte[] record) {
+        return record.length + 4;
+    }
+
+    /**
+     * Reads records in order, starting from the first record numbered at
+     * least fromSequence.
+     *
+     * @param fromSequence
+     *            The sequence of the first record wanted.
+     * @param count
+     *            The most records to read.
+     * @param out
+     *            The list the records are added to.
+     */
+    void read(long fromSequence, int count, List<LogRecord> out) {
+        if (fromSequence > this.lastSequence) {
+            return;
+        }
+        ByteBuffer in = this.buffer.duplicate();
+        int position = 0;
+        long expected = this.baseSequence;
+        int entry = this.floorIndexEntry(fromSequence);
+        if (entry >= 0) {
+            position = this.indexPositions[entry];
+            expected = this.indexSequences[entry];
+        }
+        while (out.size() < count && position < this.end) {
+            int length = in.getInt(position);
+            long sequence = in.getLong(position + 8);
+            if (sequence != expected) {
+                throw new IllegalStateException("Expected record " + expected
+                        + " but found " + sequence + " in " + this.file);
+            }
+            if (sequence >= fromSequence) {
+                out.add(decode(in, position));
+            }
+            position += 4 + length;
+            expected++;
+        }
+    }
+
+    /**
+     * Decodes the record at a position.
+     */
+    private static LogRecord decode(ByteBuffer in, int position) {
+        int length = in.getInt(position);
+        int userLength = in.getShort(position + HEADER_BYTES - 2) & 0xFFFF;
+        byte[] user = new byte[userLength];
+        byte[] said = new byte[length + 4 - HEADER_BYTES - userLength];
+        in.position(position + HEADER_BYTES);
+        in.get(user);
+        in.get(said);
+        return new LogRecord(in.getLong(position + 8), in.getLong(position
+                + 16), new String(user, UTF8), new String(said, UTF8));
+    }
+
+    /**
+     * Finds the last index entry at or before a sequence.
+     *
+     * @return the entry, or -1 if the sequence is before the first entry.
+     */
+    private int floorIndexEntry(long sequence) {
+        int low = 0;
+        int high = this.indexCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (this.indexSequences[middle] <= sequence) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void addIndexEntry(long sequence, int position) {
+        if (this.indexCount == this.indexSequences.length) {
+            int size = this.indexCount * 2;
+            long[] sequences = new long[size];
+            int[] positions = new int[size];
+            System.arraycopy(this.indexSequences, 0, sequences, 0,
+                    this.indexCount);
+            System.arraycopy(this.indexPositions, 0, positions, 0,
+                    this.indexCount);
+            this.indexSequences = sequences;
+            this.indexPositions = positions;
+        }
+        this.indexSequences[this.indexCount] = sequence;
+        this.indexPositions[this.indexCount] = position;
+        this.indexCount++;
+    }
+
+    /**
+     * Scans the records from the start of the segment, stopping at the first
+     * one that is not whole, and rebuilds the index. If the segment is
+     * writable, whatever follows the last whole record is zeroed.
+     */
+    private void recover(boolean writable) {
+        ByteBuffer in = this.buffer.duplicate();
+        int capacity = in.capacity();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[256];
+        int position = 0;
+        long expected = this.baseSequence;
+        this.indexCount = 0;
+        while (position + HEADER_BYTES <= capacity) {
+            int length = in.getInt(position);
+            if (length < HEADER_BYTES - 4 || length > capacity - position - 4) {
+                break;
+            }
+            int checked = length - 4;
+            if (scratch.length < checked) {
+                scratch = new byte[checked];
+            }
+            in.position(position + 8);
+            in.get(scratch, 0, checked);
+            crc.reset();
+            crc.update(scratch, 0, checked);
+            if (in.getInt(position + 4) != (int) crc.getValue()
+                    || in.getLong(position + 8) != expected) {
+                break;
+            }
+            if (this.indexCount == 0
+                    || position - this.indexPositions[this.indexCount - 1]
+                            >= INDEX_INTERVAL) {
+                this.addIndexEntry(expected, position);
+            }
+            position += 4 + length;
+            expected++;
+        }
+        this.end = position;
+        this.lastSequence = expected - 1;
+        if (writable) {
+            // a later record may have reached the disk before an earlier one
+            int dirty = capacity;
+            while (dirty > position && in.get(dirty - 1) == 0) {
+                dirty--;
+            }
+            for (int i = position; i < dirty; i++) {
+                in.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Loads the index written by writeIndex(), and finds the end of the
+     * records from the last entry.
+     *
+     * @return true if the index was loaded, false if it is missing or
+     *         unusable and the segment must be scanned instead.
+     */
+    private boolean loadIndex() throws IOException {
+        File indexFile = this.indexFile();
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            int entries = (int) (raf.length() / INDEX_ENTRY_BYTES);
+            if (entries == 0) {
+                return false;
+            }
+            ByteBuffer in = ByteBuffer.allocate(entries * INDEX_ENTRY_BYTES);
+            raf.getChannel().read(in, 0);
+            in.flip();
+            this.indexCount = 0;
+            for (int i = 0; i < entries
+                    && in.remaining() >= INDEX_ENTRY_BYTES; i++) {
+                long sequence = in.getLong();
+                int position = in.getInt();
+                int last = this.indexCount - 1;
+                if (position < 0
+                        || position + HEADER_BYTES > this.buffer.capacity()
+                        || (last >= 0 && (sequence <= this.indexSequences[last]
+                                || position <= this.indexPositions[last]))) {
+                    return false;
+                }
+                this.addIndexEntry(sequence, position);
+            }
+        } finally {
+            raf.close();
+        }
+        if (this.indexCount == 0
+                || this.indexSequences[0] != this.baseSequence
+                || this.indexPositions[0] != 0) {
+            return false;
+        }
+        // find the end from the last indexed record
+        ByteBuffer in = this.buffer.duplicate();
+        int position = this.indexPositions[this.indexCount - 1];
+        long expected = this.indexSequences[this.indexCount - 1];
+        while (position + HEADER_BYTES <= in.capacity()) {
+            int length = in.getInt(position);
+            if (length < HEADER_BYTES - 4
+                    || length > in.capacity() - position - 4
+                    || in.getLong(position + 8) != expected) {
+                break;
+            }
+            position += 4 + length;
+            expected++;
+        }
+        if (expected == this.indexSequences[this.indexCount - 1]) {
+            return false;
+        }
+        this.end = position;
+        this.lastSequence = expected - 1;
+        return true;
+    }
+
+    /**
+     * Writes the index of the segment to its own file and forces it to the
+     * disk. Only called once the segment is full and forced.
+     *
+     * @throws IOException
+     *             If the index cannot be written.
+     */
+    void writeIndex() throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(this.indexCount
+                * INDEX_ENTRY_BYTES);
+        for (int i = 0; i < this.indexCount; i++) {
+            out.putLong(this.indexSequences[i]);
+            out.putInt(this.indexPositions[i]);
+        }
+        out.flip();
+        RandomAccessFile raf = new RandomAccessFile(this.indexFile(), "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File indexFile() {
+        String name = this.file.getName();
+        return new File(this.file.getParentFile(), name.substring(0,
+                name.length() - 4) + ".idx");
+    }
+
+    /**
+     * Writes the records appended so far to the disk and waits until they
+     * are there.
+     */
+    void force() {
+        this.buffer.force();
+    }
+
+    // ACCESSORS
+    public long getBaseSequence() {
+        return this.baseSequence;
+    }
+
+    public long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    public int getEnd() {
+        return this.end;
+    }
+}
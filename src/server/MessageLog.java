@@ -0,0 +1,203 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The durable log of what was said in every conversation, kept in a
+ * directory with a subdirectory per conversation (see ConversationLog and
+ * LogSegment).
+ *
+ * Appending copies the record into a memory-mapped segment and returns
+ * without touching the disk. The records of every log appended to since the
+ * last flush are forced to the disk together by flush(), which the server
+ * calls from a thread of its own every log flush interval; a crash loses at
+ * most the records appended since the last flush, and a record torn by the
+ * crash is dropped when the log is next opened.
+ *
+ * The logs appended to or read most recently are kept open, up to
+ * OPEN_LOGS of them; opening a log again means scanning its last segment.
+ *
+ * This class is thread-safe. Records of different conversations may be
+ * appended at once from different threads.
+ */
+public class MessageLog {
+    public static final int OPEN_LOGS = 1024;
+
+    private final File directory; // The directory of the logs.
+    private final int segmentBytes; // The size of a new segment.
+    private final Map<Long, ConversationLog> open; // The open logs, least
+                                                   // recently used first.
+    private final Set<ConversationLog> dirty; // The logs with records to
+                                              // flush.
+
+    /**
+     * Opens the logs in a directory, creating it if it does not exist.
+     *
+     * @param directory
+     *            The directory of the logs.
+     * @param segmentBytes
+     *            The size of each new segment file. Must be positive.
+     * @throws IOException
+     *             If the directory cannot be created.
+     */
+    public MessageLog(File directory, int segmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.dirty = Collections
+                .newSetFromMap(new ConcurrentHashMap<ConversationLog, Boolean>());
+        this.open = new LinkedHashMap<Long, ConversationLog>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, ConversationLog> eldest) {
+                if (size() > OPEN_LOGS) {
+                    // still flushed if dirty
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Appends a message to the log of a conversation.
+     *
+     * @param conversationID
+     *            The conversation the message was said in.
+     * @param username
+     *            The user who said it.
+     * @param text
+     *            What was said.
+     * @return the sequence of the message in its conversation, starting at
+     *         1.
+     * @throws IllegalArgumentException
+     *             If the username is longer than 65535 bytes in UTF-8.
+     */
+    public long append(long conversationID, String username, String text) {
+        long timeMillis = System.currentTimeMillis();
+        try {
+            while (true) {
+                long sequence = this.getLog(conversationID).append(
+                        timeMillis, username, text);
+                // -1 if the log was closed since it was looked up
+                if (sequence > 0) {
+                    return sequence;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when appending to the log of conversation "
+                            + conversationID);
+        }
+    }
+
+    /**
+     * Reads the messages of a conversation in order, starting from a
+     * sequence.
+     *
+     * @param conversationID
+     *            The conversation.
+     * @param fromSequence
+     *            The sequence of the first message wanted.
+     * @param count
+     *            The most messages to read.
+     * @return the messages, fewer than count if the log ends first.
+     */
+    public List<LogRecord> read(long conversationID, long fromSequence,
+            int count) {
+        if (count <= 0) {
+            return new ArrayList<LogRecord>();
+        }
+        try {
+            return this.getLog(conversationID).read(fromSequence, count);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when reading the log of conversation "
+                            + conversationID);
+        }
+    }
+
+    /**
+     * Returns the sequence of the last message of a conversation.
+     *
+     * @param conversationID
+     *            The conversation.
+     * @return the sequence, or 0 if nothing was said in it.
+     */
+    public long getLastSequence(long conversationID) {
+        try {
+            return this.getLog(conversationID).getLastSequence();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(
+                    "Unexpected IOException when opening the log of conversation "
+                            + conversationID);
+        }
+    }
+
+    /**
+     * Returns the open log of a conversation, opening it if needed.
+     */
+    private synchronized ConversationLog getLog(long conversationID)
+            throws IOException {
+        ConversationLog log = this.open.get(conversationID);
+        if (log == null) {
+            log = new ConversationLog(new File(this.directory,
+                    Long.toString(conversationID)), this.segmentBytes,
+                    this.dirty);
+            this.open.put(conversationID, log);
+        }
+        return log;
+    }
+
+    /**
+     * Forces every record appended so far to the disk, waiting until they
+     * are there.
+     */
+    public void flush() {
+        Iterator<ConversationLog> logs = this.dirty.iterator();
+        while (logs.hasNext()) {
+            ConversationLog log = logs.next();
+            logs.remove();
+            try {
+                log.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when flushing the message log");
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes every log. Nothing may be appended afterwards.
+     */
+    public synchronized void close() {
+        for (ConversationLog log : this.open.values()) {
+            log.close();
+        }
+        this.open.clear();
+        this.flush();
+    }
+
+    // ACCESSORS
+    public File getDirectory() {
+        return this.directory;
+    }
+}
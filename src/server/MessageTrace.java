@@ -0,0 +1,150 @@
+package server;
+
+import java.net.SocketAddress;
+
+/**
+ * The timeline of one message from a client, from the moment it was read to
+ * the moments the messages it caused were written to each recipient: when
+ * it was read, when a worker took it from the server's queue, when its
+ * handler started and ended, and when each resulting message was written.
+ *
+ * Only the command keyword of the message is kept, never what was said. The
+ * first MAX_WRITES writes are kept; later ones are only counted.
+ *
+ * Stamps are made from the reading thread, the worker and each session's
+ * writing thread, so the trace is thread-safe. A trace is created by a
+ * Tracer, which decides which messages are traced.
+ */
+public class MessageTrace {
+    public static final int MAX_WRITES = 32;
+
+    private final long sequence; // The number of the message among all the
+                                 // messages the Tracer has seen.
+    private final String command; // The command keyword of the message.
+    private final SocketAddress source; // The client the message came from.
+    private final long readNanos; // When the message was read.
+    private volatile long dequeuedNanos; // When a worker took it, or 0.
+    private volatile long startNanos; // When its handler started, or 0.
+    private volatile long endNanos; // When its handler ended, or 0.
+    private final SocketAddress[] recipients; // The client of each write
+                                              // kept.
+    private final long[] writeNanos; // When each write kept was made.
+    private int writeCount; // The writes made, kept or not.
+
+    /**
+     * Creates the trace of a message that was just read.
+     *
+     * @param sequence
+     *            The number of the message among those seen by the Tracer.
+     * @param message
+     *            The message.
+     * @param source
+     *            The address of the client the message was read from.
+     * @param readNanos
+     *            When the message was read, from System.nanoTime().
+     */
+    public MessageTrace(long sequence, String message, SocketAddress source,
+            long readNanos) {
+        int end = message.indexOf(' ');
+        this.sequence = sequence;
+        this.command = end < 0 ? message : message.substring(0, end);
+        this.source = source;
+        this.readNanos = readNanos;
+        this.recipients = new SocketAddress[MAX_WRITES];
+        this.writeNanos = new long[MAX_WRITES];
+        this.writeCount = 0;
+    }
+
+    /**
+     * Records when a worker took the message from the server's queue.
+     *
+     * @param nanos
+     *            The time, from System.nanoTime().
+     */
+    public void dequeued(long nanos) {
+        this.dequeuedNanos = nanos;
+    }
+
+    /**
+     * Records when the handler of the message started.
+     *
+     * @param nanos
+     *            The time, from System.nanoTime().
+     */
+    public void started(long nanos) {
+        this.startNanos = nanos;
+    }
+
+    /**
+     * Records when the handler of the message ended.
+     *
+     * @param nanos
+     *            The time, from System.nanoTime().
+     */
+    public void ended(long nanos) {
+        this.endNanos = nanos;
+    }
+
+    /**
+     * Records that a message caused by this one was written to a client.
+     *
+     * @param recipient
+     *            The address of the client written to.
+     * @param nanos
+     *            When the write completed, from System.nanoTime().
+     */
+    public synchronized void written(SocketAddress recipient, long nanos) {
+        if (this.writeCount < MAX_WRITES) {
+            this.recipients[this.writeCount] = recipient;
+            this.writeNanos[this.writeCount] = nanos;
+        }
+        this.writeCount++;
+    }
+
+    /**
+     * Appends the trace on one line, with every stamp in microseconds since
+     * the message was read. Stamps not made yet are left out.
+     *
+     * @param out
+     *            Where to append the trace.
+     */
+    public synchronized void appendTo(StringBuilder out) {
+        out.append('#').append(this.sequence).append(' ')
+                .append(this.command).append(" from ").append(this.source);
+        appendStamp(out, "dequeued", this.dequeuedNanos);
+        appendStamp(out, "start", this.startNanos);
+        appendStamp(out, "end", this.endNanos);
+        out.append(" writes=").append(this.writeCount);
+        int kept = Math.min(this.writeCount, MAX_WRITES);
+        for (int i = 0; i < kept; i++) {
+            out.append(i == 0 ? " [" : ", ").append(this.recipients[i])
+                    .append(" +")
+                    .append((this.writeNanos[i] - this.readNanos) / 1000)
+                    .append("us");
+        }
+        if (kept > 0) {
+            out.append(this.writeCount > kept ? ", ...]" : "]");
+        }
+        out.append('\n');
+    }
+
+    private void appendStamp(StringBuilder out, String name, long nanos) {
+        if (nanos != 0) {
+            out.append(' ').append(name).append("=+")
+                    .append((nanos - this.readNanos) / 1000).append("us");
+        }
+    }
+
+    // ACCESSORS
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public String getCommand() {
+        return this.command;
+    }
+
+    public synchronized int getWriteCount() {
+        return this.writeCount;
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Serves the metrics of a ChatServer as text on a port of the loopback
+ * address, so that they can be scraped from the server's own host but not
+ * from anywhere else.
+ *
+ * A client that sends an HTTP GET request (as Prometheus, curl or a browser
+ * does) gets an HTTP response; any other client gets the bare text as soon as
+ * it has sent a line, or after a second if it sends nothing. A GET of
+ * TRACES_PATH gets the most recent message traces (see Tracer) instead of the
+ * metrics. Either way the connection is closed once the metrics are written.
+ * Clients are served one at a time on the endpoint's own thread, which never
+ * touches the server's queue or workers, until close() is called. If
+ * accepting a client fails, the endpoint waits ACCEPT_RETRY_MILLIS before
+ * trying again.
+ */
+public class MetricsEndpoint implements Runnable {
+    public static final String TRACES_PATH = "/traces";
+
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final ServerSocket serverSocket; // Accepts scrapes.
+    private final ChatServer server; // The server whose metrics are served.
+
+    /**
+     * Opens the endpoint's port. Nothing is served until run() is called.
+     *
+     * @param port
+     *            The port to listen on, on the loopback address.
+     * @param server
+     *            The server whose metrics are served.
+     * @throws IOException
+     *             If the port cannot be opened.
+     */
+    public MetricsEndpoint(int port, ChatServer server) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress
+                .getByName(null), port));
+        this.server = server;
+    }
+
+    @Override
+    public void run() {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                if (this.serverSocket.isClosed()) {
+                    return;
+                }
+                // out of file descriptors, for instance; do not spin
+                e.printStackTrace();
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    interrupted.printStackTrace();
+                    throw new RuntimeException(
+                            "Unexpected InterruptedException in run()");
+                }
+                continue;
+            }
+            try {
+                this.serve(socket);
+            } catch (IOException e) {
+                // the scraper went away; nothing to clean up but the socket
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the endpoint's port, which ends run() once the client being
+     * served, if any, is done.
+     */
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the metrics, or the traces, to one client.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+        boolean http = false;
+        boolean traces = false;
+        try {
+            String request = in.readLine();
+            if (request != null && request.startsWith("GET ")) {
+                http = true;
+                traces = request.startsWith("GET " + TRACES_PATH + " ");
+                // skip the headers
+                for (String line = in.readLine(); line != null
+                        && !line.isEmpty(); line = in.readLine()) {
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // a client that sends nothing gets the bare text
+        }
+
+        String text = traces ? this.server.getTraceText() : this.server
+                .getMetricsText();
+        byte[] body = text.getBytes("US-ASCII");
+        OutputStream out = socket.getOutputStream();
+        if (http) {
+            out.write(("HTTP/1.0 200 OK\r\n"
+                    + "Content-Type: text/plain; version=0.0.4\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        }
+        out.write(body);
+        out.flush();
+    }
+
+    // ACCESSORS
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+}
@@ -0,0 +1,504 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the messages said to users while they were offline, until they can
+ * be sent. Nothing is copied: a user's mailbox holds, for each conversation,
+ * the range of sequences of the messages in the MessageLog that the user has
+ * not been sent, and the messages are read back from the log when they are
+ * delivered.
+ *
+ * The ranges are kept in a journal file. A record is written when a range is
+ * started, advanced or finished, never for a message added to the end of a
+ * range: while a range is open, every message of its conversation belongs in
+ * it, so when the store is opened each range is taken to end at the last
+ * message of its conversation. The journal is rewritten with only the open
+ * ranges when it is opened, and again whenever it has grown well past them.
+ * Records are forced to the disk by flush(), which the server calls along
+ * with MessageLog.flush().
+ *
+ * A mailbox stays open from the first message held for a user until
+ * everything in it has been delivered. While it is open, every message to the
+ * user is held in it, even once the user is back online, so that the
+ * messages of a conversation are delivered in the order they were said. Only
+ * one thread delivers a mailbox at a time (see startDelivery()).
+ *
+ * This class is thread-safe.
+ */
+public class OfflineStore {
+    private static final int COMPACT_RECORDS = 64 * 1024; // The fewest
+                                                          // records the
+                                                          // journal is
+                                                          // compacted at.
+
+    private final File file; // The journal.
+    private final ConcurrentHashMap<String, Mailbox> mailboxes; // The open
+                                                                // mailbox of
+                                                                // each user
+                                                                // who has
+                                                                // one.
+    private final Map<String, Map<Long, Long>> journaled; // The first
+                                                          // sequence of each
+                                                          // open range, as
+                                                          // last journaled.
+                                                          // Guards the
+                                                          // journal.
+    private FileOutputStream journalFile; // The journal, opened to append.
+    private DataOutputStream journal; // Buffers the writes to journalFile.
+    private int records; // The records in the journal.
+    private int ranges; // The open ranges.
+
+    /**
+     * The messages held for one user.
+     */
+    private static class Mailbox {
+        private final Map<Long, long[]> ranges; // The first and last
+                                                // sequence held in each
+                                                // conversation, in the order
+                                                // the ranges were started.
+        private final List<Runnable> deferred; // Run once every range is
+                                               // delivered.
+        private boolean delivering; // True while a thread delivers the
+                                    // mailbox.
+        private boolean closed; // True once removed from mailboxes.
+
+        private Mailbox() {
+            this.ranges = new LinkedHashMap<Long, long[]>();
+            this.deferred = new ArrayList<Runnable>();
+            this.delivering = false;
+            this.closed = false;
+        }
+    }
+
+    /**
+     * Opens the store kept in a journal file, creating the file if it does
+     * not exist.
+     *
+     * @param file
+     *            The journal file.
+     * @param log
+     *            The log the held messages are read from, which gives the
+     *            end of each range.
+     * @throws IOException
+     *             If the journal cannot be read or rewritten.
+     */
+    public OfflineStore(File file, MessageLog log) throws IOException {
+        this.file = file;
+        this.mailboxes = new ConcurrentHashMap<String, Mailbox>();
+        this.journaled = new LinkedHashMap<String, Map<Long, Long>>();
+        this.records = 0;
+        this.ranges = 0;
+
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                while (true) {
+                    String username = in.readUTF();
+                    long ID = in.readLong();
+                    long first = in.readLong();
+                    this.apply(username, ID, first);
+                }
+            } catch (EOFException e) {
+                // the end of the journal, or a record torn by a crash
+            } finally {
+                in.close();
+            }
+        }
+
+        for (Map.Entry<String, Map<Long, Long>> user : this.journaled
+                .entrySet()) {
+            Mailbox mailbox = new Mailbox();
+            for (Map.Entry<Long, Long> range : user.getValue().entrySet()) {
+                long last = log.getLastSequence(range.getKey());
+                if (range.getValue() <= last) {
+                    mailbox.ranges.put(range.getKey(), new long[] {
+                            range.getValue(), last });
+                }
+            }
+            if (!mailbox.ranges.isEmpty()) {
+                this.mailboxes.put(user.getKey(), mailbox);
+            }
+        }
+        // forget the ranges that turned out to be empty
+        this.journaled.clear();
+        this.ranges = 0;
+        for (Map.Entry<String, Mailbox> user : this.mailboxes.entrySet()) {
+            for (Map.Entry<Long, long[]> range : user.getValue().ranges
+                    .entrySet()) {
+                this.apply(user.getKey(), range.getKey(), range.getValue()[0]);
+            }
+        }
+        this.compact();
+    }
+
+    /**
+     * Holds a message for a user if the user is offline or has an open
+     * mailbox. Otherwise the message must be sent to the user at once.
+     *
+     * @param username
+     *            The user the message is to.
+     * @param conversationID
+     *            The conversation the message was said in.
+     * @param sequence
+     *            The sequence of the message in the MessageLog.
+     * @param online
+     *            True if the user is online.
+     * @return true if the message was held, false if it must be sent.
+     */
+    public boolean hold(String username, long conversationID, long sequence,
+            boolean online) {
+        while (true) {
+            Mailbox mailbox = this.mailboxes.get(username);
+            if (mailbox == null) {
+                if (online) {
+                    return false;
+                }
+                mailbox = new Mailbox();
+                Mailbox existing = this.mailboxes.putIfAbsent(username,
+                        mailbox);
+                if (existing != null) {
+                    mailbox = existing;
+                }
+            }
+            synchronized (mailbox) {
+                if (mailbox.closed) {
+                    // delivered since it was looked up
+                    continue;
+                }
+                long[] range = mailbox.ranges.get(conversationID);
+                if (range == null) {
+                    mailbox.ranges.put(conversationID, new long[] { sequence,
+                            sequence });
+                    this.write(username, conversationID, sequence);
+                } else {
+                    range[1] = Math.max(range[1], sequence);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Defers a task about a conversation until the messages held for a user
+     * in it have been delivered, if any are. The task is then run by the
+     * thread delivering the mailbox.
+     *
+     * @param username
+     *            The user.
+     * @param conversationID
+     *            The conversation.
+     * @param task
+     *            The task, which must not be run before the held messages
+     *            are sent.
+     * @return true if the task was deferred, false if it may be run at once.
+     */
+    public boolean defer(String username, long conversationID, Runnable task) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return false;
+        }
+        synchronized (mailbox) {
+            if (mailbox.closed || !mailbox.delivering
+                    || !mailbox.ranges.containsKey(conversationID)) {
+                return false;
+            }
+            mailbox.deferred.add(task);
+            return true;
+        }
+    }
+
+    /**
+     * Claims the delivery of a user's mailbox for the calling thread, which
+     * must then deliver it (see nextRange()) until finishDelivery() or
+     * stopDelivery() is called.
+     *
+     * @param username
+     *            The user, who must be online.
+     * @return true if the caller must deliver the mailbox, false if the user
+     *         has nothing held or another thread is already delivering it.
+     */
+    public boolean startDelivery(String username) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return false;
+        }
+        synchronized (mailbox) {
+            if (mailbox.closed || mailbox.delivering) {
+                return false;
+            }
+            mailbox.delivering = true;
+            return true;
+        }
+    }
+
+    /**
+     * Looks up the oldest range of messages still held for a user.
+     *
+     * @param username
+     *            The user whose mailbox the caller is delivering.
+     * @param range
+     *            Set to the conversation ID, the first sequence and the last
+     *            sequence of the range.
+     * @return true if a range was found, false if none is left.
+     */
+    public boolean nextRange(String username, long[] range) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return false;
+        }
+        synchronized (mailbox) {
+            if (mailbox.ranges.isEmpty()) {
+                return false;
+            }
+            Map.Entry<Long, long[]> next = mailbox.ranges.entrySet()
+                    .iterator().next();
+            range[0] = next.getKey();
+            range[1] = next.getValue()[0];
+            range[2] = next.getValue()[1];
+            return true;
+        }
+    }
+
+    /**
+     * Records that the messages of a range have been sent up to a sequence,
+     * finishing the range if nothing after that is held.
+     *
+     * @param username
+     *            The user whose mailbox the caller is delivering.
+     * @param conversationID
+     *            The conversation of the range.
+     * @param sequence
+     *            The sequence of the last message sent.
+     */
+    public void advance(String username, long conversationID, long sequence) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return;
+        }
+        synchronized (mailbox) {
+            long[] range = mailbox.ranges.get(conversationID);
+            if (range == null || sequence < range[0]) {
+                return;
+            }
+            range[0] = sequence + 1;
+            if (range[0] > range[1]) {
+                mailbox.ranges.remove(conversationID);
+                this.write(username, conversationID, 0);
+            } else {
+                this.write(username, conversationID, range[0]);
+            }
+        }
+    }
+
+    /**
+     * Takes the next task deferred until a user's held messages were sent.
+     *
+     * @param username
+     *            The user whose mailbox the caller is delivering.
+     * @return the task, or null if there is none.
+     */
+    public Runnable nextDeferred(String username) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return null;
+        }
+        synchronized (mailbox) {
+            if (mailbox.deferred.isEmpty()) {
+                return null;
+            }
+            return mailbox.deferred.remove(0);
+        }
+    }
+
+    /**
+     * Closes a user's mailbox if everything in it has been delivered, after
+     * which messages to the user are sent at once again.
+     *
+     * @param username
+     *            The user whose mailbox the caller is delivering.
+     * @return true if the mailbox was closed, false if more was held
+     *         meanwhile and must be delivered first.
+     */
+    public boolean finishDelivery(String username) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return true;
+        }
+        synchronized (mailbox) {
+            if (!mailbox.ranges.isEmpty() || !mailbox.deferred.isEmpty()) {
+                return false;
+            }
+            mailbox.closed = true;
+            this.mailboxes.remove(username, mailbox);
+            return true;
+        }
+    }
+
+    /**
+     * Gives up delivering a user's mailbox, which stays open with whatever
+     * is left in it, for instance because the user logged out.
+     *
+     * @param username
+     *            The user whose mailbox the caller is delivering.
+     */
+    public void stopDelivery(String username) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return;
+        }
+        synchronized (mailbox) {
+            mailbox.delivering = false;
+        }
+    }
+
+    /**
+     * Returns how many messages are held for a user.
+     *
+     * @param username
+     *            The user.
+     * @return the number of messages, 0 if the user has no open mailbox.
+     */
+    public long getHeldCount(String username) {
+        Mailbox mailbox = this.mailboxes.get(username);
+        if (mailbox == null) {
+            return 0;
+        }
+        synchronized (mailbox) {
+            long count = 0;
+            for (long[] range : mailbox.ranges.values()) {
+                count += range[1] - range[0] + 1;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Records the new first sequence of a range in journaled, where 0
+     * finishes the range.
+     */
+    private void apply(String username, long conversationID, long first) {
+        Map<Long, Long> user = this.journaled.get(username);
+        if (first > 0) {
+            if (user == null) {
+                user = new LinkedHashMap<Long, Long>();
+                this.journaled.put(username, user);
+            }
+            if (user.put(conversationID, first) == null) {
+                this.ranges++;
+            }
+        } else if (user != null && user.remove(conversationID) != null) {
+            this.ranges--;
+            if (user.isEmpty()) {
+                this.journaled.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the journal, compacting it if it has grown to
+     * several times the open ranges.
+     */
+    private void write(String username, long conversationID, long first) {
+        synchronized (this.journaled) {
+            this.apply(username, conversationID, first);
+            try {
+                this.journal.writeUTF(username);
+                this.journal.writeLong(conversationID);
+                this.journal.writeLong(first);
+                this.records++;
+                if (this.records >= COMPACT_RECORDS
+                        && this.records > 4 * this.ranges) {
+                    this.compact();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when writing the offline journal "
+                                + this.file);
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding a record per open range, and
+     * reopens it to append.
+     */
+    private void compact() throws IOException {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        File temporary = new File(this.file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                stream));
+        for (Map.Entry<String, Map<Long, Long>> user : this.journaled
+                .entrySet()) {
+            for (Map.Entry<Long, Long> range : user.getValue().entrySet()) {
+                out.writeUTF(user.getKey());
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+        }
+        out.flush();
+        stream.getFD().sync();
+        out.close();
+        if (!temporary.renameTo(this.file)) {
+            throw new IOException("Cannot replace " + this.file);
+        }
+        this.records = this.ranges;
+        this.journalFile = new FileOutputStream(this.file, true);
+        this.journal = new DataOutputStream(new BufferedOutputStream(
+                this.journalFile));
+    }
+
+    /**
+     * Forces every record written so far to the disk, waiting until they are
+     * there. Records are only written when a range starts or is delivered, so
+     * holding messages rarely waits on this.
+     */
+    public void flush() {
+        synchronized (this.journaled) {
+            try {
+                this.journal.flush();
+                this.journalFile.getFD().sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when flushing the offline journal "
+                                + this.file);
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the journal. Nothing may be held afterwards.
+     */
+    public void close() {
+        this.flush();
+        synchronized (this.journaled) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException when closing the offline journal "
+                                + this.file);
+            }
+        }
+    }
+}
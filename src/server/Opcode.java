@@ -0,0 +1,121 @@
+package server;
+
+/**
+ * The commands a client may send to the server, with the number of
+ * space-separated tokens (including the command itself) each one takes, and
+ * the commands the nodes of a cluster send each other (see ClusterRouter),
+ * which are only accepted from another node.
+ *
+ * Commands that act on a single conversation carry its ID as their second
+ * token and, except for history_fetch and deliver, the user acting as their
+ * third.
+ */
+public enum Opcode {
+    LOGIN_ATTEMPT("login_attempt", 3, 5, false, false),
+    LOGOUT("logout", 2, 2, false, false),
+    CHAT_START("chat_start", 3, 3, false, false),
+    GROUP_CHAT_START("group_chat_start", 2, Integer.MAX_VALUE, false, false),
+    GROUP_CHAT_LEAVE("group_chat_leave", 3, 3, true, false),
+    SAY("say", 3, 3, true, false),
+    TYPING("typing", 3, 3, true, false),
+    CLEARED("cleared", 3, 3, true, false),
+    HISTORY_FETCH("history_fetch", 4, 4, true, false),
+    DELIVER("deliver", 3, 3, true, true),
+    PEER_HISTORY_FETCH("peer_history_fetch", 5, 5, true, true),
+    PEER_JOIN("peer_join", 4, 4, false, true),
+    PEER_LEAVE("peer_leave", 3, 3, false, true),
+    PEER_DOWN("peer_down", 2, 2, false, true),
+    PEER_DRAIN("peer_drain", 5, 5, true, true),
+    PEER_DRAINED("peer_drained", 5, 5, true, true);
+
+    private static final Opcode[][] BY_LENGTH; // The opcodes whose keyword
+                                               // has each length.
+
+    static {
+        int longest = 0;
+        for (Opcode opcode : values()) {
+            longest = Math.max(longest, opcode.keyword.length());
+        }
+        BY_LENGTH = new Opcode[longest + 1][];
+        for (int length = 0; length <= longest; length++) {
+            int count = 0;
+            for (Opcode opcode : values()) {
+                if (opcode.keyword.length() == length) {
+                    count++;
+                }
+            }
+            BY_LENGTH[length] = new Opcode[count];
+            for (Opcode opcode : values()) {
+                if (opcode.keyword.length() == length) {
+                    BY_LENGTH[length][--count] = opcode;
+                }
+            }
+        }
+    }
+
+    private final String keyword; // The first token of the command.
+    private final int minTokens; // The fewest tokens the command may have.
+    private final int maxTokens; // The most tokens the command may have. For
+                                 // SAY and DELIVER, the tokens before the
+                                 // text.
+    private final boolean conversationScoped; // True if the command acts on
+                                              // a single conversation.
+    private final boolean peer; // True if only another node of a cluster
+                                // may send the command.
+
+    private Opcode(String keyword, int minTokens, int maxTokens,
+            boolean conversationScoped, boolean peer) {
+        this.keyword = keyword;
+        this.minTokens = minTokens;
+        this.maxTokens = maxTokens;
+        this.conversationScoped = conversationScoped;
+        this.peer = peer;
+    }
+
+    /**
+     * Finds the opcode whose keyword starts a message, without copying any
+     * part of the message.
+     *
+     * @param message
+     *            A message from a client.
+     * @param length
+     *            The length of the first token of the message.
+     * @return the opcode, or null if the first token is not a known command.
+     */
+    static Opcode lookup(String message, int length) {
+        if (length >= BY_LENGTH.length) {
+            return null;
+        }
+        for (Opcode opcode : BY_LENGTH[length]) {
+            if (message.regionMatches(0, opcode.keyword, 0, length)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+
+    // ACCESSORS
+    public String getKeyword() {
+        return this.keyword;
+    }
+
+    public int getMinTokens() {
+        return this.minTokens;
+    }
+
+    public int getMaxTokens() {
+        return this.maxTokens;
+    }
+
+    public boolean isConversationScoped() {
+        return this.conversationScoped;
+    }
+
+    public boolean isPeer() {
+        return this.peer;
+    }
+
+    public boolean hasText() {
+        return this == SAY || this == DELIVER;
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An OutputStream that collects bytes into a buffer from a BufferPool, for
+ * encoding a batch of messages before it is written to a socket. The buffer
+ * is acquired on the first write and swapped for a larger one when it fills
+ * up; take() hands it over to the caller, after which the next write starts
+ * a new batch.
+ *
+ * Not thread-safe: a session only encodes on one thread at a time.
+ */
+class PooledOutputStream extends OutputStream {
+    private final BufferPool pool; // Hands out the buffers.
+    private ByteBuffer buffer; // Holds the bytes written since the last
+                               // take(), or null if none were.
+
+    /**
+     * Creates a stream with no buffer.
+     *
+     * @param pool
+     *            The pool to take buffers from.
+     */
+    PooledOutputStream(BufferPool pool) {
+        this.pool = pool;
+        this.buffer = null;
+    }
+
+    @Override
+    public void write(int b) {
+        this.reserve(1);
+        this.buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        this.reserve(len);
+        this.buffer.put(b, off, len);
+    }
+
+    /**
+     * Returns the bytes written since the last take().
+     *
+     * @return the number of bytes in the buffer.
+     */
+    int size() {
+        return this.buffer == null ? 0 : this.buffer.position();
+    }
+
+    /**
+     * Hands over the bytes written since the last take(). The caller must
+     * release the buffer to the pool once it is done with it.
+     *
+     * @return a buffer in read mode, or null if nothing was written.
+     */
+    ByteBuffer take() {
+        ByteBuffer taken = this.buffer;
+        this.buffer = null;
+        if (taken != null) {
+            taken.flip();
+        }
+        return taken;
+    }
+
+    /**
+     * Releases the buffer without handing it over, dropping what was written.
+     */
+    void discard() {
+        if (this.buffer != null) {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Makes room for the given number of bytes.
+     */
+    private void reserve(int length) {
+        if (this.buffer == null) {
+            this.buffer = this.pool.acquire(Math.max(length,
+                    BufferPool.MIN_SIZE));
+        } else if (this.buffer.remaining() < length) {
+            ByteBuffer grown = this.pool.acquire(Math.max(
+                    this.buffer.position() + length,
+                    this.buffer.capacity() * 2));
+            this.buffer.flip();
+            grown.put(this.buffer);
+            this.pool.release(this.buffer);
+            this.buffer = grown;
+        }
+    }
+}
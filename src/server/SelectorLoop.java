@@ -0,0 +1,176 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop that services many non-blocking client connections from a
+ * single thread. Each SelectorLoop owns a Selector; every SelectorSession
+ * registered with the loop is read from and written to only by the loop's
+ * thread.
+ *
+ * Other threads interact with the loop by queueing work (new sessions to
+ * register, sessions with messages to flush) and waking up the selector.
+ */
+public class SelectorLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final Selector selector; // Multiplexes this loop's channels.
+    private final ByteBuffer readBuffer; // Shared by all sessions of this
+                                         // loop, since only the loop reads.
+    private final Queue<SelectorSession> pendingRegistrations; // Sessions
+                                                               // waiting to
+                                                               // be registered.
+    private final Queue<SelectorSession> pendingFlushes; // Sessions with
+                                                         // queued messages.
+    private final Queue<SelectorSession> pendingCloses; // Sessions to be
+                                                        // disconnected.
+
+    /**
+     * Creates a SelectorLoop. The loop does nothing until run() is called,
+     * normally from a dedicated thread.
+     *
+     * @throws IOException
+     *             If the selector cannot be opened.
+     */
+    public SelectorLoop() throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.pendingRegistrations = new ConcurrentLinkedQueue<SelectorSession>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<SelectorSession>();
+        this.pendingCloses = new ConcurrentLinkedQueue<SelectorSession>();
+    }
+
+    /**
+     * Hands a newly accepted session to this loop. Thread-safe.
+     *
+     * @param session
+     *            A session whose channel is in non-blocking mode.
+     */
+    public void register(SelectorSession session) {
+        this.pendingRegistrations.add(session);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write the queued messages of a session. Thread-safe.
+     *
+     * @param session
+     *            A session registered with this loop.
+     */
+    void scheduleFlush(SelectorSession session) {
+        this.pendingFlushes.add(session);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to close the connection of a session. Thread-safe.
+     *
+     * @param session
+     *            A session registered with this loop.
+     */
+    void scheduleClose(SelectorSession session) {
+        this.pendingCloses.add(session);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException(
+                        "Unexpected IOException in SelectorLoop.run()");
+            }
+
+            this.registerPending();
+            this.flushPending();
+            for (SelectorSession session = this.pendingCloses.poll();
+                    session != null; session = this.pendingCloses.poll()) {
+                session.close();
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys()
+                    .iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                SelectorSession session = (SelectorSession) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        this.read(session);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush();
+                    }
+                } catch (CancelledKeyException e) {
+                    session.close();
+                } catch (IOException e) {
+                    // the client went away without logging out
+                    session.close();
+                } catch (RuntimeException e) {
+                    // drop only the connection that failed, not the loop
+                    e.printStackTrace();
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads whatever is available from a session's channel, closing the
+     * session at end of stream.
+     */
+    private void read(SelectorSession session) throws IOException {
+        this.readBuffer.clear();
+        int count = session.getChannel().read(this.readBuffer);
+        if (count < 0) {
+            session.close();
+            return;
+        }
+        this.readBuffer.flip();
+        session.consume(this.readBuffer);
+    }
+
+    /**
+     * Registers every session handed to this loop since the last pass.
+     */
+    private void registerPending() {
+        for (SelectorSession session = this.pendingRegistrations.poll();
+                session != null; session = this.pendingRegistrations.poll()) {
+            try {
+                SelectionKey key = session.getChannel().register(
+                        this.selector, SelectionKey.OP_READ, session);
+                session.registered(key);
+                session.flush();
+            } catch (IOException e) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Writes out the messages of every session that asked to be flushed since
+     * the last pass.
+     */
+    private void flushPending() {
+        for (SelectorSession session = this.pendingFlushes.poll();
+                session != null; session = this.pendingFlushes.poll()) {
+            try {
+                session.flush();
+            } catch (CancelledKeyException e) {
+                session.close();
+            } catch (IOException e) {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import protocol.BinaryCodec;
+
+/**
+ * The state kept for a single client connection when the ChatServer runs in
+ * non-blocking mode. A SelectorSession belongs to exactly one SelectorLoop,
+ * which is the only thread that reads from or writes to its channel.
+ *
+ * Incoming bytes are split into lines (or binary frames, once the client has
+ * asked for them), and each complete message is handed to the ChatServer's
+ * blocking queue exactly as a ChatServerClientThread would. Only the bytes of
+ * an unfinished message are kept between reads, so an idle connection holds
+ * no buffers at all. An unfinished line is held to the same limit as a frame,
+ * BinaryCodec.MAX_FRAME_LENGTH, and the session is closed if it grows past it.
+ *
+ * Outgoing messages may be sent from any thread. They are queued and drained by
+ * the owning SelectorLoop, which encodes everything queued into a single direct
+ * buffer from the server's BufferPool, and returns it to the pool once the
+ * channel has taken all of it. Once the session is switched to compression,
+ * messages are written through one DeflaterOutputStream for the life of the
+ * connection, and each buffer ends with a sync flush.
+ */
+public class SelectorSession extends ClientSession {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int DEFLATE_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel; // The channel for this client.
+    private final SelectorLoop loop; // The loop servicing this channel.
+    private final ChatServer server; // The server receiving the lines read.
+    private SelectionKey key; // The key of this channel in the loop's
+                              // selector, or null before registration.
+    private final BufferPool pool; // Holds the buffers batches are encoded
+                                   // into.
+    private final PooledOutputStream batch; // Collects the next batch.
+    private ByteBuffer unwritten; // Encoded bytes the channel has not yet
+                                  // accepted, or null. Acquired from pool.
+    private byte[] partialLine; // Bytes of an unfinished line or frame, or
+                                // null.
+    private int partialLength; // The number of bytes used in partialLine.
+    private BinaryCodec inboundCodec; // Decodes frames from the client, or
+                                      // null while it sends text.
+    private boolean channelClosed; // True once close() has run.
+    private Deflater deflater; // Compresses outgoing messages, or null while
+                               // not compressing.
+    private DeflaterOutputStream deflaterOut; // Writes through deflater into
+                                              // batch.
+
+    /**
+     * Creates a session for a newly accepted channel. The session does not
+     * read anything until it is registered with its SelectorLoop.
+     *
+     * @param channel
+     *            The connected, non-blocking channel of the client.
+     * @param loop
+     *            The SelectorLoop that will service the channel.
+     * @param server
+     *            The ChatServer that processes lines read from the client.
+     */
+    public SelectorSession(SocketChannel channel, SelectorLoop loop,
+            ChatServer server) {
+        super(channel.socket(), server.getConfig(), server.getMetrics());
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.key = null;
+        this.pool = server.getBufferPool();
+        this.batch = new PooledOutputStream(this.pool);
+        this.unwritten = null;
+        this.partialLine = null;
+        this.partialLength = 0;
+        this.inboundCodec = null;
+        this.channelClosed = false;
+        this.deflater = null;
+        this.deflaterOut = null;
+    }
+
+    /**
+     * Asks the loop to close the channel. The loop logs the user out.
+     */
+    @Override
+    public void disconnect() {
+        this.loop.scheduleClose(this);
+    }
+
+    @Override
+    protected void scheduleDrain() {
+        this.loop.scheduleFlush(this);
+    }
+
+    /**
+     * Called by the loop once the channel is registered with its selector.
+     *
+     * @param key
+     *            The SelectionKey of the channel.
+     */
+    void registered(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Consumes bytes just read from the channel, passing every complete
+     * message to the server. Must only be called by the loop thread.
+     *
+     * @param buffer
+     *            A heap buffer in read mode holding the bytes just read. Its
+     *            contents are not needed after this method returns.
+     * @throws IOException
+     *             If the client sends a malformed frame, or an unfinished
+     *             line longer than BinaryCodec.MAX_FRAME_LENGTH.
+     */
+    void consume(ByteBuffer buffer) throws IOException {
+        byte[] bytes = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        this.getMetrics().addBytesIn(end - start);
+
+        if (this.inboundCodec == null) {
+            start = this.consumeLines(bytes, start, end);
+        }
+        if (this.inboundCodec != null && start < end) {
+            this.consumeFrames(bytes, start, end);
+        }
+    }
+
+    /**
+     * Writes queued messages until the queue is empty or the channel stops
+     * accepting bytes, in which case write interest is set on the key and the
+     * drain resumes when the channel is writable again. Must only be called by
+     * the loop thread.
+     *
+     * @throws IOException
+     *             If the channel fails while writing.
+     */
+    void flush() throws IOException {
+        if (this.key == null || this.channelClosed) {
+            return;
+        }
+        while (true) {
+            if (this.unwritten == null) {
+                this.unwritten = this.encodeBatch();
+                if (this.unwritten == null) {
+                    if (this.finishDrain()) {
+                        continue;
+                    }
+                    this.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+            this.getMetrics().addBytesOut(this.channel.write(this.unwritten));
+            if (this.unwritten.hasRemaining()) {
+                this.key.interestOps(SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.recordWritten();
+            this.pool.release(this.unwritten);
+            this.unwritten = null;
+        }
+    }
+
+    /**
+     * Shuts down the connection and notifies the server that the client is
+     * gone. Does nothing if the session is already closed. Must only be called
+     * by the loop thread.
+     */
+    void close() {
+        if (this.channelClosed) {
+            return;
+        }
+        this.channelClosed = true;
+        this.markClosed();
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (this.unwritten != null) {
+            this.pool.release(this.unwritten);
+            this.unwritten = null;
+        }
+        this.batch.discard();
+        this.partialLine = null;
+        if (this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+            this.deflaterOut = null;
+        }
+        try {
+            this.server.forceLogout(this.getSocket());
+        } catch (RuntimeException e) {
+            // a failure to log out this client must not stop the loop
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes queued messages, up to a limit, and encodes them into one buffer.
+     *
+     * @return a buffer from the pool holding the encoded messages, or null if
+     *         none were queued.
+     */
+    private ByteBuffer encodeBatch() throws IOException {
+        EncodedMessage message = this.nextMessage();
+        if (message == null) {
+            return null;
+        }
+        while (message != null) {
+            if (this.deflater == null && this.isOutboundDeflated()) {
+                this.deflater = new Deflater();
+                this.deflaterOut = new DeflaterOutputStream(this.batch,
+                        this.deflater, DEFLATE_BUFFER_SIZE, true);
+            }
+            OutputStream out = this.deflater == null ? this.batch
+                    : this.deflaterOut;
+            BinaryCodec codec = this.getOutboundCodec();
+            if (codec == null) {
+                message.writeLine(out);
+            } else {
+                codec.encode(message.getText(), out);
+            }
+            if (this.batch.size() >= MAX_BATCH_BYTES) {
+                break;
+            }
+            message = this.nextMessage();
+        }
+        if (this.deflater != null) {
+            // the messages written before the switch are already in batch
+            this.deflaterOut.flush();
+        }
+        return this.batch.take();
+    }
+
+    /**
+     * Passes every complete line to the server, stopping early if a line asks
+     * for binary frames.
+     *
+     * @return where the bytes not consumed as lines start.
+     * @throws IOException
+     *             If the unfinished line grows longer than
+     *             BinaryCodec.MAX_FRAME_LENGTH.
+     */
+    private int consumeLines(byte[] bytes, int start, int end)
+            throws IOException {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                if (this.partialLength > 0) {
+                    this.appendPartial(bytes, start, i - start);
+                    this.deliverLine(this.partialLine, 0, this.partialLength);
+                    this.partialLine = null;
+                    this.partialLength = 0;
+                } else {
+                    this.deliverLine(bytes, start, i - start);
+                }
+                start = i + 1;
+                if (this.inboundCodec != null) {
+                    return start;
+                }
+            }
+        }
+        if (start < end) {
+            if (this.partialLength + end - start
+                    > BinaryCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            this.appendPartial(bytes, start, end - start);
+        }
+        return end;
+    }
+
+    /**
+     * Passes every complete frame to the server, keeping the bytes of an
+     * unfinished frame.
+     */
+    private void consumeFrames(byte[] bytes, int start, int end)
+            throws IOException {
+        if (this.partialLength > 0) {
+            this.appendPartial(bytes, start, end - start);
+            bytes = this.partialLine;
+            start = 0;
+            end = this.partialLength;
+            this.partialLine = null;
+            this.partialLength = 0;
+        }
+        while (start < end) {
+            int header = BinaryCodec.headerLength(bytes, start, end - start);
+            if (header < 0) {
+                break;
+            }
+            int length = BinaryCodec.payloadLength(bytes, start);
+            if (end - start < header + length) {
+                break;
+            }
+            String message = this.inboundCodec.decode(bytes, start + header,
+                    length);
+            if (message != null) {
+                this.server.addMessageToQueue(message, this.getSocket());
+            }
+            start += header + length;
+        }
+        if (start < end) {
+            this.appendPartial(bytes, start, end - start);
+        }
+    }
+
+    /**
+     * Passes a single line (without its terminating newline) to the server.
+     * A trailing carriage return is dropped, as BufferedReader.readLine()
+     * would. If the line asks for binary frames, the bytes after it are read
+     * as frames.
+     */
+    private void deliverLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(bytes, offset, length, CHARSET);
+        if (BinaryCodec.requestsBinary(line)) {
+            this.inboundCodec = new BinaryCodec(true);
+        }
+        this.server.addMessageToQueue(line, this.getSocket());
+    }
+
+    /**
+     * Appends bytes to the unfinished line, growing its buffer as needed.
+     */
+    private void appendPartial(byte[] bytes, int offset, int length) {
+        if (this.partialLine == null) {
+            this.partialLine = new byte[Math.max(64, length)];
+        } else if (this.partialLength + length > this.partialLine.length) {
+            byte[] grown = new byte[Math.max(this.partialLine.length * 2,
+                    this.partialLength + length)];
+            System.arraycopy(this.partialLine, 0, grown, 0,
+                    this.partialLength);
+            this.partialLine = grown;
+        }
+        System.arraycopy(bytes, offset, this.partialLine, this.partialLength,
+                length);
+        this.partialLength += length;
+    }
+
+    // ACCESSORS
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+}
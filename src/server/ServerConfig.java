@@ -0,0 +1,502 @@
+package server;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup options for a ChatServer. A ServerConfig created with the default
+ * constructor describes the original server: one thread per connected client
+ * and a single worker thread processing commands.
+ *
+ * Options must be set before the ChatServer is constructed with this config,
+ * except the outbound limits and the typing intervals, which may be changed
+ * while the server runs through its ChatServerMXBean.
+ */
+public class ServerConfig {
+    private int selectorThreads; // The number of event-loop threads used to
+                                 // service connections, or 0 to use one
+                                 // blocking thread per connection.
+    private boolean virtualThreads; // True if threads started by the server
+                                    // are virtual threads.
+    private int workerThreads; // The number of threads processing commands.
+    private volatile int outboundLimitBytes; // The most a client may have
+                                             // queued before it is
+                                             // disconnected.
+    private volatile int transientLimitBytes; // The queue size past which
+                                              // typing notifications are
+                                              // dropped.
+    private volatile boolean coalesceTransient; // True if a queued typing
+                                                // notification is replaced
+                                                // by a newer one.
+    private File dataDirectory; // The directory holding state kept across
+                                // restarts, or null to keep none.
+    private volatile long typingReannounceMillis; // The least time between
+                                                  // two "typing"
+                                                  // notifications forwarded
+                                                  // for the same user.
+    private volatile long typingStopMillis; // The pause after which a user is
+                                            // no longer typing.
+    private long typingExpiryMillis; // The idle time after which a user's
+                                     // typing state is forgotten.
+    private int pooledBuffersPerSize; // The most free I/O buffers kept for
+                                      // each buffer size.
+    private boolean debugBuffers; // True if the buffer pool tracks the
+                                  // buffers it hands out.
+    private int metricsPort; // The local port serving the metrics, or 0 for
+                             // none.
+    private int traceSampleInterval; // Trace one message in this many, or 0
+                                     // to trace none.
+    private int traceBufferSize; // The number of traces kept.
+    private int logSegmentBytes; // The size of each message log segment.
+    private long logFlushMillis; // The time between two flushes of the
+                                 // message log.
+    private long snapshotMillis; // The time between two snapshots of the
+                                 // conversations.
+    private int clusterNode; // The index of this server among clusterNodes.
+    private List<InetSocketAddress> clusterNodes; // The address each node of
+                                                  // the cluster listens on
+                                                  // for the others, or null
+                                                  // if the server runs
+                                                  // alone.
+
+    /**
+     * Creates a ServerConfig holding the default options.
+     */
+    public ServerConfig() {
+        this.selectorThreads = 0;
+        this.virtualThreads = false;
+        this.workerThreads = 1;
+        this.outboundLimitBytes = 1024 * 1024;
+        this.transientLimitBytes = 64 * 1024;
+        this.coalesceTransient = true;
+        this.dataDirectory = null;
+        this.typingReannounceMillis = 500;
+        this.typingStopMillis = 1000;
+        this.typingExpiryMillis = 60 * 1000;
+        this.pooledBuffersPerSize = 256;
+        this.debugBuffers = false;
+        this.metricsPort = 0;
+        this.traceSampleInterval = 0;
+        this.traceBufferSize = 1024;
+        this.logSegmentBytes = 1024 * 1024;
+        this.logFlushMillis = 100;
+        this.snapshotMillis = 60 * 1000;
+        this.clusterNode = 0;
+        this.clusterNodes = null;
+    }
+
+    /**
+     * Sets the number of event-loop threads used to service client
+     * connections. If this is greater than 0, the server accepts connections
+     * as non-blocking channels and multiplexes all of them over this many
+     * threads instead of starting a thread per client.
+     *
+     * @param selectorThreads
+     *            The number of event-loop threads, or 0 for one blocking
+     *            thread per connection. Must be non-negative.
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        if (selectorThreads < 0) {
+            throw new IllegalArgumentException(
+                    "selectorThreads must be non-negative");
+        }
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Sets whether the server runs its worker and each ChatServerClientThread
+     * on virtual threads rather than platform threads. Blocking reads then
+     * park the virtual thread instead of holding an operating system thread,
+     * so idle connections are cheap without changing how they are read.
+     * Requires Java 21 or later. Has no effect on how connections are read in
+     * non-blocking mode.
+     *
+     * @param virtualThreads
+     *            true to use virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new IllegalStateException(
+                    "Virtual threads require Java 21 or later");
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the number of threads that process commands from clients. With one
+     * thread, every command is processed in the order received. With more,
+     * commands are spread over the threads by conversation (see
+     * CommandDispatcher): commands in the same conversation keep their order,
+     * and commands that change who is online or who is in a conversation are
+     * processed on their own.
+     *
+     * @param workerThreads
+     *            The number of worker threads. Must be positive.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException(
+                    "workerThreads must be positive");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Sets how many bytes of messages may be waiting to be written to a single
+     * client. A client that falls further behind than this is disconnected
+     * and logged out.
+     *
+     * @param outboundLimitBytes
+     *            The limit in bytes. Must be positive.
+     */
+    public void setOutboundLimitBytes(int outboundLimitBytes) {
+        if (outboundLimitBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "outboundLimitBytes must be positive");
+        }
+        this.outboundLimitBytes = outboundLimitBytes;
+    }
+
+    /**
+     * Sets how many bytes of messages may be waiting to be written to a single
+     * client before "typing" and "cleared" notifications to that client are
+     * dropped rather than queued. This should be below the outbound limit.
+     *
+     * @param transientLimitBytes
+     *            The limit in bytes. Must be non-negative.
+     */
+    public void setTransientLimitBytes(int transientLimitBytes) {
+        if (transientLimitBytes < 0) {
+            throw new IllegalArgumentException(
+                    "transientLimitBytes must be non-negative");
+        }
+        this.transientLimitBytes = transientLimitBytes;
+    }
+
+    /**
+     * Sets whether a "typing" or "cleared" notification still waiting to be
+     * written to a client is replaced by a newer notification about the same
+     * user in the same conversation.
+     *
+     * @param coalesceTransient
+     *            true to replace queued notifications.
+     */
+    public void setCoalesceTransient(boolean coalesceTransient) {
+        this.coalesceTransient = coalesceTransient;
+    }
+
+    /**
+     * Sets the directory in which the server keeps the state that must
+     * survive a restart, such as the conversation IDs already handed out, the
+     * private conversations (see ConversationStore) and the log of what was
+     * said in each conversation (see MessageLog). The directory is created if
+     * it does not exist.
+     *
+     * @param dataDirectory
+     *            The directory, or null to keep nothing across restarts.
+     */
+    public void setDataDirectory(File dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    /**
+     * Sets how often a "typing" notification is forwarded again while a user
+     * keeps typing. Notifications in between are dropped by the server. This
+     * must stay below the second after which clients stop showing a user as
+     * typing.
+     *
+     * @param typingReannounceMillis
+     *            The interval in milliseconds, or 0 to forward every
+     *            notification. Must be non-negative.
+     */
+    public void setTypingReannounceMillis(long typingReannounceMillis) {
+        if (typingReannounceMillis < 0) {
+            throw new IllegalArgumentException(
+                    "typingReannounceMillis must be non-negative");
+        }
+        this.typingReannounceMillis = typingReannounceMillis;
+    }
+
+    /**
+     * Sets how long a user may pause before the server considers them no
+     * longer typing, so that their next "typing" is forwarded at once. This
+     * is also how often the server checks for such pauses.
+     *
+     * @param typingStopMillis
+     *            The pause in milliseconds. Must be positive.
+     */
+    public void setTypingStopMillis(long typingStopMillis) {
+        if (typingStopMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "typingStopMillis must be positive");
+        }
+        this.typingStopMillis = typingStopMillis;
+    }
+
+    /**
+     * Sets how long the server keeps the typing state of a user who sends no
+     * "typing" or "cleared" notification.
+     *
+     * @param typingExpiryMillis
+     *            The idle time in milliseconds. Must be positive.
+     */
+    public void setTypingExpiryMillis(long typingExpiryMillis) {
+        if (typingExpiryMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "typingExpiryMillis must be positive");
+        }
+        this.typingExpiryMillis = typingExpiryMillis;
+    }
+
+    /**
+     * Sets how many free buffers of each size the server keeps for reading
+     * and writing connections (see BufferPool). Buffers released while this
+     * many are free are left to the garbage collector.
+     *
+     * @param pooledBuffersPerSize
+     *            The number of buffers. Must be non-negative.
+     */
+    public void setPooledBuffersPerSize(int pooledBuffersPerSize) {
+        if (pooledBuffersPerSize < 0) {
+            throw new IllegalArgumentException(
+                    "pooledBuffersPerSize must be non-negative");
+        }
+        this.pooledBuffersPerSize = pooledBuffersPerSize;
+    }
+
+    /**
+     * Sets whether the server's buffer pool remembers where each buffer it
+     * hands out was acquired, so that buffers never released can be found.
+     * This slows down every read and write, and is meant for debugging.
+     *
+     * @param debugBuffers
+     *            true to track buffers.
+     */
+    public void setDebugBuffers(boolean debugBuffers) {
+        this.debugBuffers = debugBuffers;
+    }
+
+    /**
+     * Sets the port on which the server serves its metrics as text (see
+     * MetricsEndpoint). The port is only opened on the loopback address, so
+     * the metrics can only be read from the server's own host.
+     *
+     * @param metricsPort
+     *            The port, or 0 not to serve metrics. Must be between 0 and
+     *            65535.
+     */
+    public void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException(
+                    "metricsPort must be between 0 and 65535");
+        }
+        this.metricsPort = metricsPort;
+    }
+
+    /**
+     * Sets how many of the messages received from clients are traced from
+     * the moment they are read to the moment what they cause is written (see
+     * Tracer). The traces can be dumped from the metrics port or the
+     * server's ChatServerMXBean. Tracing is off by default and costs next to
+     * nothing when off.
+     *
+     * @param traceSampleInterval
+     *            Trace one message in this many, or 0 to trace none. Must be
+     *            non-negative.
+     */
+    public void setTraceSampleInterval(int traceSampleInterval) {
+        if (traceSampleInterval < 0) {
+            throw new IllegalArgumentException(
+                    "traceSampleInterval must be non-negative");
+        }
+        this.traceSampleInterval = traceSampleInterval;
+    }
+
+    /**
+     * Sets how many of the most recent traces the server keeps.
+     *
+     * @param traceBufferSize
+     *            The number of traces. Must be positive.
+     */
+    public void setTraceBufferSize(int traceBufferSize) {
+        if (traceBufferSize <= 0) {
+            throw new IllegalArgumentException(
+                    "traceBufferSize must be positive");
+        }
+        this.traceBufferSize = traceBufferSize;
+    }
+
+    /**
+     * Sets the size of each segment file of the message log. A conversation
+     * takes at least one segment, but the disk space of a segment is only
+     * used as it fills up on file systems that support sparse files.
+     *
+     * @param logSegmentBytes
+     *            The size in bytes. Must be positive.
+     */
+    public void setLogSegmentBytes(int logSegmentBytes) {
+        if (logSegmentBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "logSegmentBytes must be positive");
+        }
+        this.logSegmentBytes = logSegmentBytes;
+    }
+
+    /**
+     * Sets how often the messages said since the last flush are forced to
+     * the disk together. A crash loses at most the messages said in this
+     * interval; a shorter interval means more frequent writes to the disk.
+     *
+     * @param logFlushMillis
+     *            The interval in milliseconds. Must be positive.
+     */
+    public void setLogFlushMillis(long logFlushMillis) {
+        if (logFlushMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "logFlushMillis must be positive");
+        }
+        this.logFlushMillis = logFlushMillis;
+    }
+
+    /**
+     * Sets how often the conversations are written to a snapshot in the data
+     * directory (see ConversationStore). A server starting up reads the
+     * latest snapshot and then every conversation created after it, so a
+     * shorter interval means a quicker start but more writing.
+     *
+     * @param snapshotMillis
+     *            The interval in milliseconds. Must be positive.
+     */
+    public void setSnapshotMillis(long snapshotMillis) {
+        if (snapshotMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "snapshotMillis must be positive");
+        }
+        this.snapshotMillis = snapshotMillis;
+    }
+
+    /**
+     * Makes the server a node of a cluster of servers, each of which holds
+     * the connections of some of the users (see ClusterRouter). Every node
+     * must be given the same addresses in the same order. A node's index is
+     * part of the ID of every conversation it starts, so it must not change
+     * across restarts of a node with a data directory.
+     *
+     * @param clusterNode
+     *            The index of this server among the nodes.
+     * @param clusterNodes
+     *            The address each node listens on for the other nodes, or
+     *            null for a server that runs alone. There may be at most
+     *            ClusterRouter.MAX_NODES of them.
+     */
+    public void setCluster(int clusterNode,
+            List<InetSocketAddress> clusterNodes) {
+        if (clusterNodes == null) {
+            this.clusterNode = 0;
+            this.clusterNodes = null;
+            return;
+        }
+        if (clusterNodes.isEmpty()
+                || clusterNodes.size() > ClusterRouter.MAX_NODES) {
+            throw new IllegalArgumentException(
+                    "clusterNodes must hold between 1 and "
+                            + ClusterRouter.MAX_NODES + " addresses");
+        }
+        if (clusterNode < 0 || clusterNode >= clusterNodes.size()) {
+            throw new IllegalArgumentException(
+                    "clusterNode must be an index in clusterNodes");
+        }
+        this.clusterNode = clusterNode;
+        this.clusterNodes = Collections
+                .unmodifiableList(new ArrayList<InetSocketAddress>(
+                        clusterNodes));
+    }
+
+    // ACCESSORS
+    public int getSelectorThreads() {
+        return this.selectorThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    public int getWorkerThreads() {
+        return this.workerThreads;
+    }
+
+    public int getOutboundLimitBytes() {
+        return this.outboundLimitBytes;
+    }
+
+    public int getTransientLimitBytes() {
+        return this.transientLimitBytes;
+    }
+
+    public boolean isCoalesceTransient() {
+        return this.coalesceTransient;
+    }
+
+    public File getDataDirectory() {
+        return this.dataDirectory;
+    }
+
+    public long getTypingReannounceMillis() {
+        return this.typingReannounceMillis;
+    }
+
+    public long getTypingStopMillis() {
+        return this.typingStopMillis;
+    }
+
+    public long getTypingExpiryMillis() {
+        return this.typingExpiryMillis;
+    }
+
+    public int getPooledBuffersPerSize() {
+        return this.pooledBuffersPerSize;
+    }
+
+    public boolean isDebugBuffers() {
+        return this.debugBuffers;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    public int getTraceSampleInterval() {
+        return this.traceSampleInterval;
+    }
+
+    public int getTraceBufferSize() {
+        return this.traceBufferSize;
+    }
+
+    public int getLogSegmentBytes() {
+        return this.logSegmentBytes;
+    }
+
+    public long getLogFlushMillis() {
+        return this.logFlushMillis;
+    }
+
+    public long getSnapshotMillis() {
+        return this.snapshotMillis;
+    }
+
+    public int getClusterNode() {
+        return this.clusterNode;
+    }
+
+    public List<InetSocketAddress> getClusterNodes() {
+        return this.clusterNodes;
+    }
+
+    public boolean isNonBlocking() {
+        return this.selectorThreads > 0;
+    }
+}
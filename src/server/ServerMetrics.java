@@ -0,0 +1,304 @@
+package server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measurements a ChatServer keeps about itself while it runs:
+ *
+ * - how long commands wait in the blocking queue, and how deep the queue is
+ * when a command is taken from it;
+ *
+ * - how long each type of command takes to process;
+ *
+ * - how long each message sent to a client takes from the moment the command
+ * that caused it was received to the moment it is written to the socket (or,
+ * for messages not caused by a command, from the moment it was queued);
+ *
+ * - how many clients each message is sent to;
+ *
+ * - how many commands were ignored, by the reason they were;
+ *
+ * - the bytes read from and written to clients.
+ *
+ * Everything is recorded with atomic counters and Histograms, so recording
+ * never blocks a worker or a connection. While a command is processed, the
+ * time it was received and its trace, if it is traced, are kept for the
+ * processing thread (see beginCommand()), so that the messages it sends can
+ * be stamped with them. The Tracer deciding which commands are traced is
+ * kept here too, since every session has the metrics at hand.
+ *
+ * Times are recorded in nanoseconds and printed in microseconds.
+ */
+public class ServerMetrics {
+    private final Histogram queueWait; // From receiving a command to taking
+                                       // it from the queue.
+    private final Histogram queueDepth; // The queue's size as each command is
+                                        // taken from it.
+    private final Map<Opcode, Histogram> commandTimes; // The processing time
+                                                       // of each command
+                                                       // type.
+    private final Histogram invalidTimes; // The processing time of malformed
+                                          // commands.
+    private final Histogram receiveToWrite; // From receiving a command to
+                                            // each resulting message being
+                                            // written to the socket.
+    private final Histogram fanOut; // The recipients of each message.
+    private final Map<String, AtomicLong> rejects; // The commands ignored
+                                                   // for each reason.
+    private final AtomicLong bytesIn; // Bytes read from clients.
+    private final AtomicLong bytesOut; // Bytes written to clients.
+    private final ThreadLocal<Current> current; // The command being
+                                                // processed on each thread.
+    private final Tracer tracer; // Decides which messages are traced.
+
+    /**
+     * Creates metrics with nothing recorded and tracing disabled.
+     */
+    public ServerMetrics() {
+        this(new Tracer(0, 0));
+    }
+
+    /**
+     * Creates metrics with nothing recorded.
+     *
+     * @param tracer
+     *            Decides which messages are traced.
+     */
+    public ServerMetrics(Tracer tracer) {
+        this.queueWait = new Histogram();
+        this.queueDepth = new Histogram();
+        this.commandTimes = new EnumMap<Opcode, Histogram>(Opcode.class);
+        for (Opcode opcode : Opcode.values()) {
+            this.commandTimes.put(opcode, new Histogram());
+        }
+        this.invalidTimes = new Histogram();
+        this.receiveToWrite = new Histogram();
+        this.fanOut = new Histogram();
+        this.rejects = new ConcurrentHashMap<String, AtomicLong>();
+        this.bytesIn = new AtomicLong();
+        this.bytesOut = new AtomicLong();
+        this.current = new ThreadLocal<Current>() {
+            @Override
+            protected Current initialValue() {
+                return new Current();
+            }
+        };
+        this.tracer = tracer;
+    }
+
+    /**
+     * Records that a command was taken from the queue to be processed on the
+     * calling thread, which must call endCommand() once it is done.
+     *
+     * @param receivedNanos
+     *            When the command was received, from System.nanoTime().
+     * @param trace
+     *            The trace of the command, or null if it is not traced.
+     * @param now
+     *            The current System.nanoTime().
+     * @param depth
+     *            The number of commands left in the queue.
+     */
+    public void beginCommand(long receivedNanos, MessageTrace trace,
+            long now, int depth) {
+        this.queueWait.record(now - receivedNanos);
+        this.queueDepth.record(depth);
+        Current command = this.current.get();
+        command.receivedNanos = receivedNanos;
+        command.trace = trace;
+    }
+
+    /**
+     * Records that the command begun on the calling thread was processed.
+     *
+     * @param opcode
+     *            The type of the command, or null if it was malformed.
+     * @param nanos
+     *            The time taken to process it.
+     */
+    public void endCommand(Opcode opcode, long nanos) {
+        Current command = this.current.get();
+        command.receivedNanos = 0;
+        command.trace = null;
+        if (opcode == null) {
+            this.invalidTimes.record(nanos);
+        } else {
+            this.commandTimes.get(opcode).record(nanos);
+        }
+    }
+
+    /**
+     * Returns the time from which to measure the latency of a message being
+     * queued for a client now: when the command being processed on this
+     * thread was received, or the current time if there is none.
+     *
+     * @return a System.nanoTime() value.
+     */
+    public long getOrigin() {
+        long received = this.current.get().receivedNanos;
+        return received != 0 ? received : System.nanoTime();
+    }
+
+    /**
+     * Returns the trace of the command being processed on this thread, so
+     * that the messages it sends can be traced with it.
+     *
+     * @return the trace, or null if the command is not traced or there is
+     *         none.
+     */
+    public MessageTrace getTrace() {
+        if (!this.tracer.isEnabled()) {
+            return null;
+        }
+        return this.current.get().trace;
+    }
+
+    /**
+     * Records that a message was written to the socket of a client.
+     *
+     * @param originNanos
+     *            What getOrigin() returned when the message was queued.
+     * @param now
+     *            The System.nanoTime() at which the write finished.
+     */
+    public void recordWrite(long originNanos, long now) {
+        this.receiveToWrite.record(now - originNanos);
+    }
+
+    /**
+     * Records a message sent to some number of clients.
+     *
+     * @param recipients
+     *            The number of clients the message was queued for.
+     */
+    public void recordFanOut(int recipients) {
+        this.fanOut.record(recipients);
+    }
+
+    /**
+     * Records a command that was ignored.
+     *
+     * @param reason
+     *            Why it was ignored, one of a few fixed strings.
+     */
+    public void recordReject(String reason) {
+        AtomicLong count = this.rejects.get(reason);
+        if (count == null) {
+            synchronized (this.rejects) {
+                count = this.rejects.get(reason);
+                if (count == null) {
+                    count = new AtomicLong();
+                    this.rejects.put(reason, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public void addBytesIn(long bytes) {
+        this.bytesIn.addAndGet(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        this.bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Appends the metrics in the Prometheus text format, one sample per line.
+     * Each histogram is printed as a summary with its 50th, 99th and 99.9th
+     * percentiles, its count, and its maximum.
+     *
+     * @param out
+     *            Where to append the metrics.
+     */
+    public void appendTo(StringBuilder out) {
+        appendSummary(out, "chat_queue_wait_us", "", this.queueWait, 1000);
+        appendSummary(out, "chat_queue_depth", "", this.queueDepth, 1);
+        for (Map.Entry<Opcode, Histogram> entry : this.commandTimes
+                .entrySet()) {
+            appendSummary(out, "chat_command_us", "command=\""
+                    + entry.getKey().getKeyword() + "\"", entry.getValue(),
+                    1000);
+        }
+        appendSummary(out, "chat_command_us", "command=\"invalid\"",
+                this.invalidTimes, 1000);
+        appendSummary(out, "chat_receive_to_write_us", "",
+                this.receiveToWrite, 1000);
+        appendSummary(out, "chat_fan_out", "", this.fanOut, 1);
+        Map<String, AtomicLong> rejects = new TreeMap<String, AtomicLong>(
+                this.rejects);
+        for (Map.Entry<String, AtomicLong> entry : rejects.entrySet()) {
+            out.append("chat_rejected_total{reason=\"").append(entry.getKey())
+                    .append("\"} ").append(entry.getValue().get())
+                    .append('\n');
+        }
+        out.append("chat_bytes_in_total ").append(this.bytesIn.get())
+                .append('\n');
+        out.append("chat_bytes_out_total ").append(this.bytesOut.get())
+                .append('\n');
+    }
+
+    private static void appendSummary(StringBuilder out, String name,
+            String labels, Histogram histogram, long unit) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        double[] quantiles = new double[] { 0.5, 0.99, 0.999 };
+        for (double quantile : quantiles) {
+            out.append(name).append("{").append(prefix).append("quantile=\"")
+                    .append(quantile).append("\"} ")
+                    .append(histogram.getPercentile(quantile) / unit)
+                    .append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_max").append(suffix).append(' ')
+                .append(histogram.getMax() / unit).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ')
+                .append(histogram.getCount()).append('\n');
+    }
+
+    // ACCESSORS
+    public Histogram getQueueWait() {
+        return this.queueWait;
+    }
+
+    public Histogram getCommandTime(Opcode opcode) {
+        return this.commandTimes.get(opcode);
+    }
+
+    public Histogram getReceiveToWrite() {
+        return this.receiveToWrite;
+    }
+
+    public Histogram getFanOut() {
+        return this.fanOut;
+    }
+
+    public long getRejectCount(String reason) {
+        AtomicLong count = this.rejects.get(reason);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getBytesIn() {
+        return this.bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return this.bytesOut.get();
+    }
+
+    public Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * The command being processed on a thread.
+     */
+    private static class Current {
+        private long receivedNanos; // When it was received, or 0 if there is
+                                    // none.
+        private MessageTrace trace; // Its trace, or null.
+    }
+}
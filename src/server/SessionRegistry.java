@@ -0,0 +1,170 @@
+package server;
+
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import user.User;
+
+/**
+ * Keeps track of the connected clients of a ChatServer: the session of each
+ * connection, the connection of each logged-in user and the users logged in
+ * on each connection.
+ *
+ * The maps are kept in sync with each other, so that the user of a dropped
+ * connection is found without searching every logged-in user. Changes are
+ * made under the registry's lock, but every lookup is lock-free and safe to
+ * make from any thread, including the threads reading from and writing to
+ * the connections while commands are being processed.
+ *
+ * A connection normally logs in a single user, but nothing stops it from
+ * logging in several, so the users of a connection are kept as a set.
+ */
+public class SessionRegistry {
+    private final Map<Socket, ClientSession> sessions; // The session of each
+                                                       // connected socket.
+    private final Map<User, Socket> sockets; // The socket of each logged-in
+                                             // user.
+    private final Map<Socket, Set<User>> users; // The users logged in on each
+                                                // socket. Each set is never
+                                                // changed once stored.
+
+    /**
+     * Creates an empty registry.
+     */
+    public SessionRegistry() {
+        this.sessions = new ConcurrentHashMap<Socket, ClientSession>();
+        this.sockets = new ConcurrentHashMap<User, Socket>();
+        this.users = new ConcurrentHashMap<Socket, Set<User>>();
+    }
+
+    /**
+     * Adds the session of a newly connected client.
+     *
+     * @param session
+     *            The session of the client.
+     */
+    public void register(ClientSession session) {
+        this.sessions.put(session.getSocket(), session);
+    }
+
+    /**
+     * Removes the session of a connection that has ended, so that nothing
+     * more is written to it. The users logged in on the connection stay
+     * logged in until logout() is called for each of them.
+     *
+     * @param socket
+     *            The socket whose connection has ended.
+     * @return the users still logged in on the connection, which may be
+     *         empty.
+     */
+    public Set<User> unregister(Socket socket) {
+        this.sessions.remove(socket);
+        return this.getUsers(socket);
+    }
+
+    /**
+     * Logs a user in on a connection, unless a user with the same username is
+     * already logged in.
+     *
+     * @param user
+     *            The user logging in. Its avatar is kept.
+     * @param socket
+     *            The socket of the connection the user logged in on.
+     * @return true if the user was logged in, false if the username is taken.
+     */
+    public synchronized boolean login(User user, Socket socket) {
+        if (this.sockets.containsKey(user)) {
+            return false;
+        }
+        Set<User> loggedIn = new HashSet<User>(this.getUsers(socket));
+        loggedIn.add(user);
+        this.users.put(socket, Collections.unmodifiableSet(loggedIn));
+        this.sockets.put(user, socket);
+        return true;
+    }
+
+    /**
+     * Logs a user out, if the user is logged in.
+     *
+     * @param user
+     *            The user logging out. Only the username must be specified.
+     * @return true if the user was logged in, false otherwise.
+     */
+    public synchronized boolean logout(User user) {
+        Socket socket = this.sockets.remove(user);
+        if (socket == null) {
+            return false;
+        }
+        Set<User> loggedIn = new HashSet<User>(this.getUsers(socket));
+        loggedIn.remove(user);
+        if (loggedIn.isEmpty()) {
+            this.users.remove(socket);
+        } else {
+            this.users.put(socket, Collections.unmodifiableSet(loggedIn));
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a user is logged in.
+     *
+     * @param user
+     *            The user. Only the username must be specified.
+     * @return true if a user with this username is logged in.
+     */
+    public boolean isOnline(User user) {
+        return this.sockets.containsKey(user);
+    }
+
+    /**
+     * Returns the logged-in users, each with its avatar. The set is a live
+     * view that may be iterated while users log in and out; it does not
+     * support removal.
+     *
+     * @return the logged-in users.
+     */
+    public Set<User> getOnlineUsers() {
+        return Collections.unmodifiableSet(this.sockets.keySet());
+    }
+
+    /**
+     * Returns the sessions of the connected clients. The collection is a live
+     * view that may be iterated while clients connect and disconnect; it does
+     * not support removal.
+     *
+     * @return the sessions.
+     */
+    public Collection<ClientSession> getSessions() {
+        return Collections.unmodifiableCollection(this.sessions.values());
+    }
+
+    // ACCESSORS
+    public ClientSession getSession(Socket socket) {
+        return this.sessions.get(socket);
+    }
+
+    public int getUserCount() {
+        return this.sockets.size();
+    }
+
+    public Socket getSocket(User user) {
+        return this.sockets.get(user);
+    }
+
+    public Set<User> getUsers(Socket socket) {
+        Set<User> loggedIn = this.users.get(socket);
+        if (loggedIn == null) {
+            return Collections.emptySet();
+        }
+        return loggedIn;
+    }
+
+    public int getSessionCount() {
+        return this.sessions.size();
+    }
+}
@@ -0,0 +1,174 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import protocol.BinaryCodec;
+
+/**
+ * A ClientSession for a blocking socket, used when each client connection is
+ * read by its own ChatServerClientThread. Queued messages are written by a
+ * drain task run on a shared executor, so a slow client only holds up its own
+ * writer task and never the threads that process commands.
+ *
+ * A drain encodes messages into a heap buffer from the server's BufferPool
+ * and writes the buffer to the socket whenever it fills up and once the queue
+ * is empty, then returns it to the pool. An idle session holds no buffer.
+ *
+ * Once the session is switched to compression, a DeflaterOutputStream is put
+ * in front of the buffer; flushing it at the end of each drain ends the batch
+ * with a sync flush, so the client can decode all of it.
+ */
+public class StreamSession extends ClientSession {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Executor executor; // Runs the drain task.
+    private final Runnable drainTask; // Writes out the queued messages.
+    private final BufferPool pool; // Holds the buffers batches are encoded
+                                   // into.
+    private final PooledOutputStream batch; // Collects the next batch.
+    private OutputStream socketOut; // The stream of the socket, or null
+                                    // before the first drain.
+    private OutputStream out; // Where messages are encoded: batch, or a
+                              // stream compressing into it.
+    private Deflater deflater; // Compresses what is written to out, or null
+                               // while not compressing.
+
+    /**
+     * Creates a session for a blocking client socket.
+     *
+     * @param socket
+     *            The connected socket of the client.
+     * @param config
+     *            The server options holding the outbound limits.
+     * @param executor
+     *            The executor that runs the session's drain task.
+     * @param pool
+     *            The pool of heap buffers to encode batches into.
+     */
+    public StreamSession(Socket socket, ServerConfig config,
+            Executor executor, BufferPool pool) {
+        this(socket, config, executor, pool, new ServerMetrics());
+    }
+
+    /**
+     * Creates a session for a blocking client socket of a server.
+     *
+     * @param socket
+     *            The connected socket of the client.
+     * @param config
+     *            The server options holding the outbound limits.
+     * @param executor
+     *            The executor that runs the session's drain task.
+     * @param pool
+     *            The pool of heap buffers to encode batches into.
+     * @param metrics
+     *            The metrics of the server.
+     */
+    public StreamSession(Socket socket, ServerConfig config,
+            Executor executor, BufferPool pool, ServerMetrics metrics) {
+        super(socket, config, metrics);
+        if (pool.isDirect()) {
+            throw new IllegalArgumentException(
+                    "A StreamSession needs a pool of heap buffers");
+        }
+        this.executor = executor;
+        this.pool = pool;
+        this.batch = new PooledOutputStream(pool);
+        this.socketOut = null;
+        this.out = this.batch;
+        this.deflater = null;
+        this.drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Closes the socket, which makes the ChatServerClientThread reading it
+     * stop and log the user out.
+     */
+    @Override
+    public void disconnect() {
+        this.markClosed();
+        try {
+            this.getSocket().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void scheduleDrain() {
+        this.executor.execute(this.drainTask);
+    }
+
+    /**
+     * Writes every queued message to the socket, in batches, until the queue
+     * is empty. If the socket fails, the session is closed; the
+     * ChatServerClientThread reading the socket notices the failure and logs
+     * the user out.
+     */
+    private void drain() {
+        try {
+            if (this.socketOut == null) {
+                this.socketOut = this.getSocket().getOutputStream();
+            }
+            do {
+                for (EncodedMessage message = this.nextMessage();
+                        message != null; message = this.nextMessage()) {
+                    if (this.deflater == null && this.isOutboundDeflated()) {
+                        this.deflater = new Deflater();
+                        this.out = new DeflaterOutputStream(this.batch,
+                                this.deflater, BUFFER_SIZE, true);
+                    }
+                    BinaryCodec codec = this.getOutboundCodec();
+                    if (codec == null) {
+                        message.writeLine(this.out);
+                    } else {
+                        codec.encode(message.getText(), this.out);
+                    }
+                    if (this.batch.size() >= MAX_BATCH_BYTES) {
+                        this.writeBatch();
+                    }
+                }
+                this.out.flush();
+                this.writeBatch();
+            } while (this.finishDrain());
+        } catch (IOException e) {
+            this.markClosed();
+            this.finishDrain();
+            this.batch.discard();
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Writes what was encoded since the last batch to the socket and returns
+     * the buffer to the pool.
+     */
+    private void writeBatch() throws IOException {
+        ByteBuffer buffer = this.batch.take();
+        if (buffer == null) {
+            return;
+        }
+        try {
+            this.socketOut.write(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), buffer.remaining());
+            this.getMetrics().addBytesOut(buffer.remaining());
+            this.recordWritten();
+        } finally {
+            this.pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides which messages from clients are traced, and keeps the most recent
+ * traces (see MessageTrace) in a ring buffer from which they can be dumped
+ * at any time.
+ *
+ * One message in every sample interval is traced. A trace is put in the
+ * ring as soon as the message is read, so a dump also shows the messages
+ * still waiting or being written, and the oldest trace is overwritten once
+ * the ring is full.
+ *
+ * A disabled tracer (a sample interval of 0) does nothing but return null
+ * from sample(), so the only cost of tracing when it is off is a check for
+ * null wherever a trace would be stamped.
+ *
+ * Thread-safe.
+ */
+public class Tracer {
+    private final int sampleInterval; // Trace one message in this many, or 0
+                                      // to trace none.
+    private final AtomicLong seen; // Messages seen while enabled.
+    private final AtomicReferenceArray<MessageTrace> ring; // The most recent
+                                                           // traces.
+    private final AtomicLong traced; // Traces ever put in the ring.
+
+    /**
+     * Creates a tracer with no traces.
+     *
+     * @param sampleInterval
+     *            Trace one message in this many, or 0 to trace none. Must be
+     *            non-negative.
+     * @param capacity
+     *            The number of traces kept. Must be positive if the tracer is
+     *            enabled.
+     */
+    public Tracer(int sampleInterval, int capacity) {
+        if (sampleInterval < 0) {
+            throw new IllegalArgumentException(
+                    "sampleInterval must be non-negative");
+        }
+        if (sampleInterval > 0 && capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.sampleInterval = sampleInterval;
+        this.seen = new AtomicLong();
+        this.ring = new AtomicReferenceArray<MessageTrace>(
+                sampleInterval > 0 ? capacity : 0);
+        this.traced = new AtomicLong();
+    }
+
+    /**
+     * Decides whether to trace a message that was just read, and if so
+     * starts its trace.
+     *
+     * @param message
+     *            The message.
+     * @param socket
+     *            The socket the message was read from.
+     * @param readNanos
+     *            When the message was read, from System.nanoTime().
+     * @return the trace of the message, or null if it is not traced.
+     */
+    public MessageTrace sample(String message, Socket socket, long readNanos) {
+        if (this.sampleInterval == 0) {
+            return null;
+        }
+        long sequence = this.seen.getAndIncrement();
+        if (sequence % this.sampleInterval != 0) {
+            return null;
+        }
+        MessageTrace trace = new MessageTrace(sequence, message,
+                socket.getRemoteSocketAddress(), readNanos);
+        this.ring.set((int) (this.traced.getAndIncrement() % this.ring
+                .length()), trace);
+        return trace;
+    }
+
+    /**
+     * Appends the traces in the ring, oldest first, one per line.
+     *
+     * @param out
+     *            Where to append the traces.
+     */
+    public void appendTo(StringBuilder out) {
+        int capacity = this.ring.length();
+        long end = this.traced.get();
+        for (long i = Math.max(0, end - capacity); i < end; i++) {
+            MessageTrace trace = this.ring.get((int) (i % capacity));
+            // a slot may be overwritten by a newer trace during the dump
+            if (trace != null) {
+                trace.appendTo(out);
+            }
+        }
+    }
+
+    // ACCESSORS
+    public boolean isEnabled() {
+        return this.sampleInterval > 0;
+    }
+
+    public int getSampleInterval() {
+        return this.sampleInterval;
+    }
+}
@@ -0,0 +1,208 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the typing state of each user in each conversation, so that the
+ * server only forwards "typing" and "cleared" notifications that change what
+ * the other members see.
+ *
+ * A user is typing from the first "typing" until a "cleared", a "say", or a
+ * pause of the stop interval. Clients show a user as typing for a second
+ * after each "typing" they receive and then as having entered text, so while
+ * the user keeps typing the notification is forwarded again once every
+ * re-announce interval, which must stay below that second. A "cleared" is
+ * forwarded unless the last notification forwarded for the user was already
+ * a "cleared".
+ *
+ * Forgetting a state is always safe: the next notification is then
+ * forwarded. States are forgotten when a user says something or leaves, and
+ * by expire(), which a timer calls to end pauses and drop idle states.
+ *
+ * Times are passed in by the caller, in milliseconds. The intervals may be
+ * changed while users are typing; states already kept are then judged by the
+ * new intervals. Thread-safe.
+ */
+public class TypingTracker {
+    private static final int TYPING = 0;
+    private static final int STOPPED = 1;
+    private static final int CLEARED = 2;
+
+    private long reannounceMillis; // The least time between two forwarded
+                                   // "typing" notifications.
+    private long stopMillis; // The pause after which a user is no longer
+                             // typing.
+    private final long expiryMillis; // The idle time after which a state is
+                                     // forgotten.
+    private final Map<String, State> states; // The state of each
+                                             // "ID username".
+    private long suppressedCount; // Notifications not forwarded.
+
+    /**
+     * Creates a tracker with no users typing.
+     *
+     * @param reannounceMillis
+     *            The least time between two forwarded "typing" notifications
+     *            for the same user, or 0 to forward all of them.
+     * @param stopMillis
+     *            The pause after which a user is no longer typing.
+     * @param expiryMillis
+     *            The idle time after which a user's state is forgotten.
+     */
+    public TypingTracker(long reannounceMillis, long stopMillis,
+            long expiryMillis) {
+        this.reannounceMillis = reannounceMillis;
+        this.stopMillis = stopMillis;
+        this.expiryMillis = expiryMillis;
+        this.states = new HashMap<String, State>();
+        this.suppressedCount = 0;
+    }
+
+    /**
+     * Records a "typing" notification.
+     *
+     * @param ID
+     *            The conversation the user is typing in.
+     * @param username
+     *            The user typing.
+     * @param now
+     *            The current time.
+     * @return true if the notification should be forwarded.
+     */
+    public synchronized boolean typing(long ID, String username, long now) {
+        String key = key(ID, username);
+        State state = this.states.get(key);
+        if (state == null) {
+            state = new State();
+            this.states.put(key, state);
+        } else if (state.state == TYPING
+                && now - state.lastForwarded < this.reannounceMillis) {
+            state.lastActivity = now;
+            this.suppressedCount++;
+            return false;
+        }
+        state.state = TYPING;
+        state.lastForwarded = now;
+        state.lastActivity = now;
+        return true;
+    }
+
+    /**
+     * Records a "cleared" notification.
+     *
+     * @param ID
+     *            The conversation the user cleared their text in.
+     * @param username
+     *            The user.
+     * @param now
+     *            The current time.
+     * @return true if the notification should be forwarded.
+     */
+    public synchronized boolean cleared(long ID, String username, long now) {
+        String key = key(ID, username);
+        State state = this.states.get(key);
+        if (state == null) {
+            state = new State();
+            this.states.put(key, state);
+        } else if (state.state == CLEARED) {
+            state.lastActivity = now;
+            this.suppressedCount++;
+            return false;
+        }
+        state.state = CLEARED;
+        state.lastForwarded = now;
+        state.lastActivity = now;
+        return true;
+    }
+
+    /**
+     * Forgets the state of a user in a conversation, after which the next
+     * notification is forwarded. Called when the user says something, which
+     * clients take to end typing, or leaves.
+     *
+     * @param ID
+     *            The conversation.
+     * @param username
+     *            The user.
+     */
+    public synchronized void forget(long ID, String username) {
+        this.states.remove(key(ID, username));
+    }
+
+    /**
+     * Ends the typing of users who have paused for the stop interval and
+     * forgets the states idle for the expiry interval.
+     *
+     * @param now
+     *            The current time.
+     * @return the number of states forgotten.
+     */
+    public synchronized int expire(long now) {
+        int forgotten = 0;
+        Iterator<State> iterator = this.states.values().iterator();
+        while (iterator.hasNext()) {
+            State state = iterator.next();
+            long idle = now - state.lastActivity;
+            if (idle >= this.expiryMillis) {
+                iterator.remove();
+                forgotten++;
+            } else if (state.state == TYPING && idle >= this.stopMillis) {
+                state.state = STOPPED;
+            }
+        }
+        return forgotten;
+    }
+
+    /**
+     * Changes the least time between two forwarded "typing" notifications
+     * for the same user.
+     *
+     * @param reannounceMillis
+     *            The interval, or 0 to forward all notifications.
+     */
+    public synchronized void setReannounceMillis(long reannounceMillis) {
+        this.reannounceMillis = reannounceMillis;
+    }
+
+    /**
+     * Changes the pause after which a user is no longer typing.
+     *
+     * @param stopMillis
+     *            The pause.
+     */
+    public synchronized void setStopMillis(long stopMillis) {
+        this.stopMillis = stopMillis;
+    }
+
+    private static String key(long ID, String username) {
+        return ID + " " + username;
+    }
+
+    // ACCESSORS
+    public synchronized long getReannounceMillis() {
+        return this.reannounceMillis;
+    }
+
+    public synchronized long getStopMillis() {
+        return this.stopMillis;
+    }
+
+    public synchronized int getStateCount() {
+        return this.states.size();
+    }
+
+    public synchronized long getSuppressedCount() {
+        return this.suppressedCount;
+    }
+
+    /**
+     * The typing state of one user in one conversation.
+     */
+    private static class State {
+        private int state; // TYPING, STOPPED or CLEARED.
+        private long lastForwarded; // When a notification was last forwarded.
+        private long lastActivity; // When a notification was last received.
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts tasks on virtual threads when the running JVM provides them (Java 21
+ * and later). The server is built for older Java versions, so virtual threads
+ * are looked up reflectively instead of being referenced directly.
+ */
+public class VirtualThreads {
+    private static final Method START_VIRTUAL_THREAD = findStartMethod();
+
+    /**
+     * Returns whether the running JVM can start virtual threads.
+     *
+     * @return true if start() can be used.
+     */
+    public static boolean isSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Starts a new virtual thread running the given task.
+     *
+     * @param task
+     *            The task to run.
+     * @return The started thread.
+     * @throws IllegalStateException
+     *             If the running JVM does not support virtual threads.
+     */
+    public static Thread start(Runnable task) {
+        if (START_VIRTUAL_THREAD == null) {
+            throw new IllegalStateException(
+                    "Virtual threads require Java 21 or later");
+        }
+        try {
+            return (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(
+                    "Unable to start a virtual thread", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(
+                    "Unable to start a virtual thread", e.getCause());
+        }
+    }
+
+    /**
+     * Looks up Thread.startVirtualThread(Runnable).
+     *
+     * @return the method, or null if this JVM does not have it.
+     */
+    private static Method findStartMethod() {
+        try {
+            return Thread.class.getMethod("startVirtualThread",
+                    Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
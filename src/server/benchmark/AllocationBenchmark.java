@@ -0,0 +1,273 @@
+package server.benchmark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.management.ThreadMXBean;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Measures the garbage a ChatServer creates while it delivers messages with
+ * many clients connected.
+ *
+ * The server runs in this JVM with the chosen connection model. The
+ * benchmark opens the given number of connections, logs in the active ones,
+ * puts them in group conversations of GROUP_SIZE and has them say the given
+ * number of messages, while the other connections stay idle. It reports:
+ *
+ * - the bytes allocated by the server's threads per message delivered, and
+ * in MB per second,
+ *
+ * - the collections and the time spent collecting while the messages were
+ * delivered.
+ *
+ * The clients are all serviced by the benchmark's own thread through one
+ * selector, reading into a single buffer, so that its own allocation is
+ * small; it is left out of the numbers anyway. Each connection takes two file
+ * descriptors in this process, so the open file limit must be a little over
+ * twice the number of connections.
+ *
+ * Usage: AllocationBenchmark (platform|selector) port [connections] [active]
+ * [messages]
+ */
+public class AllocationBenchmark {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int GROUP_SIZE = 10;
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+    private static final int MAX_IN_FLIGHT = 2000;
+    private static final Pattern GROUP_START = Pattern
+            .compile("group_chat_start (\\d+)");
+
+    private static Selector selector;
+    private static ByteBuffer readBuffer;
+    private static long received; // Lines read from active clients.
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: AllocationBenchmark "
+                    + "(platform|selector) port [connections] [active] "
+                    + "[messages]");
+            System.exit(1);
+        }
+        String mode = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int active = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        int messages = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+        active -= active % GROUP_SIZE;
+
+        ServerConfig config = new ServerConfig();
+        if (mode.equals("selector")) {
+            config.setSelectorThreads(Runtime.getRuntime()
+                    .availableProcessors());
+        } else if (!mode.equals("platform")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        final ChatServer server = new ChatServer(port, config);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        selector = Selector.open();
+        readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        List<SocketChannel> clients = new ArrayList<SocketChannel>();
+        StringBuilder[] setup = new StringBuilder[active];
+        for (int i = 0; i < connections; i++) {
+            String host = "127.0.0." + (1 + i / CONNECTIONS_PER_ADDRESS);
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                    host, port));
+            channel.configureBlocking(false);
+            if (i < active) {
+                setup[i] = new StringBuilder();
+            }
+            channel.register(selector, SelectionKey.OP_READ, i < active ? i
+                    : null);
+            clients.add(channel);
+        }
+
+        // log in the active clients and start their conversations, keeping
+        // what they read so that the conversation IDs can be found
+        for (int i = 0; i < active; i++) {
+            write(clients.get(i), "login_attempt user" + i + " 1");
+        }
+        pumpUntilQuiet(setup);
+        long[] IDs = new long[active / GROUP_SIZE];
+        for (int g = 0; g < IDs.length; g++) {
+            StringBuilder command = new StringBuilder("group_chat_start");
+            for (int m = 0; m < GROUP_SIZE; m++) {
+                command.append(" user").append(g * GROUP_SIZE + m);
+            }
+            setup[g * GROUP_SIZE].setLength(0);
+            write(clients.get(g * GROUP_SIZE), command.toString());
+        }
+        pumpUntilQuiet(setup);
+        for (int g = 0; g < IDs.length; g++) {
+            Matcher matcher = GROUP_START.matcher(setup[g * GROUP_SIZE]);
+            if (!matcher.find()) {
+                throw new IllegalStateException("No conversation for group "
+                        + g);
+            }
+            IDs[g] = Long.parseLong(matcher.group(1));
+        }
+        byte[][] says = new byte[active][];
+        for (int i = 0; i < active; i++) {
+            says[i] = ("say " + IDs[i / GROUP_SIZE] + " user" + i
+                    + " the quick brown fox jumps over the lazy dog\n")
+                    .getBytes(CHARSET);
+        }
+        System.gc();
+        Thread.sleep(500);
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long selfId = Thread.currentThread().getId();
+        long[] ids = threads.getAllThreadIds();
+        long allocatedBefore = sum(threads.getThreadAllocatedBytes(ids))
+                - threads.getThreadAllocatedBytes(selfId);
+        long[] gcBefore = collections();
+        long start = System.nanoTime();
+
+        received = 0;
+        long expected = (long) messages * GROUP_SIZE;
+        for (int i = 0; i < messages; i++) {
+            int sender = (int) ((i * 7919L) % active);
+            writeFully(clients.get(sender), ByteBuffer.wrap(says[sender]));
+            while ((long) (i + 1) * GROUP_SIZE - received > MAX_IN_FLIGHT) {
+                pump(null, 100);
+            }
+        }
+        while (received < expected) {
+            if (pump(null, 5000) == 0) {
+                throw new IllegalStateException("Received " + received
+                        + " of " + expected + " messages");
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        ids = threads.getAllThreadIds();
+        long allocated = sum(threads.getThreadAllocatedBytes(ids))
+                - threads.getThreadAllocatedBytes(selfId) - allocatedBefore;
+        long[] gcAfter = collections();
+
+        System.out.println("mode\tconnections\tactive\tdelivered"
+                + "\talloc/msg(B)\talloc(MB/s)\tgc count\tgc ms");
+        System.out.println(mode + "\t" + connections + "\t" + active + "\t"
+                + expected + "\t" + allocated / expected + "\t"
+                + String.format("%.1f", allocated / 1e6 / (elapsed / 1e9))
+                + "\t" + (gcAfter[0] - gcBefore[0]) + "\t"
+                + (gcAfter[1] - gcBefore[1]));
+
+        for (SocketChannel channel : clients) {
+            channel.close();
+        }
+        System.exit(0);
+    }
+
+    private static void write(SocketChannel channel, String line)
+            throws IOException {
+        writeFully(channel, ByteBuffer.wrap((line + "\n").getBytes(CHARSET)));
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                pump(null, 1);
+            }
+        }
+    }
+
+    /**
+     * Reads from the clients until nothing arrives for half a second.
+     */
+    private static void pumpUntilQuiet(StringBuilder[] setup)
+            throws IOException {
+        while (pump(setup, 500) > 0) {
+            // keep reading
+        }
+    }
+
+    /**
+     * Reads whatever the clients have been sent, counting the lines that
+     * reach active clients and keeping their text if setup is given.
+     *
+     * @return the number of bytes read.
+     */
+    private static long pump(StringBuilder[] setup, long timeout)
+            throws IOException {
+        long read = 0;
+        if (selector.select(timeout) == 0) {
+            return 0;
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SocketChannel channel = (SocketChannel) key.channel();
+            Integer index = (Integer) key.attachment();
+            int count;
+            while ((count = channel.read(readBuffer)) > 0) {
+                read += count;
+                readBuffer.flip();
+                for (int i = 0; i < count; i++) {
+                    byte b = readBuffer.get(i);
+                    if (b == '\n' && index != null) {
+                        received++;
+                    }
+                }
+                if (setup != null && index != null) {
+                    byte[] bytes = new byte[count];
+                    readBuffer.get(bytes);
+                    setup[index].append(new String(bytes, CHARSET));
+                }
+                readBuffer.clear();
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Server closed connection "
+                        + index);
+            }
+        }
+        return read;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += Math.max(value, 0);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the collections so far and the milliseconds they took.
+     */
+    private static long[] collections() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return new long[] { count, time };
+    }
+}
@@ -0,0 +1,172 @@
+package server.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import protocol.BinaryCodec;
+
+/**
+ * Measures what DEFLATE compression saves on one connection's stream from the
+ * server, and what it costs.
+ *
+ * The stream is a mix of "say" messages with text drawn from a small
+ * vocabulary, each preceded by a "typing" and a "cleared", in a set of
+ * conversations between a set of users, generated from a fixed seed. It is
+ * written as text lines and as binary frames, each uncompressed and
+ * compressed with a sync flush after every batch of messages, the way a
+ * session flushes at the end of each drain. A batch of 1 is a quiet
+ * connection, where every message is flushed on its own; larger batches are
+ * a busy one.
+ *
+ * For each combination the benchmark reports the bytes on the wire per
+ * message, and the CPU time per message spent compressing on the server and
+ * inflating on the client (encoding the messages is not counted).
+ *
+ * Usage: CompressionBenchmark [messages] [batch sizes...]
+ */
+public class CompressionBenchmark {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final long SEED = 6005;
+    private static final int USERS = 100;
+    private static final int ROUNDS = 5;
+    private static final String[] WORDS = new String[] { "the", "a", "to",
+            "and", "is", "it", "you", "that", "for", "on", "meeting", "lunch",
+            "today", "tomorrow", "ok", "sure", "thanks", "problem", "set",
+            "lecture", "?", "lol", "what", "time", "see", "later", "haha",
+            "where", "are", "we", "going", "6.005", "pset", "due", "friday" };
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+        int[] batches = new int[] { 1, 4, 16 };
+        if (args.length > 1) {
+            batches = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                batches[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        String[] messages = messages(count);
+        byte[][] text = new byte[count][];
+        byte[][] binary = new byte[count][];
+        BinaryCodec encoder = new BinaryCodec(true);
+        for (int i = 0; i < count; i++) {
+            text[i] = (messages[i] + "\n").getBytes(CHARSET);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(messages[i], out);
+            binary[i] = out.toByteArray();
+        }
+
+        System.out.println("encoding\tbatch\tbytes/msg\tdeflate ns/msg"
+                + "\tinflate ns/msg");
+        for (int round = 0; round < ROUNDS; round++) {
+            // earlier rounds warm up the JIT and are not printed
+            boolean print = round == ROUNDS - 1;
+            report("text", text, 0, print);
+            report("binary", binary, 0, print);
+            for (int batch : batches) {
+                report("text+deflate", text, batch, print);
+                report("binary+deflate", binary, batch, print);
+            }
+        }
+    }
+
+    /**
+     * Generates the stream of messages.
+     */
+    private static String[] messages(int count) {
+        Random random = new Random(SEED);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            long ID = 1000000 + random.nextInt(500);
+            String username = "user" + random.nextInt(USERS);
+            switch (i % 3) {
+            case 0:
+                messages[i] = "typing " + ID + " " + username;
+                break;
+            case 1:
+                messages[i] = "cleared " + ID + " " + username;
+                break;
+            default:
+                StringBuilder say = new StringBuilder("say " + ID + " "
+                        + username);
+                int words = 1 + random.nextInt(12);
+                for (int w = 0; w < words; w++) {
+                    say.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                messages[i] = say.toString();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Compresses the encoded messages, flushing after every batch, and
+     * inflates them back, printing the result if asked to.
+     *
+     * @param batch
+     *            The messages per sync flush, or 0 not to compress.
+     */
+    private static void report(String encoding, byte[][] encoded, int batch,
+            boolean print) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        long deflateTime = 0;
+        long inflateTime = 0;
+        if (batch == 0) {
+            for (byte[] message : encoded) {
+                wire.write(message);
+            }
+        } else {
+            long start = threads.getCurrentThreadCpuTime();
+            DeflaterOutputStream out = new DeflaterOutputStream(wire, true);
+            for (int i = 0; i < encoded.length; i++) {
+                out.write(encoded[i]);
+                if ((i + 1) % batch == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+            deflateTime = threads.getCurrentThreadCpuTime() - start;
+
+            // the stream is never finished, as on a live connection, so the
+            // client reads exactly what was flushed
+            start = threads.getCurrentThreadCpuTime();
+            InputStream in = new InflaterInputStream(new ByteArrayInputStream(
+                    wire.toByteArray()));
+            byte[] buffer = new byte[8192];
+            long remaining = length(encoded);
+            while (remaining > 0) {
+                int n = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IllegalStateException("Inflated stream ended "
+                            + remaining + " bytes early");
+                }
+                remaining -= n;
+            }
+            inflateTime = threads.getCurrentThreadCpuTime() - start;
+        }
+        if (print) {
+            int count = encoded.length;
+            System.out.println(encoding + "\t" + (batch == 0 ? "-" : batch)
+                    + "\t" + String.format("%.1f", wire.size() * 1.0 / count)
+                    + "\t" + deflateTime / count + "\t" + inflateTime / count);
+        }
+    }
+
+    private static long length(byte[][] encoded) {
+        long length = 0;
+        for (byte[] message : encoded) {
+            length += message.length;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,172 @@
+package server.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Measures what idle connections cost a ChatServer and how quickly a new
+ * client can log in while those connections are open.
+ *
+ * The server runs in this JVM with the chosen connection model. The benchmark
+ * opens idle connections in steps (for example 1000, then 10000, then 50000)
+ * and after each step reports:
+ *
+ * - the growth in resident memory and in used heap per idle connection,
+ *
+ * - the number of live platform threads,
+ *
+ * - the time from connecting a new socket to reading "login_success" for a
+ * sample of fresh clients (p50 and p99).
+ *
+ * Idle connections are spread over several loopback addresses so that the
+ * benchmark is not limited by the ephemeral ports of a single address. Each
+ * connection takes two file descriptors in this process (client and server
+ * end), so the open file limit must be a little over twice the largest step.
+ *
+ * Usage: ConnectionBenchmark (platform|virtual|selector) port count...
+ */
+public class ConnectionBenchmark {
+    private static final int LOGIN_SAMPLES = 200;
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ConnectionBenchmark "
+                    + "(platform|virtual|selector) port count...");
+            System.exit(1);
+        }
+        String mode = args[0];
+        int port = Integer.parseInt(args[1]);
+
+        ServerConfig config = new ServerConfig();
+        if (mode.equals("virtual")) {
+            config.setVirtualThreads(true);
+        } else if (mode.equals("selector")) {
+            config.setSelectorThreads(Runtime.getRuntime()
+                    .availableProcessors());
+        } else if (!mode.equals("platform")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        final ChatServer server = new ChatServer(port, config);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        List<Socket> idle = new ArrayList<Socket>();
+        settle();
+        long baseRss = residentKilobytes();
+        long baseHeap = usedHeapBytes();
+        int nextLogin = 0;
+
+        System.out.println("mode\tconnections\trss/conn(KB)\theap/conn(B)"
+                + "\tthreads\tlogin p50(us)\tlogin p99(us)");
+        for (int a = 2; a < args.length; a++) {
+            int target = Integer.parseInt(args[a]);
+            while (idle.size() < target) {
+                String host = "127.0.0."
+                        + (1 + idle.size() / CONNECTIONS_PER_ADDRESS);
+                idle.add(new Socket(host, port));
+            }
+            settle();
+            long rss = residentKilobytes() - baseRss;
+            long heap = usedHeapBytes() - baseHeap;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            long[] latencies = new long[LOGIN_SAMPLES];
+            for (int i = 0; i < LOGIN_SAMPLES; i++) {
+                latencies[i] = timeLogin("127.0.0.1", port, "bench"
+                        + nextLogin++);
+            }
+            Arrays.sort(latencies);
+
+            System.out.println(mode + "\t" + target + "\t"
+                    + String.format("%.1f", rss * 1.0 / target) + "\t"
+                    + (heap / target) + "\t" + threads + "\t"
+                    + latencies[LOGIN_SAMPLES / 2] / 1000 + "\t"
+                    + latencies[LOGIN_SAMPLES * 99 / 100] / 1000);
+        }
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Connects a new client, logs it in and returns the time taken in
+     * nanoseconds. The client logs out and disconnects afterwards.
+     */
+    private static long timeLogin(String host, int port, String username)
+            throws IOException {
+        long start = System.nanoTime();
+        Socket socket = new Socket(host, port);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream()));
+        out.println("login_attempt " + username + " 1");
+        String reply = in.readLine();
+        long elapsed = System.nanoTime() - start;
+        if (!"login_success".equals(reply)) {
+            throw new IllegalStateException("Unexpected reply: " + reply);
+        }
+        out.println("logout " + username);
+        socket.close();
+        return elapsed;
+    }
+
+    /**
+     * Gives the server time to accept pending connections and collects
+     * garbage so that memory readings are comparable.
+     */
+    private static void settle() throws InterruptedException {
+        Thread.sleep(1000);
+        System.gc();
+        Thread.sleep(200);
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Reads the resident set size of this process from /proc (Linux only).
+     *
+     * @return the resident set size in kilobytes, or 0 if it is unavailable.
+     */
+    private static long residentKilobytes() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(
+                    "/proc/self/status"));
+            try {
+                for (String line = in.readLine(); line != null; line = in
+                        .readLine()) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return 0;
+    }
+}
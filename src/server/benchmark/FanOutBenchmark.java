@@ -0,0 +1,131 @@
+package server.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+import server.ClientSession;
+import server.EncodedMessage;
+import server.ServerConfig;
+
+/**
+ * Measures the garbage created by sending one "say" message to every member
+ * of a group conversation, for groups of several sizes.
+ *
+ * Each member has a ClientSession that drains its queue as soon as a message
+ * is queued, writing the text lines nowhere, so that the measurement covers
+ * queuing and writing but not the network. Two ways of fanning out are
+ * compared:
+ *
+ * - per recipient: the message is built and encoded once for every member,
+ * as the server used to do;
+ *
+ * - shared: the message is built and encoded once into an EncodedMessage,
+ * which every session queues and writes.
+ *
+ * Allocation is read from the JVM's per-thread allocation counter, so the
+ * benchmark needs a HotSpot JVM.
+ *
+ * Usage: FanOutBenchmark [messages] [group size...]
+ */
+public class FanOutBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[] sizes = new int[] { 1, 10, 100, 500 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        System.out.println("fan-out\tgroup\tbytes/msg\tbytes/msg/recipient");
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int size : sizes) {
+                DiscardingSession[] group = new DiscardingSession[size];
+                for (int i = 0; i < size; i++) {
+                    group[i] = new DiscardingSession();
+                }
+
+                long before = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < count; i++) {
+                    for (DiscardingSession session : group) {
+                        session.send("say " + 1000000 + " user" + (i % 100)
+                                + " hello there, how are you doing today?");
+                    }
+                }
+                long perRecipient = threads.getThreadAllocatedBytes(thread)
+                        - before;
+
+                before = threads.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < count; i++) {
+                    EncodedMessage message = new EncodedMessage("say "
+                            + 1000000 + " user" + (i % 100)
+                            + " hello there, how are you doing today?");
+                    for (DiscardingSession session : group) {
+                        session.send(message);
+                    }
+                }
+                long shared = threads.getThreadAllocatedBytes(thread) - before;
+
+                // the first round warms up the JIT
+                if (round > 0) {
+                    report("per recipient", size, perRecipient, count);
+                    report("shared", size, shared, count);
+                }
+            }
+        }
+    }
+
+    private static void report(String fanOut, int size, long bytes, int count) {
+        System.out.println(fanOut + "\t" + size + "\t" + bytes / count + "\t"
+                + bytes / count / size);
+    }
+
+    /**
+     * A session that writes each message nowhere as soon as it is queued.
+     */
+    private static class DiscardingSession extends ClientSession {
+        private static final OutputStream NOWHERE = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        DiscardingSession() {
+            super(null, new ServerConfig());
+        }
+
+        @Override
+        public void disconnect() {
+            this.markClosed();
+        }
+
+        @Override
+        protected void scheduleDrain() {
+            try {
+                do {
+                    for (EncodedMessage message = this.nextMessage();
+                            message != null; message = this.nextMessage()) {
+                        message.writeLine(NOWHERE);
+                    }
+                    this.recordWritten();
+                } while (this.finishDrain());
+            } catch (IOException e) {
+                throw new RuntimeException(
+                        "Unexpected IOException in scheduleDrain()");
+            }
+        }
+    }
+}
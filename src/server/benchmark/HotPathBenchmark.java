@@ -0,0 +1,472 @@
+package server.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import conversation.Conversation;
+import conversation.MembershipIndex;
+import server.ChatServer;
+import server.Command;
+import server.ConversationIDAllocator;
+import server.ConversationStore;
+import server.Histogram;
+import server.MessageLog;
+import server.Opcode;
+import server.ServerConfig;
+import user.User;
+
+/**
+ * Measures the hot paths of a ChatServer one after the other, so that a
+ * regression in any of them shows up in a single run:
+ *
+ * - parse: decoding a mix of client commands with Command.decode();
+ *
+ * - fanout N: processing a "say" in a group conversation of N members, for
+ * groups of 2, 50 and 500. This is the worker's time for the command, as
+ * recorded by the server's own ServerMetrics, so it covers building the
+ * message and queuing it for every member but not the writes, which happen
+ * on other threads. The members are real clients of a server running in this
+ * JVM, whose messages are read and discarded;
+ *
+ * - users: Conversation.getUsers() and iterating over the users of a group of
+ * 100, while another thread keeps adding and removing users;
+ *
+ * - ids: handing out a conversation ID and storing a conversation under it in
+ * a map that already holds a million, as the server does for each new
+ * conversation, with IDs kept in memory and with IDs persisted to a file;
+ *
+ * - log: appending a message to the MessageLog of one of LOG_CONVERSATIONS
+ * conversations in turn, in a temporary directory, while another thread
+ * flushes the log every LOG_FLUSH_MILLIS as the server does;
+ *
+ * - restart: loading a million private conversations between
+ * RESTART_USERS users into an empty map and MembershipIndex with
+ * ConversationStore.load(), from a snapshot followed by a journal of
+ * RESTART_JOURNAL more, as a server does when it starts. The time is per
+ * conversation loaded.
+ *
+ * Each benchmark is warmed up for WARMUP rounds and then measured for ROUNDS
+ * rounds. The median round is reported in nanoseconds per operation, with
+ * the fastest and the slowest.
+ *
+ * The fanout benchmarks start a server on each of the given port and the two
+ * ports after it.
+ *
+ * Usage: HotPathBenchmark port [parse|fanout|users|ids|log|restart...]
+ */
+public class HotPathBenchmark {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 10;
+    private static final int[] GROUP_SIZES = new int[] { 2, 50, 500 };
+    private static final int GROUP_USERS = 100;
+    private static final int MAP_SIZE = 1000000;
+    private static final int MAX_IN_FLIGHT_LINES = 20000;
+    private static final int LOG_CONVERSATIONS = 1000;
+    private static final long LOG_FLUSH_MILLIS = 100;
+    private static final int RESTART_USERS = 10000;
+    private static final int RESTART_JOURNAL = 10000;
+
+    private static long sink; // Keeps the JIT from dropping the work.
+    private static volatile boolean mutating; // True while the users
+                                              // benchmark changes its group.
+    private static volatile boolean flushing; // True while the log
+                                              // benchmark flushes its log.
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: HotPathBenchmark port "
+                    + "[parse|fanout|users|ids|log|restart...]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        Set<String> selected = new HashSet<String>(Arrays.asList(args)
+                .subList(1, args.length));
+        boolean all = selected.isEmpty();
+
+        System.out.println("benchmark\tns/op\tmin\tmax");
+        if (all || selected.contains("parse")) {
+            parse();
+        }
+        if (all || selected.contains("fanout")) {
+            for (int i = 0; i < GROUP_SIZES.length; i++) {
+                fanOut(port + i, GROUP_SIZES[i]);
+            }
+        }
+        if (all || selected.contains("users")) {
+            users();
+        }
+        if (all || selected.contains("ids")) {
+            ids();
+        }
+        if (all || selected.contains("log")) {
+            log();
+        }
+        if (all || selected.contains("restart")) {
+            restart();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A benchmark loop.
+     */
+    private abstract static class Loop {
+        /**
+         * Runs the given number of operations.
+         *
+         * @return the nanoseconds taken.
+         */
+        abstract long run(int operations) throws Exception;
+    }
+
+    /**
+     * Warms up a loop, measures it and prints the result.
+     */
+    private static void measure(String name, int operations, Loop loop)
+            throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            loop.run(operations);
+        }
+        double[] rounds = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            rounds[i] = (double) loop.run(operations) / operations;
+        }
+        Arrays.sort(rounds);
+        System.out.println(name + "\t"
+                + String.format("%.1f\t%.1f\t%.1f", rounds[ROUNDS / 2],
+                        rounds[0], rounds[ROUNDS - 1]));
+    }
+
+    private static void parse() throws Exception {
+        final String[] messages = new String[] {
+                "say 1234 alice hello there, how are you doing today?",
+                "typing 1234 alice", "cleared 1234 alice",
+                "say 1234 bob not bad, see you at lunch",
+                "login_attempt carol 3", "chat_start alice bob",
+                "group_chat_start alice bob carol dave erin frank",
+                "group_chat_leave 1234 bob", "logout carol",
+                "say notanumber alice oops", "bogus command" };
+        final Command command = new Command();
+        measure("parse", 1000000, new Loop() {
+            @Override
+            long run(int operations) {
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    command.decode(messages[i % messages.length]);
+                    sink += command.getTokenCount();
+                }
+                return System.nanoTime() - start;
+            }
+        });
+    }
+
+    /**
+     * Starts a server, logs in a group of clients, starts a group
+     * conversation between them and measures how long the server takes to
+     * process each "say" in it.
+     */
+    private static void fanOut(int port, final int size) throws Exception {
+        final ChatServer server = new ChatServer(port, new ServerConfig());
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        final Selector selector = Selector.open();
+        SocketChannel[] clients = new SocketChannel[size];
+        for (int i = 0; i < size; i++) {
+            clients[i] = SocketChannel.open(new InetSocketAddress(
+                    "localhost", port));
+            clients[i].configureBlocking(false);
+            clients[i].register(selector, SelectionKey.OP_READ);
+        }
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                discard(selector, received);
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        final Histogram logins = server.getMetrics().getCommandTime(
+                Opcode.LOGIN_ATTEMPT);
+        for (int i = 0; i < size; i++) {
+            write(clients[i], "login_attempt user" + i + " 1\n");
+        }
+        StringBuilder start = new StringBuilder("group_chat_start");
+        for (int i = 0; i < size; i++) {
+            start.append(" user").append(i);
+        }
+        awaitCount(logins, size);
+        write(clients[0], start.append('\n').toString());
+        awaitCount(server.getMetrics().getCommandTime(
+                Opcode.GROUP_CHAT_START), 1);
+
+        // the first conversation of a fresh server has ID 1
+        final SocketChannel sender = clients[0];
+        final byte[] say = "say 1 user0 hello there, how are you doing today?\n"
+                .getBytes(CHARSET);
+        final Histogram says = server.getMetrics().getCommandTime(Opcode.SAY);
+        final long[] sent = new long[1];
+        final long baseline = received.get();
+        measure("fanout " + size, 2000, new Loop() {
+            @Override
+            long run(int operations) throws Exception {
+                long count = says.getCount();
+                long sum = says.getSum();
+                for (int i = 0; i < operations; i++) {
+                    // stay well within the outbound limit of each client
+                    while ((sent[0] + 1) * size - (received.get() - baseline)
+                            > MAX_IN_FLIGHT_LINES) {
+                        Thread.sleep(1);
+                    }
+                    write(sender, say);
+                    sent[0]++;
+                }
+                awaitCount(says, count + operations);
+                return says.getSum() - sum;
+            }
+        });
+    }
+
+    /**
+     * Reads and discards everything the clients are sent, counting lines.
+     */
+    private static void discard(Selector selector, AtomicLong received) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    int count;
+                    while ((count = channel.read(buffer)) > 0) {
+                        long lines = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (buffer.get(i) == '\n') {
+                                lines++;
+                            }
+                        }
+                        received.addAndGet(lines);
+                        buffer.clear();
+                    }
+                    if (count < 0) {
+                        throw new IllegalStateException(
+                                "Server closed a connection");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void write(SocketChannel channel, String line)
+            throws IOException {
+        write(channel, line.getBytes(CHARSET));
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Waits until a histogram has recorded the given number of values.
+     */
+    private static void awaitCount(Histogram histogram, long count)
+            throws InterruptedException {
+        while (histogram.getCount() < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void users() throws Exception {
+        Set<User> members = new HashSet<User>();
+        for (int i = 0; i < GROUP_USERS; i++) {
+            members.add(new User("user" + i));
+        }
+        final Conversation conversation = new Conversation(members, 1);
+        mutating = true;
+        Thread mutator = new Thread(new Runnable() {
+            public void run() {
+                User user = new User("newcomer");
+                while (mutating) {
+                    conversation.addUser(user);
+                    conversation.removeUser(user);
+                }
+            }
+        });
+        mutator.setDaemon(true);
+        mutator.start();
+        measure("users", 200000, new Loop() {
+            @Override
+            long run(int operations) {
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    for (User user : conversation.getUsers()) {
+                        sink += user.getAvatar();
+                    }
+                }
+                return System.nanoTime() - start;
+            }
+        });
+        mutating = false;
+        mutator.join();
+    }
+
+    private static void ids() throws Exception {
+        File file = File.createTempFile("conversation-ids", null);
+        file.deleteOnExit();
+        measureIDs("ids", new ConversationIDAllocator());
+        ConversationIDAllocator persisted = new ConversationIDAllocator(file);
+        measureIDs("ids (persisted)", persisted);
+        persisted.close();
+    }
+
+    private static void measureIDs(String name,
+            final ConversationIDAllocator allocator) throws Exception {
+        final Conversation chat = new Conversation(new User("alice"),
+                new User("bob"), 0);
+        final Map<Long, Conversation> conversations =
+                new ConcurrentHashMap<Long, Conversation>();
+        for (int i = 0; i < MAP_SIZE; i++) {
+            conversations.put(allocator.next(), chat);
+        }
+        measure(name, 100000, new Loop() {
+            @Override
+            long run(int operations) {
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    conversations.put(allocator.next(), chat);
+                }
+                return System.nanoTime() - start;
+            }
+        });
+        sink += conversations.size();
+    }
+
+    private static void log() throws Exception {
+        File directory = File.createTempFile("message-log", null);
+        if (!directory.delete()) {
+            throw new IOException("Cannot replace " + directory);
+        }
+        final MessageLog log = new MessageLog(directory,
+                new ServerConfig().getLogSegmentBytes());
+        flushing = true;
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                while (flushing) {
+                    try {
+                        Thread.sleep(LOG_FLUSH_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    log.flush();
+                }
+            }
+        });
+        flusher.setDaemon(true);
+        flusher.start();
+        final String text = "hello there, how are you doing today?";
+        measure("log", 100000, new Loop() {
+            @Override
+            long run(int operations) {
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    sink += log.append(i % LOG_CONVERSATIONS, "alice", text);
+                }
+                return System.nanoTime() - start;
+            }
+        });
+        flushing = false;
+        flusher.join();
+        log.close();
+        delete(directory);
+    }
+
+    private static void restart() throws Exception {
+        final File directory = File.createTempFile("conversations", null);
+        if (!directory.delete()) {
+            throw new IOException("Cannot replace " + directory);
+        }
+        ConversationStore store = new ConversationStore(directory);
+        Map<Long, Conversation> conversations =
+                new ConcurrentHashMap<Long, Conversation>();
+        store.load(conversations, new MembershipIndex());
+        User[] users = new User[RESTART_USERS];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new User("user" + i);
+        }
+        for (long ID = 1; ID <= MAP_SIZE + RESTART_JOURNAL; ID++) {
+            if (ID == MAP_SIZE + 1) {
+                store.snapshot(conversations.values());
+            }
+            int a = (int) (ID % users.length);
+            int b = (int) ((ID * 7919) % users.length);
+            Conversation chat = new Conversation(users[a], users[b], ID);
+            conversations.put(ID, chat);
+            store.record(chat);
+        }
+        store.close();
+        conversations = null;
+
+        final int loaded = MAP_SIZE + RESTART_JOURNAL;
+        measure("restart", loaded, new Loop() {
+            @Override
+            long run(int operations) throws IOException {
+                long start = System.nanoTime();
+                ConversationStore store = new ConversationStore(directory);
+                Map<Long, Conversation> conversations =
+                        new ConcurrentHashMap<Long, Conversation>();
+                if (store.load(conversations,
+                        new MembershipIndex()) != loaded) {
+                    throw new IllegalStateException("Lost conversations");
+                }
+                long time = System.nanoTime() - start;
+                store.close();
+                sink += conversations.size();
+                return time;
+            }
+        });
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,462 @@
+package server.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import server.Histogram;
+import server.testing.DummyClient;
+
+/**
+ * Puts a running ChatServer under the load of many simulated users and
+ * reports how quickly their messages are delivered and at what rate the
+ * server stops keeping up.
+ *
+ * The generator opens the given number of connections, each a DummyClient,
+ * and logs each in as its own user. A share of the users are paired off in
+ * private conversations and the rest are put in group conversations whose
+ * sizes are drawn evenly from a range, so that every user is in exactly one
+ * conversation. Driver threads then send "say" and "typing" messages from
+ * users picked at random, at fixed target rates, for the length of a step.
+ *
+ * Each "say" carries the time it was due to be sent, and every member of the
+ * conversation that receives it records the time from then to its arrival.
+ * Measuring from the time a message was due rather than the time it was
+ * sent means that a server slow enough to hold up the drivers shows up in
+ * the latencies instead of lowering the load. Both times are taken in this
+ * process, so the latencies include the time the clients here take to read
+ * the messages.
+ *
+ * After each step the generator waits for the messages still in flight and
+ * reports the rates sent and delivered, the share of the expected deliveries
+ * that arrived, and the delivery latency percentiles. With -ramp, the rates
+ * are multiplied by the given factor after each step until the server
+ * saturates: it delivers less than 99% of the messages, the drivers cannot
+ * send at the target rate, or the 99th percentile latency exceeds the SLO.
+ * The last step before that is reported as the throughput at saturation.
+ *
+ * Every connection uses a reading thread in this process, and two file
+ * descriptors on the host if the server runs on it, so the open file limit
+ * must be a little over twice the number of clients.
+ *
+ * Usage: LoadGenerator host port [-clients N] [-private SHARE]
+ * [-group MIN MAX] [-say RATE] [-typing RATE] [-seconds S] [-drivers N]
+ * [-ramp FACTOR] [-steps N] [-slo MILLIS] [-prefix NAME]
+ */
+public class LoadGenerator {
+    private static final String STAMP = " t="; // Marks the due time of a say.
+    private static final long SEED = 6005;
+    private static final long SETUP_TIMEOUT_SECONDS = 120;
+    private static final long QUIET_MILLIS = 1000;
+    private static final long MAX_DRAIN_MILLIS = 10000;
+
+    private static volatile Step[] steps; // The steps of the run, by index.
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadGenerator host port [-clients N] "
+                    + "[-private SHARE] [-group MIN MAX] [-say RATE] "
+                    + "[-typing RATE] [-seconds S] [-drivers N] "
+                    + "[-ramp FACTOR] [-steps N] [-slo MILLIS] "
+                    + "[-prefix NAME]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int clientCount = 2000;
+        double privateShare = 0.5;
+        int groupMin = 3;
+        int groupMax = 20;
+        double sayRate = 500;
+        double typingRate = 1000;
+        int seconds = 10;
+        int drivers = 2;
+        double ramp = 1;
+        int stepCount = 1;
+        long sloMillis = 1000;
+        String prefix = "load";
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-clients") && i + 1 < args.length) {
+                clientCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-private") && i + 1 < args.length) {
+                privateShare = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-group") && i + 2 < args.length) {
+                groupMin = Integer.parseInt(args[++i]);
+                groupMax = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-say") && i + 1 < args.length) {
+                sayRate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-typing") && i + 1 < args.length) {
+                typingRate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-seconds") && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-drivers") && i + 1 < args.length) {
+                drivers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ramp") && i + 1 < args.length) {
+                ramp = Double.parseDouble(args[++i]);
+                stepCount = Math.max(stepCount, 10);
+            } else if (args[i].equals("-steps") && i + 1 < args.length) {
+                stepCount = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-slo") && i + 1 < args.length) {
+                sloMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-prefix") && i + 1 < args.length) {
+                prefix = args[++i];
+            } else {
+                throw new IllegalArgumentException("Unknown option: "
+                        + args[i]);
+            }
+        }
+        if (groupMin < 2 || groupMax < groupMin) {
+            throw new IllegalArgumentException(
+                    "Group sizes must be at least 2, with MIN <= MAX");
+        }
+
+        Step[] all = new Step[stepCount];
+        for (int i = 0; i < stepCount; i++) {
+            all[i] = new Step(i);
+        }
+        steps = all;
+
+        List<LoadClient> clients = connect(host, port, clientCount, prefix);
+        formConversations(clients, privateShare, groupMin, groupMax);
+        System.err.println(clientCount + " clients logged in and in "
+                + "conversations");
+
+        System.out.println("step\tsay/s target\tsay/s sent\tdeliveries/s"
+                + "\tdelivered\tp50 ms\tp99 ms\tp99.9 ms\tmax ms");
+        Step sustained = null;
+        boolean saturated = false;
+        for (Step step : all) {
+            step.run(clients, sayRate, typingRate, seconds, drivers);
+            step.awaitDeliveries();
+            step.report();
+            if (step.isSaturated(sayRate, sloMillis)) {
+                saturated = true;
+                break;
+            }
+            sustained = step;
+            sayRate *= ramp;
+            typingRate *= ramp;
+        }
+        if (ramp > 1) {
+            if (sustained == null) {
+                System.out.println("saturated at the first step");
+            } else {
+                System.out.println((saturated ? "saturated after "
+                        : "not saturated yet; highest step ")
+                        + Math.round(sustained.getSentRate())
+                        + " says/s, "
+                        + Math.round(sustained.getDeliveryRate())
+                        + " deliveries/s");
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens the connections and logs a user in on each.
+     */
+    private static List<LoadClient> connect(String host, int port,
+            int count, String prefix) throws InterruptedException {
+        CountDownLatch loggedIn = new CountDownLatch(count);
+        List<LoadClient> clients = new ArrayList<LoadClient>();
+        for (int i = 0; i < count; i++) {
+            LoadClient client = new LoadClient(host, port, prefix + i,
+                    loggedIn);
+            clients.add(client);
+            client.send("login_attempt " + client.getName() + " 1");
+        }
+        if (!loggedIn.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(loggedIn.getCount() + " of "
+                    + count + " clients not logged in");
+        }
+        for (LoadClient client : clients) {
+            if (client.isRejected()) {
+                throw new IllegalStateException(client.getName()
+                        + " was rejected; is the prefix in use?");
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * Puts every client in one conversation: pairs for the private share,
+     * groups of random sizes for the rest.
+     */
+    private static void formConversations(List<LoadClient> clients,
+            double privateShare, int groupMin, int groupMax)
+            throws InterruptedException {
+        Random random = new Random(SEED);
+        List<LoadClient> shuffled = new ArrayList<LoadClient>(clients);
+        Collections.shuffle(shuffled, random);
+        CountDownLatch joined = new CountDownLatch(shuffled.size());
+        for (LoadClient client : shuffled) {
+            client.expectConversation(joined);
+        }
+
+        int pairs = (int) (shuffled.size() * privateShare) / 2;
+        int next = 0;
+        for (int i = 0; i < pairs; i++) {
+            LoadClient a = shuffled.get(next++);
+            LoadClient b = shuffled.get(next++);
+            a.setConversationSize(2);
+            b.setConversationSize(2);
+            a.send("chat_start " + a.getName() + " " + b.getName());
+        }
+        while (next < shuffled.size()) {
+            int size = groupMin + random.nextInt(groupMax - groupMin + 1);
+            if (shuffled.size() - next - size < groupMin) {
+                // too few left for another group: take them all
+                size = shuffled.size() - next;
+            }
+            StringBuilder command = new StringBuilder("group_chat_start");
+            for (int i = next; i < next + size; i++) {
+                shuffled.get(i).setConversationSize(size);
+                command.append(' ').append(shuffled.get(i).getName());
+            }
+            shuffled.get(next).send(command.toString());
+            next += size;
+        }
+        if (!joined.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(joined.getCount()
+                    + " clients not in a conversation");
+        }
+    }
+
+    /**
+     * Records a "say" that reached a client.
+     */
+    private static void delivered(String message, long now) {
+        int stamp = message.lastIndexOf(STAMP);
+        if (stamp < 0) {
+            return;
+        }
+        int colon = message.indexOf(':', stamp);
+        long due = Long.parseLong(message.substring(stamp + STAMP.length(),
+                colon));
+        int index = Integer.parseInt(message.substring(colon + 1));
+        steps[index].latency.record(now - due);
+    }
+
+    /**
+     * One step of the run, at fixed rates.
+     */
+    private static class Step {
+        private final int index; // The position of the step in the run.
+        private final Histogram latency; // The delivery latency of each say.
+        private final AtomicLong says; // The says sent.
+        private final AtomicLong typings; // The typing notifications sent.
+        private final AtomicLong expected; // The deliveries the says sent
+                                           // should make.
+        private double targetRate; // The says per second aimed for.
+        private long elapsedNanos; // The time spent sending.
+
+        private Step(int index) {
+            this.index = index;
+            this.latency = new Histogram();
+            this.says = new AtomicLong();
+            this.typings = new AtomicLong();
+            this.expected = new AtomicLong();
+        }
+
+        /**
+         * Sends says and typing notifications at the given rates, spread
+         * over the drivers, for the given time.
+         */
+        private void run(final List<LoadClient> clients, double sayRate,
+                double typingRate, int seconds, int drivers)
+                throws InterruptedException {
+            this.targetRate = sayRate;
+            final long start = System.nanoTime();
+            final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            final double sayInterval = 1e9 * drivers / sayRate;
+            final double typingInterval = typingRate > 0 ? 1e9 * drivers
+                    / typingRate : Double.MAX_VALUE;
+            Thread[] threads = new Thread[drivers];
+            for (int d = 0; d < drivers; d++) {
+                final Random random = new Random(SEED + this.index * 100 + d);
+                // stagger the drivers so that they do not send together
+                final long offset = (long) (sayInterval * d / drivers);
+                threads[d] = new Thread(new Runnable() {
+                    public void run() {
+                        drive(clients, random, start + offset, end,
+                                sayInterval, typingInterval);
+                    }
+                });
+                threads[d].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            this.elapsedNanos = System.nanoTime() - start;
+        }
+
+        /**
+         * Sends on one driver thread, keeping to the schedule: whenever the
+         * driver falls behind, it sends at once until it catches up.
+         */
+        private void drive(List<LoadClient> clients, Random random,
+                long start, long end, double sayInterval,
+                double typingInterval) {
+            double nextSay = start;
+            double nextTyping = start;
+            while (true) {
+                boolean say = nextSay <= nextTyping;
+                long due = (long) (say ? nextSay : nextTyping);
+                if (due >= end) {
+                    return;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                LoadClient client = clients.get(random.nextInt(clients
+                        .size()));
+                if (say) {
+                    client.send("say " + client.getConversationID() + " "
+                            + client.getName() + " hello there, how are you"
+                            + STAMP + due + ":" + this.index);
+                    this.says.incrementAndGet();
+                    this.expected.addAndGet(client.getConversationSize());
+                    nextSay += sayInterval;
+                } else {
+                    client.send("typing " + client.getConversationID() + " "
+                            + client.getName());
+                    this.typings.incrementAndGet();
+                    nextTyping += typingInterval;
+                }
+            }
+        }
+
+        /**
+         * Waits until every expected delivery has arrived, or none has
+         * arrived for a while.
+         */
+        private void awaitDeliveries() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + MAX_DRAIN_MILLIS;
+            long count = this.latency.getCount();
+            long quietSince = System.currentTimeMillis();
+            while (count < this.expected.get()
+                    && System.currentTimeMillis() < deadline
+                    && System.currentTimeMillis() - quietSince < QUIET_MILLIS) {
+                Thread.sleep(50);
+                long now = this.latency.getCount();
+                if (now != count) {
+                    count = now;
+                    quietSince = System.currentTimeMillis();
+                }
+            }
+        }
+
+        private void report() {
+            System.out.println(this.index + "\t"
+                    + Math.round(this.targetRate) + "\t"
+                    + Math.round(this.getSentRate()) + "\t"
+                    + Math.round(this.getDeliveryRate()) + "\t"
+                    + String.format("%.1f%%", 100 * this.getDeliveredShare())
+                    + "\t" + millis(this.latency.getPercentile(0.5)) + "\t"
+                    + millis(this.latency.getPercentile(0.99)) + "\t"
+                    + millis(this.latency.getPercentile(0.999)) + "\t"
+                    + millis(this.latency.getMax()));
+        }
+
+        private boolean isSaturated(double sayRate, long sloMillis) {
+            return this.getDeliveredShare() < 0.99
+                    || this.getSentRate() < 0.95 * sayRate
+                    || this.latency.getPercentile(0.99) > TimeUnit.MILLISECONDS
+                            .toNanos(sloMillis);
+        }
+
+        private double getSentRate() {
+            return this.says.get() * 1e9 / this.elapsedNanos;
+        }
+
+        private double getDeliveryRate() {
+            return this.latency.getCount() * 1e9 / this.elapsedNanos;
+        }
+
+        private double getDeliveredShare() {
+            long expected = this.expected.get();
+            return expected == 0 ? 1 : (double) this.latency.getCount()
+                    / expected;
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.2f", nanos / 1e6);
+        }
+    }
+
+    /**
+     * A simulated user, which records the says it receives instead of
+     * queuing them.
+     */
+    private static class LoadClient extends DummyClient {
+        private final String name; // The username of the client.
+        private volatile CountDownLatch loggedIn; // Counted down on login.
+        private volatile boolean rejected; // True if the login failed.
+        private volatile CountDownLatch joined; // Counted down once the
+                                                // conversation has started.
+        private volatile long conversationID; // The client's conversation,
+                                              // or -1.
+        private volatile int conversationSize; // The members of the
+                                               // conversation.
+
+        private LoadClient(String host, int port, String name,
+                CountDownLatch loggedIn) {
+            super(host, port);
+            this.name = name;
+            this.loggedIn = loggedIn;
+            this.rejected = false;
+            this.joined = null;
+            this.conversationID = -1;
+            this.conversationSize = 0;
+        }
+
+        @Override
+        protected void received(String message) {
+            if (message.startsWith("say ")) {
+                delivered(message, System.nanoTime());
+            } else if (message.equals("login_success")) {
+                this.loggedIn.countDown();
+            } else if (message.equals("login_invalid")) {
+                this.rejected = true;
+                this.loggedIn.countDown();
+            } else if (message.startsWith("chat_start ")
+                    || message.startsWith("group_chat_start ")) {
+                if (this.conversationID < 0) {
+                    this.conversationID = Long.parseLong(message.split(" ")[1]);
+                    this.joined.countDown();
+                }
+            }
+        }
+
+        private void expectConversation(CountDownLatch joined) {
+            this.joined = joined;
+        }
+
+        // ACCESSORS
+        private String getName() {
+            return this.name;
+        }
+
+        private boolean isRejected() {
+            return this.rejected;
+        }
+
+        private long getConversationID() {
+            return this.conversationID;
+        }
+
+        private void setConversationSize(int conversationSize) {
+            this.conversationSize = conversationSize;
+        }
+
+        private int getConversationSize() {
+            return this.conversationSize;
+        }
+    }
+}
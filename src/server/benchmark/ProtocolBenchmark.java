@@ -0,0 +1,161 @@
+package server.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+import protocol.BinaryCodec;
+
+/**
+ * Compares the text protocol with binary frames for the messages a server
+ * sends during a conversation.
+ *
+ * For each encoding the benchmark writes a stream of messages the way the
+ * server does and reads it back the way a ChatClientModel does: text lines
+ * are checked against the grammar of each command in turn, while messages
+ * from structured frames are known to be well-formed. It reports:
+ *
+ * - the bytes on the wire per message,
+ *
+ * - the messages written and read back per second, on one thread.
+ *
+ * The stream is a mix of "say" messages of the given length, with a "typing"
+ * and a "cleared" before each, in a set of conversations between a set of
+ * users, so that usernames repeat as they do in practice.
+ *
+ * Usage: ProtocolBenchmark [text length] [messages]
+ */
+public class ProtocolBenchmark {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int USERS = 100;
+    private static final int ROUNDS = 5;
+    private static final Pattern[] GRAMMAR = new Pattern[] {
+            Pattern.compile("login_success"),
+            Pattern.compile("login_invalid"),
+            Pattern.compile("user_joins [A-Za-z0-9]+ \\d+"),
+            Pattern.compile("user_leaves [A-Za-z0-9]+"),
+            Pattern.compile("chat_start \\d+ [A-Za-z0-9]+ [A-Za-z0-9]+"),
+            Pattern.compile("group_chat_start \\d+"),
+            Pattern.compile("group_chat_join \\d+ [A-Za-z0-9 ]+"),
+            Pattern.compile("group_chat_leave \\d+ [A-Za-z0-9]+"),
+            Pattern.compile("say \\d+ [A-Za-z0-9]+ .*"),
+            Pattern.compile("typing \\d+ [A-Za-z0-9]+"),
+            Pattern.compile("cleared \\d+ [A-Za-z0-9]+") };
+
+    public static void main(String[] args) throws IOException {
+        int textLength = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 300000;
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < textLength) {
+            text.append("lorem ipsum ");
+        }
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            long ID = 1000000 + i % 500;
+            String username = "user" + (i * 7 % USERS);
+            switch (i % 3) {
+            case 0:
+                messages[i] = "typing " + ID + " " + username;
+                break;
+            case 1:
+                messages[i] = "cleared " + ID + " " + username;
+                break;
+            default:
+                messages[i] = "say " + ID + " " + username + " "
+                        + text.substring(0, textLength);
+            }
+        }
+
+        System.out.println("encoding\tbytes/msg\tmsgs/s");
+        for (int round = 0; round < ROUNDS; round++) {
+            report("text", count, text(messages), round);
+            report("binary", count, binary(messages), round);
+        }
+    }
+
+    /**
+     * Prints a result, except in the first round, which warms up the JIT.
+     */
+    private static void report(String encoding, int count, long[] result,
+            int round) {
+        if (round == 0) {
+            return;
+        }
+        System.out.println(encoding + "\t"
+                + String.format("%.1f", result[0] * 1.0 / count) + "\t"
+                + (long) (count * 1e9 / result[1]));
+    }
+
+    /**
+     * Writes the messages as lines and reads them back as a client would:
+     * decoding the bytes, scanning for separators and matching the grammar.
+     *
+     * @return the bytes written and the nanoseconds taken.
+     */
+    private static long[] text(String[] messages) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] separator = "\n".getBytes(CHARSET);
+        for (String message : messages) {
+            out.write(message.getBytes(CHARSET));
+            out.write(separator);
+        }
+        byte[] bytes = out.toByteArray();
+
+        String all = new String(bytes, CHARSET);
+        int read = 0;
+        int lineStart = 0;
+        for (int end = all.indexOf('\n'); end >= 0; end = all.indexOf('\n',
+                lineStart)) {
+            String line = all.substring(lineStart, end);
+            for (Pattern pattern : GRAMMAR) {
+                if (pattern.matcher(line).matches()) {
+                    read++;
+                    break;
+                }
+            }
+            lineStart = end + 1;
+        }
+        check(read, messages.length);
+        return new long[] { bytes.length, System.nanoTime() - start };
+    }
+
+    /**
+     * Writes the messages as frames and reads them back with the codec.
+     *
+     * @return the bytes written and the nanoseconds taken.
+     */
+    private static long[] binary(String[] messages) throws IOException {
+        long start = System.nanoTime();
+        BinaryCodec encoder = new BinaryCodec(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : messages) {
+            encoder.encode(message, out);
+        }
+        byte[] bytes = out.toByteArray();
+
+        BinaryCodec decoder = new BinaryCodec(false);
+        int read = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            int header = BinaryCodec.headerLength(bytes, offset, bytes.length
+                    - offset);
+            int length = BinaryCodec.payloadLength(bytes, offset);
+            if (decoder.decode(bytes, offset + header, length) != null) {
+                read++;
+            }
+            offset += header + length;
+        }
+        check(read, messages.length);
+        return new long[] { bytes.length, System.nanoTime() - start };
+    }
+
+    private static void check(int read, int expected) {
+        if (read != expected) {
+            throw new IllegalStateException("Read " + read + " of "
+                    + expected + " messages");
+        }
+    }
+}
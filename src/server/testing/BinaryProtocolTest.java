@@ -0,0 +1,126 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests clients that ask for binary frames when they log in, talking to
+ * clients that keep to text lines.
+ *
+ * The commands themselves are covered by ChatServerTest. Here we check that
+ * both sides switch at the same point, so that every message after the login
+ * reaches its recipients intact, whether the server gives each connection a
+ * thread or services them all from a selector. A client whose frame names a
+ * user it never interned is disconnected and logged out, however the ID was
+ * crafted.
+ *
+ * @category no_didit
+ */
+public class BinaryProtocolTest {
+    @Test(timeout = 8000)
+    public void threadPerConnectionTest() {
+        this.checkConversation(5682, new ServerConfig());
+    }
+
+    @Test(timeout = 8000)
+    public void selectorTest() {
+        ServerConfig config = new ServerConfig();
+        config.setSelectorThreads(2);
+        this.checkConversation(5683, config);
+    }
+
+    @Test(timeout = 8000)
+    public void unknownUserTest() throws IOException {
+        final ChatServer server = new ChatServer(5690, new ServerConfig());
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient bob = new DummyClient("localhost", 5690);
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        Socket eve = new Socket("localhost", 5690);
+        OutputStream out = eve.getOutputStream();
+        out.write("login_attempt Eve 1 binary\n".getBytes("US-ASCII"));
+        assertEquals("user_joins Eve 1", bob.read());
+
+        // Bob interned as user 0, and a "logout" frame naming user
+        // 2^64 - 2^32, whose low 32 bits are those of user 0
+        out.write(new byte[] { 6, 1, 0, 3, 'B', 'o', 'b' });
+        out.write(new byte[] { 11, 5, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0xF0, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, 1 });
+        out.flush();
+        assertEquals("user_leaves Eve", bob.read());
+        InputStream in = eve.getInputStream();
+        while (in.read() != -1) {
+            // skip the replies to the login
+        }
+
+        eve.close();
+        bob.close();
+    }
+
+    /**
+     * Starts a server, logs in a binary client and a text client, and has
+     * them chat.
+     */
+    private void checkConversation(int port, ServerConfig config) {
+        final ChatServer server = new ChatServer(port, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient binary = new DummyClient("localhost", port, true);
+        DummyClient text = new DummyClient("localhost", port);
+        binary.send("login_attempt Ann 1 binary");
+        assertEquals("login_success", binary.read());
+        assertEquals("user_joins Ann 1", binary.read());
+        text.send("login_attempt Bob 2");
+        assertEquals("login_success", text.read());
+        text.read();
+        text.read();
+        assertEquals("user_joins Bob 2", binary.read());
+
+        // a second login on the binary connection is sent as a frame
+        binary.send("login_attempt Bob 3");
+        assertEquals("login_invalid", binary.read());
+
+        binary.send("chat_start Ann Bob");
+        String start = binary.read();
+        assertTrue(start.matches("chat_start \\d+ Ann Bob"));
+        assertEquals(start, text.read());
+        String ID = start.split(" ")[1];
+
+        binary.send("say " + ID + " Ann hello  there ");
+        assertEquals("say " + ID + " Ann hello  there ", text.read());
+        assertEquals("say " + ID + " Ann hello  there ", binary.read());
+        text.send("typing " + ID + " Bob");
+        assertEquals("typing " + ID + " Bob", binary.read());
+        text.send("say " + ID + " Bob hi");
+        assertEquals("say " + ID + " Bob hi", binary.read());
+        assertEquals("say " + ID + " Bob hi", text.read());
+
+        binary.send("logout Ann");
+        assertEquals("user_leaves Ann", text.read());
+
+        binary.close();
+        text.close();
+    }
+}
@@ -0,0 +1,80 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import server.BufferPool;
+
+/**
+ * Tests the BufferPool that connections are read and written with.
+ *
+ * - A buffer is at least as large as asked for, and sizes are powers of two
+ * from BufferPool.MIN_SIZE.
+ *
+ * - A released buffer is handed out again, cleared, for a request of the same
+ * size, but no more buffers are kept than the pool was created with.
+ *
+ * - In debug mode the pool counts the buffers out and rejects a buffer
+ * released twice.
+ *
+ * @category no_didit
+ */
+public class BufferPoolTest {
+    @Test
+    public void sizeTest() {
+        BufferPool pool = new BufferPool(true, 4, false);
+        ByteBuffer small = pool.acquire(1);
+        assertTrue(small.isDirect());
+        assertEquals(BufferPool.MIN_SIZE, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(small.capacity(), small.limit());
+        assertEquals(2 * BufferPool.MIN_SIZE,
+                pool.acquire(BufferPool.MIN_SIZE + 1).capacity());
+        assertEquals(BufferPool.MAX_SIZE + 1,
+                pool.acquire(BufferPool.MAX_SIZE + 1).capacity());
+
+        BufferPool heap = new BufferPool(false, 4, false);
+        assertTrue(heap.acquire(100).hasArray());
+    }
+
+    @Test
+    public void reuseTest() {
+        BufferPool pool = new BufferPool(false, 1, false);
+        ByteBuffer first = pool.acquire(100);
+        ByteBuffer second = pool.acquire(100);
+        assertTrue(first != second);
+        first.put((byte) 1);
+        pool.release(first);
+        pool.release(second);
+
+        ByteBuffer again = pool.acquire(BufferPool.MIN_SIZE);
+        assertTrue(again == first);
+        assertEquals(0, again.position());
+        assertTrue(pool.acquire(100) != second);
+        assertEquals(3, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void debugTest() {
+        BufferPool pool = new BufferPool(true, 4, true);
+        ByteBuffer first = pool.acquire(100);
+        ByteBuffer second = pool.acquire(100000);
+        assertEquals(2, pool.getOutstandingCount());
+        pool.release(first);
+        assertEquals(1, pool.getOutstandingCount());
+        try {
+            pool.release(first);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        pool.release(second);
+        assertEquals(0, pool.getOutstandingCount());
+
+        assertEquals(-1, new BufferPool(true, 4, false).getOutstandingCount());
+    }
+}
@@ -0,0 +1,104 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests the ChatServerMXBean a ChatServer registers once it is serving.
+ *
+ * - The sessions, users and conversations of the server can be read through
+ * the platform MBean server, and the largest conversations come first.
+ *
+ * - Setting a tunable changes the server's config while it runs, and an
+ * invalid value is rejected.
+ *
+ * @category no_didit
+ */
+public class ChatServerManagementTest {
+    @Test(timeout = 8000)
+    public void inspectAndTuneTest() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setWorkerThreads(2);
+        final ChatServer server = new ChatServer(5688, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient client1 = new DummyClient("localhost", 5688);
+        DummyClient client2 = new DummyClient("localhost", 5688);
+        DummyClient client3 = new DummyClient("localhost", 5688);
+        client1.send("login_attempt Ann 1");
+        assertEquals("login_success", client1.read());
+        client1.read();
+        client2.send("login_attempt Bob 2");
+        assertEquals("login_success", client2.read());
+        client2.read();
+        client2.read();
+        client1.read();
+        client1.send("chat_start Ann Bob");
+        String ID = client1.read().split(" ")[1];
+        client2.read();
+        client2.send("group_chat_start Ann Bob");
+        String groupID = client2.read().split(" ")[1];
+        client2.read();
+        client1.read();
+        client1.read();
+
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("server:type=ChatServer,port=5688");
+        assertEquals(3, beans.getAttribute(name, "SessionCount"));
+        assertEquals(2, beans.getAttribute(name, "UserCount"));
+        assertEquals(2, beans.getAttribute(name, "ConversationCount"));
+        assertEquals(0, beans.getAttribute(name, "QueueLength"));
+        assertEquals(0, beans.getAttribute(name, "WorkerBacklog"));
+
+        String[] sessions = (String[]) beans.getAttribute(name, "Sessions");
+        assertEquals(3, sessions.length);
+        String all = Arrays.toString(sessions);
+        assertTrue(all, all.contains("users=Ann "));
+        assertTrue(all, all.contains("users=Bob "));
+        assertTrue(all, all.contains("users= "));
+
+        String[] largest = (String[]) beans.invoke(name,
+                "getLargestConversations", new Object[] { 1 },
+                new String[] { "int" });
+        assertEquals(1, largest.length);
+        assertTrue(largest[0], largest[0].equals(ID + " private users=2")
+                || largest[0].equals(groupID + " group users=2"));
+        largest = (String[]) beans.invoke(name, "getLargestConversations",
+                new Object[] { 5 }, new String[] { "int" });
+        assertEquals(2, largest.length);
+
+        beans.setAttribute(name, new Attribute("OutboundLimitBytes", 4096));
+        assertEquals(4096, config.getOutboundLimitBytes());
+        beans.setAttribute(name, new Attribute("TypingReannounceMillis",
+                250L));
+        assertEquals(250L, config.getTypingReannounceMillis());
+        assertEquals(250L, beans.getAttribute(name, "TypingReannounceMillis"));
+        try {
+            beans.setAttribute(name, new Attribute("OutboundLimitBytes", 0));
+            fail("Expected the limit to be rejected");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(4096, config.getOutboundLimitBytes());
+
+        client1.close();
+        client2.close();
+        client3.close();
+    }
+}
@@ -98,6 +98,12 @@ public class ChatServerTest {
         // login an invalid user
         client2.send("login_attempt Alex 2");
         assertEquals("login_invalid", client2.read());
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() <= ChatServer.MAX_USERNAME_BYTES) {
+            longName.append('a');
+        }
+        client2.send("login_attempt " + longName + " 2");
+        assertEquals("login_invalid", client2.read());
         client2.send("login_attempt Katie 2");
         assertEquals("login_success", client2.read());
         // the server sends back users in an unknown order, so we have to check
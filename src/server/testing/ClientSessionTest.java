@@ -0,0 +1,110 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.ClientSession;
+import server.EncodedMessage;
+import server.ServerConfig;
+
+/**
+ * Tests the outbound limits of a ClientSession. The session under test never
+ * drains its queue, as if the client had stopped reading, so everything sent
+ * stays queued and the limits can be checked exactly.
+ *
+ * - Typing notifications for the same conversation and user replace each
+ * other while queued, unless another message was queued after them.
+ *
+ * - Past the transient limit, typing notifications are dropped but other
+ * messages are still queued.
+ *
+ * - A message that would go past the outbound limit is refused and closes the
+ * session.
+ *
+ * @category no_didit
+ */
+public class ClientSessionTest {
+    /**
+     * A session whose queue is never drained.
+     */
+    private static class StalledSession extends ClientSession {
+        private boolean disconnected = false;
+
+        StalledSession(ServerConfig config) {
+            super(null, config);
+        }
+
+        @Override
+        public void disconnect() {
+            this.disconnected = true;
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+
+        public String next() {
+            EncodedMessage message = this.nextMessage();
+            return message == null ? null : message.getText();
+        }
+    }
+
+    @Test
+    public void coalesceTest() {
+        StalledSession session = new StalledSession(new ServerConfig());
+        assertTrue(session.send("typing 3 Alex"));
+        assertTrue(session.send("typing 3 Alex"));
+        assertTrue(session.send("typing 3 Katie"));
+        assertTrue(session.send("cleared 3 Alex"));
+        assertEquals(2, session.getCoalescedCount());
+        assertEquals("cleared 3 Alex", session.next());
+        assertEquals("typing 3 Katie", session.next());
+
+        // a notification is not moved ahead of a message queued after it
+        session.send("typing 3 Alex");
+        session.send("say 3 Alex hi");
+        session.send("typing 3 Alex");
+        assertEquals(2, session.getCoalescedCount());
+        assertEquals("typing 3 Alex", session.next());
+        assertEquals("say 3 Alex hi", session.next());
+        assertEquals("typing 3 Alex", session.next());
+        assertEquals(null, session.next());
+    }
+
+    @Test
+    public void transientLimitTest() {
+        ServerConfig config = new ServerConfig();
+        config.setCoalesceTransient(false);
+        config.setTransientLimitBytes(100);
+        StalledSession session = new StalledSession(config);
+        while (session.getQueuedBytes() < 100) {
+            session.send("say 1 Alex some text");
+        }
+        int queued = session.getQueuedBytes();
+        assertTrue(session.send("typing 1 Katie"));
+        assertEquals(1, session.getDroppedCount());
+        assertEquals(queued, session.getQueuedBytes());
+        assertTrue(session.send("say 1 Katie still kept"));
+        assertTrue(session.getQueuedBytes() > queued);
+    }
+
+    @Test
+    public void outboundLimitTest() {
+        ServerConfig config = new ServerConfig();
+        config.setOutboundLimitBytes(1000);
+        StalledSession session = new StalledSession(config);
+        boolean accepted = true;
+        int sent = 0;
+        while (accepted) {
+            accepted = session.send("say 1 Alex message number " + sent);
+            sent++;
+        }
+        assertTrue(sent > 1);
+        assertTrue(session.isClosed());
+        assertEquals(0, session.getQueuedBytes());
+        assertTrue(session.send("say 1 Alex after close"));
+        assertEquals(null, session.next());
+        assertFalse(session.disconnected);
+    }
+}
@@ -0,0 +1,353 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ClusterRouter;
+import server.ServerConfig;
+
+/**
+ * Tests a cluster of three ChatServers on this host, each holding some of
+ * the users.
+ *
+ * - Every user is told about the users of every node, and a username logged
+ * in on one node cannot be logged in on another.
+ *
+ * - A conversation is held by the node it was started on, and what is said
+ * in it by the users of any node reaches the users of every node.
+ *
+ * - A user who logs out leaves the group chats held by every node.
+ *
+ * - A user who logs back in on another node rejoins their private
+ * conversations, is sent what was said while they were offline, and can
+ * page through the history of a conversation held elsewhere.
+ *
+ * - Commands that only nodes may send are ignored from clients, and a
+ * connection claiming to be from a node is refused unless it comes from the
+ * node's address while the node is not connected already.
+ *
+ * - A node that restarts is sent the users of the others, and then only what
+ * is sent after it is back, while messages for its users are held meanwhile.
+ *
+ * @category no_didit
+ */
+public class ClusterTest {
+    private static final int NODES = 3;
+    private static final int CLIENT_PORT = 5700; // Node i accepts clients
+                                                 // on CLIENT_PORT + i.
+    private static final int CLUSTER_PORT = 5703; // Node i listens for the
+                                                  // others on CLUSTER_PORT +
+                                                  // i.
+    private static final int PEER_CLIENT_PORT = 5706;
+    private static final int PEER_PORT = 5707;
+    private static final String FAKE_HOST = "127.0.0.2"; // Where the test
+                                                         // plays the second
+                                                         // node.
+
+    @Test(timeout = 30000)
+    public void clusterTest() throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < NODES; i++) {
+            addresses.add(new InetSocketAddress("localhost", CLUSTER_PORT + i));
+        }
+        List<ChatServer> servers = new ArrayList<ChatServer>();
+        for (int i = 0; i < NODES; i++) {
+            File directory = File.createTempFile("cluster", null);
+            assertTrue(directory.delete());
+            ServerConfig config = new ServerConfig();
+            config.setDataDirectory(directory);
+            config.setCluster(i, addresses);
+            if (i == 2) {
+                config.setWorkerThreads(2);
+            }
+            final ChatServer server = new ChatServer(CLIENT_PORT + i, config);
+            servers.add(server);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    server.serve();
+                }
+            });
+            thread.start();
+        }
+
+        // each user sees the users of the other nodes, whether they were
+        // known before the login or are announced after it
+        DummyClient ann = new DummyClient("localhost", CLIENT_PORT);
+        ann.send("login_attempt Ann 1");
+        assertEquals("login_success", ann.read());
+        assertEquals("user_joins Ann 1", ann.read());
+        DummyClient bob = new DummyClient("localhost", CLIENT_PORT + 1);
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        readAll(bob, "user_joins Ann 1", "user_joins Bob 2");
+        assertEquals("user_joins Bob 2", ann.read());
+        DummyClient cat = new DummyClient("localhost", CLIENT_PORT + 2);
+        cat.send("login_attempt Cat 3");
+        assertEquals("login_success", cat.read());
+        readAll(cat, "user_joins Ann 1", "user_joins Bob 2", "user_joins Cat 3");
+        assertEquals("user_joins Cat 3", ann.read());
+        assertEquals("user_joins Cat 3", bob.read());
+
+        DummyClient impostor = new DummyClient("localhost", CLIENT_PORT + 1);
+        impostor.send("login_attempt Ann 5");
+        assertEquals("login_invalid", impostor.read());
+        impostor.close();
+
+        // a private conversation held by node 0
+        ann.send("chat_start Ann Bob");
+        String start = ann.read();
+        assertEquals(start, bob.read());
+        String ID = start.split(" ")[1];
+        assertEquals(0, Long.parseLong(ID) >>> ClusterRouter.NODE_SHIFT);
+        bob.send("say " + ID + " Bob hi ann");
+        assertEquals("say " + ID + " Bob hi ann", ann.read());
+        assertEquals("say " + ID + " Bob hi ann", bob.read());
+        bob.send("typing " + ID + " Bob");
+        assertEquals("typing " + ID + " Bob", ann.read());
+
+        // a group chat held by node 2
+        cat.send("group_chat_start Cat Ann Bob");
+        String groupStart = cat.read();
+        String groupID = groupStart.split(" ")[1];
+        assertEquals(2, Long.parseLong(groupID) >>> ClusterRouter.NODE_SHIFT);
+        readAll(cat, "group_chat_join " + groupID + " Ann", "group_chat_join "
+                + groupID + " Bob");
+        assertEquals(groupStart, ann.read());
+        readAll(ann, "group_chat_join " + groupID + " Bob", "group_chat_join "
+                + groupID + " Cat");
+        assertEquals(groupStart, bob.read());
+        readAll(bob, "group_chat_join " + groupID + " Ann", "group_chat_join "
+                + groupID + " Cat");
+        ann.send("say " + groupID + " Ann hello all");
+        for (DummyClient client : Arrays.asList(ann, bob, cat)) {
+            assertEquals("say " + groupID + " Ann hello all", client.read());
+        }
+
+        // only another node may deliver messages
+        ann.send("deliver " + ID + " Ann say " + ID + " Bob forged");
+        ann.send("say " + ID + " Ann real");
+        assertEquals("say " + ID + " Ann real", ann.read());
+        assertEquals("say " + ID + " Ann real", bob.read());
+
+        bob.send("logout Bob");
+        readAll(ann, "group_chat_leave " + groupID + " Bob", "user_leaves Bob");
+        readAll(cat, "group_chat_leave " + groupID + " Bob", "user_leaves Bob");
+        bob.close();
+        ann.send("say " + ID + " Ann are you there?");
+        assertEquals("say " + ID + " Ann are you there?", ann.read());
+
+        // Bob comes back on another node
+        bob = new DummyClient("localhost", CLIENT_PORT + 2);
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        readAll(bob, "user_joins Ann 1", "user_joins Bob 2", "user_joins Cat 3");
+        assertEquals("chat_start " + ID + " Ann Bob", bob.read());
+        assertEquals("say " + ID + " Ann are you there?", bob.read());
+        assertEquals("user_joins Bob 2", ann.read());
+        assertEquals("user_joins Bob 2", cat.read());
+        bob.send("history_fetch " + ID + " 0 10");
+        String[] expected = new String[] { "Bob hi ann", "Ann real",
+                "Ann are you there?" };
+        for (int i = 0; i < expected.length; i++) {
+            String[] tokens = bob.read().split(" ", 6);
+            assertEquals("history", tokens[0]);
+            assertEquals(ID, tokens[1]);
+            assertEquals(Integer.toString(i + 1), tokens[2]);
+            assertEquals(expected[i], tokens[4] + " " + tokens[5]);
+        }
+        assertEquals("history_end " + ID + " 1", bob.read());
+
+        ann.close();
+        bob.close();
+        cat.close();
+        for (ChatServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void peerTest() throws IOException {
+        // node 1 is played by the test, from an address of its own
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        addresses.add(new InetSocketAddress("127.0.0.1", PEER_PORT));
+        addresses.add(new InetSocketAddress(FAKE_HOST, PEER_PORT + 1));
+        File directory = File.createTempFile("cluster", null);
+        assertTrue(directory.delete());
+        ServerConfig config = new ServerConfig();
+        config.setDataDirectory(directory);
+        config.setCluster(0, addresses);
+        final ChatServer server = new ChatServer(PEER_CLIENT_PORT, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        ServerSocket listener = listen(addresses.get(1));
+        Socket link = listener.accept();
+        BufferedReader fromNode = reader(link);
+        assertEquals("peer_hello 0", readLine(fromNode));
+        DummyClient ann = new DummyClient("localhost", PEER_CLIENT_PORT);
+        ann.send("login_attempt Ann 1");
+        assertEquals("login_success", ann.read());
+        assertEquals("user_joins Ann 1", ann.read());
+        assertEquals("peer_join 0 Ann 1", readLine(fromNode));
+        Socket peer = connect(FAKE_HOST, "peer_hello 1", "peer_join 1 Bob 2");
+        assertEquals("user_joins Bob 2", ann.read());
+
+        // neither a connection from elsewhere nor a second one from the node
+        // is heard, and neither logs the node's users out
+        Socket stray = connect("127.0.0.1", "peer_hello 1", "deliver 1 Ann "
+                + "say 1 Bob forged");
+        assertEquals(-1, stray.getInputStream().read());
+        stray.close();
+        stray = connect(FAKE_HOST, "peer_hello 1", "peer_leave 1 Bob");
+        assertEquals(-1, stray.getInputStream().read());
+        stray.close();
+        ann.send("chat_start Ann Bob");
+        String start = ann.read();
+        String ID = start.split(" ")[1];
+        assertEquals("chat_start " + ID + " Ann Bob", start);
+        assertEquals("deliver " + ID + " Bob " + start, readLine(fromNode));
+
+        // the node goes down, and users come and go meanwhile
+        peer.close();
+        link.close();
+        listener.close();
+        assertEquals("user_leaves Bob", ann.read());
+        ann.send("say " + ID + " Ann are you there?");
+        assertEquals("say " + ID + " Ann are you there?", ann.read());
+        for (int i = 0; i < 3; i++) {
+            DummyClient cat = new DummyClient("localhost", PEER_CLIENT_PORT);
+            cat.send("login_attempt Cat 3");
+            assertEquals("login_success", cat.read());
+            readAll(cat, "user_joins Ann 1", "user_joins Cat 3");
+            assertEquals("user_joins Cat 3", ann.read());
+            cat.send("logout Cat");
+            assertEquals("user_leaves Cat", ann.read());
+            cat.close();
+        }
+        DummyClient dan = new DummyClient("localhost", PEER_CLIENT_PORT);
+        dan.send("login_attempt Dan 4");
+        assertEquals("login_success", dan.read());
+        readAll(dan, "user_joins Ann 1", "user_joins Dan 4");
+        assertEquals("user_joins Dan 4", ann.read());
+
+        // once back, the node is only sent who is online and what is new
+        listener = listen(addresses.get(1));
+        link = listener.accept();
+        fromNode = reader(link);
+        assertEquals("peer_hello 0", readLine(fromNode));
+        List<String> joins = new ArrayList<String>();
+        joins.add(readLine(fromNode));
+        joins.add(readLine(fromNode));
+        Collections.sort(joins);
+        assertEquals(Arrays.asList("peer_join 0 Ann 1", "peer_join 0 Dan 4"),
+                joins);
+        peer = connect(FAKE_HOST, "peer_hello 1", "peer_join 1 Bob 2");
+        assertEquals("user_joins Bob 2", ann.read());
+        assertEquals("user_joins Bob 2", dan.read());
+        assertEquals("deliver " + ID + " Bob " + start, readLine(fromNode));
+        assertEquals("deliver " + ID + " Bob say " + ID
+                + " Ann are you there?", readLine(fromNode));
+        assertTrue(readLine(fromNode).startsWith(
+                "peer_drain " + ID + " Bob 0 "));
+
+        peer.close();
+        link.close();
+        listener.close();
+        ann.close();
+        dan.close();
+        server.close();
+    }
+
+    /**
+     * Listens where the test plays a node.
+     */
+    private static ServerSocket listen(InetSocketAddress address)
+            throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(address);
+        return listener;
+    }
+
+    /**
+     * Connects to the node under test from a host, sends it some lines, and
+     * keeps telling it the connection is up until it is closed.
+     */
+    private static Socket connect(String host, String... lines)
+            throws IOException {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(host, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", PEER_PORT));
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                socket.getOutputStream(), "UTF-8"), true);
+        for (String line : lines) {
+            out.println(line);
+        }
+        Thread heartbeat = new Thread(new Runnable() {
+            public void run() {
+                while (!out.checkError()) {
+                    out.println();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "UTF-8"));
+    }
+
+    /**
+     * Reads the next line a node sent, past the empty lines telling that it
+     * is up.
+     */
+    private static String readLine(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        while (line != null && line.length() == 0) {
+            line = in.readLine();
+        }
+        return line;
+    }
+
+    /**
+     * Reads as many lines as expected from a client, in any order.
+     */
+    private static void readAll(DummyClient client, String... expected) {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < expected.length; i++) {
+            lines.add(client.read());
+        }
+        List<String> sorted = new ArrayList<String>(Arrays.asList(expected));
+        Collections.sort(sorted);
+        Collections.sort(lines);
+        assertEquals(sorted, lines);
+    }
+}
@@ -0,0 +1,97 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests a ChatServer whose commands are processed by a CommandDispatcher with
+ * several worker threads.
+ *
+ * The commands themselves are covered by ChatServerTest. Here we check the
+ * ordering guarantees of the dispatcher: the messages of a conversation are
+ * delivered in the order they were said even while another conversation is
+ * busy, and a logout is only processed after the messages sent before it.
+ *
+ * @category no_didit
+ */
+public class CommandDispatcherTest {
+    private static final int PORT = 5681;
+
+    /**
+     * Starts a server with four workers, logs in two users and starts two
+     * group chats between them. One user talks in both chats, alternating
+     * between them, and then logs out.
+     */
+    @Test(timeout = 8000)
+    public void orderingTest() {
+        ServerConfig config = new ServerConfig();
+        config.setWorkerThreads(4);
+        final ChatServer server = new ChatServer(PORT, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient client1 = new DummyClient("localhost", PORT);
+        DummyClient client2 = new DummyClient("localhost", PORT);
+        client1.send("login_attempt Ann 1");
+        assertEquals("login_success", client1.read());
+        assertEquals("user_joins Ann 1", client1.read());
+        client2.send("login_attempt Bob 2");
+        assertEquals("login_success", client2.read());
+        client2.read();
+        client2.read();
+        assertEquals("user_joins Bob 2", client1.read());
+
+        client1.send("group_chat_start Ann Bob");
+        String first = client1.read().split(" ")[1];
+        client1.read();
+        client2.read();
+        client2.read();
+        client1.send("group_chat_start Ann Bob");
+        String second = client1.read().split(" ")[1];
+        client1.read();
+        client2.read();
+        client2.read();
+
+        for (int i = 0; i < 100; i++) {
+            client1.send("say " + first + " Ann " + i);
+            client1.send("say " + second + " Ann " + i);
+        }
+        client1.send("logout Ann");
+
+        // each conversation is in order, though the two are interleaved
+        int nextFirst = 0;
+        int nextSecond = 0;
+        while (nextFirst < 100 || nextSecond < 100) {
+            String[] line = client2.read().split(" ");
+            assertEquals("say", line[0]);
+            if (line[1].equals(first)) {
+                assertEquals(nextFirst++, Integer.parseInt(line[3]));
+            } else {
+                assertEquals(second, line[1]);
+                assertEquals(nextSecond++, Integer.parseInt(line[3]));
+            }
+        }
+
+        // the logout comes after everything Ann said before it
+        Set<String> leaves = new HashSet<String>();
+        leaves.add(client2.read());
+        leaves.add(client2.read());
+        assertTrue(leaves.contains("group_chat_leave " + first + " Ann"));
+        assertTrue(leaves.contains("group_chat_leave " + second + " Ann"));
+        assertEquals("user_leaves Ann", client2.read());
+
+        client1.close();
+        client2.close();
+    }
+}
@@ -0,0 +1,92 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.Command;
+import server.Opcode;
+
+/**
+ * Tests the decoding of client messages into a Command.
+ *
+ * - Each command is recognized and its tokens are found.
+ *
+ * - The text of a "say" command is kept exactly, spaces included.
+ *
+ * - Malformed messages are reported with the reason, and do not affect the
+ * next message decoded into the same Command.
+ *
+ * @category no_didit
+ */
+public class CommandTest {
+    @Test
+    public void decodeTest() {
+        Command command = new Command();
+
+        assertTrue(command.decode("login_attempt Alex 1"));
+        assertEquals(Opcode.LOGIN_ATTEMPT, command.getOpcode());
+        assertEquals(3, command.getTokenCount());
+        assertEquals("Alex", command.getToken(1));
+        assertEquals("1", command.getToken(2));
+
+        assertTrue(command.decode("logout Alex "));
+        assertEquals(Opcode.LOGOUT, command.getOpcode());
+        assertEquals(2, command.getTokenCount());
+        assertEquals("Alex", command.getToken(1));
+
+        assertTrue(command.decode("group_chat_start Alex Katie Casey"));
+        assertEquals(Opcode.GROUP_CHAT_START, command.getOpcode());
+        assertEquals(4, command.getTokenCount());
+        assertEquals("Casey", command.getToken(3));
+
+        assertTrue(command.decode("typing 12 Katie"));
+        assertEquals(Opcode.TYPING, command.getOpcode());
+        assertEquals(12, command.getConversationID());
+        assertEquals("Katie", command.getToken(2));
+
+        assertTrue(command.decode("group_chat_leave 9999999999 Casey"));
+        assertEquals(9999999999L, command.getConversationID());
+    }
+
+    @Test
+    public void sayTest() {
+        Command command = new Command();
+
+        assertTrue(command.decode("say 3 Alex hello  there "));
+        assertEquals(Opcode.SAY, command.getOpcode());
+        assertEquals(3, command.getConversationID());
+        assertEquals("Alex", command.getToken(2));
+        assertEquals("hello  there ", command.getText());
+
+        assertTrue(command.decode("say 3 Alex"));
+        assertEquals("", command.getText());
+    }
+
+    @Test
+    public void malformedTest() {
+        Command command = new Command();
+
+        assertFalse(command.decode("asdf asdf"));
+        assertEquals(Command.UNKNOWN_COMMAND, command.getError());
+        assertEquals(null, command.getOpcode());
+        assertFalse(command.decode(""));
+        assertEquals(Command.UNKNOWN_COMMAND, command.getError());
+        assertFalse(command.decode("say"));
+        assertEquals(Command.WRONG_ARGUMENTS, command.getError());
+        assertFalse(command.decode("logout Alex Katie"));
+        assertEquals(Command.WRONG_ARGUMENTS, command.getError());
+        assertFalse(command.decode("chat_start Alex  Katie"));
+        assertEquals(Command.EMPTY_ARGUMENT, command.getError());
+        assertFalse(command.decode("say x Alex hi"));
+        assertEquals(Command.INVALID_ID, command.getError());
+        assertFalse(command.decode("cleared -1 Alex"));
+        assertEquals(Command.INVALID_ID, command.getError());
+        assertFalse(command.decode("typing 99999999999999999999 Alex"));
+        assertEquals(Command.INVALID_ID, command.getError());
+
+        assertTrue(command.decode("logout Alex"));
+        assertEquals(null, command.getError());
+        assertEquals(Opcode.LOGOUT, command.getOpcode());
+    }
+}
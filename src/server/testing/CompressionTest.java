@@ -0,0 +1,110 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests clients that ask the server to compress what it sends when they log
+ * in, alone and together with binary frames, talking to a client that keeps
+ * to plain text lines.
+ *
+ * As in BinaryProtocolTest, we check that the server and the clients switch
+ * at the same point, whether the server gives each connection a thread or
+ * services them all from a selector. Messages sent in quick succession are
+ * compressed in the same batch as well as in separate ones.
+ *
+ * @category no_didit
+ */
+public class CompressionTest {
+    @Test(timeout = 8000)
+    public void threadPerConnectionTest() {
+        this.checkConversation(5684, new ServerConfig());
+    }
+
+    @Test(timeout = 8000)
+    public void selectorTest() {
+        ServerConfig config = new ServerConfig();
+        config.setSelectorThreads(2);
+        this.checkConversation(5685, config);
+    }
+
+    /**
+     * Starts a server, logs in a compressed text client, a compressed binary
+     * client and a plain client, and has them chat.
+     */
+    private void checkConversation(int port, ServerConfig config) {
+        final ChatServer server = new ChatServer(port, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient deflate = new DummyClient("localhost", port);
+        DummyClient both = new DummyClient("localhost", port, true);
+        DummyClient plain = new DummyClient("localhost", port);
+        deflate.send("login_attempt Ann 1 deflate");
+        assertEquals("login_success", deflate.read());
+        assertEquals("user_joins Ann 1", deflate.read());
+        both.send("login_attempt Bob 2 deflate binary");
+        assertEquals("login_success", both.read());
+        both.read();
+        both.read();
+        assertEquals("user_joins Bob 2", deflate.read());
+        plain.send("login_attempt Cat 3");
+        assertEquals("login_success", plain.read());
+        for (int i = 0; i < 3; i++) {
+            plain.read();
+        }
+        assertEquals("user_joins Cat 3", deflate.read());
+        assertEquals("user_joins Cat 3", both.read());
+
+        // a second login with the same options changes nothing
+        deflate.send("login_attempt Bob 4 deflate");
+        assertEquals("login_invalid", deflate.read());
+
+        deflate.send("group_chat_start Ann Bob Cat");
+        String start = deflate.read();
+        assertTrue(start.matches("group_chat_start \\d+"));
+        String ID = start.split(" ")[1];
+        for (int i = 0; i < 2; i++) {
+            deflate.read();
+        }
+        assertEquals(start, both.read());
+        for (int i = 0; i < 2; i++) {
+            both.read();
+        }
+        assertEquals(start, plain.read());
+        for (int i = 0; i < 2; i++) {
+            plain.read();
+        }
+
+        for (int i = 0; i < 50; i++) {
+            plain.send("say " + ID + " Cat message " + i);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals("say " + ID + " Cat message " + i, deflate.read());
+            assertEquals("say " + ID + " Cat message " + i, both.read());
+            assertEquals("say " + ID + " Cat message " + i, plain.read());
+        }
+        both.send("say " + ID + " Bob hello  there ");
+        assertEquals("say " + ID + " Bob hello  there ", deflate.read());
+        assertEquals("say " + ID + " Bob hello  there ", both.read());
+        assertEquals("say " + ID + " Bob hello  there ", plain.read());
+
+        deflate.send("logout Ann");
+        assertEquals("group_chat_leave " + ID + " Ann", both.read());
+        assertEquals("user_leaves Ann", both.read());
+        assertEquals("group_chat_leave " + ID + " Ann", plain.read());
+        assertEquals("user_leaves Ann", plain.read());
+
+        deflate.close();
+        both.close();
+        plain.close();
+    }
+}
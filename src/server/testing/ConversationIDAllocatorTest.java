@@ -0,0 +1,89 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import server.ConversationIDAllocator;
+
+/**
+ * Tests the ConversationIDAllocator.
+ *
+ * - IDs are handed out in order starting at 1.
+ *
+ * - An allocator backed by a file never hands out an ID again after being
+ * reopened, even one it had not handed out yet.
+ *
+ * - Threads allocating at once are all given different IDs.
+ *
+ * @category no_didit
+ */
+public class ConversationIDAllocatorTest {
+    @Test
+    public void sequenceTest() {
+        ConversationIDAllocator allocator = new ConversationIDAllocator();
+        assertEquals(1, allocator.next());
+        assertEquals(2, allocator.next());
+        assertEquals(3, allocator.next());
+    }
+
+    @Test
+    public void restartTest() throws IOException {
+        File path = File.createTempFile("conversation-ids", null);
+        assertTrue(path.delete());
+        try {
+            ConversationIDAllocator allocator = new ConversationIDAllocator(
+                    path);
+            assertEquals(1, allocator.next());
+            assertEquals(2, allocator.next());
+            allocator.close();
+
+            allocator = new ConversationIDAllocator(path);
+            long first = allocator.next();
+            assertTrue(first > 2);
+            for (int i = 0; i < 5000; i++) {
+                allocator.next();
+            }
+            long last = allocator.next();
+            allocator.close();
+
+            allocator = new ConversationIDAllocator(path);
+            assertTrue(allocator.next() > last);
+            allocator.close();
+        } finally {
+            path.delete();
+        }
+    }
+
+    @Test(timeout = 4000)
+    public void concurrencyTest() throws InterruptedException {
+        final ConversationIDAllocator allocator = new ConversationIDAllocator();
+        final long[][] allocated = new long[4][10000];
+        Thread[] threads = new Thread[allocated.length];
+        for (int t = 0; t < threads.length; t++) {
+            final long[] mine = allocated[t];
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < mine.length; i++) {
+                        mine[i] = allocator.next();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        Set<Long> IDs = new HashSet<Long>();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            for (long ID : allocated[t]) {
+                assertTrue(IDs.add(ID));
+            }
+        }
+        assertEquals(40000, IDs.size());
+    }
+}
@@ -0,0 +1,221 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import conversation.Conversation;
+import conversation.MembershipIndex;
+
+import server.ChatServer;
+import server.ConversationStore;
+import server.ServerConfig;
+import user.User;
+
+/**
+ * Tests the ConversationStore and the restart of a ChatServer.
+ *
+ * - A reopened store holds every private conversation recorded before it
+ * was closed, whether in a snapshot or in a journal, with its users indexed,
+ * and no group chat.
+ *
+ * - A conversation recorded while a snapshot is written is read once.
+ *
+ * - A record torn by a crash is dropped.
+ *
+ * - A server restarted on the same data directory has its users rejoin
+ * their private conversations and sends them what was said while they were
+ * offline.
+ *
+ * @category no_didit
+ */
+public class ConversationStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = File.createTempFile("conversations", null);
+        assertTrue(this.directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(this.directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void snapshotTest() throws IOException {
+        ConversationStore store = new ConversationStore(this.directory);
+        Map<Long, Conversation> conversations = new ConcurrentHashMap<Long, Conversation>();
+        MembershipIndex index = new MembershipIndex();
+        assertEquals(0, store.load(conversations, index));
+        for (long ID = 1; ID <= 100; ID++) {
+            start(store, conversations, ID);
+        }
+        Set<User> users = new HashSet<User>();
+        users.add(new User("user1"));
+        users.add(new User("user2"));
+        Conversation group = new Conversation(users, 101);
+        conversations.put(group.getID(), group);
+        store.record(group);
+        assertEquals(100, store.snapshot(conversations.values()));
+        for (long ID = 102; ID <= 150; ID++) {
+            start(store, conversations, ID);
+        }
+        // a self-conversation, and one recorded as if during the snapshot
+        Conversation self = new Conversation(new User("user3"), new User(
+                "user3"), 151);
+        conversations.put(self.getID(), self);
+        store.record(self);
+        store.record(conversations.get(150L));
+        store.close();
+
+        conversations = new ConcurrentHashMap<Long, Conversation>();
+        index = new MembershipIndex();
+        store = new ConversationStore(this.directory);
+        assertEquals(150, store.load(conversations, index));
+        assertNull(conversations.get(101L));
+        for (long ID = 1; ID <= 150; ID++) {
+            if (ID != 101) {
+                checkConversation(conversations, index, ID);
+            }
+        }
+        assertEquals(1, conversations.get(151L).getUsers().size());
+        assertTrue(index.getConversations(new User("user3")).contains(151L));
+
+        // a snapshot replaces the files before it
+        assertEquals(150, store.snapshot(conversations.values()));
+        start(store, conversations, 152);
+        store.close();
+        assertEquals(2, this.directory.list().length);
+        store = new ConversationStore(this.directory);
+        conversations = new ConcurrentHashMap<Long, Conversation>();
+        assertEquals(151, store.load(conversations, new MembershipIndex()));
+        store.close();
+    }
+
+    /**
+     * Starts a private conversation between two of ten users, chosen by its
+     * ID, and records it.
+     */
+    private static void start(ConversationStore store,
+            Map<Long, Conversation> conversations, long ID) {
+        Conversation chat = new Conversation(new User("user" + (ID % 10)),
+                new User("user" + (ID * 3 % 10 + 10)), ID);
+        conversations.put(ID, chat);
+        store.record(chat);
+    }
+
+    /**
+     * Checks that a conversation read back from the store is the one
+     * started by start().
+     */
+    private static void checkConversation(
+            Map<Long, Conversation> conversations, MembershipIndex index,
+            long ID) {
+        Conversation chat = conversations.get(ID);
+        assertFalse(chat.isGroupChat());
+        assertEquals(ID, chat.getID());
+        User a = new User("user" + (ID % 10));
+        User b = new User("user" + (ID * 3 % 10 + 10));
+        assertEquals(2, chat.getUsers().size());
+        assertTrue(chat.getUsers().contains(a));
+        assertTrue(chat.getUsers().contains(b));
+        assertTrue(index.getConversations(a).contains(ID));
+        assertTrue(index.getConversations(b).contains(ID));
+    }
+
+    @Test
+    public void tornRecordTest() throws IOException {
+        ConversationStore store = new ConversationStore(this.directory);
+        Map<Long, Conversation> conversations = new ConcurrentHashMap<Long, Conversation>();
+        store.load(conversations, new MembershipIndex());
+        for (long ID = 1; ID <= 3; ID++) {
+            start(store, conversations, ID);
+        }
+        store.close();
+
+        File journal = this.directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        store = new ConversationStore(this.directory);
+        conversations = new ConcurrentHashMap<Long, Conversation>();
+        MembershipIndex index = new MembershipIndex();
+        assertEquals(2, store.load(conversations, index));
+        checkConversation(conversations, index, 1);
+        checkConversation(conversations, index, 2);
+        store.close();
+    }
+
+    @Test(timeout = 20000)
+    public void restartTest() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setDataDirectory(this.directory);
+        final ChatServer server = new ChatServer(5698, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient ann = new DummyClient("localhost", 5698);
+        DummyClient bob = new DummyClient("localhost", 5698);
+        ann.send("login_attempt Ann 1");
+        assertEquals("login_success", ann.read());
+        ann.read();
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        bob.read();
+        ann.read();
+        ann.send("chat_start Ann Bob");
+        String ID = ann.read().split(" ")[1];
+        bob.read();
+        bob.send("logout Bob");
+        ann.read();
+        ann.send("say " + ID + " Ann are you there?");
+        ann.read();
+        ann.close();
+        bob.close();
+        // let the server flush everything before it is replaced
+        Thread.sleep(5 * config.getLogFlushMillis());
+
+        final ChatServer restarted = new ChatServer(5699, config);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                restarted.serve();
+            }
+        });
+        thread.start();
+        bob = new DummyClient("localhost", 5699);
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        assertEquals("chat_start " + ID + " Ann Bob", bob.read());
+        assertEquals("say " + ID + " Ann are you there?", bob.read());
+        bob.close();
+    }
+}
@@ -1,21 +1,39 @@
 package server.testing;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import protocol.BinaryCodec;
+import protocol.LoginOptions;
+import protocol.MessageReader;
+
 /**
  * A dummy client class used for the testing of a ChatServer. All it does is set
  * up a socket to send and read messages from the server.
+ *
+ * A binary DummyClient switches to binary frames when it sends a login_attempt
+ * asking for them, as the ChatClient does; messages are still sent and read
+ * in their text form. Any DummyClient inflates what the server sends after
+ * replying to a login_attempt asking for compression.
+ *
+ * Messages read are queued for read(), unless a subclass handles them itself
+ * by overriding received().
  */
 public class DummyClient {
     private final Socket socket; // The socket used
     private final BlockingQueue<String> queue; // Stores messages read
+    private final BinaryCodec codec; // Translates binary frames, or null if
+                                     // the client only uses text
+    private volatile boolean requestedBinary; // True once a login_attempt
+                                              // asked for binary frames
+    private boolean sendingBinary; // True once messages are sent as frames
+    private volatile boolean requestedDeflate; // True once a login_attempt
+                                               // asked for compression
 
     /**
      * Creates a client that connects to a server with the given hostname and
@@ -27,6 +45,22 @@ public class DummyClient {
      *            The port to connect to.
      */
     public DummyClient(String hostname, int port) {
+        this(hostname, port, false);
+    }
+
+    /**
+     * Creates a client that connects to a server with the given hostname and
+     * port, and may switch to binary frames.
+     * 
+     * @param hostname
+     *            The hostname to connect to.
+     * @param port
+     *            The port to connect to.
+     * @param binary
+     *            True if the client switches to binary frames once it sends a
+     *            login_attempt asking for them.
+     */
+    public DummyClient(String hostname, int port, boolean binary) {
         try {
             socket = new Socket(hostname, port);
         } catch (UnknownHostException e) {
@@ -37,21 +71,29 @@ public class DummyClient {
             throw new RuntimeException("DummyClient() failed");
         }
         queue = new LinkedBlockingQueue<String>();
+        codec = binary ? new BinaryCodec(false) : null;
+        requestedBinary = false;
+        sendingBinary = false;
+        requestedDeflate = false;
 
         // start waiting for messages
         Thread thread = new Thread(new Runnable() {
             public void run() {
                 try {
-                    BufferedReader in = new BufferedReader(
-                            new InputStreamReader(socket.getInputStream()));
-                    for (String next = in.readLine(); next != null; next = in
-                            .readLine()) {
-                        try {
-                            queue.put(next);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException("queue.put() failed");
+                    MessageReader in = new MessageReader(socket
+                            .getInputStream());
+                    for (String next = in.readMessage(); next != null; next = in
+                            .readMessage()) {
+                        if (next.equals("login_success")
+                                || next.equals("login_invalid")) {
+                            if (requestedBinary && !in.isBinary()) {
+                                in.switchToBinary(codec);
+                            }
+                            if (requestedDeflate && !in.isInflating()) {
+                                in.startInflating();
+                            }
                         }
+                        received(next);
                     }
                 } catch (IOException e) {
                     // ignore server close or socket close
@@ -67,8 +109,21 @@ public class DummyClient {
      * @param message
      *            the message to send to the server.
      */
-    public void send(String message) {
+    public synchronized void send(String message) {
         try {
+            if (this.sendingBinary) {
+                ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                this.codec.encode(message, frames);
+                frames.writeTo(socket.getOutputStream());
+                return;
+            }
+            if (this.codec != null && BinaryCodec.requestsBinary(message)) {
+                this.requestedBinary = true;
+                this.sendingBinary = true;
+            }
+            if (LoginOptions.requests(message, LoginOptions.DEFLATE)) {
+                this.requestedDeflate = true;
+            }
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             out.println(message);
         } catch (IOException e) {
@@ -77,6 +132,24 @@ public class DummyClient {
         }
     }
 
+    /**
+     * Handles a message read from the server, on the thread reading from the
+     * socket. Queues it for read() by default. A subclass that overrides this
+     * must not rely on its own fields before the server has been sent
+     * anything, since the reading thread starts in the constructor.
+     * 
+     * @param message
+     *            The message read.
+     */
+    protected void received(String message) {
+        try {
+            this.queue.put(message);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException("queue.put() failed");
+        }
+    }
+
     /**
      * Returns a message read from the server. Requires that the socket is ready
      * to be read from.
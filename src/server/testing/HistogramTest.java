@@ -0,0 +1,66 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.Histogram;
+
+/**
+ * Tests the Histogram the server records latencies and fan-out sizes in.
+ *
+ * - Small values are counted exactly.
+ *
+ * - Percentiles of larger values are within 1/16 of the true value, and never
+ * above the largest value recorded.
+ *
+ * - An empty histogram reads 0.
+ *
+ * @category no_didit
+ */
+public class HistogramTest {
+    @Test
+    public void smallValuesTest() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(5, histogram.getPercentile(0.5));
+        assertEquals(10, histogram.getPercentile(0.99));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(10, histogram.getCount());
+        assertEquals(55, histogram.getSum());
+        assertEquals(10, histogram.getMax());
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void largeValuesTest() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+        checkNear(50000000, histogram.getPercentile(0.5));
+        checkNear(99000000, histogram.getPercentile(0.99));
+        checkNear(99900000, histogram.getPercentile(0.999));
+        assertEquals(100000000, histogram.getPercentile(1));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void emptyTest() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    private static void checkNear(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected
+                && actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,118 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests the history_fetch command of a ChatServer with a data directory.
+ *
+ * - The latest page, and then the page before it, come back oldest first
+ * and end with the cursor of the next older page, as text lines and as
+ * binary frames.
+ *
+ * - A page holds at most HISTORY_PAGE_SIZE messages, and only the newest of
+ * them that fit in HISTORY_PAGE_BYTES.
+ *
+ * - A client with no user in the conversation is sent nothing.
+ *
+ * @category no_didit
+ */
+public class HistoryFetchTest {
+    @Test(timeout = 20000)
+    public void pageTest() throws IOException {
+        File directory = File.createTempFile("history", null);
+        assertTrue(directory.delete());
+        ServerConfig config = new ServerConfig();
+        config.setDataDirectory(directory);
+        final ChatServer server = new ChatServer(5696, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient ann = new DummyClient("localhost", 5696);
+        DummyClient bob = new DummyClient("localhost", 5696, true);
+        ann.send("login_attempt Ann 1");
+        assertEquals("login_success", ann.read());
+        ann.read();
+        bob.send("login_attempt Bob 2 binary");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        bob.read();
+        ann.read();
+        ann.send("chat_start Ann Bob");
+        String ID = ann.read().split(" ")[1];
+        bob.read();
+        for (int i = 1; i <= 150; i++) {
+            ann.send("say " + ID + " Ann message " + i);
+            ann.read();
+            bob.read();
+        }
+
+        ann.send("history_fetch " + ID + " 0 50");
+        checkPage(ann, ID, 101, 150);
+        assertEquals("history_end " + ID + " 101", ann.read());
+        bob.send("history_fetch " + ID + " 101 500");
+        checkPage(bob, ID, 1, 100);
+        assertEquals("history_end " + ID + " 1", bob.read());
+        bob.send("history_fetch " + ID + " 1 10");
+        assertEquals("history_end " + ID + " 1", bob.read());
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < ChatServer.HISTORY_PAGE_BYTES / 3 - 100) {
+            text.append("long message ");
+        }
+        for (int i = 151; i <= 155; i++) {
+            ann.send("say " + ID + " Ann " + text);
+            ann.read();
+            bob.read();
+        }
+        ann.send("history_fetch " + ID + " 0 10");
+        for (int i = 153; i <= 155; i++) {
+            assertTrue(ann.read().startsWith("history " + ID + " " + i + " "));
+        }
+        assertEquals("history_end " + ID + " 153", ann.read());
+
+        // Cat is not in the conversation, so only chat_start is answered
+        DummyClient cat = new DummyClient("localhost", 5696);
+        cat.send("login_attempt Cat 3");
+        assertEquals("login_success", cat.read());
+        cat.read();
+        cat.read();
+        cat.read();
+        ann.read();
+        bob.read();
+        cat.send("history_fetch " + ID + " 0 10");
+        cat.send("chat_start Cat Ann");
+        assertTrue(cat.read().startsWith("chat_start "));
+
+        ann.close();
+        bob.close();
+        cat.close();
+    }
+
+    /**
+     * Reads a page of the messages said by Ann in the test.
+     */
+    private static void checkPage(DummyClient client, String ID, int first,
+            int last) {
+        for (int i = first; i <= last; i++) {
+            String[] tokens = client.read().split(" ", 6);
+            assertEquals("history", tokens[0]);
+            assertEquals(ID, tokens[1]);
+            assertEquals(Integer.toString(i), tokens[2]);
+            assertTrue(Long.parseLong(tokens[3]) > 0);
+            assertEquals("Ann", tokens[4]);
+            assertEquals("message " + i, tokens[5]);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import server.LogRecord;
+import server.MessageLog;
+
+/**
+ * Tests the MessageLog.
+ *
+ * - Messages are numbered from 1 in each conversation and read back in
+ * order, from any sequence.
+ *
+ * - Messages are read back across segments, before and after the indexes of
+ * full segments are written.
+ *
+ * - A reopened log holds every message appended before it was closed, and
+ * numbering carries on after the last one.
+ *
+ * - A record torn by a crash is dropped when the log is reopened, and never
+ * read back once new messages are appended over it.
+ *
+ * - Logs that are closed to make room for others keep their messages.
+ *
+ * - A username too long for its record is refused, and the log carries on
+ * as if it had not been appended.
+ *
+ * @category no_didit
+ */
+public class MessageLogTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = File.createTempFile("message-log", null);
+        assertTrue(this.directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(this.directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void appendReadTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 4096);
+        assertEquals(0, log.getLastSequence(1));
+        assertTrue(log.read(1, 1, 10).isEmpty());
+        assertEquals(1, log.append(1, "alice", "hello"));
+        assertEquals(1, log.append(2, "carol", "hi dave"));
+        assertEquals(2, log.append(1, "bob", "hi alice, \u00e7a va?"));
+        assertEquals(3, log.append(1, "alice", ""));
+
+        List<LogRecord> records = log.read(1, 1, 10);
+        assertEquals(3, records.size());
+        assertEquals("1 alice hello", records.get(0).toString());
+        assertEquals("2 bob hi alice, \u00e7a va?", records.get(1).toString());
+        assertEquals("3 alice ", records.get(2).toString());
+        assertTrue(records.get(0).getTimeMillis() > 0);
+        assertEquals("2 bob hi alice, \u00e7a va?", log.read(1, 2, 1).get(0)
+                .toString());
+        assertEquals(1, log.read(2, 1, 10).size());
+        assertEquals(3, log.getLastSequence(1));
+        assertEquals(1, log.getLastSequence(2));
+        assertTrue(log.read(1, 4, 10).isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void segmentTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 300);
+        for (int i = 1; i <= 200; i++) {
+            assertEquals(i, log.append(7, "user" + i, "message " + i));
+        }
+        File conversation = new File(this.directory, "7");
+        assertTrue(conversation.list().length > 10);
+        checkRange(log, 7, 1, 200);
+
+        // write the indexes of the full segments and read through them
+        log.flush();
+        checkRange(log, 7, 1, 200);
+        log.close();
+        log = new MessageLog(this.directory, 300);
+        checkRange(log, 7, 1, 200);
+        log.close();
+    }
+
+    /**
+     * Checks that every run of messages of a conversation reads back as it
+     * was appended.
+     */
+    private static void checkRange(MessageLog log, long ID, long first,
+            long last) {
+        for (long from = first; from <= last; from += 13) {
+            List<LogRecord> records = log.read(ID, from, 40);
+            assertEquals(Math.min(40, last - from + 1), records.size());
+            for (int i = 0; i < records.size(); i++) {
+                LogRecord record = records.get(i);
+                assertEquals(from + i, record.getSequence());
+                assertEquals("user" + (from + i), record.getUsername());
+                assertEquals("message " + (from + i), record.getText());
+            }
+        }
+    }
+
+    @Test
+    public void restartTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 4096);
+        for (int i = 1; i <= 100; i++) {
+            log.append(3, "user" + i, "message " + i);
+        }
+        log.close();
+
+        log = new MessageLog(this.directory, 4096);
+        assertEquals(100, log.getLastSequence(3));
+        assertEquals(101, log.append(3, "user101", "message 101"));
+        log.close();
+
+        log = new MessageLog(this.directory, 4096);
+        checkRange(log, 3, 1, 101);
+        log.close();
+    }
+
+    @Test
+    public void tornRecordTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 4096);
+        for (int i = 1; i <= 5; i++) {
+            log.append(5, "user" + i, "message " + i);
+        }
+        log.close();
+
+        // tear record 4 as if record 5 had reached the disk before it
+        File segment = new File(new File(this.directory, "5"),
+                String.format("%020d.log", 1));
+        long fourth = findRecord(segment, 4);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(fourth + 30);
+        file.write('X');
+        file.close();
+
+        log = new MessageLog(this.directory, 4096);
+        assertEquals(3, log.getLastSequence(5));
+        checkRange(log, 5, 1, 3);
+        // the same size as the torn record, so that record 5 would follow
+        assertEquals(4, log.append(5, "user4", "message 4"));
+        log.close();
+
+        log = new MessageLog(this.directory, 4096);
+        assertEquals(4, log.getLastSequence(5));
+        checkRange(log, 5, 1, 4);
+        log.close();
+    }
+
+    /**
+     * Returns the position of a record in a segment file starting at 1.
+     */
+    private static long findRecord(File segment, long sequence)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            long position = 0;
+            for (long i = 1; i < sequence; i++) {
+                file.seek(position);
+                position += 4 + file.readInt();
+            }
+            return position;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void longUsernameTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 4096);
+        StringBuilder username = new StringBuilder();
+        while (username.length() <= 0xFFFF) {
+            username.append('a');
+        }
+        try {
+            log.append(1, username.toString(), "hi");
+            fail("Appended a username too long for its record");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, log.append(1, "Alex", "hi"));
+        List<LogRecord> records = log.read(1, 1, 10);
+        assertEquals(1, records.size());
+        assertEquals("Alex", records.get(0).getUsername());
+        log.close();
+    }
+
+    @Test
+    public void manyLogsTest() throws IOException {
+        MessageLog log = new MessageLog(this.directory, 512);
+        int conversations = MessageLog.OPEN_LOGS + 100;
+        for (int round = 1; round <= 2; round++) {
+            for (int ID = 1; ID <= conversations; ID++) {
+                assertEquals(round, log.append(ID, "user" + round, "message "
+                        + round));
+            }
+        }
+        log.flush();
+        for (int ID = 1; ID <= conversations; ID += 37) {
+            checkRange(log, ID, 1, 2);
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,119 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests the metrics a ChatServer serves on its local metrics port.
+ *
+ * Two clients log in and chat, and the metrics are then scraped over HTTP
+ * and as bare text. They must count the connected sessions and users, the
+ * commands processed by type, the commands ignored by reason, the messages
+ * fanned out and the bytes read and written.
+ *
+ * @category no_didit
+ */
+public class MetricsEndpointTest {
+    @Test(timeout = 8000)
+    public void scrapeTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setMetricsPort(5687);
+        final ChatServer server = new ChatServer(5686, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient client1 = new DummyClient("localhost", 5686);
+        DummyClient client2 = new DummyClient("localhost", 5686);
+        client1.send("login_attempt Ann 1");
+        assertEquals("login_success", client1.read());
+        client1.read();
+        client2.send("login_attempt Bob 2");
+        assertEquals("login_success", client2.read());
+        client2.read();
+        client2.read();
+        client1.read();
+        client1.send("chat_start Ann Bob");
+        String ID = client1.read().split(" ")[1];
+        client2.read();
+        client1.send("bogus " + ID);
+        client1.send("say " + ID + " Ann hi");
+        client1.read();
+        client2.read();
+
+        List<String> metrics = scrape(true);
+        assertTrue(metrics.contains("chat_sessions 2"));
+        assertTrue(metrics.contains("chat_users 2"));
+        assertTrue(metrics.contains("chat_command_us_count{command=\"say\"} 1"));
+        assertTrue(metrics
+                .contains("chat_command_us_count{command=\"login_attempt\"} 2"));
+        assertTrue(metrics.contains("chat_queue_wait_us_count 5"));
+        assertTrue(metrics
+                .contains("chat_rejected_total{reason=\"unknown command\"} 1"));
+        assertTrue(metrics.contains("chat_fan_out{quantile=\"0.999\"} 2"));
+        assertTrue(value(metrics, "chat_bytes_in_total") > 0);
+        assertTrue(value(metrics, "chat_bytes_out_total") > 0);
+        assertTrue(value(metrics, "chat_receive_to_write_us_count") >= 8);
+
+        // the same text without HTTP, for a client that sends anything else
+        List<String> bare = scrape(false);
+        assertTrue(bare.get(0).startsWith("chat_queue_length "));
+        assertTrue(bare.contains("chat_users 2"));
+
+        client1.close();
+        client2.close();
+        server.close();
+    }
+
+    /**
+     * Reads the metrics, with an HTTP request or without one, and returns the
+     * lines of the body.
+     */
+    private static List<String> scrape(boolean http) throws IOException {
+        Socket socket = new Socket("localhost", 5687);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.print(http ? "GET /metrics HTTP/1.0\r\n\r\n" : "metrics\r\n");
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+        List<String> lines = new ArrayList<String>();
+        String line = in.readLine();
+        if (http) {
+            assertEquals("HTTP/1.0 200 OK", line);
+            while (!in.readLine().isEmpty()) {
+                // skip the headers
+            }
+            line = in.readLine();
+        }
+        for (; line != null; line = in.readLine()) {
+            lines.add(line);
+        }
+        socket.close();
+        return lines;
+    }
+
+    private static long value(List<String> metrics, String name) {
+        for (String line : metrics) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        fail("no metric " + name);
+        return 0;
+    }
+}
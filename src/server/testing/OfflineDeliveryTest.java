@@ -0,0 +1,154 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.MessageLog;
+import server.OfflineStore;
+import server.ServerConfig;
+
+/**
+ * Tests the OfflineStore and the delivery of held messages on login.
+ *
+ * - Messages are held only for users who are offline or have an open
+ * mailbox, and a reopened store holds every message of its open ranges,
+ * including those said after the range was last journaled.
+ *
+ * - Ranges that were delivered are gone once the store is reopened.
+ *
+ * - A user who logs back in is sent everything said to them while offline,
+ * in order and within CATCH_UP_MILLIS, before a history page asked for
+ * meanwhile, and is sent new messages as they are said afterwards.
+ *
+ * @category no_didit
+ */
+public class OfflineDeliveryTest {
+    private static final int BACKLOG = 10000;
+    private static final long CATCH_UP_MILLIS = 1000; // How soon a user
+                                                      // logging back in
+                                                      // has every held
+                                                      // message.
+
+    @Test
+    public void storeTest() throws IOException {
+        File directory = File.createTempFile("offline", null);
+        assertTrue(directory.delete());
+        MessageLog log = new MessageLog(new File(directory, "log"), 4096);
+        File file = new File(directory, "offline");
+        OfflineStore store = new OfflineStore(file, log);
+
+        assertFalse(store.hold("ann", 1, log.append(1, "bob", "hi ann"), true));
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(store.hold("ann", 1, log.append(1, "bob", "m" + i),
+                    false));
+        }
+        assertTrue(store.hold("ann", 2, log.append(2, "cat", "hello"), false));
+        assertEquals(6, store.getHeldCount("ann"));
+        // held even though online, until ann's mailbox is delivered
+        assertTrue(store.hold("ann", 2, log.append(2, "cat", "there"), true));
+        assertEquals(0, store.getHeldCount("bob"));
+        store.close();
+
+        // messages said after the journal was written are still held
+        log.append(1, "bob", "m6");
+        store = new OfflineStore(file, log);
+        assertEquals(8, store.getHeldCount("ann"));
+        assertTrue(store.startDelivery("ann"));
+        assertFalse(store.startDelivery("ann"));
+        long[] range = new long[3];
+        assertTrue(store.nextRange("ann", range));
+        assertArrayEquals(new long[] { 1, 2, 7 }, range);
+        store.advance("ann", 1, 4);
+        assertTrue(store.nextRange("ann", range));
+        assertArrayEquals(new long[] { 1, 5, 7 }, range);
+        store.close();
+
+        store = new OfflineStore(file, log);
+        assertEquals(5, store.getHeldCount("ann"));
+        assertTrue(store.startDelivery("ann"));
+        store.advance("ann", 1, 7);
+        assertTrue(store.nextRange("ann", range));
+        assertArrayEquals(new long[] { 2, 1, 2 }, range);
+        assertFalse(store.finishDelivery("ann"));
+        store.advance("ann", 2, 2);
+        assertFalse(store.nextRange("ann", range));
+        assertTrue(store.finishDelivery("ann"));
+        assertFalse(store.hold("ann", 2, log.append(2, "cat", "bye"), true));
+        store.close();
+
+        store = new OfflineStore(file, log);
+        assertEquals(0, store.getHeldCount("ann"));
+        store.close();
+        log.close();
+    }
+
+    @Test(timeout = 60000)
+    public void deliveryTest() throws IOException {
+        File directory = File.createTempFile("offline", null);
+        assertTrue(directory.delete());
+        ServerConfig config = new ServerConfig();
+        config.setDataDirectory(directory);
+        final ChatServer server = new ChatServer(5697, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient ann = new DummyClient("localhost", 5697);
+        DummyClient bob = new DummyClient("localhost", 5697);
+        ann.send("login_attempt Ann 1");
+        assertEquals("login_success", ann.read());
+        ann.read();
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        bob.read();
+        ann.read();
+        ann.send("chat_start Ann Bob");
+        String ID = ann.read().split(" ")[1];
+        bob.read();
+        bob.send("logout Bob");
+        assertEquals("user_leaves Bob", ann.read());
+        bob.close();
+
+        for (int i = 1; i <= BACKLOG; i++) {
+            ann.send("say " + ID + " Ann message " + i);
+            assertEquals("say " + ID + " Ann message " + i, ann.read());
+        }
+
+        long start = System.currentTimeMillis();
+        bob = new DummyClient("localhost", 5697);
+        bob.send("login_attempt Bob 2");
+        assertEquals("login_success", bob.read());
+        bob.read();
+        bob.read();
+        assertEquals("chat_start " + ID + " Ann Bob", bob.read());
+        bob.send("history_fetch " + ID + " 0 50");
+        for (int i = 1; i <= BACKLOG; i++) {
+            assertEquals("say " + ID + " Ann message " + i, bob.read());
+        }
+        assertTrue(System.currentTimeMillis() - start < CATCH_UP_MILLIS);
+        for (int i = BACKLOG - 49; i <= BACKLOG; i++) {
+            String[] tokens = bob.read().split(" ", 6);
+            assertEquals("history", tokens[0]);
+            assertEquals(Integer.toString(i), tokens[2]);
+            assertEquals("message " + i, tokens[5]);
+        }
+        assertEquals("history_end " + ID + " " + (BACKLOG - 49), bob.read());
+
+        ann.read();
+        ann.send("say " + ID + " Ann welcome back");
+        assertEquals("say " + ID + " Ann welcome back", bob.read());
+        assertEquals("say " + ID + " Ann welcome back", ann.read());
+
+        ann.close();
+        bob.close();
+    }
+}
@@ -0,0 +1,163 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import protocol.BinaryCodec;
+import server.ChatServer;
+import server.ServerConfig;
+
+/**
+ * Tests the ChatServer in non-blocking mode, where all connections are
+ * serviced by a couple of SelectorLoops instead of one thread per client.
+ *
+ * The commands themselves are covered by ChatServerTest, so these tests focus
+ * on what the loops do differently: splitting the byte stream into lines
+ * (including lines that arrive in pieces or several at once), writing replies
+ * back, noticing when a client closes its connection, and closing a client
+ * whose unfinished line grows too long.
+ *
+ * @category no_didit
+ */
+public class SelectorLoopTest {
+    private static final int PORT = 5679;
+    private static boolean started = false;
+
+    /**
+     * Starts a non-blocking server with two selector threads, once for all the
+     * tests in this class.
+     */
+    private static synchronized void startServer() {
+        if (started) {
+            return;
+        }
+        started = true;
+        ServerConfig config = new ServerConfig();
+        config.setSelectorThreads(2);
+        final ChatServer server = new ChatServer(PORT, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Logs in two users on different loops and has them talk in a private
+     * chat. One of the users then drops its connection, and the other must be
+     * told that the user has left.
+     */
+    @Test(timeout = 4000)
+    public void loginSayAndDisconnectTest() {
+        startServer();
+        DummyClient client1 = new DummyClient("localhost", PORT);
+        DummyClient client2 = new DummyClient("localhost", PORT);
+
+        client1.send("login_attempt Ann 1");
+        assertEquals("login_success", client1.read());
+        assertEquals("user_joins Ann 1", client1.read());
+        client2.send("login_attempt Bob 2");
+        assertEquals("login_success", client2.read());
+        client2.read();
+        client2.read();
+        assertEquals("user_joins Bob 2", client1.read());
+
+        client1.send("chat_start Ann Bob");
+        String start = client1.read();
+        assertTrue(start.startsWith("chat_start "));
+        assertEquals(start, client2.read());
+        String ID = start.split(" ")[1];
+
+        client2.send("say " + ID + " Bob hello there");
+        assertEquals("say " + ID + " Bob hello there", client1.read());
+        assertEquals("say " + ID + " Bob hello there", client2.read());
+
+        client2.close();
+        assertEquals("user_leaves Bob", client1.read());
+        client1.close();
+    }
+
+    /**
+     * Writes commands to the server as raw bytes: one command split across
+     * several writes, two commands in a single write and a command ending in
+     * a carriage return. Each must be seen by the server as exactly one line.
+     *
+     * @throws IOException
+     *             for Socket errors.
+     */
+    @Test(timeout = 4000)
+    public void lineFramingTest() throws IOException, InterruptedException {
+        startServer();
+        DummyClient reader = new DummyClient("localhost", PORT);
+        reader.send("login_attempt Carl 3");
+        assertEquals("login_success", reader.read());
+        assertEquals("user_joins Carl 3", reader.read());
+
+        Socket raw = new Socket("localhost", PORT);
+        OutputStream out = raw.getOutputStream();
+        out.write("login_at".getBytes());
+        out.flush();
+        Thread.sleep(50);
+        out.write("tempt Dee".getBytes());
+        out.flush();
+        Thread.sleep(50);
+        out.write(" 4\nlogout Dee\n".getBytes());
+        out.flush();
+        assertEquals("user_joins Dee 4", reader.read());
+        assertEquals("user_leaves Dee", reader.read());
+
+        out.write("login_attempt Eve 5\r\n".getBytes());
+        out.flush();
+        assertEquals("user_joins Eve 5", reader.read());
+
+        raw.close();
+        assertEquals("user_leaves Eve", reader.read());
+        reader.close();
+    }
+
+    /**
+     * Sends more than BinaryCodec.MAX_FRAME_LENGTH bytes without a newline
+     * after logging in. The server must close the connection rather than keep
+     * buffering, and the other users must be told that the user has left.
+     *
+     * @throws IOException
+     *             for Socket errors.
+     */
+    @Test(timeout = 4000)
+    public void longLineTest() throws IOException {
+        startServer();
+        DummyClient reader = new DummyClient("localhost", PORT);
+        reader.send("login_attempt Fay 6");
+        assertEquals("login_success", reader.read());
+        assertEquals("user_joins Fay 6", reader.read());
+
+        Socket raw = new Socket("localhost", PORT);
+        OutputStream out = raw.getOutputStream();
+        out.write("login_attempt Gus 7\n".getBytes());
+        out.flush();
+        assertEquals("user_joins Gus 7", reader.read());
+
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        try {
+            for (int sent = 0; sent <= BinaryCodec.MAX_FRAME_LENGTH;
+                    sent += chunk.length) {
+                out.write(chunk);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the server may close the connection before everything is sent
+        }
+        assertEquals("user_leaves Gus", reader.read());
+
+        raw.close();
+        reader.close();
+    }
+}
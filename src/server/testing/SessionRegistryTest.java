@@ -0,0 +1,83 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.net.Socket;
+import java.util.Set;
+
+import org.junit.Test;
+
+import server.SessionRegistry;
+import user.User;
+
+/**
+ * Tests the SessionRegistry, which keeps the socket of each logged-in user
+ * and the users of each socket in sync.
+ *
+ * - A username can only be logged in once at a time.
+ *
+ * - The users of a socket are found from the socket alone, and are still
+ * found after its session is unregistered, until they log out.
+ *
+ * - Logging out removes the user from both directions.
+ *
+ * @category no_didit
+ */
+public class SessionRegistryTest {
+    @Test
+    public void loginTest() {
+        SessionRegistry registry = new SessionRegistry();
+        Socket socket1 = new Socket();
+        Socket socket2 = new Socket();
+
+        assertTrue(registry.login(new User("Alex", 1), socket1));
+        assertFalse(registry.login(new User("Alex", 2), socket2));
+        assertTrue(registry.login(new User("Katie", 2), socket2));
+
+        assertTrue(registry.isOnline(new User("Alex")));
+        assertEquals(socket1, registry.getSocket(new User("Alex")));
+        assertEquals(socket2, registry.getSocket(new User("Katie")));
+        assertEquals(2, registry.getOnlineUsers().size());
+
+        // the avatar given at login is kept
+        for (User user : registry.getOnlineUsers()) {
+            if (user.getUsername().equals("Alex")) {
+                assertEquals(1, user.getAvatar());
+            }
+        }
+    }
+
+    @Test
+    public void unregisterTest() {
+        SessionRegistry registry = new SessionRegistry();
+        Socket socket1 = new Socket();
+        Socket socket2 = new Socket();
+        registry.login(new User("Alex", 1), socket1);
+        registry.login(new User("Katie", 2), socket2);
+
+        Set<User> users = registry.unregister(socket1);
+        assertEquals(1, users.size());
+        assertTrue(users.contains(new User("Alex")));
+        assertTrue(registry.isOnline(new User("Alex")));
+        assertTrue(registry.unregister(new Socket()).isEmpty());
+    }
+
+    @Test
+    public void logoutTest() {
+        SessionRegistry registry = new SessionRegistry();
+        Socket socket = new Socket();
+        registry.login(new User("Alex", 1), socket);
+        registry.login(new User("Katie", 2), socket);
+
+        assertTrue(registry.logout(new User("Alex")));
+        assertFalse(registry.logout(new User("Alex")));
+        assertFalse(registry.isOnline(new User("Alex")));
+        assertEquals(null, registry.getSocket(new User("Alex")));
+        assertEquals(1, registry.getUsers(socket).size());
+        assertTrue(registry.getUsers(socket).contains(new User("Katie")));
+
+        assertTrue(registry.logout(new User("Katie")));
+        assertTrue(registry.getUsers(socket).isEmpty());
+        assertTrue(registry.getOnlineUsers().isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import server.BufferPool;
+import server.ServerConfig;
+import server.StreamSession;
+
+/**
+ * Tests the StreamSession, which queues messages for a blocking socket and
+ * writes them out from a drain task.
+ *
+ * The session is given the server end of a local socket pair, and the test
+ * reads what arrives at the client end. Messages sent from several threads
+ * must all arrive, each thread's messages in order, and nothing may be
+ * written once the session is closed. Every buffer the session took from its
+ * pool must be back in the pool.
+ *
+ * @category no_didit
+ */
+public class StreamSessionTest {
+    /**
+     * Sends a burst of messages from two threads at once and checks that
+     * every message arrives, in order per thread.
+     *
+     * @throws IOException
+     *             for Socket errors.
+     */
+    @Test(timeout = 4000)
+    public void burstTest() throws IOException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(5680);
+        Socket client = new Socket("localhost", 5680);
+        Socket accepted = serverSocket.accept();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        BufferPool pool = new BufferPool(false, 4, true);
+        final StreamSession session = new StreamSession(accepted,
+                new ServerConfig(), executor, pool);
+
+        Thread[] senders = new Thread[2];
+        for (int t = 0; t < senders.length; t++) {
+            final String name = "sender" + t;
+            senders[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        session.send(name + " " + i);
+                    }
+                }
+            });
+            senders[t].start();
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream()));
+        int[] next = new int[senders.length];
+        for (int i = 0; i < 1000; i++) {
+            String[] line = in.readLine().split(" ");
+            int sender = Integer.parseInt(line[0].substring("sender"
+                    .length()));
+            assertEquals(next[sender], Integer.parseInt(line[1]));
+            next[sender]++;
+        }
+
+        session.disconnect();
+        session.send("after close");
+        assertTrue(session.isClosed());
+        assertEquals(null, in.readLine());
+
+        // the last buffer goes back once the drain that wrote it ends
+        while (pool.getOutstandingCount() > 0) {
+            Thread.sleep(10);
+        }
+
+        executor.shutdown();
+        client.close();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,146 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import server.ChatServer;
+import server.MessageTrace;
+import server.ServerConfig;
+import server.Tracer;
+
+/**
+ * Tests the tracing of messages from clients.
+ *
+ * - A Tracer traces one message in every sample interval, keeps the most
+ * recent traces, and traces nothing when disabled.
+ *
+ * - A traced "say" is stamped when it is taken from the queue, when its
+ * handler starts and ends, and when it is written to each member of the
+ * conversation, and can be dumped from the metrics port.
+ *
+ * @category no_didit
+ */
+public class TracerTest {
+    @Test
+    public void samplingTest() throws IOException {
+        Socket socket = new Socket();
+        Tracer disabled = new Tracer(0, 0);
+        assertFalse(disabled.isEnabled());
+        assertNull(disabled.sample("say 1 Ann hi", socket, 1));
+
+        Tracer tracer = new Tracer(3, 2);
+        int traced = 0;
+        for (int i = 0; i < 9; i++) {
+            MessageTrace trace = tracer.sample("say 1 Ann hi " + i, socket,
+                    1000);
+            if (trace != null) {
+                assertEquals(0, i % 3);
+                assertEquals("say", trace.getCommand());
+                traced++;
+            }
+        }
+        assertEquals(3, traced);
+
+        // only the last two traces are kept, oldest first
+        StringBuilder out = new StringBuilder();
+        tracer.appendTo(out);
+        String[] lines = out.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("#3 say from "));
+        assertTrue(lines[1], lines[1].startsWith("#6 say from "));
+        socket.close();
+    }
+
+    @Test
+    public void stampsTest() {
+        MessageTrace trace = new MessageTrace(7, "logout Ann", null, 1000);
+        trace.dequeued(3000);
+        trace.started(4000);
+        for (int i = 0; i < MessageTrace.MAX_WRITES + 1; i++) {
+            trace.written(null, 9000);
+        }
+        trace.ended(5000);
+        StringBuilder out = new StringBuilder();
+        trace.appendTo(out);
+        String line = out.toString();
+        assertTrue(line, line.startsWith("#7 logout from null dequeued=+2us "
+                + "start=+3us end=+4us writes=33 [null +8us, "));
+        assertTrue(line, line.endsWith(", ...]\n"));
+    }
+
+    @Test(timeout = 8000)
+    public void serverTest() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setTraceSampleInterval(1);
+        config.setMetricsPort(5695);
+        final ChatServer server = new ChatServer(5689, config);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        });
+        thread.start();
+
+        DummyClient client1 = new DummyClient("localhost", 5689);
+        DummyClient client2 = new DummyClient("localhost", 5689);
+        client1.send("login_attempt Ann 1");
+        assertEquals("login_success", client1.read());
+        client1.read();
+        client2.send("login_attempt Bob 2");
+        assertEquals("login_success", client2.read());
+        client2.read();
+        client2.read();
+        client1.read();
+        client1.send("chat_start Ann Bob");
+        String ID = client1.read().split(" ")[1];
+        client2.read();
+        client1.send("say " + ID + " Ann hi");
+        client1.read();
+        client2.read();
+
+        // the clients may read the message before the writes are stamped,
+        // and the writes may be stamped before the worker ends the trace,
+        // so scrape until all of them are
+        long deadline = System.currentTimeMillis() + 5000;
+        String say = scrapeSay();
+        while ((!say.contains(" end=") || !say.contains(" writes=2 "))
+                && System.currentTimeMillis() < deadline) {
+            say = scrapeSay();
+        }
+        assertTrue(say, say.matches("#\\d+ say from \\S+ dequeued=\\+\\d+us "
+                + "start=\\+\\d+us end=\\+\\d+us writes=2 "
+                + "\\[\\S+ \\+\\d+us, \\S+ \\+\\d+us\\]"));
+
+        client1.close();
+        client2.close();
+    }
+
+    /**
+     * Reads the traces from the metrics port and returns the trace of the
+     * "say".
+     */
+    private static String scrapeSay() throws IOException {
+        String say = null;
+        Socket socket = new Socket("localhost", 5695);
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.print("GET /traces HTTP/1.0\r\n\r\n");
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.startsWith("#") && line.contains(" say from ")) {
+                say = line;
+            }
+        }
+        socket.close();
+        assertNotNull(say);
+        return say;
+    }
+}
@@ -0,0 +1,98 @@
+package server.testing;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import server.TypingTracker;
+
+/**
+ * Tests which typing notifications a TypingTracker forwards. Times are given
+ * explicitly, with a re-announce interval of 500, a stop interval of 1000 and
+ * an expiry of 5000.
+ *
+ * - The first "typing" is forwarded, repeats within the re-announce interval
+ * are not, and one after it is.
+ *
+ * - After a pause, the next "typing" is forwarded at once.
+ *
+ * - A "cleared" is forwarded unless a "cleared" was the last notification
+ * forwarded.
+ *
+ * - Forgotten and expired states forward the next notification.
+ *
+ * - Changing the intervals applies to the states already kept.
+ *
+ * @category no_didit
+ */
+public class TypingTrackerTest {
+    @Test
+    public void reannounceTest() {
+        TypingTracker tracker = new TypingTracker(500, 1000, 5000);
+        assertTrue(tracker.typing(1, "Alex", 0));
+        assertFalse(tracker.typing(1, "Alex", 100));
+        assertFalse(tracker.typing(1, "Alex", 499));
+        assertTrue(tracker.typing(1, "Alex", 500));
+        assertFalse(tracker.typing(1, "Alex", 600));
+        assertEquals(3, tracker.getSuppressedCount());
+
+        // other users and conversations are tracked separately
+        assertTrue(tracker.typing(1, "Katie", 600));
+        assertTrue(tracker.typing(2, "Alex", 600));
+
+        // with no interval, everything is forwarded
+        TypingTracker eager = new TypingTracker(0, 1000, 5000);
+        assertTrue(eager.typing(1, "Alex", 0));
+        assertTrue(eager.typing(1, "Alex", 0));
+    }
+
+    @Test
+    public void changeIntervalsTest() {
+        TypingTracker tracker = new TypingTracker(500, 1000, 5000);
+        assertTrue(tracker.typing(1, "Alex", 0));
+        tracker.setReannounceMillis(200);
+        assertEquals(200, tracker.getReannounceMillis());
+        assertFalse(tracker.typing(1, "Alex", 100));
+        assertTrue(tracker.typing(1, "Alex", 200));
+
+        // a shorter stop interval ends the pause sooner
+        tracker.setStopMillis(300);
+        tracker.expire(500);
+        assertTrue(tracker.typing(1, "Alex", 500));
+    }
+
+    @Test
+    public void clearedTest() {
+        TypingTracker tracker = new TypingTracker(500, 1000, 5000);
+        assertTrue(tracker.cleared(1, "Alex", 0));
+        assertFalse(tracker.cleared(1, "Alex", 100));
+        assertTrue(tracker.typing(1, "Alex", 200));
+        assertTrue(tracker.cleared(1, "Alex", 300));
+        assertTrue(tracker.typing(1, "Alex", 400));
+        assertFalse(tracker.typing(1, "Alex", 450));
+    }
+
+    @Test
+    public void expireTest() {
+        TypingTracker tracker = new TypingTracker(500, 1000, 5000);
+        assertTrue(tracker.typing(1, "Alex", 0));
+        assertFalse(tracker.typing(1, "Alex", 400));
+
+        // a pause ends the typing, so the next one is announced at once
+        assertEquals(0, tracker.expire(1400));
+        assertTrue(tracker.typing(1, "Alex", 1450));
+
+        // saying something forgets the state
+        tracker.forget(1, "Alex");
+        assertEquals(0, tracker.getStateCount());
+        assertTrue(tracker.typing(1, "Alex", 1500));
+
+        // idle states are dropped, after which a "cleared" is forwarded
+        assertTrue(tracker.cleared(1, "Alex", 1600));
+        assertTrue(tracker.cleared(2, "Katie", 4000));
+        assertEquals(1, tracker.expire(6600));
+        assertEquals(1, tracker.getStateCount());
+        assertTrue(tracker.cleared(1, "Alex", 6700));
+        assertFalse(tracker.cleared(2, "Katie", 6700));
+    }
+}